@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin;
+
+
+/**
+ * The <code>EventAdminStatistics</code> service provides the delivery
+ * statistics of the Apache Felix Event Admin. The statistics are collected
+ * since the event admin was started or the statistics were reset.
+ */
+public interface EventAdminStatistics
+{
+
+    /**
+     * Returns the time the statistics collection started, in milliseconds
+     * since the epoch.
+     */
+    long getStartTime();
+
+
+    /**
+     * Returns the statistics of all registered event handlers.
+     *
+     * @return The handler statistics, an empty array if there are no handlers.
+     */
+    HandlerStatistics[] getHandlerStatistics();
+
+
+    /**
+     * Returns the statistics of all topics an event was posted or sent for.
+     * The number of topics tracked is limited, events of further topics are
+     * counted under the topic <code>*</code>.
+     *
+     * @return The topic statistics, an empty array if there were no events.
+     */
+    TopicStatistics[] getTopicStatistics();
+
+
+    /**
+     * Returns the number of events queued for asynchronous delivery.
+     */
+    long getQueuedCount();
+
+
+    /**
+     * Returns the number of posted events dropped because a queue was full.
+     */
+    long getDroppedCount();
+
+
+    /**
+     * Returns the number of posted events replaced by a newer event because
+     * a queue was full.
+     */
+    long getCoalescedCount();
+
+
+    /**
+     * Returns the maximum time a posted event waited for delivery, in
+     * milliseconds.
+     */
+    long getMaxQueueLag();
+
+
+    /**
+     * Resets all statistics.
+     */
+    void reset();
+}
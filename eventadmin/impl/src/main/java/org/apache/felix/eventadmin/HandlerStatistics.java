@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin;
+
+
+/**
+ * The <code>HandlerStatistics</code> provides the delivery times of an
+ * event handler. The times are the duration of the <code>handleEvent</code>
+ * calls in microseconds, both for sent and for posted events. Percentiles
+ * are approximated by a histogram with a relative error of 12.5%.
+ */
+public interface HandlerStatistics
+{
+
+    /**
+     * Returns the service id of the event handler.
+     */
+    long getServiceId();
+
+
+    /**
+     * Returns the id of the bundle registering the event handler or
+     * <code>-1</code> if the handler has been unregistered.
+     */
+    long getBundleId();
+
+
+    /**
+     * Returns the class name of the event handler or <code>null</code> if
+     * no event has been delivered to the handler yet.
+     */
+    String getHandlerClassName();
+
+
+    /**
+     * Returns <code>true</code> if the event handler has been blacklisted
+     * due to a timeout.
+     */
+    boolean isBlacklisted();
+
+
+    /**
+     * Returns the number of events delivered to the event handler.
+     */
+    long getCount();
+
+
+    /**
+     * Returns the total time spent delivering events, in microseconds.
+     */
+    long getTotalTime();
+
+
+    /**
+     * Returns the median delivery time, in microseconds.
+     */
+    long getMedianTime();
+
+
+    /**
+     * Returns the 99th percentile of the delivery time, in microseconds.
+     */
+    long getPercentile99Time();
+
+
+    /**
+     * Returns the maximum delivery time, in microseconds.
+     */
+    long getMaxTime();
+}
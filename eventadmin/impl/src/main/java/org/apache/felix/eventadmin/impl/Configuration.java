@@ -21,10 +21,13 @@ package org.apache.felix.eventadmin.impl;
 
 import java.util.*;
 
+import org.apache.felix.eventadmin.EventAdminStatistics;
 import org.apache.felix.eventadmin.impl.adapter.*;
 import org.apache.felix.eventadmin.impl.handler.EventAdminImpl;
+import org.apache.felix.eventadmin.impl.handler.EventAdminStatisticsImpl;
 import org.apache.felix.eventadmin.impl.security.SecureEventAdminFactory;
 import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
+import org.apache.felix.eventadmin.impl.tasks.QueueLimits;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.*;
 import org.osgi.service.cm.ConfigurationException;
@@ -83,6 +86,52 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * all handlers in exactly this package are ignored. If the string ends with a star,
  * all handlers in this package and all subpackages are ignored. If the string neither
  * ends with a dot nor with a start, this is assumed to define an exact class name.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.QueueCapacity</tt> - The maximum number of
+ *          posted events waiting for delivery.
+ * </p>
+ * The capacity applies to the events posted by each thread, a value of 0 (the
+ * default) means unbounded. Once the capacity is reached, the queue policy applies.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.TopicQueueCapacity</tt> - The maximum number
+ *          of posted events of a topic waiting for delivery.
+ * </p>
+ * The value is a list of strings (separated by comma) of the form
+ * <tt>topic=capacity</tt>. If the topic ends with <tt>/*</tt>, the capacity is
+ * shared by all events of the sub topics. The most specific topic applies.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.QueuePolicy</tt> - What to do with a posted
+ *          event once a capacity is reached.
+ * </p>
+ * <tt>block</tt> (the default) blocks the posting thread until the queued events
+ * are taken for delivery, <tt>dropOldest</tt> drops the oldest waiting event,
+ * <tt>dropNewest</tt> drops the posted event and <tt>coalesce</tt> replaces a
+ * waiting event with the same topic and coalesce property value, falling back to
+ * dropping the oldest waiting event.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.CoalesceProperty</tt> - The event property
+ *          identifying events to coalesce.
+ * </p>
+ * If not set, all waiting events of the same topic are coalesced.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.InlineDelivery</tt> - Call event handlers
+ *          in the delivering thread even if a timeout is configured.
+ * </p>
+ * The default is <tt>false</tt>: with a timeout, each handler is called in a
+ * thread from the pool while the delivering thread waits for it. If enabled, the
+ * handlers are called directly and a watchdog thread blacklists handlers exceeding
+ * the timeout. This makes synchronous delivery much cheaper, but a handler exceeding
+ * the timeout blocks the delivering thread until it returns.
  *
  * These properties are read at startup and serve as a default configuration.
  * If a configuration admin is configured, the event admin can be configured
@@ -100,6 +149,11 @@ public class Configuration
     static final String PROP_REQUIRE_TOPIC = "org.apache.felix.eventadmin.RequireTopic";
     static final String PROP_IGNORE_TIMEOUT = "org.apache.felix.eventadmin.IgnoreTimeout";
     static final String PROP_LOG_LEVEL = "org.apache.felix.eventadmin.LogLevel";
+    static final String PROP_QUEUE_CAPACITY = "org.apache.felix.eventadmin.QueueCapacity";
+    static final String PROP_TOPIC_QUEUE_CAPACITY = "org.apache.felix.eventadmin.TopicQueueCapacity";
+    static final String PROP_QUEUE_POLICY = "org.apache.felix.eventadmin.QueuePolicy";
+    static final String PROP_COALESCE_PROPERTY = "org.apache.felix.eventadmin.CoalesceProperty";
+    static final String PROP_INLINE_DELIVERY = "org.apache.felix.eventadmin.InlineDelivery";
 
     /** The bundle context. */
     private final BundleContext m_bundleContext;
@@ -114,6 +168,16 @@ public class Configuration
 
     private int m_logLevel;
 
+    private int m_queueCapacity;
+
+    private String[] m_topicQueueCapacity;
+
+    private int m_queuePolicy;
+
+    private String m_coalesceProperty;
+
+    private boolean m_inlineDelivery;
+
     // The thread pool used - this is a member because we need to close it on stop
     private volatile DefaultThreadPool m_sync_pool;
 
@@ -128,6 +192,11 @@ public class Configuration
     // The registration of the security decorator factory (i.e., the service)
     private volatile ServiceRegistration m_registration;
 
+    // The registrations of the statistics service and its shell command
+    private volatile ServiceRegistration m_statisticsRegistration;
+
+    private volatile ServiceRegistration m_commandRegistration;
+
     // all adapters
     private AbstractAdapter[] m_adapters;
 
@@ -239,6 +308,14 @@ public class Configuration
                     m_bundleContext.getProperty(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+            m_queueCapacity = getIntProperty(PROP_QUEUE_CAPACITY,
+                    m_bundleContext.getProperty(PROP_QUEUE_CAPACITY), 0, 0);
+            m_topicQueueCapacity = getStringArrayProperty(PROP_TOPIC_QUEUE_CAPACITY,
+                    m_bundleContext.getProperty(PROP_TOPIC_QUEUE_CAPACITY));
+            m_queuePolicy = getPolicyProperty(m_bundleContext.getProperty(PROP_QUEUE_POLICY));
+            m_coalesceProperty = m_bundleContext.getProperty(PROP_COALESCE_PROPERTY);
+            m_inlineDelivery = getBooleanProperty(
+                m_bundleContext.getProperty(PROP_INLINE_DELIVERY), false);
         }
         else
         {
@@ -264,6 +341,17 @@ public class Configuration
                     config.get(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+            m_queueCapacity = getIntProperty(PROP_QUEUE_CAPACITY, config.get(PROP_QUEUE_CAPACITY), 0, 0);
+            m_topicQueueCapacity = getStringArrayProperty(PROP_TOPIC_QUEUE_CAPACITY,
+                    config.get(PROP_TOPIC_QUEUE_CAPACITY));
+            m_queuePolicy = getPolicyProperty(config.get(PROP_QUEUE_POLICY));
+            final Object coalesceProperty = config.get(PROP_COALESCE_PROPERTY);
+            m_coalesceProperty = coalesceProperty == null ? null : coalesceProperty.toString();
+            m_inlineDelivery = getBooleanProperty(config.get(PROP_INLINE_DELIVERY), false);
+        }
+        if ( m_coalesceProperty != null && m_coalesceProperty.trim().length() == 0 )
+        {
+            m_coalesceProperty = null;
         }
         // a timeout less or equals to 100 means : disable timeout
         if ( m_timeout <= 100 )
@@ -283,6 +371,15 @@ public class Configuration
             PROP_TIMEOUT + "=" + m_timeout);
         LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
             PROP_REQUIRE_TOPIC + "=" + m_requireTopic);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_QUEUE_CAPACITY + "=" + m_queueCapacity);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_QUEUE_POLICY + "=" + QueueLimits.POLICY_NAMES[m_queuePolicy]);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_INLINE_DELIVERY + "=" + m_inlineDelivery);
+
+        final QueueLimits queueLimits = new QueueLimits(m_queueCapacity,
+                m_queuePolicy, m_topicQueueCapacity, m_coalesceProperty);
 
         // Note that this uses a lazy thread pool that will create new threads on
         // demand - in case none of its cached threads is free - until threadPoolSize
@@ -313,7 +410,9 @@ public class Configuration
                     m_async_pool,
                     m_timeout,
                     m_ignoreTimeout,
-                    m_requireTopic);
+                    m_requireTopic,
+                    queueLimits,
+                    m_inlineDelivery);
 
             // Finally, adapt the outside events to our kind of events as per spec
             adaptEvents(m_admin);
@@ -323,10 +422,12 @@ public class Configuration
             // appropriated permissions of each calling bundle
             m_registration = m_bundleContext.registerService(EventAdmin.class.getName(),
                     new SecureEventAdminFactory(m_admin), null);
+
+            registerStatistics(m_admin);
         }
         else
         {
-            m_admin.update(m_timeout, m_ignoreTimeout, m_requireTopic);
+            m_admin.update(m_timeout, m_ignoreTimeout, m_requireTopic, queueLimits, m_inlineDelivery);
         }
 
     }
@@ -355,6 +456,16 @@ public class Configuration
                 m_managedServiceReg.unregister();
                 m_managedServiceReg = null;
             }
+            if ( m_commandRegistration != null )
+            {
+                m_commandRegistration.unregister();
+                m_commandRegistration = null;
+            }
+            if ( m_statisticsRegistration != null )
+            {
+                m_statisticsRegistration.unregister();
+                m_statisticsRegistration = null;
+            }
             // We need to unregister manually
             if ( m_registration != null )
             {
@@ -379,6 +490,29 @@ public class Configuration
         }
     }
 
+    /**
+     * Register the statistics service and the Gogo command for it. The
+     * command is registered by its properties only, so it is available as
+     * soon as a Gogo shell is installed.
+     */
+    private void registerStatistics(final EventAdminImpl admin)
+    {
+        final EventAdminStatistics statistics = new EventAdminStatisticsImpl(admin);
+        Dictionary props = new Hashtable();
+        props.put( Constants.SERVICE_DESCRIPTION, "Apache Felix Event Admin Statistics" );
+        props.put( Constants.SERVICE_VENDOR, "The Apache Software Foundation" );
+        m_statisticsRegistration = m_bundleContext.registerService(
+                EventAdminStatistics.class.getName(), statistics, props);
+
+        props = new Hashtable();
+        props.put( "osgi.command.scope", EventAdminCommand.SCOPE );
+        props.put( "osgi.command.function", EventAdminCommand.FUNCTIONS );
+        props.put( Constants.SERVICE_DESCRIPTION, "Apache Felix Event Admin Gogo Shell Support" );
+        props.put( Constants.SERVICE_VENDOR, "The Apache Software Foundation" );
+        m_commandRegistration = m_bundleContext.registerService(
+                EventAdminCommand.class.getName(), new EventAdminCommand(statistics), props);
+    }
+
     /**
      * Init the adapters in org.apache.felix.eventadmin.impl.adapter
      */
@@ -397,7 +531,8 @@ public class Configuration
         {
             return new MetaTypeProviderImpl((ManagedService)managedService,
                     m_threadPoolSize, m_timeout, m_requireTopic,
-                    m_ignoreTimeout);
+                    m_ignoreTimeout, m_queueCapacity, m_topicQueueCapacity,
+                    m_queuePolicy, m_coalesceProperty, m_inlineDelivery);
         }
         catch (final Throwable t)
         {
@@ -466,6 +601,53 @@ public class Configuration
         return defaultValue;
     }
 
+    /**
+     * Returns the value of the property as a string array. A string is split
+     * at commas. Returns null if the property is not set or of another type.
+     */
+    private String[] getStringArrayProperty(final String key, final Object value)
+    {
+        if ( value instanceof String[] )
+        {
+            return (String[])value;
+        }
+        if ( value instanceof String )
+        {
+            final StringTokenizer st = new StringTokenizer((String)value, ",");
+            final String[] result = new String[st.countTokens()];
+            for(int i=0; i<result.length; i++)
+            {
+                result[i] = st.nextToken();
+            }
+            return result;
+        }
+        if ( value != null )
+        {
+            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                    "Value for property: " + key + " is neither a string nor a string array - Using default");
+        }
+        return null;
+    }
+
+    /**
+     * Returns the queue policy named by the value of the property or the
+     * block policy if the property is not set or unknown.
+     */
+    private int getPolicyProperty(final Object value)
+    {
+        if ( value != null )
+        {
+            final int policy = QueueLimits.getPolicy(value.toString().trim());
+            if ( policy != -1 )
+            {
+                return policy;
+            }
+            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                    "Unknown value for property: " + PROP_QUEUE_POLICY + " - Using default");
+        }
+        return QueueLimits.BLOCK;
+    }
+
     /**
      * Returns true if the value of the property is set and is either 1, true, or yes
      * Returns false if the value of the property is set and is either 0, false, or no
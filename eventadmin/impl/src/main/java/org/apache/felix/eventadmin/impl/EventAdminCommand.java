@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+import org.apache.felix.eventadmin.EventAdminStatistics;
+import org.apache.felix.eventadmin.HandlerStatistics;
+import org.apache.felix.eventadmin.TopicStatistics;
+
+/**
+ * The <code>EventAdminCommand</code> implements the Apache Felix Gogo Shell
+ * commands for the event admin statistics. Supported commands are:
+ * <dl>
+ * <dt><code>eventadmin:handlers</code></dt>
+ * <dd>List the delivery times of the event handlers, slowest first</dd>
+ * <dt><code>eventadmin:topics</code></dt>
+ * <dd>List the number of events and the throughput per topic</dd>
+ * <dt><code>eventadmin:reset</code></dt>
+ * <dd>Reset the statistics</dd>
+ * </dl>
+ * The command is registered by its service properties only, so no Gogo
+ * classes are required.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class EventAdminCommand
+{
+    static final String SCOPE = "eventadmin";
+
+    static final String[] FUNCTIONS = new String[] {"handlers", "topics", "reset"};
+
+    private final EventAdminStatistics statistics;
+
+    public EventAdminCommand(final EventAdminStatistics statistics)
+    {
+        this.statistics = statistics;
+    }
+
+    /**
+     * List the delivery times of the event handlers, slowest first.
+     */
+    public void handlers()
+    {
+        final PrintStream out = System.out;
+        final HandlerStatistics[] handlers = this.statistics.getHandlerStatistics();
+        Arrays.sort(handlers, new Comparator()
+        {
+            public int compare(final Object o1, final Object o2)
+            {
+                final long t1 = ((HandlerStatistics)o1).getPercentile99Time();
+                final long t2 = ((HandlerStatistics)o2).getPercentile99Time();
+                return t1 > t2 ? -1 : (t1 < t2 ? 1 : 0);
+            }
+        });
+        this.printHeader(out);
+        out.println("Queue: queued=" + this.statistics.getQueuedCount()
+                + ", dropped=" + this.statistics.getDroppedCount()
+                + ", coalesced=" + this.statistics.getCoalescedCount()
+                + ", max lag=" + this.statistics.getMaxQueueLag() + "ms");
+        out.println("Service  Bundle       Count   p50(us)   p99(us)   max(us)  Handler");
+        for(int i = 0; i < handlers.length; i++)
+        {
+            final HandlerStatistics handler = handlers[i];
+            out.println(pad(handler.getServiceId(), 7)
+                    + pad(handler.getBundleId(), 8)
+                    + pad(handler.getCount(), 12)
+                    + pad(handler.getMedianTime(), 10)
+                    + pad(handler.getPercentile99Time(), 10)
+                    + pad(handler.getMaxTime(), 10)
+                    + "  " + (handler.getHandlerClassName() == null ? "-" : handler.getHandlerClassName())
+                    + (handler.isBlacklisted() ? " (blacklisted)" : ""));
+        }
+    }
+
+    /**
+     * List the number of events and the throughput per topic, busiest first.
+     */
+    public void topics()
+    {
+        final PrintStream out = System.out;
+        final TopicStatistics[] topics = this.statistics.getTopicStatistics();
+        Arrays.sort(topics, new Comparator()
+        {
+            public int compare(final Object o1, final Object o2)
+            {
+                final long c1 = getCount((TopicStatistics)o1);
+                final long c2 = getCount((TopicStatistics)o2);
+                return c1 > c2 ? -1 : (c1 < c2 ? 1 : 0);
+            }
+        });
+        final long seconds = this.printHeader(out);
+        out.println("     Posted        Sent   Events/s  Topic");
+        for(int i = 0; i < topics.length; i++)
+        {
+            final TopicStatistics topic = topics[i];
+            out.println(pad(topic.getPostedCount(), 11)
+                    + pad(topic.getSentCount(), 12)
+                    + pad(getCount(topic) / seconds, 11)
+                    + "  " + topic.getTopic());
+        }
+    }
+
+    /**
+     * Reset the statistics.
+     */
+    public void reset()
+    {
+        this.statistics.reset();
+        System.out.println("Event admin statistics reset");
+    }
+
+    /**
+     * Print the period of the statistics.
+     * @return The period in seconds, at least one
+     */
+    private long printHeader(final PrintStream out)
+    {
+        final long start = this.statistics.getStartTime();
+        final long seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+        out.println("Statistics since " + new Date(start) + " (" + seconds + "s)");
+        return seconds;
+    }
+
+    private static long getCount(final TopicStatistics topic)
+    {
+        return topic.getPostedCount() + topic.getSentCount();
+    }
+
+    private static String pad(final long value, final int width)
+    {
+        final StringBuffer sb = new StringBuffer(String.valueOf(value));
+        while ( sb.length() < width )
+        {
+            sb.insert(0, ' ');
+        }
+        return sb.toString();
+    }
+}
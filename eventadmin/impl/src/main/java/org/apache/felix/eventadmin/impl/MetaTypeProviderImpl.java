@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Dictionary;
 
+import org.apache.felix.eventadmin.impl.tasks.QueueLimits;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
 import org.osgi.service.metatype.*;
@@ -38,19 +39,34 @@ public class MetaTypeProviderImpl
     private final int m_timeout;
     private final boolean m_requireTopic;
     private final String[] m_ignoreTimeout;
+    private final int m_queueCapacity;
+    private final String[] m_topicQueueCapacity;
+    private final int m_queuePolicy;
+    private final String m_coalesceProperty;
+    private final boolean m_inlineDelivery;
 
     private final ManagedService m_delegatee;
 
     public MetaTypeProviderImpl(final ManagedService delegatee,
             final int threadPoolSize,
             final int timeout, final boolean requireTopic,
-            final String[] ignoreTimeout)
+            final String[] ignoreTimeout,
+            final int queueCapacity,
+            final String[] topicQueueCapacity,
+            final int queuePolicy,
+            final String coalesceProperty,
+            final boolean inlineDelivery)
     {
         m_threadPoolSize = threadPoolSize;
         m_timeout = timeout;
         m_requireTopic = requireTopic;
         m_delegatee = delegatee;
         m_ignoreTimeout = ignoreTimeout;
+        m_queueCapacity = queueCapacity;
+        m_topicQueueCapacity = topicQueueCapacity;
+        m_queuePolicy = queuePolicy;
+        m_coalesceProperty = coalesceProperty;
+        m_inlineDelivery = inlineDelivery;
     }
 
     private ObjectClassDefinition ocd;
@@ -116,6 +132,36 @@ public class MetaTypeProviderImpl
                     "all handlers in this package and all subpackages are ignored. If the string neither " +
                     "ends with a dot nor with a star, this is assumed to define an exact class name.",
                     AttributeDefinition.STRING, m_ignoreTimeout, Integer.MAX_VALUE, null, null));
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_QUEUE_CAPACITY, "Queue Capacity",
+                    "The maximum number of posted events waiting for delivery. The capacity applies to the " +
+                    "events posted by each thread. Once it is reached, the queue policy applies. The default " +
+                    "value 0 means unbounded.",
+                    m_queueCapacity ) );
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_TOPIC_QUEUE_CAPACITY, "Topic Queue Capacity",
+                    "The maximum number of posted events of a topic waiting for delivery. The value is a list " +
+                    "of strings of the form topic=capacity. If the topic ends with /*, the capacity is shared " +
+                    "by all events of the sub topics. The most specific topic applies.",
+                    AttributeDefinition.STRING, m_topicQueueCapacity, Integer.MAX_VALUE, null, null));
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_QUEUE_POLICY, "Queue Policy",
+                    "What to do with a posted event once a queue capacity is reached: block the posting " +
+                    "thread until the queued events are taken for delivery, drop the oldest waiting event, " +
+                    "drop the posted event or replace a waiting event with the same topic and coalesce " +
+                    "property value.",
+                    AttributeDefinition.STRING, new String[] {QueueLimits.POLICY_NAMES[m_queuePolicy]}, 0,
+                    new String[] {"Block", "Drop Oldest", "Drop Newest", "Coalesce"},
+                    QueueLimits.POLICY_NAMES));
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_COALESCE_PROPERTY, "Coalesce Property",
+                    "The event property identifying the events to coalesce. If not set, all waiting " +
+                    "events of the same topic are coalesced.",
+                    AttributeDefinition.STRING,
+                    m_coalesceProperty == null ? null : new String[] {m_coalesceProperty}, 0, null, null));
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_INLINE_DELIVERY, "Inline Delivery",
+                    "Call event handlers in the delivering thread even if a timeout is configured. By default " +
+                    "each handler is called in a thread from the pool while the delivering thread waits for it. " +
+                    "If enabled, the handlers are called directly and a watchdog thread blacklists handlers " +
+                    "exceeding the timeout. This makes synchronous delivery much cheaper, but a handler " +
+                    "exceeding the timeout blocks the delivering thread until it returns.",
+                    m_inlineDelivery ) );
             ocd = new ObjectClassDefinition()
             {
 
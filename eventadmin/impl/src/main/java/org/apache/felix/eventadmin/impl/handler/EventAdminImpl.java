@@ -20,6 +20,8 @@ package org.apache.felix.eventadmin.impl.handler;
 
 import org.apache.felix.eventadmin.impl.tasks.AsyncDeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
+import org.apache.felix.eventadmin.impl.tasks.QueueLimits;
+import org.apache.felix.eventadmin.impl.tasks.QueueStatistics;
 import org.apache.felix.eventadmin.impl.tasks.SyncDeliverTasks;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
@@ -49,11 +51,16 @@ public class EventAdminImpl implements EventAdmin
     // The synchronous event dispatcher
     private final SyncDeliverTasks m_sendManager;
 
+    // The number of events per topic
+    private final TopicCounters m_topicCounters = new TopicCounters();
+
     /**
      * The constructor of the <tt>EventAdmin</tt> implementation.
      *
      * @param syncPool The synchronous thread pool
      * @param asyncPool The asynchronous thread pool
+     * @param queueLimits The limits for the queues of posted events
+     * @param inlineDelivery Whether handlers are called inline with a watchdog
      */
     public EventAdminImpl(
                     final BundleContext bundleContext,
@@ -61,7 +68,9 @@ public class EventAdminImpl implements EventAdmin
                     final DefaultThreadPool asyncPool,
                     final int timeout,
                     final String[] ignoreTimeout,
-                    final boolean requireTopic)
+                    final boolean requireTopic,
+                    final QueueLimits queueLimits,
+                    final boolean inlineDelivery)
     {
         checkNull(syncPool, "syncPool");
         checkNull(asyncPool, "asyncPool");
@@ -69,8 +78,8 @@ public class EventAdminImpl implements EventAdmin
         this.tracker = new EventHandlerTracker(bundleContext);
         this.tracker.update(ignoreTimeout, requireTopic);
         this.tracker.open();
-        m_sendManager = new SyncDeliverTasks(syncPool, timeout);
-        m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager);
+        m_sendManager = new SyncDeliverTasks(syncPool, timeout, inlineDelivery);
+        m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager, queueLimits);
     }
 
     /**
@@ -97,7 +106,9 @@ public class EventAdminImpl implements EventAdmin
      */
     public void postEvent(final Event event)
     {
-        m_postManager.execute(this.getTracker().getHandlers(event), event);
+        final EventHandlerTracker localTracker = this.getTracker();
+        m_topicCounters.posted(event.getTopic());
+        m_postManager.execute(localTracker.getHandlers(event), event);
     }
 
     /**
@@ -111,7 +122,9 @@ public class EventAdminImpl implements EventAdmin
      */
     public void sendEvent(final Event event)
     {
-        m_sendManager.execute(this.getTracker().getHandlers(event), event, false);
+        final EventHandlerTracker localTracker = this.getTracker();
+        m_topicCounters.sent(event.getTopic());
+        m_sendManager.execute(localTracker.getHandlers(event), event, false);
     }
 
     /**
@@ -121,6 +134,8 @@ public class EventAdminImpl implements EventAdmin
     {
         this.tracker.close();
         this.tracker = null;
+        this.m_sendManager.stop();
+        this.m_postManager.stop();
     }
 
     /**
@@ -128,14 +143,41 @@ public class EventAdminImpl implements EventAdmin
      */
     public void update(final int timeout,
                     final String[] ignoreTimeout,
-                    final boolean requireTopic)
+                    final boolean requireTopic,
+                    final QueueLimits queueLimits,
+                    final boolean inlineDelivery)
     {
         this.tracker.close();
         this.tracker.update(ignoreTimeout, requireTopic);
-        this.m_sendManager.update(timeout);
+        this.m_sendManager.update(timeout, inlineDelivery);
+        this.m_postManager.update(queueLimits);
         this.tracker.open();
     }
 
+    /**
+     * The statistics of the queues of posted events.
+     */
+    public QueueStatistics getQueueStatistics()
+    {
+        return this.m_postManager.getStatistics();
+    }
+
+    /**
+     * The proxies of all event handlers.
+     */
+    public EventHandlerProxy[] getHandlerProxies()
+    {
+        return this.getTracker().getProxies();
+    }
+
+    /**
+     * The number of events per topic.
+     */
+    public TopicCounters getTopicCounters()
+    {
+        return m_topicCounters;
+    }
+
     /**
      * This is a utility method that will throw a <tt>NullPointerException</tt>
      * in case that the given object is null. The message will be of the form
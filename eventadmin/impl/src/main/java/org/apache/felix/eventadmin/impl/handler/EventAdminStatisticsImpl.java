@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import org.apache.felix.eventadmin.EventAdminStatistics;
+import org.apache.felix.eventadmin.HandlerStatistics;
+import org.apache.felix.eventadmin.TopicStatistics;
+import org.apache.felix.eventadmin.impl.tasks.QueueStatistics;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The statistics service of the event admin. It only reads the statistics
+ * collected during event delivery and creates snapshots of them.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class EventAdminStatisticsImpl implements EventAdminStatistics
+{
+    /** The event admin. */
+    private final EventAdminImpl admin;
+
+    /** The start of the statistics collection. */
+    private volatile long startTime = System.currentTimeMillis();
+
+    public EventAdminStatisticsImpl(final EventAdminImpl admin)
+    {
+        this.admin = admin;
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.EventAdminStatistics#getStartTime()
+     */
+    public long getStartTime()
+    {
+        return this.startTime;
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.EventAdminStatistics#getHandlerStatistics()
+     */
+    public HandlerStatistics[] getHandlerStatistics()
+    {
+        final EventHandlerProxy[] proxies = this.admin.getHandlerProxies();
+        final HandlerStatistics[] result = new HandlerStatistics[proxies.length];
+        for(int i = 0; i < proxies.length; i++)
+        {
+            result[i] = new Snapshot(proxies[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.EventAdminStatistics#getTopicStatistics()
+     */
+    public TopicStatistics[] getTopicStatistics()
+    {
+        return this.admin.getTopicCounters().getStatistics();
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.EventAdminStatistics#getQueuedCount()
+     */
+    public long getQueuedCount()
+    {
+        return this.admin.getQueueStatistics().getQueued();
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.EventAdminStatistics#getDroppedCount()
+     */
+    public long getDroppedCount()
+    {
+        return this.admin.getQueueStatistics().getDropped();
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.EventAdminStatistics#getCoalescedCount()
+     */
+    public long getCoalescedCount()
+    {
+        return this.admin.getQueueStatistics().getCoalesced();
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.EventAdminStatistics#getMaxQueueLag()
+     */
+    public long getMaxQueueLag()
+    {
+        return this.admin.getQueueStatistics().getMaxLag();
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.EventAdminStatistics#reset()
+     */
+    public void reset()
+    {
+        this.startTime = System.currentTimeMillis();
+        final EventHandlerProxy[] proxies = this.admin.getHandlerProxies();
+        for(int i = 0; i < proxies.length; i++)
+        {
+            proxies[i].getDeliveryTimes().reset();
+        }
+        this.admin.getTopicCounters().reset();
+        this.admin.getQueueStatistics().reset();
+    }
+
+    /**
+     * The statistics of a handler at the time of the call.
+     */
+    private static final class Snapshot implements HandlerStatistics
+    {
+        private final long serviceId;
+        private final long bundleId;
+        private final String handlerClassName;
+        private final boolean blacklisted;
+        private final long count;
+        private final long totalTime;
+        private final long medianTime;
+        private final long percentile99Time;
+        private final long maxTime;
+
+        public Snapshot(final EventHandlerProxy proxy)
+        {
+            final ServiceReference reference = proxy.getReference();
+            this.serviceId = ((Long)reference.getProperty(Constants.SERVICE_ID)).longValue();
+            final Bundle bundle = reference.getBundle();
+            this.bundleId = bundle == null ? -1 : bundle.getBundleId();
+            this.handlerClassName = proxy.getHandlerClassName();
+            this.blacklisted = proxy.isBlacklisted();
+            final LatencyHistogram.Buckets times = proxy.getDeliveryTimes().getSnapshot();
+            this.count = times.getCount();
+            this.totalTime = times.getTotal();
+            this.medianTime = times.getPercentile(50);
+            this.percentile99Time = times.getPercentile(99);
+            this.maxTime = times.getMax();
+        }
+
+        public long getServiceId()
+        {
+            return this.serviceId;
+        }
+
+        public long getBundleId()
+        {
+            return this.bundleId;
+        }
+
+        public String getHandlerClassName()
+        {
+            return this.handlerClassName;
+        }
+
+        public boolean isBlacklisted()
+        {
+            return this.blacklisted;
+        }
+
+        public long getCount()
+        {
+            return this.count;
+        }
+
+        public long getTotalTime()
+        {
+            return this.totalTime;
+        }
+
+        public long getMedianTime()
+        {
+            return this.medianTime;
+        }
+
+        public long getPercentile99Time()
+        {
+            return this.percentile99Time;
+        }
+
+        public long getMaxTime()
+        {
+            return this.maxTime;
+        }
+    }
+}
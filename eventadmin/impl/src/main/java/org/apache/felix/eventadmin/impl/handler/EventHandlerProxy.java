@@ -18,10 +18,11 @@
  */
 package org.apache.felix.eventadmin.impl.handler;
 
+import java.security.Permission;
 import java.util.Collection;
 import java.util.Iterator;
 
-import org.apache.felix.eventadmin.impl.security.PermissionsUtil;
+import org.apache.felix.eventadmin.impl.util.Clock;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Filter;
@@ -36,7 +37,7 @@ import org.osgi.service.event.EventHandler;
  * on demand and prepares some information for faster processing.
  *
  * It checks the timeout handling for the implementation as well as
- * blacklisting the handler.
+ * blacklisting the handler, and records the delivery times.
  *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
@@ -66,6 +67,12 @@ public class EventHandlerProxy {
     /** Deliver async ordered. */
     private boolean asyncOrderedDelivery;
 
+    /** The class name of the event handler, once obtained. */
+    private volatile String handlerClassName;
+
+    /** The delivery times. */
+    private final LatencyHistogram deliveryTimes = new LatencyHistogram();
+
     /**
      * Create an EventHandlerProxy.
      *
@@ -283,7 +290,8 @@ public class EventHandlerProxy {
                 this.handler = (EventHandler)this.handlerContext.bundleContext.getService(this.reference);
                 if ( this.handler != null )
                 {
-                    this.checkTimeout(this.handler.getClass().getName());
+                    this.handlerClassName = this.handler.getClass().getName();
+                    this.checkTimeout(this.handlerClassName);
                 }
             }
             catch (final IllegalStateException ignore)
@@ -327,8 +335,12 @@ public class EventHandlerProxy {
      * - blacklisted
      * - check filter
      * - check permission
+     *
+     * @param event The event
+     * @param permission The subscribe permission for the topic of the
+     *        event or <code>null</code> if no permission check is required
      */
-    public boolean canDeliver(final Event event)
+    public boolean canDeliver(final Event event, final Permission permission)
     {
         if ( this.blacklisted )
         {
@@ -349,8 +361,7 @@ public class EventHandlerProxy {
         }
 
         // permission check
-        final Object p = PermissionsUtil.createSubscribePermission(event.getTopic());
-        if (p != null && !bundle.hasPermission(p) )
+        if (permission != null && !bundle.hasPermission(permission) )
         {
             return false;
         }
@@ -358,6 +369,39 @@ public class EventHandlerProxy {
         return true;
     }
 
+    /**
+     * Get the service reference of the handler.
+     */
+    public ServiceReference getReference()
+    {
+        return this.reference;
+    }
+
+    /**
+     * Get the class name of the handler or <code>null</code> if the
+     * handler has not been obtained yet.
+     */
+    public String getHandlerClassName()
+    {
+        return this.handlerClassName;
+    }
+
+    /**
+     * Is this handler blacklisted?
+     */
+    public boolean isBlacklisted()
+    {
+        return this.blacklisted;
+    }
+
+    /**
+     * Get the delivery times of this handler.
+     */
+    public LatencyHistogram getDeliveryTimes()
+    {
+        return this.deliveryTimes;
+    }
+
     /**
      * Should a timeout be used for this handler?
      */
@@ -407,6 +451,7 @@ public class EventHandlerProxy {
             return;
         }
 
+        final long start = Clock.nanoTime();
         try
         {
             handlerService.handleEvent(event);
@@ -421,6 +466,10 @@ public class EventHandlerProxy {
                                             + this.reference + " | Bundle("
                                             + this.reference.getBundle() + ")]", e);
         }
+        finally
+        {
+            this.deliveryTimes.record((Clock.nanoTime() - start) / 1000);
+        }
     }
 
     /**
@@ -18,14 +18,18 @@
  */
 package org.apache.felix.eventadmin.impl.handler;
 
+import java.security.Permission;
 import java.util.*;
 
+import org.apache.felix.eventadmin.impl.security.PermissionsUtil;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
 import org.osgi.util.tracker.ServiceTracker;
 
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+
 /**
  * The event handler tracker keeps track of all event handler services.
  *
@@ -33,30 +37,22 @@ import org.osgi.util.tracker.ServiceTracker;
  */
 public class EventHandlerTracker extends ServiceTracker {
 
-    /** The proxies in this list match all events. */
-	private volatile List matchingAllEvents;
-
-    /** This is a map for exact topic matches. The key is the topic,
-     * the value is a list of proxies.
-     */
-    private volatile Map matchingTopic;
+    /** The maximum number of topics for which the handlers are cached. */
+    private static final int MAX_CACHED_TOPICS = 1024;
 
-	/** This is a map for wildcard topics. The key is the prefix of the topic,
-	 * the value is a list of proxies
-	 */
-	private volatile Map matchingPrefixTopic;
+    /** All valid proxies, guarded by this tracker. */
+    private final Set proxies = new HashSet();
 
+    /** The index of the valid proxies by topic. It is rebuilt whenever
+     * a proxy is added or removed, which also drops the cached handlers.
+     */
+    private volatile HandlerIndex index = new HandlerIndex(Collections.EMPTY_SET);
 
 	/** The context for the proxies. */
 	private HandlerContext handlerContext;
 
     public EventHandlerTracker(final BundleContext context) {
 		super(context, EventHandler.class.getName(), null);
-
-		// we start with empty collections
-		this.matchingAllEvents = new ArrayList();
-		this.matchingTopic = new HashMap();
-		this.matchingPrefixTopic = new HashMap();
 	}
 
     /**
@@ -130,188 +126,253 @@ public class EventHandlerTracker extends ServiceTracker {
         proxy.dispose();
 	}
 
-	private void updateMap(final Map proxyListMap, final String key, final EventHandlerProxy proxy, final boolean add) {
-        List proxies = (List)proxyListMap.get(key);
-        if (proxies == null) {
-            if ( !add )
-            {
-                return;
-            }
-            proxies = new ArrayList();
-        } else {
-            proxies = new ArrayList(proxies);
-        }
-        if ( add )
-        {
-            proxies.add(proxy);
-        }
-        else
-        {
-            proxies.remove(proxy);
-        }
-        if ( proxies.size() == 0 )
-        {
-            proxyListMap.remove(key);
-        }
-        else
-        {
-            proxyListMap.put(key, proxies);
-        }
+	/**
+	 * Add the proxy and rebuild the index. Handler changes are rare
+	 * compared to events, so we always create a new index - while this
+	 * is "expensive" it allows us to read from it unsynced
+	 */
+	private synchronized void put(final EventHandlerProxy proxy) {
+	    this.proxies.add(proxy);
+	    this.index = new HandlerIndex(this.proxies);
+	}
+
+    /**
+     * Remove the proxy and rebuild the index.
+     */
+	private synchronized void remove(final EventHandlerProxy proxy) {
+	    if ( this.proxies.remove(proxy) )
+	    {
+	        this.index = new HandlerIndex(this.proxies);
+	    }
+	}
+
+    /**
+     * Get all valid proxies.
+     */
+	public synchronized EventHandlerProxy[] getProxies() {
+	    return (EventHandlerProxy[])this.proxies.toArray(new EventHandlerProxy[this.proxies.size()]);
 	}
 
 	/**
-	 * Check the topics of the event handler and put it into the
-	 * corresponding collections.
-	 * We always create new collections - while this is "expensive"
-	 * it allows us to read from them unsynced
+	 * Get all handlers for this event
+	 *
+	 * @param event The event topic
+	 * @return All handlers for the event
 	 */
-	private synchronized void put(final EventHandlerProxy proxy) {
-		final String[] topics = proxy.getTopics();
-		if ( topics == null )
-		{
-		    final List newMatchingAllEvents = new ArrayList(this.matchingAllEvents);
-		    newMatchingAllEvents.add(proxy);
-		    this.matchingAllEvents = newMatchingAllEvents;
-		}
-		else
-		{
-		    Map newMatchingTopic = null;
-		    Map newMatchingPrefixTopic = null;
-    		for(int i = 0; i < topics.length; i++) {
-    			final String topic = topics[i];
-
-    			if ( topic.endsWith("/*") )
-    			{
-                    // prefix topic: we remove the /*
-    			    if ( newMatchingPrefixTopic == null )
-    			    {
-    			        newMatchingPrefixTopic = new HashMap(this.matchingPrefixTopic);
-    			    }
-
-    				final String prefix = topic.substring(0, topic.length() - 2);
-                    this.updateMap(newMatchingPrefixTopic, prefix, proxy, true);
-    			}
-    			else
-    			{
-    			    // exact match
-                    if ( newMatchingTopic == null )
-                    {
-                        newMatchingTopic = new HashMap(this.matchingTopic);
-                    }
+	public Collection getHandlers(final Event event) {
+	    final String topic = event.getTopic();
 
-                    this.updateMap(newMatchingTopic, topic, proxy, true);
-    			}
-    		}
-    		if ( newMatchingTopic != null )
-    		{
-    		    this.matchingTopic = newMatchingTopic;
-    		}
-    		if ( newMatchingPrefixTopic != null )
-    		{
-    		    this.matchingPrefixTopic = newMatchingPrefixTopic;
-    		}
+	    final HandlerIndex localIndex = this.index;
+	    TopicHandlers topicHandlers = (TopicHandlers)localIndex.cache.get(topic);
+	    if ( topicHandlers == null )
+	    {
+	        topicHandlers = localIndex.lookup(topic);
+	        if ( localIndex.cache.size() >= MAX_CACHED_TOPICS )
+	        {
+	            localIndex.cache.clear();
+	        }
+	        localIndex.cache.put(topic, topicHandlers);
+	    }
+
+	    // the subscribe permission only needs to be checked with a security manager
+	    final Permission permission = System.getSecurityManager() != null
+	                    ? topicHandlers.getSubscribePermission() : null;
+
+		// now check permission and filters - in the common case all handlers
+		// accept the event and we can return the cached list
+		final EventHandlerProxy[] candidates = topicHandlers.handlers;
+		List handlers = null;
+		for(int i = 0; i < candidates.length; i++)
+		{
+		    if ( !candidates[i].canDeliver(event, permission) )
+		    {
+		        if ( handlers == null )
+		        {
+		            handlers = new ArrayList(candidates.length);
+		            for(int j = 0; j < i; j++)
+		            {
+		                handlers.add(candidates[j]);
+		            }
+		        }
+		    }
+		    else if ( handlers != null )
+		    {
+		        handlers.add(candidates[i]);
+		    }
 		}
+		return handlers != null ? handlers : topicHandlers.list;
 	}
 
     /**
-     * Check the topics of the event handler and remove it from the
-     * corresponding collections.
-     * We always create new collections - while this is "expensive"
-     * it allows us to read from them unsynced
+     * The index of the proxies by topic. The topics of the proxies are
+     * kept in a trie with one node per topic segment, which records the
+     * proxies for the exact topic of the node and for the wildcard topic
+     * of the node. The index is immutable except for its cache of the
+     * handlers of concrete topics.
      */
-	private synchronized void remove(final EventHandlerProxy proxy) {
-        final String[] topics = proxy.getTopics();
-        if ( topics == null )
+    private static final class HandlerIndex
+    {
+        /** The proxies matching all events. */
+        private final List matchingAllEvents = new ArrayList();
+
+        /** The root node of the topic trie. */
+        private final TopicNode root = new TopicNode();
+
+        /** The cached handlers by topic. */
+        final Map cache = new ConcurrentReaderHashMap();
+
+        public HandlerIndex(final Set proxies)
         {
-            final List newMatchingAllEvents = new ArrayList(this.matchingAllEvents);
-            newMatchingAllEvents.remove(proxy);
-            this.matchingAllEvents = newMatchingAllEvents;
-        } else {
-            Map newMatchingTopic = null;
-            Map newMatchingPrefixTopic = null;
-            for(int i = 0; i < topics.length; i++) {
-                final String topic = topics[i];
-
-                if ( topic.endsWith("/*") )
+            final Iterator i = proxies.iterator();
+            while ( i.hasNext() )
+            {
+                final EventHandlerProxy proxy = (EventHandlerProxy)i.next();
+                final String[] topics = proxy.getTopics();
+                if ( topics == null )
                 {
-                    // prefix topic: we remove the /*
-                    if ( newMatchingPrefixTopic == null )
-                    {
-                        newMatchingPrefixTopic = new HashMap(this.matchingPrefixTopic);
-                    }
-
-                    final String prefix = topic.substring(0, topic.length() - 2);
-                    this.updateMap(newMatchingPrefixTopic, prefix, proxy, false);
+                    this.matchingAllEvents.add(proxy);
                 }
                 else
                 {
-                    // exact match
-                    if ( newMatchingTopic == null )
+                    for(int j = 0; j < topics.length; j++)
                     {
-                        newMatchingTopic = new HashMap(this.matchingTopic);
+                        final String topic = topics[j];
+                        if ( topic.endsWith("/*") )
+                        {
+                            // prefix topic: we remove the /*
+                            this.getNode(topic.substring(0, topic.length() - 2))
+                                .matchingPrefix.add(proxy);
+                        }
+                        else
+                        {
+                            this.getNode(topic).matchingTopic.add(proxy);
+                        }
                     }
-
-                    this.updateMap(newMatchingTopic, topic, proxy, false);
                 }
             }
-            if ( newMatchingTopic != null )
+        }
+
+        private TopicNode getNode(final String topic)
+        {
+            TopicNode node = this.root;
+            int start = 0;
+            int pos;
+            do
             {
-                this.matchingTopic = newMatchingTopic;
-            }
-            if ( newMatchingPrefixTopic != null )
+                pos = topic.indexOf('/', start);
+                final String segment = (pos == -1)
+                    ? topic.substring(start) : topic.substring(start, pos);
+                TopicNode child = (TopicNode)node.children.get(segment);
+                if ( child == null )
+                {
+                    child = new TopicNode();
+                    node.children.put(segment, child);
+                }
+                node = child;
+                start = pos + 1;
+            } while ( pos != -1 );
+            return node;
+        }
+
+        /**
+         * Find the handlers for the topic, which are the handlers matching
+         * all events, the handlers for a wildcard topic of each proper prefix
+         * of the topic, and the handlers for the exact topic.
+         */
+        public TopicHandlers lookup(final String topic)
+        {
+            final Set seen = new HashSet();
+            final List handlers = new ArrayList();
+            addAll(handlers, seen, this.matchingAllEvents);
+
+            TopicNode node = this.root;
+            int start = 0;
+            int pos;
+            do
             {
-                this.matchingPrefixTopic = newMatchingPrefixTopic;
+                pos = topic.indexOf('/', start);
+                final String segment = (pos == -1)
+                    ? topic.substring(start) : topic.substring(start, pos);
+                node = (TopicNode)node.children.get(segment);
+                if ( node != null )
+                {
+                    if ( pos == -1 )
+                    {
+                        addAll(handlers, seen, node.matchingTopic);
+                    }
+                    else
+                    {
+                        addAll(handlers, seen, node.matchingPrefix);
+                    }
+                }
+                start = pos + 1;
+            } while ( pos != -1 && node != null );
+
+            return new TopicHandlers(topic,
+                (EventHandlerProxy[])handlers.toArray(new EventHandlerProxy[handlers.size()]));
+        }
+
+        private static void addAll(final List handlers, final Set seen, final List proxies)
+        {
+            for(int i = 0; i < proxies.size(); i++)
+            {
+                final Object proxy = proxies.get(i);
+                if ( seen.add(proxy) )
+                {
+                    handlers.add(proxy);
+                }
             }
         }
-	}
+    }
 
-	/**
-	 * Get all handlers for this event
-	 *
-	 * @param event The event topic
-	 * @return All handlers for the event
-	 */
-	public Collection getHandlers(final Event event) {
-	    final String topic = event.getTopic();
+    /**
+     * A node of the topic trie.
+     */
+    private static final class TopicNode
+    {
+        /** The child nodes by topic segment. */
+        public final Map children = new HashMap();
 
-		final Set handlers = new HashSet();
+        /** The proxies for the topic of this node. */
+        public final List matchingTopic = new ArrayList();
 
-		// Add all handlers matching everything
-		handlers.addAll(this.matchingAllEvents);
+        /** The proxies for the wildcard topic of this node. */
+        public final List matchingPrefix = new ArrayList();
+    }
 
-		// Now check for prefix matches
-		if ( !this.matchingPrefixTopic.isEmpty() )
-		{
-		    int pos = topic.lastIndexOf('/');
-			while (pos != -1)
-			{
-			    final String prefix = topic.substring(0, pos);
-				List proxies = (List)this.matchingPrefixTopic.get(prefix);
-				if (proxies != null)
-				{
-					handlers.addAll(proxies);
-				}
-
-				pos = prefix.lastIndexOf('/');
-			}
-		}
+    /**
+     * The immutable handlers of a concrete topic, before checking their
+     * filters and permissions.
+     */
+    private static final class TopicHandlers
+    {
+        private final String topic;
 
-		// Add the handlers for matching topic names
-		List proxies = (List)this.matchingTopic.get(topic);
-		if (proxies != null) {
-			handlers.addAll(proxies);
-		}
+        public final EventHandlerProxy[] handlers;
 
-		// now check permission and filters
-		final Iterator i = handlers.iterator();
-		while ( i.hasNext() ) {
-		    final EventHandlerProxy proxy = (EventHandlerProxy) i.next();
-		    if ( !proxy.canDeliver(event) ) {
-		        i.remove();
-		    }
-		}
-		return handlers;
-	}
+        public final List list;
+
+        /** Lazily created subscribe permission for the topic. */
+        private volatile Permission subscribePermission;
+
+        public TopicHandlers(final String topic, final EventHandlerProxy[] handlers)
+        {
+            this.topic = topic;
+            this.handlers = handlers;
+            this.list = Collections.unmodifiableList(Arrays.asList(handlers));
+        }
+
+        public Permission getSubscribePermission()
+        {
+            Permission p = this.subscribePermission;
+            if ( p == null )
+            {
+                p = PermissionsUtil.createSubscribePermission(this.topic);
+                this.subscribePermission = p;
+            }
+            return p;
+        }
+    }
 
     /**
      * The matcher interface for checking if timeout handling
@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+/**
+ * A histogram of the delivery times of an event handler in microseconds.
+ * Times below 16 are counted exactly, larger times are counted in eight
+ * buckets per power of two, so a percentile is off by at most 12.5%.
+ * The buckets have a fixed size, so recording never allocates.
+ *
+ * Handlers are called by many threads at once, so the times are recorded
+ * in several stripes of buckets, selected by the recording thread; threads
+ * only contend if they share a stripe. The stripes are merged on reading.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class LatencyHistogram
+{
+    /** The number of exactly counted times. */
+    private static final int LINEAR_BUCKETS = 16;
+
+    /** The number of sub buckets per power of two as bits. */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The power of two of the first logarithmic bucket. */
+    private static final int FIRST_POWER = 4;
+
+    private static final int BUCKETS = LINEAR_BUCKETS + (64 - FIRST_POWER) * SUB_BUCKETS;
+
+    /** The number of stripes, a power of two. */
+    private static final int STRIPES = 8;
+
+    /** The stripes, created when first used, as handlers
+     * called by a single thread only need one. */
+    private final Buckets[] stripes = new Buckets[STRIPES];
+
+    /**
+     * Record a delivery time.
+     *
+     * @param time The time in microseconds
+     */
+    public void record(final long time)
+    {
+        final Buckets stripe = this.getStripe();
+        synchronized ( stripe )
+        {
+            stripe.record(time < 0 ? 0 : time);
+        }
+    }
+
+    public void reset()
+    {
+        for(int i = 0; i < STRIPES; i++)
+        {
+            final Buckets stripe = this.getStripe(i);
+            if ( stripe != null )
+            {
+                synchronized ( stripe )
+                {
+                    stripe.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a snapshot of the recorded times of all threads.
+     */
+    public Buckets getSnapshot()
+    {
+        final Buckets result = new Buckets();
+        for(int i = 0; i < STRIPES; i++)
+        {
+            final Buckets stripe = this.getStripe(i);
+            if ( stripe != null )
+            {
+                synchronized ( stripe )
+                {
+                    result.add(stripe);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Buckets getStripe()
+    {
+        int hash = System.identityHashCode(Thread.currentThread());
+        hash ^= hash >>> 16;
+        final int index = (hash ^ (hash >>> 8)) & (STRIPES - 1);
+        Buckets stripe = this.getStripe(index);
+        if ( stripe == null )
+        {
+            synchronized ( this.stripes )
+            {
+                stripe = this.stripes[index];
+                if ( stripe == null )
+                {
+                    stripe = new Buckets();
+                    this.stripes[index] = stripe;
+                }
+            }
+        }
+        return stripe;
+    }
+
+    private Buckets getStripe(final int index)
+    {
+        // the elements are not volatile, the lock makes
+        // a stripe created by another thread visible
+        Buckets stripe = this.stripes[index];
+        if ( stripe == null )
+        {
+            synchronized ( this.stripes )
+            {
+                stripe = this.stripes[index];
+            }
+        }
+        return stripe;
+    }
+
+    /**
+     * The counts of the recorded times.
+     */
+    public static final class Buckets
+    {
+        private final long[] buckets = new long[BUCKETS];
+
+        private long count;
+
+        private long total;
+
+        private long max;
+
+        void record(final long value)
+        {
+            this.buckets[getBucket(value)]++;
+            this.count++;
+            this.total += value;
+            if ( value > this.max )
+            {
+                this.max = value;
+            }
+        }
+
+        void clear()
+        {
+            for(int i = 0; i < this.buckets.length; i++)
+            {
+                this.buckets[i] = 0;
+            }
+            this.count = 0;
+            this.total = 0;
+            this.max = 0;
+        }
+
+        void add(final Buckets other)
+        {
+            for(int i = 0; i < this.buckets.length; i++)
+            {
+                this.buckets[i] += other.buckets[i];
+            }
+            this.count += other.count;
+            this.total += other.total;
+            this.max = Math.max(this.max, other.max);
+        }
+
+        public long getCount()
+        {
+            return this.count;
+        }
+
+        public long getTotal()
+        {
+            return this.total;
+        }
+
+        public long getMax()
+        {
+            return this.max;
+        }
+
+        /**
+         * Get a percentile of the recorded times.
+         *
+         * @param percentile The percentile between 0 and 100
+         * @return The upper bound of the bucket containing the percentile,
+         *         but at most the maximum recorded time.
+         */
+        public long getPercentile(final double percentile)
+        {
+            if ( this.count == 0 )
+            {
+                return 0;
+            }
+            long rank = (long)Math.ceil(this.count * percentile / 100);
+            if ( rank < 1 )
+            {
+                rank = 1;
+            }
+            long seen = 0;
+            for(int i = 0; i < this.buckets.length; i++)
+            {
+                seen += this.buckets[i];
+                if ( seen >= rank )
+                {
+                    return Math.min(getUpperBound(i), this.max);
+                }
+            }
+            return this.max;
+        }
+    }
+
+    private static int getBucket(final long value)
+    {
+        if ( value < LINEAR_BUCKETS )
+        {
+            return (int)value;
+        }
+        int power = FIRST_POWER;
+        while ( (value >>> (power + 1)) != 0 )
+        {
+            power++;
+        }
+        final int sub = (int)((value >>> (power - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return LINEAR_BUCKETS + (power - FIRST_POWER) * SUB_BUCKETS + sub;
+    }
+
+    private static long getUpperBound(final int bucket)
+    {
+        if ( bucket < LINEAR_BUCKETS )
+        {
+            return bucket;
+        }
+        final int power = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_POWER;
+        final long sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        final long width = 1L << (power - SUB_BUCKET_BITS);
+        return (1L << power) + sub * width + width - 1;
+    }
+}
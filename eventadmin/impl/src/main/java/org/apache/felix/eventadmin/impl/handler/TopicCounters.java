@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import org.apache.felix.eventadmin.TopicStatistics;
+
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+
+/**
+ * The number of posted and sent events per topic. Lookups of known topics
+ * do not lock the map, so only threads counting events of the same topic
+ * contend. The number of topics is limited, as topics may contain
+ * identifiers; events of further topics are counted under <code>*</code>.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class TopicCounters
+{
+    /** The maximum number of topics counted separately. */
+    private static final int MAX_TOPICS = 1000;
+
+    /** The topic counting all further topics. */
+    private static final String OTHER_TOPICS = "*";
+
+    /** The counters by topic. */
+    private final ConcurrentReaderHashMap counters = new ConcurrentReaderHashMap();
+
+    /** Has the maximum number of topics been reached? The size of the map
+     * is not used, as it requires the lock of the map. */
+    private volatile boolean full = false;
+
+    public void posted(final String topic)
+    {
+        final Counter counter = this.getCounter(topic);
+        synchronized ( counter )
+        {
+            counter.posted++;
+        }
+    }
+
+    public void sent(final String topic)
+    {
+        final Counter counter = this.getCounter(topic);
+        synchronized ( counter )
+        {
+            counter.sent++;
+        }
+    }
+
+    private Counter getCounter(final String topic)
+    {
+        Counter counter = (Counter)this.counters.get(topic);
+        if ( counter == null && this.full )
+        {
+            // further topics do not lock the map either
+            counter = (Counter)this.counters.get(OTHER_TOPICS);
+        }
+        if ( counter == null )
+        {
+            synchronized ( this.counters )
+            {
+                final String key = this.counters.size() < MAX_TOPICS ? topic : OTHER_TOPICS;
+                counter = (Counter)this.counters.get(key);
+                if ( counter == null )
+                {
+                    counter = new Counter(key);
+                    this.counters.put(key, counter);
+                }
+                if ( key == OTHER_TOPICS )
+                {
+                    this.full = true;
+                }
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Get a snapshot of the counters.
+     */
+    public TopicStatistics[] getStatistics()
+    {
+        final Object[] values = this.counters.values().toArray();
+        final TopicStatistics[] result = new TopicStatistics[values.length];
+        for(int i = 0; i < values.length; i++)
+        {
+            final Counter counter = (Counter)values[i];
+            synchronized ( counter )
+            {
+                result[i] = new Counter(counter);
+            }
+        }
+        return result;
+    }
+
+    public void reset()
+    {
+        synchronized ( this.counters )
+        {
+            this.counters.clear();
+            this.full = false;
+        }
+    }
+
+    private static final class Counter implements TopicStatistics
+    {
+        private final String topic;
+
+        private long posted;
+
+        private long sent;
+
+        public Counter(final String topic)
+        {
+            this.topic = topic;
+        }
+
+        public Counter(final Counter counter)
+        {
+            this.topic = counter.topic;
+            this.posted = counter.posted;
+            this.sent = counter.sent;
+        }
+
+        public String getTopic()
+        {
+            return this.topic;
+        }
+
+        public long getPostedCount()
+        {
+            return this.posted;
+        }
+
+        public long getSentCount()
+        {
+            return this.sent;
+        }
+    }
+}
@@ -18,17 +18,38 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.service.event.Event;
 
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+
 /**
  * This class does the actual work of the asynchronous event dispatch.
  *
+ * Each posting thread has its own task executer which queues the events
+ * posted by this thread. The executer is found in a map keyed by the
+ * posting thread which is read without locking, so posting threads only
+ * synchronize with their own executer and not with each other. An executer
+ * removes itself from the map once it is idle, so a thread does not keep
+ * its executer, and with it the event admin, reachable after posting.
+ * A running executer drains all events queued in the
+ * meantime as one batch and delivers them in posting order to the handlers
+ * requiring ordered delivery. Handlers accepting unordered delivery get the
+ * events of a batch in parallel, in a separate task per handler.
+ *
+ * The queue of each posting thread can be bounded by {@link QueueLimits}.
+ * The limits apply to the events waiting for delivery, not to the batch
+ * currently being delivered.
+ *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class AsyncDeliverTasks
@@ -42,8 +63,17 @@ public class AsyncDeliverTasks
      */
     private final SyncDeliverTasks m_deliver_task;
 
-    /** A map of running threads currently delivering async events. */
-    private final Map m_running_threads = new HashMap();
+    /** The scheduled or running task executers by posting thread. */
+    private final ConcurrentReaderHashMap m_executers = new ConcurrentReaderHashMap();
+
+    /** The limits for the queues. */
+    private volatile QueueLimits m_limits;
+
+    /** The statistics of all queues. */
+    private final QueueStatistics m_statistics = new QueueStatistics();
+
+    /** Has dropping an event already been reported? */
+    private volatile boolean m_dropReported = false;
 
     /**
      * The constructor of the class that will use the asynchronous.
@@ -52,11 +82,31 @@ public class AsyncDeliverTasks
      *      dispatching threads in case of timeout or that the asynchronous event
      *      dispatching thread is used to send a synchronous event
      * @param deliverTask The deliver tasks for dispatching the event.
+     * @param limits The limits for the queues
      */
-    public AsyncDeliverTasks(final DefaultThreadPool pool, final SyncDeliverTasks deliverTask)
+    public AsyncDeliverTasks(final DefaultThreadPool pool,
+            final SyncDeliverTasks deliverTask,
+            final QueueLimits limits)
     {
         m_pool = pool;
         m_deliver_task = deliverTask;
+        update(limits);
+    }
+
+    /**
+     * Update the limits for the queues. Events already queued are kept.
+     */
+    public void update(final QueueLimits limits)
+    {
+        m_limits = limits.isBounded() ? limits : null;
+    }
+
+    /**
+     * The statistics of all queues.
+     */
+    public QueueStatistics getStatistics()
+    {
+        return m_statistics;
     }
 
     /**
@@ -67,85 +117,414 @@ public class AsyncDeliverTasks
      */
     public void execute(final Collection tasks, final Event event)
     {
-        /*
-        final Iterator i = tasks.iterator();
-        boolean hasOrdered = false;
+        final Thread current = Thread.currentThread();
+        TaskExecuter executer = (TaskExecuter)m_executers.get(current);
+        if ( executer == null )
+        {
+            executer = new TaskExecuter(current);
+        }
+        if ( executer.add(tasks, event, m_limits) )
+        {
+            // register before scheduling, the executer removes
+            // itself once it runs out of events
+            m_executers.put(current, executer);
+            m_pool.executeTask(executer);
+        }
+    }
+
+    /**
+     * Discard the queued events and release the executers.
+     */
+    public void stop()
+    {
+        final Iterator i = m_executers.values().iterator();
         while ( i.hasNext() )
         {
-            final EventHandlerProxy task = (EventHandlerProxy)i.next();
-            if ( !task.isAsyncOrderedDelivery() )
+            ((TaskExecuter)i.next()).invalidate();
+        }
+        m_executers.clear();
+    }
+
+    /**
+     * Report the first dropped event, the statistics count all of them.
+     */
+    private void reportDrop(final QueueLimits limits)
+    {
+        if ( !m_dropReported )
+        {
+            m_dropReported = true;
+            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                    "Event queue is full, events are being dropped (policy: "
+                    + QueueLimits.POLICY_NAMES[limits.getPolicy()] + ")");
+        }
+    }
+
+    /**
+     * Deliver a batch of events in order to the handlers requiring ordered
+     * delivery. The events for handlers accepting unordered delivery are
+     * handed to separate tasks first, so they do not wait for the others.
+     *
+     * @param batch The handlers and events, alternating
+     */
+    private void deliver(final List batch)
+    {
+        Map unordered = null;
+        for(int i = 0; i < batch.size(); i += 2)
+        {
+            final Collection tasks = (Collection)batch.get(i);
+            final Iterator j = tasks.iterator();
+            while ( j.hasNext() )
             {
-                // do somethimg
+                final EventHandlerProxy task = (EventHandlerProxy)j.next();
+                if ( !task.isAsyncOrderedDelivery() )
+                {
+                    if ( unordered == null )
+                    {
+                        unordered = new HashMap();
+                    }
+                    UnorderedDelivery delivery = (UnorderedDelivery)unordered.get(task);
+                    if ( delivery == null )
+                    {
+                        delivery = new UnorderedDelivery(task);
+                        unordered.put(task, delivery);
+                    }
+                    delivery.add((Event)batch.get(i + 1));
+                }
             }
-            else
+        }
+        if ( unordered != null )
+        {
+            final Iterator i = unordered.values().iterator();
+            while ( i.hasNext() )
             {
-                hasOrdered = true;
+                m_pool.executeTask((Runnable)i.next());
             }
+        }
 
+        for(int i = 0; i < batch.size(); i += 2)
+        {
+            Collection tasks = (Collection)batch.get(i);
+            if ( unordered != null )
+            {
+                tasks = getOrderedTasks(tasks);
+            }
+            if ( !tasks.isEmpty() )
+            {
+                m_deliver_task.execute(tasks, (Event)batch.get(i + 1), true);
+            }
         }
-        if ( hasOrdered )
-        {*/
-            final Thread currentThread = Thread.currentThread();
-            TaskExecuter executer = null;
-            synchronized (m_running_threads )
+    }
+
+    /**
+     * Get the handlers requiring ordered delivery.
+     */
+    private static Collection getOrderedTasks(final Collection tasks)
+    {
+        List ordered = null;
+        int index = 0;
+        final Iterator i = tasks.iterator();
+        while ( i.hasNext() )
+        {
+            final EventHandlerProxy task = (EventHandlerProxy)i.next();
+            if ( !task.isAsyncOrderedDelivery() )
             {
-                final TaskExecuter runningExecutor = (TaskExecuter)m_running_threads.get(currentThread);
-                if ( runningExecutor != null )
-                {
-                    runningExecutor.add(tasks, event);
-                }
-                else
+                if ( ordered == null )
                 {
-                    executer = new TaskExecuter( tasks, event, currentThread );
-                    m_running_threads.put(currentThread, executer);
+                    ordered = new ArrayList(tasks.size());
+                    final Iterator j = tasks.iterator();
+                    for(int k = 0; k < index; k++)
+                    {
+                        ordered.add(j.next());
+                    }
                 }
             }
-            if ( executer != null )
+            else if ( ordered != null )
             {
-                m_pool.executeTask(executer);
+                ordered.add(task);
             }
-        //}
+            index++;
+        }
+        return ordered != null ? ordered : tasks;
+    }
+
+    /**
+     * Is the event equal to the other event for coalescing?
+     */
+    private static boolean isSameKey(final Event event, final Event other, final String property)
+    {
+        if ( !event.getTopic().equals(other.getTopic()) )
+        {
+            return false;
+        }
+        if ( property == null )
+        {
+            return true;
+        }
+        final Object value = event.getProperty(property);
+        final Object otherValue = other.getProperty(property);
+        return value == null ? otherValue == null : value.equals(otherValue);
     }
 
     private final class TaskExecuter implements Runnable
     {
-        private final List m_tasks = new LinkedList();
+        /** The posting thread. */
+        private final Thread m_owner;
+
+        /** Is this executer still delivering events? */
+        private boolean m_valid = true;
+
+        /** The queued handlers and events, alternating. */
+        private List m_tasks = new ArrayList();
+
+        /** The list to swap in when taking a batch. */
+        private List m_spare = new ArrayList();
+
+        /** Is this executer scheduled or running? */
+        private boolean m_running = false;
+
+        /** The thread running this executer or <code>null</code>. */
+        private Thread m_consumer;
+
+        /** The number of queued events by topic limit. */
+        private final Map m_topicCounts = new HashMap();
+
+        /** The time the oldest queued event was posted. */
+        private long m_firstPostTime;
 
-        private final Object m_key;
+        /** The counts since the last batch, reported to the statistics. */
+        private long m_queued;
+        private long m_dropped;
+        private long m_coalesced;
+        private long m_blocked;
 
-        public TaskExecuter(final Collection tasks, final Event event, final Object key)
+        public TaskExecuter(final Thread owner)
         {
-            m_key = key;
-            m_tasks.add(new Object[] {tasks, event});
+            m_owner = owner;
         }
 
-        public void run()
+        /**
+         * Discard the queued events and reject further ones.
+         */
+        public synchronized void invalidate()
+        {
+            m_valid = false;
+            m_tasks.clear();
+            // wake up posting threads waiting for room
+            this.notifyAll();
+        }
+
+        /**
+         * Queue an event.
+         * @param limits The limits for the queue or <code>null</code>
+         * @return <code>true</code> if the executer has to be scheduled.
+         */
+        public synchronized boolean add(final Collection tasks, final Event event, final QueueLimits limits)
+        {
+            if ( limits != null )
+            {
+                final QueueLimits.TopicLimit topicLimit = limits.getTopicLimit(event.getTopic());
+                int[] topicCount = null;
+                if ( topicLimit != null )
+                {
+                    topicCount = (int[])m_topicCounts.get(topicLimit);
+                    if ( topicCount == null )
+                    {
+                        topicCount = new int[1];
+                        m_topicCounts.put(topicLimit, topicCount);
+                    }
+                }
+                boolean full;
+                while ( (full = (topicCount != null && topicCount[0] >= topicLimit.capacity))
+                        || (limits.getCapacity() > 0 && m_tasks.size() / 2 >= limits.getCapacity()) )
+                {
+                    if ( !m_valid )
+                    {
+                        return false;
+                    }
+                    final int policy = limits.getPolicy();
+                    if ( policy == QueueLimits.BLOCK )
+                    {
+                        // the thread running this executer would wait for itself
+                        if ( !m_running || m_consumer == Thread.currentThread() )
+                        {
+                            break;
+                        }
+                        m_blocked++;
+                        try
+                        {
+                            this.wait();
+                        }
+                        catch (final InterruptedException ie)
+                        {
+                            // queue the event anyway, it must not get lost
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                        continue;
+                    }
+                    if ( policy == QueueLimits.COALESCE && coalesce(tasks, event, limits.getCoalesceProperty()) )
+                    {
+                        m_coalesced++;
+                        return false;
+                    }
+                    m_dropped++;
+                    reportDrop(limits);
+                    if ( policy == QueueLimits.DROP_NEWEST || !removeOldest(limits, full ? topicLimit : null) )
+                    {
+                        return false;
+                    }
+                }
+                if ( topicCount != null )
+                {
+                    topicCount[0]++;
+                }
+            }
+            if ( !m_valid )
+            {
+                return false;
+            }
+            if ( m_tasks.isEmpty() )
+            {
+                m_firstPostTime = System.currentTimeMillis();
+            }
+            m_tasks.add(tasks);
+            m_tasks.add(event);
+            m_queued++;
+            if ( m_running )
+            {
+                return false;
+            }
+            m_running = true;
+            return true;
+        }
+
+        /**
+         * Replace the oldest queued event with the same key. The event is
+         * queued last, so a stale event is never delivered after a newer one.
+         */
+        private boolean coalesce(final Collection tasks, final Event event, final String property)
         {
-            boolean running;
-            do
+            for(int i = 0; i < m_tasks.size(); i += 2)
             {
-                Object[] tasks = null;
-                synchronized ( m_tasks )
+                if ( isSameKey(event, (Event)m_tasks.get(i + 1), property) )
                 {
-                    tasks = (Object[]) m_tasks.remove(0);
+                    m_tasks.remove(i + 1);
+                    m_tasks.remove(i);
+                    m_tasks.add(tasks);
+                    m_tasks.add(event);
+                    return true;
                 }
-                m_deliver_task.execute((Collection)tasks[0], (Event)tasks[1], true);
-                synchronized ( m_running_threads )
+            }
+            return false;
+        }
+
+        /**
+         * Remove the oldest queued event, of the topic limit if given.
+         */
+        private boolean removeOldest(final QueueLimits limits, final QueueLimits.TopicLimit topicLimit)
+        {
+            for(int i = 0; i < m_tasks.size(); i += 2)
+            {
+                final Event queued = (Event)m_tasks.get(i + 1);
+                final QueueLimits.TopicLimit queuedLimit = limits.getTopicLimit(queued.getTopic());
+                if ( topicLimit == null || topicLimit == queuedLimit )
                 {
-                    running = m_tasks.size() > 0;
-                    if ( !running )
+                    m_tasks.remove(i + 1);
+                    m_tasks.remove(i);
+                    final int[] count = queuedLimit == null ? null : (int[])m_topicCounts.get(queuedLimit);
+                    if ( count != null )
                     {
-                        m_running_threads.remove(m_key);
+                        count[0]--;
                     }
+                    return true;
                 }
-            } while ( running );
+            }
+            return false;
         }
 
-        public void add(final Collection tasks, final Event event)
+        public void run()
+        {
+            synchronized ( this )
+            {
+                m_consumer = Thread.currentThread();
+            }
+            while ( true )
+            {
+                final List batch;
+                final long queued, dropped, coalesced, blocked, lag;
+                synchronized ( this )
+                {
+                    queued = m_queued;
+                    dropped = m_dropped;
+                    coalesced = m_coalesced;
+                    blocked = m_blocked;
+                    m_queued = m_dropped = m_coalesced = m_blocked = 0;
+                    if ( m_tasks.isEmpty() )
+                    {
+                        batch = null;
+                        lag = 0;
+                        m_running = false;
+                        m_consumer = null;
+                        // the posting thread registers this executer
+                        // again when it schedules it the next time
+                        m_executers.remove(m_owner);
+                    }
+                    else
+                    {
+                        batch = m_tasks;
+                        m_tasks = m_spare;
+                        m_spare = batch;
+                        lag = System.currentTimeMillis() - m_firstPostTime;
+                        // reset in place, waiting posting threads hold the counters
+                        final Iterator i = m_topicCounts.values().iterator();
+                        while ( i.hasNext() )
+                        {
+                            ((int[])i.next())[0] = 0;
+                        }
+                        // wake up posting threads waiting for room
+                        this.notifyAll();
+                    }
+                }
+                m_statistics.update(queued, dropped, coalesced, blocked,
+                        batch == null ? 0 : batch.size() / 2, lag);
+                if ( batch == null )
+                {
+                    return;
+                }
+                try
+                {
+                    deliver(batch);
+                }
+                finally
+                {
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private final class UnorderedDelivery implements Runnable
+    {
+        private final EventHandlerProxy m_task;
+
+        private final List m_events = new ArrayList();
+
+        public UnorderedDelivery(final EventHandlerProxy task)
+        {
+            m_task = task;
+        }
+
+        public void add(final Event event)
+        {
+            m_events.add(event);
+        }
+
+        public void run()
         {
-            synchronized ( m_tasks )
+            final Collection tasks = Collections.singletonList(m_task);
+            for(int i = 0; i < m_events.size(); i++)
             {
-                m_tasks.add(new Object[] {tasks, event});
+                m_deliver_task.execute(tasks, (Event)m_events.get(i), true);
             }
         }
     }
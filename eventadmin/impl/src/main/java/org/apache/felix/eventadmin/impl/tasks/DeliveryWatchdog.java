@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.osgi.service.event.Event;
+
+/**
+ * The watchdog for handlers invoked inline on the delivering thread.
+ *
+ * Each delivering thread publishes the handler it is currently calling and
+ * the start time in a slot of its own, which costs a few volatile writes
+ * per call. A single watchdog thread scans all slots periodically and
+ * blacklists handlers exceeding the timeout. Unlike the delivery in a pool
+ * thread, the delivering thread is not released on a timeout - the handler
+ * is only excluded from subsequent events.
+ *
+ * If a handler delivers an event itself, the timeout of the outer handler
+ * is stopped for the delivery time of the inner event.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class DeliveryWatchdog implements Runnable
+{
+    /** The slot of each delivering thread. */
+    private final ThreadLocal slot = new ThreadLocal();
+
+    /** All slots, guarded by the list. */
+    private final List slots = new ArrayList();
+
+    /** The timeout in milliseconds. */
+    private volatile long timeout;
+
+    private volatile boolean running = true;
+
+    /**
+     * Create and start the watchdog.
+     *
+     * @param timeout The timeout in milliseconds
+     */
+    public DeliveryWatchdog(final long timeout)
+    {
+        this.timeout = timeout;
+        final Thread thread = new Thread(this, "EventAdminWatchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Update the timeout.
+     */
+    public void update(final long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Stop the watchdog thread.
+     */
+    public synchronized void stop()
+    {
+        this.running = false;
+        this.notifyAll();
+    }
+
+    /**
+     * Deliver the event to the handler in the calling thread.
+     */
+    public void deliver(final EventHandlerProxy task, final Event event)
+    {
+        Slot current = (Slot)this.slot.get();
+        if ( current == null )
+        {
+            current = new Slot(Thread.currentThread());
+            this.slot.set(current);
+            synchronized ( this.slots )
+            {
+                this.slots.add(current);
+            }
+        }
+        final EventHandlerProxy outerTask = current.task;
+        final long outerStart = current.start;
+
+        // the start time is published before the task, so the
+        // watchdog never sees a task with the time of an earlier one
+        final long start = System.currentTimeMillis();
+        current.start = start;
+        current.task = task;
+        try
+        {
+            task.sendEvent(event);
+        }
+        finally
+        {
+            current.task = null;
+            if ( outerTask != null )
+            {
+                current.start = outerStart + (System.currentTimeMillis() - start);
+                current.task = outerTask;
+            }
+        }
+    }
+
+    public void run()
+    {
+        while ( this.running )
+        {
+            synchronized ( this )
+            {
+                try
+                {
+                    this.wait(Math.max(this.timeout / 2, 10));
+                }
+                catch (final InterruptedException ie)
+                {
+                    // check and continue
+                }
+                if ( !this.running )
+                {
+                    return;
+                }
+            }
+            this.check();
+        }
+    }
+
+    /**
+     * Blacklist all handlers exceeding the timeout.
+     */
+    private void check()
+    {
+        final Slot[] current;
+        synchronized ( this.slots )
+        {
+            final Iterator i = this.slots.iterator();
+            while ( i.hasNext() )
+            {
+                if ( ((Slot)i.next()).thread.get() == null )
+                {
+                    i.remove();
+                }
+            }
+            current = (Slot[])this.slots.toArray(new Slot[this.slots.size()]);
+        }
+        final long now = System.currentTimeMillis();
+        for(int i = 0; i < current.length; i++)
+        {
+            final EventHandlerProxy task = current[i].task;
+            if ( task != null && !task.isBlacklisted()
+                 && now - current[i].start > this.timeout )
+            {
+                task.blackListHandler();
+            }
+        }
+    }
+
+    /**
+     * The handler currently called by a thread.
+     */
+    private static final class Slot
+    {
+        /** The thread, weakly referenced to drop slots of dead threads. */
+        public final WeakReference thread;
+
+        public volatile EventHandlerProxy task;
+
+        public volatile long start;
+
+        public Slot(final Thread thread)
+        {
+            this.thread = new WeakReference(thread);
+        }
+    }
+}
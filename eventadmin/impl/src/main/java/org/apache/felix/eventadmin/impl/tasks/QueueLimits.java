@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+
+/**
+ * The limits for the events waiting for asynchronous delivery. The limits
+ * apply to the queue of each posting thread: a capacity for all events and
+ * optional capacities for topics, and the policy to apply once a capacity
+ * is reached.
+ *
+ * Topic capacities are configured as <code>topic=capacity</code>, where the
+ * topic may end with <code>/*</code> to match all its sub topics. The most
+ * specific topic configuration applies.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class QueueLimits
+{
+    /** Block the posting thread until there is room. */
+    public static final int BLOCK = 0;
+
+    /** Drop the oldest waiting event to make room. */
+    public static final int DROP_OLDEST = 1;
+
+    /** Drop the posted event. */
+    public static final int DROP_NEWEST = 2;
+
+    /** Replace a waiting event of the same topic and key property value,
+     * otherwise drop the oldest waiting event.
+     */
+    public static final int COALESCE = 3;
+
+    /** The names of the policies, indexed by policy. */
+    public static final String[] POLICY_NAMES = new String[] {"block", "dropOldest", "dropNewest", "coalesce"};
+
+    /** No limits at all. */
+    public static final QueueLimits UNBOUNDED = new QueueLimits(0, BLOCK, null, null);
+
+    /** The capacity for all events or zero. */
+    private final int capacity;
+
+    private final int policy;
+
+    /** The property identifying events to coalesce. */
+    private final String coalesceProperty;
+
+    /** The topic limits by exact topic. */
+    private final Map topicLimits = new HashMap();
+
+    /** The topic limits by prefix of wildcard topics. */
+    private final Map prefixLimits = new HashMap();
+
+    /**
+     * Create the queue limits.
+     *
+     * @param capacity The capacity for all events, zero means unbounded.
+     * @param policy The policy
+     * @param topicCapacities The topic capacities or <code>null</code>
+     * @param coalesceProperty The property identifying events to coalesce
+     *        or <code>null</code> to coalesce events by topic only
+     */
+    public QueueLimits(final int capacity,
+                    final int policy,
+                    final String[] topicCapacities,
+                    final String coalesceProperty)
+    {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.coalesceProperty = coalesceProperty;
+        for(int i = 0; topicCapacities != null && i < topicCapacities.length; i++)
+        {
+            final String value = topicCapacities[i] == null ? null : topicCapacities[i].trim();
+            final int pos = value == null ? -1 : value.lastIndexOf('=');
+            int topicCapacity = -1;
+            if ( pos > 0 )
+            {
+                try
+                {
+                    topicCapacity = Integer.parseInt(value.substring(pos + 1).trim());
+                }
+                catch (final NumberFormatException nfe)
+                {
+                    // reported below
+                }
+            }
+            if ( topicCapacity < 1 )
+            {
+                LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                        "Ignoring invalid topic queue capacity: " + value);
+                continue;
+            }
+            final String topic = value.substring(0, pos).trim();
+            if ( topic.endsWith("/*") )
+            {
+                final String prefix = topic.substring(0, topic.length() - 2);
+                this.prefixLimits.put(prefix, new TopicLimit(topic, topicCapacity));
+            }
+            else
+            {
+                this.topicLimits.put(topic, new TopicLimit(topic, topicCapacity));
+            }
+        }
+    }
+
+    /**
+     * Get the policy for the given name.
+     *
+     * @return The policy or -1 if the name is unknown.
+     */
+    public static int getPolicy(final String name)
+    {
+        for(int i = 0; i < POLICY_NAMES.length; i++)
+        {
+            if ( POLICY_NAMES[i].equalsIgnoreCase(name) )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Are there any limits?
+     */
+    public boolean isBounded()
+    {
+        return this.capacity > 0 || !this.topicLimits.isEmpty() || !this.prefixLimits.isEmpty();
+    }
+
+    public int getCapacity()
+    {
+        return this.capacity;
+    }
+
+    public int getPolicy()
+    {
+        return this.policy;
+    }
+
+    public String getCoalesceProperty()
+    {
+        return this.coalesceProperty;
+    }
+
+    /**
+     * Get the limit for the topic.
+     *
+     * @return The most specific limit or <code>null</code>
+     */
+    public TopicLimit getTopicLimit(final String topic)
+    {
+        if ( !this.topicLimits.isEmpty() )
+        {
+            final TopicLimit limit = (TopicLimit)this.topicLimits.get(topic);
+            if ( limit != null )
+            {
+                return limit;
+            }
+        }
+        if ( !this.prefixLimits.isEmpty() )
+        {
+            int pos = topic.lastIndexOf('/');
+            while (pos != -1)
+            {
+                final String prefix = topic.substring(0, pos);
+                final TopicLimit limit = (TopicLimit)this.prefixLimits.get(prefix);
+                if ( limit != null )
+                {
+                    return limit;
+                }
+                pos = prefix.lastIndexOf('/');
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The capacity for the topics matching a topic configuration.
+     */
+    public static final class TopicLimit
+    {
+        /** The configured topic. */
+        public final String topic;
+
+        public final int capacity;
+
+        public TopicLimit(final String topic, final int capacity)
+        {
+            this.topic = topic;
+            this.capacity = capacity;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+/**
+ * The statistics of the asynchronous event queues of all posting threads.
+ * The queues report their counts once per delivered batch, so the
+ * statistics may lag behind by the batches currently being delivered.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class QueueStatistics
+{
+    private long queued;
+
+    private long delivered;
+
+    private long dropped;
+
+    private long coalesced;
+
+    private long blocked;
+
+    private long lastLag;
+
+    private long maxLag;
+
+    /**
+     * Add the counts of a queue.
+     *
+     * @param queued The number of queued events
+     * @param dropped The number of dropped events
+     * @param coalesced The number of coalesced events
+     * @param blocked The number of times a posting thread was blocked
+     * @param delivered The number of events taken for delivery
+     * @param lag The time the oldest of these events waited, in milliseconds
+     */
+    public synchronized void update(final long queued,
+                    final long dropped,
+                    final long coalesced,
+                    final long blocked,
+                    final long delivered,
+                    final long lag)
+    {
+        this.queued += queued;
+        this.dropped += dropped;
+        this.coalesced += coalesced;
+        this.blocked += blocked;
+        if ( delivered > 0 )
+        {
+            this.delivered += delivered;
+            this.lastLag = lag;
+            if ( lag > this.maxLag )
+            {
+                this.maxLag = lag;
+            }
+        }
+    }
+
+    public synchronized void reset()
+    {
+        this.queued = 0;
+        this.delivered = 0;
+        this.dropped = 0;
+        this.coalesced = 0;
+        this.blocked = 0;
+        this.lastLag = 0;
+        this.maxLag = 0;
+    }
+
+    /** The number of events queued for asynchronous delivery. */
+    public synchronized long getQueued()
+    {
+        return this.queued;
+    }
+
+    /** The number of queued events taken for delivery. */
+    public synchronized long getDelivered()
+    {
+        return this.delivered;
+    }
+
+    /** The number of events dropped due to a full queue. */
+    public synchronized long getDropped()
+    {
+        return this.dropped;
+    }
+
+    /** The number of events replaced by a newer event due to a full queue. */
+    public synchronized long getCoalesced()
+    {
+        return this.coalesced;
+    }
+
+    /** The number of times a posting thread was blocked due to a full queue. */
+    public synchronized long getBlocked()
+    {
+        return this.blocked;
+    }
+
+    /** The time the oldest event of the latest batch waited, in milliseconds. */
+    public synchronized long getLastLag()
+    {
+        return this.lastLag;
+    }
+
+    /** The maximum time an event waited for delivery, in milliseconds. */
+    public synchronized long getMaxLag()
+    {
+        return this.maxLag;
+    }
+
+    public synchronized String toString()
+    {
+        return "queued=" + this.queued
+            + ", delivered=" + this.delivered
+            + ", dropped=" + this.dropped
+            + ", coalesced=" + this.coalesced
+            + ", blocked=" + this.blocked
+            + ", lastLag=" + this.lastLag + "ms"
+            + ", maxLag=" + this.maxLag + "ms";
+    }
+}
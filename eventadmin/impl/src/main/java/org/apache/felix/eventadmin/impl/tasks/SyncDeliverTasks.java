@@ -51,6 +51,11 @@ import EDU.oswego.cs.dl.util.concurrent.TimeoutException;
  * within the event handler, the timeout handler is stopped for the
  * delivery time of the inner event!
  *
+ * With inline delivery enabled, handlers are always called by the calling
+ * thread and a {@link DeliveryWatchdog} blacklists handlers exceeding the
+ * timeout. This avoids two thread handoffs per handler, but a handler
+ * exceeding the timeout keeps blocking the calling thread until it returns.
+ *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class SyncDeliverTasks
@@ -59,24 +64,56 @@ public class SyncDeliverTasks
     /** The thread pool used to spin-off new threads. */
     private final DefaultThreadPool pool;
 
-    private long timeout;
+    private volatile long timeout;
+
+    /** The watchdog for inline delivery or <code>null</code>. */
+    private volatile DeliveryWatchdog watchdog;
 
     /**
      * Construct a new sync deliver tasks.
      * @param pool The thread pool used to spin-off new threads.
+     * @param timeout The timeout in milliseconds, zero disables timeouts.
+     * @param inline Whether handlers are called inline with a watchdog.
      */
-    public SyncDeliverTasks(final DefaultThreadPool pool, final long timeout)
+    public SyncDeliverTasks(final DefaultThreadPool pool, final long timeout, final boolean inline)
     {
         this.pool = pool;
-        this.update(timeout);
+        this.update(timeout, inline);
     }
 
     /**
      * Update the timeout configuration
      */
-    public void update(final long timeout)
+    public synchronized void update(final long timeout, final boolean inline)
     {
         this.timeout = timeout;
+        if ( inline && timeout > 0 )
+        {
+            if ( this.watchdog == null )
+            {
+                this.watchdog = new DeliveryWatchdog(timeout);
+            }
+            else
+            {
+                this.watchdog.update(timeout);
+            }
+        }
+        else
+        {
+            this.stop();
+        }
+    }
+
+    /**
+     * Stop the watchdog, if any.
+     */
+    public synchronized void stop()
+    {
+        if ( this.watchdog != null )
+        {
+            this.watchdog.stop();
+            this.watchdog = null;
+        }
     }
 
     /**
@@ -105,6 +142,7 @@ public class SyncDeliverTasks
     {
         final Thread sleepingThread = Thread.currentThread();
         final SyncThread syncThread = sleepingThread instanceof SyncThread ? (SyncThread)sleepingThread : null;
+        final DeliveryWatchdog localWatchdog = this.watchdog;
 
         final Iterator i = tasks.iterator();
         while ( i.hasNext() )
@@ -117,6 +155,11 @@ public class SyncDeliverTasks
                     // no timeout, we can directly execute
                     task.sendEvent(event);
                 }
+                else if ( localWatchdog != null )
+                {
+                    // inline delivery, the watchdog handles the timeout
+                    localWatchdog.deliver(task, event);
+                }
                 else if ( syncThread != null )
                 {
                     // if this is a cascaded event, we directly use this thread
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.util;
+
+/**
+ * The clock used to measure delivery times. It uses
+ * <tt>System.nanoTime()</tt> if available and falls back to the
+ * millisecond clock on VMs older than Java 5, as the event admin
+ * still runs on those. The clock is chosen once when this class is
+ * loaded, so reading it is a plain call.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public abstract class Clock
+{
+    /** The clock in use. */
+    private static final Clock CLOCK = createClock();
+
+    private Clock()
+    {
+        // only the clocks below
+    }
+
+    private static Clock createClock()
+    {
+        try
+        {
+            // the method is only linked when called, so the
+            // nanosecond clock can be loaded on older VMs
+            final Clock clock = new NanoClock();
+            clock.time();
+            return clock;
+        }
+        catch (final Throwable t)
+        {
+            // not available, use milliseconds
+            return new MillisClock();
+        }
+    }
+
+    /**
+     * The current value of the clock in nanoseconds. Only the difference
+     * between two values is meaningful.
+     */
+    public static long nanoTime()
+    {
+        return CLOCK.time();
+    }
+
+    abstract long time();
+
+    private static final class NanoClock extends Clock
+    {
+        long time()
+        {
+            return System.nanoTime();
+        }
+    }
+
+    private static final class MillisClock extends Clock
+    {
+        long time()
+        {
+            return System.currentTimeMillis() * 1000000L;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * A framework instance with a population of synthetic bundles, which is
+ * created in a temporary bundle cache and deleted when it is disposed.
+ * @see SyntheticBundles
+**/
+public class BundlePopulation
+{
+    private final File m_cacheDir;
+    private final Felix m_felix;
+    private final Bundle[] m_bundles;
+
+    /**
+     * Starts a framework and installs a population of synthetic bundles.
+     * @param count the number of bundles to install.
+     * @param start whether to resolve and start the bundles; otherwise they
+     *        remain installed, but unresolved.
+     * @throws Exception if the framework or a bundle cannot be started.
+    **/
+    public BundlePopulation(int count, boolean start) throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-benchmark", "");
+        m_cacheDir.delete();
+
+        Map configMap = new HashMap();
+        configMap.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getAbsolutePath());
+        configMap.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+            Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        configMap.put("felix.log.level", "1");
+        // The population only imports its own packages, so export just the
+        // core framework package, which does not depend on the Java version.
+        configMap.put(Constants.FRAMEWORK_SYSTEMPACKAGES, "org.osgi.framework;version=1.7");
+        // Avoid the JVM-wide URL handler factories, so that several
+        // populations can be created in the same JVM.
+        configMap.put("felix.service.urlhandlers", "false");
+        m_felix = new Felix(configMap);
+        m_felix.start();
+
+        BundleContext context = m_felix.getBundleContext();
+        m_bundles = new Bundle[count];
+        for (int i = 0; i < count; i++)
+        {
+            m_bundles[i] = context.installBundle(
+                "bench:" + i,
+                new ByteArrayInputStream(SyntheticBundles.createBundle(i, count)));
+        }
+
+        if (start)
+        {
+            if (!m_felix.adapt(FrameworkWiring.class).resolveBundles(null))
+            {
+                throw new IllegalStateException("Unable to resolve the population.");
+            }
+            for (int i = 0; i < count; i++)
+            {
+                m_bundles[i].start();
+            }
+        }
+    }
+
+    public Felix getFramework()
+    {
+        return m_felix;
+    }
+
+    public Bundle[] getBundles()
+    {
+        return m_bundles;
+    }
+
+    public BundleRevision[] getRevisions()
+    {
+        BundleRevision[] revisions = new BundleRevision[m_bundles.length];
+        for (int i = 0; i < m_bundles.length; i++)
+        {
+            revisions[i] = m_bundles[i].adapt(BundleRevision.class);
+        }
+        return revisions;
+    }
+
+    public void dispose() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(0);
+        deleteDirectoryTree(m_cacheDir);
+    }
+
+    private static void deleteDirectoryTree(File target)
+    {
+        File[] files = target.listFiles();
+        if (files != null)
+        {
+            for (int i = 0; i < files.length; i++)
+            {
+                deleteDirectoryTree(files[i]);
+            }
+        }
+        target.delete();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.felix.framework.capabilityset.CapabilitySet;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Measures <tt>CapabilitySet.match()</tt> for the package requirements of a
+ * population against a set of all of its package capabilities, indexed by
+ * package name like the resolver's package capability set.
+**/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CapabilitySetBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Population
+    {
+        @Param({ "100", "1000", "5000" })
+        public int bundleCount;
+
+        BundlePopulation m_population;
+        CapabilitySet m_capSet;
+        SimpleFilter[] m_filters;
+        SimpleFilter m_unindexedFilter;
+        int m_cursor;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            m_population = new BundlePopulation(bundleCount, false);
+            m_capSet = new CapabilitySet(
+                Collections.singletonList(BundleRevision.PACKAGE_NAMESPACE), true);
+            List<SimpleFilter> filters = new ArrayList<SimpleFilter>();
+            for (BundleRevision revision : m_population.getRevisions())
+            {
+                for (BundleCapability cap
+                    : revision.getDeclaredCapabilities(BundleRevision.PACKAGE_NAMESPACE))
+                {
+                    m_capSet.addCapability(cap);
+                }
+                for (BundleRequirement req
+                    : revision.getDeclaredRequirements(BundleRevision.PACKAGE_NAMESPACE))
+                {
+                    filters.add(((BundleRequirementImpl) req).getFilter());
+                }
+            }
+            m_filters = filters.toArray(new SimpleFilter[filters.size()]);
+            m_unindexedFilter = SimpleFilter.parse("(version=1.0.5)");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception
+        {
+            m_population.dispose();
+        }
+
+        SimpleFilter nextFilter()
+        {
+            m_cursor = (m_cursor + 1) % m_filters.length;
+            return m_filters[m_cursor];
+        }
+    }
+
+    @Benchmark
+    public Set<BundleCapability> matchImport(Population p)
+    {
+        return p.m_capSet.match(p.nextFilter(), true);
+    }
+
+    @Benchmark
+    public Set<BundleCapability> matchUnindexed(Population p)
+    {
+        return p.m_capSet.match(p.m_unindexedFilter, true);
+    }
+}
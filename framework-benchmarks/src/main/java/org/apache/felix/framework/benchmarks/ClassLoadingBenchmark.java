@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.felix.framework.BundleWiringImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Measures <tt>BundleWiringImpl.getClassByDelegation()</tt> for classes of
+ * imported packages, the bundle's own package, the boot class path, and
+ * missing classes of imported packages, for the resolved bundles of a
+ * population.
+**/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassLoadingBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Population
+    {
+        @Param({ "100", "1000", "5000" })
+        public int bundleCount;
+
+        BundlePopulation m_population;
+        BundleWiringImpl[] m_wirings;
+        String[] m_localClassNames;
+        String[] m_importedClassNames;
+        String[] m_missingClassNames;
+        int m_cursor;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            m_population = new BundlePopulation(bundleCount, true);
+            Bundle[] bundles = m_population.getBundles();
+            m_wirings = new BundleWiringImpl[bundles.length];
+            m_localClassNames = new String[bundles.length];
+            m_importedClassNames = new String[bundles.length];
+            m_missingClassNames = new String[bundles.length];
+            for (int i = 0; i < bundles.length; i++)
+            {
+                m_wirings[i] = (BundleWiringImpl) bundles[i].adapt(BundleWiring.class);
+                m_localClassNames[i] = SyntheticBundles.getClassName(i);
+                int imported = SyntheticBundles.getImportedIndex(i, i % 2, bundles.length);
+                m_importedClassNames[i] = SyntheticBundles.getClassName(imported);
+                m_missingClassNames[i] =
+                    SyntheticBundles.getPackageName(imported) + ".Missing";
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception
+        {
+            m_population.dispose();
+        }
+
+        int next()
+        {
+            m_cursor = (m_cursor + 1) % m_wirings.length;
+            return m_cursor;
+        }
+    }
+
+    @Benchmark
+    public Class loadImportedClass(Population p) throws Exception
+    {
+        int i = p.next();
+        return p.m_wirings[i].getClassByDelegation(p.m_importedClassNames[i]);
+    }
+
+    @Benchmark
+    public Class loadLocalClass(Population p) throws Exception
+    {
+        int i = p.next();
+        return p.m_wirings[i].getClassByDelegation(p.m_localClassNames[i]);
+    }
+
+    @Benchmark
+    public Class loadBootClass(Population p) throws Exception
+    {
+        return p.m_wirings[p.next()].getClassByDelegation("java.lang.String");
+    }
+
+    @Benchmark
+    public Object loadMissingClass(Population p)
+    {
+        int i = p.next();
+        try
+        {
+            return p.m_wirings[i].getClassByDelegation(p.m_missingClassNames[i]);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            return ex;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+import org.apache.felix.framework.FilterImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Constants;
+
+/**
+ * Measures <tt>FilterImpl.match()</tt> against the service properties of a
+ * population, as registered by {@link ServiceRegistryBenchmark}, for filters
+ * of typical service trackers and listeners. This does not need a running
+ * framework, since only the properties are matched.
+**/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Population
+    {
+        @Param({ "100", "1000", "5000" })
+        public int bundleCount;
+
+        @Param({
+            "(objectClass=java.lang.Runnable)",
+            "(&(objectClass=java.lang.Runnable)(index=42))",
+            "(&(group>=3)(!(index<=100)))",
+            "(name=bench.b1*)" })
+        public String filter;
+
+        FilterImpl m_filter;
+        Dictionary[] m_properties;
+        int m_cursor;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            m_filter = new FilterImpl(filter);
+            m_properties = new Dictionary[bundleCount];
+            for (int i = 0; i < bundleCount; i++)
+            {
+                Hashtable props = new Hashtable();
+                props.put(Constants.OBJECTCLASS,
+                    new String[] { ServiceRegistryBenchmark.SERVICE_NAME });
+                props.put(Constants.SERVICE_ID, new Long(i + 1));
+                props.put("index", new Integer(i));
+                props.put("group", new Integer(i % ServiceRegistryBenchmark.GROUP_COUNT));
+                props.put("name", SyntheticBundles.getSymbolicName(i));
+                m_properties[i] = props;
+            }
+        }
+
+        Dictionary nextProperties()
+        {
+            m_cursor = (m_cursor + 1) % m_properties.length;
+            return m_properties[m_cursor];
+        }
+    }
+
+    @Benchmark
+    public boolean match(Population p)
+    {
+        return p.m_filter.match(p.nextProperties());
+    }
+
+    @Benchmark
+    public boolean matchCase(Population p)
+    {
+        return p.m_filter.matchCase(p.nextProperties());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Measures the resolution of a whole population, which is mostly spent in
+ * <tt>ResolverImpl.resolve()</tt>. The resolver only accepts the framework's
+ * own resolve context, so it is invoked through
+ * <tt>FrameworkWiring.resolveBundles()</tt>; before each invocation, the
+ * population is refreshed to unresolve it again, which is not measured.
+**/
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ResolverBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Population
+    {
+        @Param({ "100", "1000", "5000" })
+        public int bundleCount;
+
+        BundlePopulation m_population;
+        FrameworkWiring m_frameworkWiring;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            m_population = new BundlePopulation(bundleCount, false);
+            m_frameworkWiring = m_population.getFramework().adapt(FrameworkWiring.class);
+        }
+
+        @Setup(Level.Invocation)
+        public void unresolve() throws Exception
+        {
+            final CountDownLatch latch = new CountDownLatch(1);
+            m_frameworkWiring.refreshBundles(
+                Arrays.asList(m_population.getBundles()),
+                new FrameworkListener()
+                {
+                    public void frameworkEvent(FrameworkEvent event)
+                    {
+                        latch.countDown();
+                    }
+                });
+            latch.await();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception
+        {
+            m_population.dispose();
+        }
+    }
+
+    @Benchmark
+    public boolean resolve(Population p)
+    {
+        boolean resolved = p.m_frameworkWiring.resolveBundles(null);
+        if (!resolved)
+        {
+            throw new IllegalStateException("Unable to resolve the population.");
+        }
+        return resolved;
+    }
+}
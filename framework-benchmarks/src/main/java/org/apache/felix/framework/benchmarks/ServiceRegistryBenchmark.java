@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Measures service lookups, which end up in
+ * <tt>ServiceRegistry.getServiceReferences()</tt>, against a population in
+ * which every bundle registers a service under a common interface, with an
+ * index property and a group property with one of ten values. The interface
+ * is a boot class, so that the assignability check of each reference loads
+ * it successfully, like it would for a real service interface.
+**/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceRegistryBenchmark
+{
+    static final String SERVICE_NAME = Runnable.class.getName();
+    static final int GROUP_COUNT = 10;
+    static final String GROUP_FILTER = "(group=3)";
+
+    @State(Scope.Benchmark)
+    public static class Population
+    {
+        @Param({ "100", "1000", "5000" })
+        public int bundleCount;
+
+        BundlePopulation m_population;
+        BundleContext m_context;
+        String[] m_indexFilters;
+        int m_cursor;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            m_population = new BundlePopulation(bundleCount, true);
+            Bundle[] bundles = m_population.getBundles();
+            m_indexFilters = new String[bundles.length];
+            for (int i = 0; i < bundles.length; i++)
+            {
+                Hashtable props = new Hashtable();
+                props.put("index", new Integer(i));
+                props.put("group", new Integer(i % GROUP_COUNT));
+                bundles[i].getBundleContext().registerService(
+                    SERVICE_NAME, new EmptyService(), props);
+                m_indexFilters[i] = "(index=" + i + ")";
+            }
+            m_context = bundles[0].getBundleContext();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception
+        {
+            m_population.dispose();
+        }
+
+        String nextIndexFilter()
+        {
+            m_cursor = (m_cursor + 1) % m_indexFilters.length;
+            return m_indexFilters[m_cursor];
+        }
+    }
+
+    @Benchmark
+    public ServiceReference[] getReferencesByName(Population p) throws Exception
+    {
+        return p.m_context.getServiceReferences(SERVICE_NAME, null);
+    }
+
+    @Benchmark
+    public ServiceReference[] getReferencesByFilter(Population p) throws Exception
+    {
+        return p.m_context.getServiceReferences((String) null, p.nextIndexFilter());
+    }
+
+    @Benchmark
+    public ServiceReference[] getReferencesByNameAndFilter(Population p) throws Exception
+    {
+        return p.m_context.getServiceReferences(SERVICE_NAME, p.nextIndexFilter());
+    }
+
+    @Benchmark
+    public ServiceReference[] getReferencesByNameAndGroup(Population p) throws Exception
+    {
+        return p.m_context.getServiceReferences(SERVICE_NAME, GROUP_FILTER);
+    }
+
+    @Benchmark
+    public ServiceReference[] getAllReferencesByName(Population p) throws Exception
+    {
+        return p.m_context.getAllServiceReferences(SERVICE_NAME, null);
+    }
+
+    static class EmptyService implements Runnable
+    {
+        public void run()
+        {
+        }
+    }
+}
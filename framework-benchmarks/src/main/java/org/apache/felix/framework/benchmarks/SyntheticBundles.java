@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.osgi.framework.Constants;
+
+/**
+ * <p>
+ * Generates the bundles of a synthetic population in memory, so that the
+ * benchmarks run without any bundles other than the framework. Bundle
+ * <i>i</i> of a population has the symbolic name <tt>bench.b</tt><i>i</i>
+ * and exports the package <tt>bench.p</tt><i>i</i>, which contains a single
+ * empty class <tt>Type</tt>.
+ * </p>
+ * <p>
+ * About the first tenth of the population are API bundles, in groups of
+ * {@link #IMPORT_COUNT} + 1 bundles, each of which imports the packages of
+ * the other bundles of its group. All other bundles import the packages of
+ * {@link #IMPORT_COUNT} API bundles and their exports use all of their
+ * imports, like the implementation bundles of a typical application. This
+ * keeps dependency chains short, as they are in practice, independent of
+ * the size of the population.
+ * </p>
+**/
+public class SyntheticBundles
+{
+    public static final int IMPORT_COUNT = 5;
+
+    private static final String SYMBOLIC_NAME_PREFIX = "bench.b";
+    private static final String PACKAGE_PREFIX = "bench.p";
+    private static final String CLASS_NAME = "Type";
+
+    public static String getSymbolicName(int index)
+    {
+        return SYMBOLIC_NAME_PREFIX + index;
+    }
+
+    public static String getPackageName(int index)
+    {
+        return PACKAGE_PREFIX + index;
+    }
+
+    public static String getClassName(int index)
+    {
+        return getPackageName(index) + "." + CLASS_NAME;
+    }
+
+    /**
+     * Returns the number of API bundles in a population of the specified
+     * size, which are the bundles with the lowest indices.
+     * @param count the number of bundles in the population.
+     * @return the number of API bundles.
+    **/
+    public static int getApiCount(int count)
+    {
+        int groupSize = IMPORT_COUNT + 1;
+        return Math.min(count, Math.max(1, count / 10 / groupSize) * groupSize);
+    }
+
+    /**
+     * Returns the number of packages imported by each bundle of a
+     * population of the specified size.
+     * @param count the number of bundles in the population.
+     * @return the number of imported packages.
+    **/
+    public static int getImportCount(int count)
+    {
+        return Math.min(IMPORT_COUNT, getApiCount(count) - 1);
+    }
+
+    /**
+     * Returns the index of the bundle exporting an imported package.
+     * @param index the index of the importing bundle.
+     * @param importNumber the number of the import, starting at zero.
+     * @param count the number of bundles in the population.
+     * @return the index of the exporting bundle.
+    **/
+    public static int getImportedIndex(int index, int importNumber, int count)
+    {
+        int apiCount = getApiCount(count);
+        if (index < apiCount)
+        {
+            int groupSize = Math.min(IMPORT_COUNT + 1, apiCount);
+            int group = index - (index % groupSize);
+            return group + ((index - group + 1 + importNumber) % groupSize);
+        }
+        return (index + importNumber) % apiCount;
+    }
+
+    public static Manifest createManifest(int index, int count)
+    {
+        Manifest mf = new Manifest();
+        Attributes attrs = mf.getMainAttributes();
+        attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attrs.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        attrs.putValue(Constants.BUNDLE_SYMBOLICNAME, getSymbolicName(index));
+        attrs.putValue(Constants.BUNDLE_VERSION, "1.0." + index);
+
+        StringBuffer imports = new StringBuffer();
+        StringBuffer uses = new StringBuffer();
+        for (int i = 0; i < getImportCount(count); i++)
+        {
+            String pkgName = getPackageName(getImportedIndex(index, i, count));
+            if (i > 0)
+            {
+                imports.append(',');
+                uses.append(',');
+            }
+            imports.append(pkgName).append(";version=\"[1.0,2)\"");
+            uses.append(pkgName);
+        }
+        if (imports.length() > 0)
+        {
+            attrs.putValue(Constants.IMPORT_PACKAGE, imports.toString());
+        }
+
+        String exports = getPackageName(index) + ";version=\"1.0." + (index % 10) + "\"";
+        if ((index >= getApiCount(count)) && (uses.length() > 0))
+        {
+            exports = exports + ";uses:=\"" + uses + "\"";
+        }
+        attrs.putValue(Constants.EXPORT_PACKAGE, exports);
+
+        return mf;
+    }
+
+    public static byte[] createBundle(int index, int count) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JarOutputStream jos = new JarOutputStream(baos, createManifest(index, count));
+        String internalName = getClassName(index).replace('.', '/');
+        jos.putNextEntry(new JarEntry(internalName + ".class"));
+        jos.write(createClass(internalName));
+        jos.closeEntry();
+        jos.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Returns the class file of an empty public class, which can be loaded
+     * but not instantiated, since it does not have a constructor.
+     * @param internalName the internal name of the class.
+     * @return the class file.
+    **/
+    public static byte[] createClass(String internalName) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0xCAFEBABE);
+        // Java 5 class file version.
+        dos.writeShort(0);
+        dos.writeShort(49);
+        // Constant pool of the names of the class and its super class.
+        dos.writeShort(5);
+        dos.writeByte(1);
+        dos.writeUTF(internalName);
+        dos.writeByte(7);
+        dos.writeShort(1);
+        dos.writeByte(1);
+        dos.writeUTF("java/lang/Object");
+        dos.writeByte(7);
+        dos.writeShort(3);
+        // ACC_PUBLIC | ACC_SUPER, this class, and super class.
+        dos.writeShort(0x21);
+        dos.writeShort(2);
+        dos.writeShort(4);
+        // No interfaces, fields, methods, or attributes.
+        dos.writeShort(0);
+        dos.writeShort(0);
+        dos.writeShort(0);
+        dos.writeShort(0);
+        dos.close();
+        return baos.toByteArray();
+    }
+}
@@ -53,6 +53,9 @@ class BundleImpl implements Bundle, BundleRevisions
 
     private final BundleArchive m_archive;
     private final List<BundleRevision> m_revisions = new ArrayList<BundleRevision>(0);
+    // The most recent revision, which may be read without holding the
+    // bundle's monitor.
+    private volatile BundleRevisionImpl m_currentRevision = null;
     private volatile int m_state;
     private boolean m_useDeclaredActivationPolicy;
     private BundleActivator m_activator = null;
@@ -93,8 +96,14 @@ class BundleImpl implements Bundle, BundleRevisions
         m_activator = null;
         m_context = null;
 
-        BundleRevision revision = createRevision();
-        addRevision(revision);
+        synchronized (getFramework().getBundleRevisionLock())
+        {
+            BundleRevision revision = createRevision();
+            addRevision(revision);
+            // Reserve the symbolic name and version until the framework
+            // adds this bundle to its installed bundles.
+            getFramework().addInstallingBundle(this);
+        }
     }
 
     // This method exists because the system bundle extends BundleImpl
@@ -1138,8 +1147,11 @@ class BundleImpl implements Bundle, BundleRevisions
         m_archive.revise(location, is);
         try
         {
-            BundleRevision revision = createRevision();
-            addRevision(revision);
+            synchronized (getFramework().getBundleRevisionLock())
+            {
+                BundleRevision revision = createRevision();
+                addRevision(revision);
+            }
         }
         catch (Exception ex)
         {
@@ -1152,6 +1164,7 @@ class BundleImpl implements Bundle, BundleRevisions
     {
         boolean isExtension = isExtension();
         BundleRevision br = m_revisions.remove(0);
+        m_currentRevision = (BundleRevisionImpl) m_revisions.get(0);
         if (!isExtension)
         {
             // Since revising a bundle adds a revision to the global
@@ -1178,6 +1191,7 @@ class BundleImpl implements Bundle, BundleRevisions
             m_revisions.remove(0);
             throw ex;
         }
+        m_currentRevision = (BundleRevisionImpl) revision;
 
         // TODO: REFACTOR - consider nulling capabilities for extension bundles
         // so we don't need this check anymore.
@@ -1217,14 +1231,27 @@ class BundleImpl implements Bundle, BundleRevisions
             bundleVersion = (bundleVersion == null) ? Version.emptyVersion : bundleVersion;
             String symName = revision.getSymbolicName();
 
-            Bundle[] bundles = getFramework().getBundles();
-            for (int i = 0; (bundles != null) && (i < bundles.length); i++)
+            // Avoid the monitors of the other bundles, since they may be
+            // revised concurrently; the bundle revision lock held by our
+            // caller ensures their current revisions are up to date. Since
+            // bundles are only added to the installed bundles after their
+            // first revision was created, bundles still being installed
+            // are checked too; they are registered under the same lock.
+            List<Bundle> bundles = new ArrayList<Bundle>(
+                getFramework().getInstallingBundles());
+            Bundle[] installed = getFramework().getBundles();
+            if (installed != null)
+            {
+                bundles.addAll(Arrays.asList(installed));
+            }
+            for (Bundle bundle : bundles)
             {
-                long id = ((BundleImpl) bundles[i]).getBundleId();
-                if (id != getBundleId())
+                long id = ((BundleImpl) bundle).getBundleId();
+                BundleRevisionImpl current = ((BundleImpl) bundle).m_currentRevision;
+                if ((id != getBundleId()) && (current != null))
                 {
-                    String sym = bundles[i].getSymbolicName();
-                    Version ver = bundles[i].getVersion();
+                    String sym = current.getSymbolicName();
+                    Version ver = current.getVersion();
                     if ((symName != null)
                         && (sym != null)
                         && symName.equals(sym)
@@ -40,6 +40,7 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.cache.JarContent;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
@@ -79,6 +80,8 @@ public class BundleWiringImpl implements BundleWiring
     public final static int EAGER_ACTIVATION = 0;
     public final static int LAZY_ACTIVATION = 1;
 
+    private final static int DEFAULT_MISS_CACHE_SIZE = 256;
+
     private final Logger m_logger;
     private final Map m_configMap;
     private final StatefulResolver m_resolver;
@@ -135,6 +138,20 @@ public class BundleWiringImpl implements BundleWiring
     // Boolean flag to enable/disable local URLs.
     private final boolean m_useLocalURLs;
 
+    // Memoized boot delegation decisions per package, since the boot
+    // delegation configuration does not change for the life of a wiring.
+    private final Map<String, Boolean> m_bootDelegatedPkgs =
+        new ConcurrentHashMap<String, Boolean>();
+    // Bounded caches of classes and resources that were neither found in
+    // required bundles nor in the local content, so repeated probes for
+    // them can skip straight to dynamic imports. These are cleared when a
+    // dynamic wire is added or when they exceed their maximum size.
+    private final int m_missCacheSize;
+    private final Map<String, Boolean> m_classMisses =
+        new ConcurrentHashMap<String, Boolean>();
+    private final Map<String, Boolean> m_resourceMisses =
+        new ConcurrentHashMap<String, Boolean>();
+
     // Re-usable security manager for accessing class context.
     private static SecurityManagerEx m_sm = new SecurityManagerEx();
 
@@ -429,6 +446,11 @@ public class BundleWiringImpl implements BundleWiring
         m_useLocalURLs =
             (m_configMap.get(FelixConstants.USE_LOCALURLS_PROP) == null)
                 ? false : true;
+
+        m_missCacheSize = Util.parseIntProperty(
+            m_logger, FelixConstants.CLASSLOADER_MISS_CACHE_SIZE_PROP,
+            m_configMap.get(FelixConstants.CLASSLOADER_MISS_CACHE_SIZE_PROP),
+            DEFAULT_MISS_CACHE_SIZE);
     }
 
     private static List<List<String>> parsePkgFilters(BundleCapability cap, String filtername)
@@ -467,6 +489,8 @@ public class BundleWiringImpl implements BundleWiring
         }
         m_classLoader = null;
         m_isDisposed = true;
+        m_classMisses.clear();
+        m_resourceMisses.clear();
     }
 
 // TODO: OSGi R4.3 - This really shouldn't be public, but it is needed by the
@@ -629,6 +653,10 @@ public class BundleWiringImpl implements BundleWiring
         // to cause any issues.
         m_wires = ImmutableList.newInstance(wires);
         m_importedPkgs = importedPkgs;
+        // The new wire may change how a previously missed class
+        // or resource is found, so forget all misses.
+        m_classMisses.clear();
+        m_resourceMisses.clear();
     }
 
     public BundleRevision getResource()
@@ -1255,6 +1283,17 @@ public class BundleWiringImpl implements BundleWiring
             return true;
         }
 
+        Boolean result = m_bootDelegatedPkgs.get(pkgName);
+        if (result == null)
+        {
+            result = Boolean.valueOf(isBootPackage(pkgName));
+            m_bootDelegatedPkgs.put(pkgName, result);
+        }
+        return result.booleanValue();
+    }
+
+    private boolean isBootPackage(String pkgName)
+    {
         boolean result = false;
 
         // Only consider delegation if we have a package name, since
@@ -1483,8 +1522,11 @@ public class BundleWiringImpl implements BundleWiring
                 // it continues if a null is returned.
                 result = searchImports(pkgName, name, isClass);
 
-                // If not found, try the revision's own class path.
-                if (result == null)
+                // If not found, try the revision's own class path, unless
+                // we already know it is not there.
+                Map<String, Boolean> misses = (isClass)
+                    ? m_classMisses : m_resourceMisses;
+                if ((result == null) && !misses.containsKey(name))
                 {
                     if (isClass)
                     {
@@ -1505,12 +1547,25 @@ public class BundleWiringImpl implements BundleWiring
                         result = (Object) m_revision.getResourceLocal(name);
                     }
 
-                    // If still not found, then try the revision's dynamic imports.
-                    if (result == null)
+                    // Remember the miss, but only if no other bundle was
+                    // consulted, since a miss from a required bundle may be
+                    // the result of a class loading cycle.
+                    if ((result == null) && (m_missCacheSize > 0)
+                        && !m_requiredPkgs.containsKey(pkgName))
                     {
-                        result = searchDynamicImports(pkgName, name, isClass);
+                        if (misses.size() >= m_missCacheSize)
+                        {
+                            misses.clear();
+                        }
+                        misses.put(name, Boolean.TRUE);
                     }
                 }
+
+                // If still not found, then try the revision's dynamic imports.
+                if (result == null)
+                {
+                    result = searchDynamicImports(pkgName, name, isClass);
+                }
             }
             finally
             {
@@ -1843,12 +1898,10 @@ public class BundleWiringImpl implements BundleWiring
         {
             try
             {
+                // See BundleClassLoader for why this is not made accessible.
                 Method method = BundleRevisionImpl.getSecureAction()
                     .getDeclaredMethod(ClassLoader.class, "registerAsParallelCapable", null);
-
-                 BundleRevisionImpl.getSecureAction().setAccesssible(method);
-
-                 method.invoke(null);
+                method.invoke(null);
             }
             catch (Throwable th)
             {
@@ -1884,22 +1937,23 @@ public class BundleWiringImpl implements BundleWiring
 
     public static class BundleClassLoader extends SecureClassLoader implements BundleReference
     {
-         static
-         {
-             try
-             {
-                 Method method = BundleRevisionImpl.getSecureAction()
+        static
+        {
+            try
+            {
+                // The method registers its caller, so it has to be invoked
+                // here and not via the secure action. It is protected and
+                // therefore accessible to us without setting it accessible,
+                // which would fail on newer JVMs.
+                Method method = BundleRevisionImpl.getSecureAction()
                     .getDeclaredMethod(ClassLoader.class, "registerAsParallelCapable", null);
-
-                 BundleRevisionImpl.getSecureAction().setAccesssible(method);
-
-                 method.invoke(null);
-             }
-             catch (Throwable th)
-             {
-                 // This is OK on older java versions
-             }
-         }
+                method.invoke(null);
+            }
+            catch (Throwable th)
+            {
+                // This is OK on older java versions
+            }
+        }
 
         // Flag used to determine if a class has been loaded from this class
         // loader or not.
@@ -1909,12 +1963,22 @@ public class BundleWiringImpl implements BundleWiring
         private Object[][] m_cachedLibs = new Object[0][];
         private static final int LIBNAME_IDX = 0;
         private static final int LIBPATH_IDX = 1;
-        private final Map<String, Thread> m_classLocks = new HashMap<String, Thread>();
+        // Threads currently defining a class, keyed by class name. The map is
+        // striped by class name hash so that threads defining different classes
+        // rarely contend; each stripe is guarded by its own monitor, which
+        // is never held while a class is being defined.
+        private static final int CLASS_LOCK_STRIPES = 32;
+        private final Map<String, Thread>[] m_classLocks =
+            new Map[CLASS_LOCK_STRIPES];
         private BundleWiringImpl m_wiring;
 
         public BundleClassLoader(BundleWiringImpl wiring, ClassLoader parent)
         {
             super(parent);
+            for (int i = 0; i < m_classLocks.length; i++)
+            {
+                m_classLocks[i] = new HashMap<String, Thread>();
+            }
             if (m_dexFileClassLoadClass != null)
             {
                 m_jarContentToDexFile = new HashMap();
@@ -1940,13 +2004,9 @@ public class BundleWiringImpl implements BundleWiring
         protected Class loadClass(String name, boolean resolve)
             throws ClassNotFoundException
         {
-            Class clazz;
-
-            // Make sure the class was not already loaded.
-            synchronized (m_classLocks)
-            {
-                clazz = findLoadedClass(name);
-            }
+            // Make sure the class was not already loaded; this does not
+            // need any locking since the JVM keeps track of loaded classes.
+            Class clazz = findLoadedClass(name);
 
             if (clazz == null)
             {
@@ -1981,6 +2041,13 @@ public class BundleWiringImpl implements BundleWiring
             return clazz;
         }
 
+        private Map<String, Thread> getClassLocks(String name)
+        {
+            int hash = name.hashCode();
+            hash ^= (hash >>> 16);
+            return m_classLocks[hash & (CLASS_LOCK_STRIPES - 1)];
+        }
+
         @Override
         protected Class findClass(String name) throws ClassNotFoundException
         {
@@ -2001,6 +2068,10 @@ public class BundleWiringImpl implements BundleWiring
                     + " is no longer valid.");
             }
 
+            FrameworkMetrics metrics =
+                ((BundleImpl) getBundle()).getFramework().getMetrics();
+            long start = (metrics != null) ? System.nanoTime() : 0;
+
             // Search for class in bundle revision.
             if (clazz == null)
             {
@@ -2087,14 +2158,15 @@ public class BundleWiringImpl implements BundleWiring
                     // Before we actually attempt to define the class, grab
                     // the lock for this class loader and make sure than no
                     // other thread has defined this class in the meantime.
-                    synchronized (m_classLocks)
+                    Map<String, Thread> classLocks = getClassLocks(name);
+                    synchronized (classLocks)
                     {
                         Thread me = Thread.currentThread();
-                        while (m_classLocks.containsKey(name) && (m_classLocks.get(name) != me))
+                        while (classLocks.containsKey(name) && (classLocks.get(name) != me))
                         {
                             try
                             {
-                                m_classLocks.wait();
+                                classLocks.wait();
                             }
                             catch (InterruptedException e)
                             {
@@ -2107,7 +2179,7 @@ public class BundleWiringImpl implements BundleWiring
                         if (clazz == null)
                         {
                             // Not found, we should try load it.
-                            m_classLocks.put(name, me);
+                            classLocks.put(name, me);
                         }
                     }
 
@@ -2306,13 +2378,20 @@ public class BundleWiringImpl implements BundleWiring
                             wci.complete(wovenClass, wovenBytes, wovenImports);
                         }
 
-                        synchronized (m_classLocks)
+                        synchronized (classLocks)
                         {
-                            m_classLocks.remove(name);
-                            m_classLocks.notifyAll();
+                            classLocks.remove(name);
+                            classLocks.notifyAll();
                         }
                     }
 
+                    // Record the time spent finding, weaving and defining
+                    // the class, but not any deferred activation below.
+                    if (metrics != null)
+                    {
+                        metrics.classLoaded(getBundle(), System.nanoTime() - start);
+                    }
+
                     // Perform deferred activation without holding the class loader lock,
                     // if the class we are returning is the instigating class.
                     List deferredList = (List) m_deferredActivation.get();
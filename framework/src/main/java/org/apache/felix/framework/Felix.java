@@ -23,6 +23,12 @@ import java.io.*;
 import java.net.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.apache.felix.framework.BundleWiringImpl.BundleClassLoader;
 import org.apache.felix.framework.ServiceRegistry.ServiceRegistryCallbacks;
 import org.apache.felix.framework.cache.BundleArchive;
@@ -31,6 +37,7 @@ import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.ext.SecurityProvider;
 import org.apache.felix.framework.resolver.ResolveException;
+import org.apache.felix.framework.resolver.ResolverWire;
 import org.apache.felix.framework.util.EventDispatcher;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ListenerInfo;
@@ -40,6 +47,7 @@ import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.ThreadGate;
 import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.WeakZipFileFactory;
 import org.apache.felix.framework.util.manifestparser.R4LibraryClause;
 import org.apache.felix.framework.wiring.BundleRequirementImpl;
 import org.osgi.framework.AdminPermission;
@@ -92,6 +100,8 @@ public class Felix extends BundleImpl implements Framework
 
     // Resolver and resolver state.
     private final StatefulResolver m_resolver;
+    // Saves and restores wirings across restarts, if enabled.
+    private final ResolutionCache m_resolutionCache;
 
     // Lock object used to determine if an individual bundle
     // lock or the global lock can be acquired.
@@ -104,6 +114,15 @@ public class Felix extends BundleImpl implements Framework
     // the global lock; if this value is zero, then it means the global
     // lock is free.
     private int m_globalLockCount = 0;
+    // How many threads are waiting to acquire the global lock; new sets
+    // of bundle locks are not granted while this value is not zero.
+    private int m_globalLockWaiterCount = 0;
+    // Maps threads holding sets of bundle locks acquired with
+    // acquireBundleLocks() to how many times they acquired them;
+    // the global lock cannot be acquired while other threads are
+    // contained in this map.
+    private final Map<Thread, Integer> m_bundleLocksThreads =
+        new HashMap<Thread, Integer>();
 
     // Maps a bundle location to a bundle location;
     // used to reserve a location when installing a bundle.
@@ -115,15 +134,30 @@ public class Felix extends BundleImpl implements Framework
 
     // Contains two maps, one mapping a String bundle location to a bundle
     // and the other mapping a Long bundle identifier to a bundle.
-    // CONCURRENCY: Access guarded by the global lock for writes,
-    // but no lock for reads since it is copy on write.
+    // CONCURRENCY: Access guarded by the global lock or by bundle locks
+    // acquired with acquireBundleLocks() together with the installed
+    // bundles lock for writes, but no lock for reads since it is copy
+    // on write.
     private volatile Map[] m_installedBundles;
     private static final int LOCATION_MAP_IDX = 0;
     private static final int IDENTIFIER_MAP_IDX = 1;
     // An array of uninstalled bundles before a refresh occurs.
-    // CONCURRENCY: Access guarded by the global lock for writes,
-    // but no lock for reads since it is copy on write.
+    // CONCURRENCY: Access guarded like the installed bundles.
     private volatile List<BundleImpl> m_uninstalledBundles;
+    // This lock must be acquired to modify the installed or uninstalled
+    // bundles when not holding the global lock; no other locks may be
+    // acquired while holding it.
+    private final Object[] m_installedBundlesLock = new Object[0];
+    // This lock serializes the creation of bundle revisions and guards the
+    // bundles being installed, so that the uniqueness of bundle symbolic
+    // names and versions can be verified and reserved atomically without
+    // holding the global lock; only the monitor of the revised bundle may
+    // be held when acquiring it.
+    private final Object[] m_bundleRevisionLock = new Object[0];
+    // Bundles created but not yet added to the installed bundles, so the
+    // uniqueness check also sees bundles installed concurrently.
+    // CONCURRENCY: Access guarded by the bundle revision lock.
+    private final Set<BundleImpl> m_installingBundles = new HashSet<BundleImpl>();
     // Object to keep track of dependencies among bundle revisions.
     private final BundleRevisionDependencies m_dependencies =
         new BundleRevisionDependencies();
@@ -140,6 +174,12 @@ public class Felix extends BundleImpl implements Framework
     // Keep track of bundles currently being processed by start level thread.
     private final SortedSet<StartLevelTuple> m_startLevelBundles =
         new TreeSet<StartLevelTuple>();
+    // Maximum number of bundles of the same start level to start
+    // concurrently when raising the start level; one means sequentially.
+    // Bundle activators of the same start level must not start each other
+    // when greater than one, since each worker thread holds the lock of its
+    // bundle while waiting for the lock of the other bundle.
+    private final int m_startLevelParallelism;
 
     // Local bundle cache.
     private BundleCache m_cache = null;
@@ -157,6 +197,9 @@ public class Felix extends BundleImpl implements Framework
     // List of event listeners.
     private final EventDispatcher m_dispatcher;
 
+    // Hot path metrics, if enabled.
+    private final FrameworkMetrics m_metrics;
+
     // Reusable bundle URL stream handler.
     private final URLStreamHandler m_bundleStreamHandler;
 
@@ -379,6 +422,12 @@ public class Felix extends BundleImpl implements Framework
 
         // Create a resolver and its state.
         m_resolver = new StatefulResolver(this);
+        m_resolutionCache =
+            "true".equalsIgnoreCase(getProperty(FelixConstants.RESOLVER_CACHE_PROP))
+                ? new ResolutionCache(m_logger, m_configMap) : null;
+
+        m_startLevelParallelism =
+            Math.max(1, getIntProperty(FelixConstants.STARTLEVEL_PARALLELISM_PROP, 1));
 
         // Create the extension manager, which we will use as the
         // revision for the system bundle.
@@ -403,7 +452,12 @@ public class Felix extends BundleImpl implements Framework
         });
 
         // Create event dispatcher.
-        m_dispatcher = new EventDispatcher(m_logger, m_registry);
+        m_dispatcher = new EventDispatcher(m_logger, m_registry,
+            getIntProperty(FelixConstants.EVENT_DISPATCH_THREADS_PROP, 0));
+
+        // Create metrics collector, if enabled.
+        m_metrics = "true".equalsIgnoreCase(getProperty(FelixConstants.METRICS_PROP))
+            ? new FrameworkMetrics(this, m_dispatcher) : null;
 
         // Create framework wiring object.
         m_fwkWiring = new FrameworkWiringImpl(this, m_registry);
@@ -411,11 +465,39 @@ public class Felix extends BundleImpl implements Framework
         m_fwkStartLevel = new FrameworkStartLevelImpl(this, m_registry);
     }
 
+    /**
+     * Returns the integer value of the given configuration or system
+     * property, logging a warning and returning the default value if it
+     * is not an integer.
+     * @param name the name of the property.
+     * @param defaultValue the value to use if the property is not set.
+     * @return the value of the property.
+    **/
+    int getIntProperty(String name, int defaultValue)
+    {
+        return Util.parseIntProperty(m_logger, name, getProperty(name), defaultValue);
+    }
+
     Logger getLogger()
     {
         return m_logger;
     }
 
+    /**
+     * Returns the collector of hot path metrics.
+     * @return the metrics collector or <tt>null</tt> if metrics are disabled.
+    **/
+    FrameworkMetrics getMetrics()
+    {
+        return m_metrics;
+    }
+
+    WeakZipFileFactory getZipFileFactory()
+    {
+        BundleCache cache = m_cache;
+        return (cache != null) ? cache.getZipFileFactory() : null;
+    }
+
     Map getConfig()
     {
         return m_configMap;
@@ -767,6 +849,14 @@ public class Felix extends BundleImpl implements Framework
                 // keep the max value.
                 m_nextId = Math.max(m_nextId, loadNextId());
 
+                // Restore the wirings saved when the framework was last
+                // stopped if they are still valid, so the cached bundles
+                // do not need to be resolved again.
+                if (m_resolutionCache != null)
+                {
+                    restoreWirings();
+                }
+
                 // The framework is now in its startup sequence.
                 setBundleStateAndNotify(this, Bundle.STARTING);
 
@@ -1208,126 +1298,89 @@ public class Felix extends BundleImpl implements Framework
             int high = (isLowering) ? m_activeStartLevel : m_targetStartLevel;
             m_activeStartLevel = (isLowering) ? high : low;
 
-            // Process bundles and stop or start them accordingly.
-            while (bundlesRemaining)
-            {
-                StartLevelTuple tuple;
-
-                // Remove our tuple to be processed while holding the queue lock
-                // and update the active start level accordingly, which allows
-                // us to determine in startBundle() if concurrent requests to
-                // start a bundle should be handled synchronously or just added
-                // to the queue and handled asynchronously.
-                synchronized (m_startLevelBundles)
-                {
-                    if (isLowering)
-                    {
-                        tuple = m_startLevelBundles.last();
-                    }
-                    else
-                    {
-                        tuple = m_startLevelBundles.first();
-                    }
-
-                    if ((tuple.m_level >= low) && (tuple.m_level <= high))
-                    {
-                        m_activeStartLevel = tuple.m_level;
-                    }
-                }
+            // Only start bundles concurrently if configured to do so and
+            // only when raising the start level, since bundles are still
+            // stopped one at a time in reverse order.
+            ExecutorService executor = (!isLowering && (m_startLevelParallelism > 1))
+                ? createStartLevelExecutor() : null;
 
-                // Ignore the system bundle, since its start() and
-                // stop() methods get called explicitly in Felix.start()
-                // and Felix.stop(), respectively.
-                if (tuple.m_bundle.getBundleId() != 0)
+            try
+            {
+                // Process bundles and stop or start them accordingly.
+                while (bundlesRemaining)
                 {
-                    // Lock the current bundle.
-                    try
-                    {
-                        acquireBundleLock(tuple.m_bundle,
-                            Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
-                            | Bundle.STARTING | Bundle.STOPPING);
-                    }
-                    catch (IllegalStateException ex)
+                    StartLevelTuple tuple;
+                    List<StartLevelTuple> batch = null;
+
+                    // Remove our tuple to be processed while holding the queue lock
+                    // and update the active start level accordingly, which allows
+                    // us to determine in startBundle() if concurrent requests to
+                    // start a bundle should be handled synchronously or just added
+                    // to the queue and handled asynchronously.
+                    synchronized (m_startLevelBundles)
                     {
-                        // Ignore if the bundle has been uninstalled.
-                        if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+                        if (isLowering)
                         {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
-                            m_logger.log(tuple.m_bundle,
-                                Logger.LOG_ERROR,
-                                "Error locking " + tuple.m_bundle._getLocation(), ex);
+                            tuple = m_startLevelBundles.last();
                         }
                         else
                         {
-                            synchronized (m_startLevelBundles)
-                            {
-                                m_startLevelBundles.remove(tuple);
-                                bundlesRemaining = !m_startLevelBundles.isEmpty();
-                            }
+                            tuple = m_startLevelBundles.first();
                         }
-                        continue;
-                    }
 
-                    try
-                    {
-                        // Start the bundle if necessary.
-                        // Note that we only attempt to start the bundle if
-                        // its start level is equal to the active start level,
-                        // which means we assume lower bundles are in the state
-                        // they should be in (i.e., we won't attempt to restart
-                        // them if they previously failed to start).
-                        if (!isLowering
-                            && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+                        if ((tuple.m_level >= low) && (tuple.m_level <= high))
                         {
-                            try
-                            {
-// TODO: LAZY - Not sure if this is the best way...
-                                int options = Bundle.START_TRANSIENT;
-                                options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
-                                    ? options | Bundle.START_ACTIVATION_POLICY
-                                    : options;
-                                startBundle(tuple.m_bundle, options);
-                            }
-                            catch (Throwable th)
+                            m_activeStartLevel = tuple.m_level;
+
+                            // If starting concurrently, take all bundles of the
+                            // active start level, which are at the head of the queue.
+                            if (executor != null)
                             {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error starting " + tuple.m_bundle._getLocation(), th);
+                                batch = new ArrayList<StartLevelTuple>();
+                                for (StartLevelTuple t : m_startLevelBundles)
+                                {
+                                    if (t.m_level != tuple.m_level)
+                                    {
+                                        break;
+                                    }
+                                    batch.add(t);
+                                }
                             }
                         }
-                        // Stop the bundle if necessary.
-                        else if (isLowering
-                            && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+                    }
+
+                    // Process the batch concurrently and wait until all of its
+                    // bundles are done before moving on to the next start level.
+                    // Like when processing them sequentially, bundles that
+                    // could not be locked remain queued.
+                    if ((batch != null) && (batch.size() > 1))
+                    {
+                        batch.removeAll(processStartLevelBatch(executor, batch));
+                        synchronized (m_startLevelBundles)
                         {
-                            try
-                            {
-                                stopBundle(tuple.m_bundle, false);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error stopping " + tuple.m_bundle._getLocation(), th);
-                            }
+                            m_startLevelBundles.removeAll(batch);
+                            bundlesRemaining = !m_startLevelBundles.isEmpty();
                         }
+                        continue;
                     }
-                    finally
+
+                    if (!processStartLevelTuple(tuple, isLowering))
                     {
-                        // Always release bundle lock.
-                        releaseBundleLock(tuple.m_bundle);
+                        continue;
                     }
-                }
 
-                synchronized (m_startLevelBundles)
+                    synchronized (m_startLevelBundles)
+                    {
+                        m_startLevelBundles.remove(tuple);
+                        bundlesRemaining = !m_startLevelBundles.isEmpty();
+                    }
+                }
+            }
+            finally
+            {
+                if (executor != null)
                 {
-                    m_startLevelBundles.remove(tuple);
-                    bundlesRemaining = !m_startLevelBundles.isEmpty();
+                    executor.shutdown();
                 }
             }
 
@@ -1358,6 +1411,215 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Starts or stops the bundle of the given start level tuple, if
+     * necessary for the active start level. Errors are reported as
+     * framework events.
+     * @param tuple the start level tuple to process.
+     * @param isLowering whether the start level is being lowered.
+     * @return <tt>false</tt> if the bundle could not be locked and the tuple
+     *         should remain queued, <tt>true</tt> otherwise.
+    **/
+    private boolean processStartLevelTuple(StartLevelTuple tuple, boolean isLowering)
+    {
+        // Ignore the system bundle, since its start() and
+        // stop() methods get called explicitly in Felix.start()
+        // and Felix.stop(), respectively.
+        if (tuple.m_bundle.getBundleId() != 0)
+        {
+            // Lock the current bundle.
+            try
+            {
+                acquireBundleLock(tuple.m_bundle,
+                    Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                    | Bundle.STARTING | Bundle.STOPPING);
+            }
+            catch (IllegalStateException ex)
+            {
+                // Ignore if the bundle has been uninstalled, in which
+                // case the caller can just remove the tuple.
+                if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error locking " + tuple.m_bundle._getLocation(), ex);
+                    return false;
+                }
+                return true;
+            }
+
+            try
+            {
+                // Start the bundle if necessary.
+                // Note that we only attempt to start the bundle if
+                // its start level is equal to the active start level,
+                // which means we assume lower bundles are in the state
+                // they should be in (i.e., we won't attempt to restart
+                // them if they previously failed to start).
+                if (!isLowering
+                    && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                        || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
+                        && (tuple.m_level == m_activeStartLevel)))
+                {
+                    try
+                    {
+// TODO: LAZY - Not sure if this is the best way...
+                        int options = Bundle.START_TRANSIENT;
+                        options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
+                            ? options | Bundle.START_ACTIVATION_POLICY
+                            : options;
+                        long time = System.currentTimeMillis();
+                        startBundle(tuple.m_bundle, options);
+                        time = System.currentTimeMillis() - time;
+                        if (m_logger.getLogLevel() >= Logger.LOG_DEBUG)
+                        {
+                            m_logger.log(tuple.m_bundle,
+                                Logger.LOG_DEBUG,
+                                "Started " + tuple.m_bundle._getLocation()
+                                + " at start level " + tuple.m_level
+                                + " in " + time + " ms.");
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                        m_logger.log(tuple.m_bundle,
+                            Logger.LOG_ERROR,
+                            "Error starting " + tuple.m_bundle._getLocation(), th);
+                    }
+                }
+                // Stop the bundle if necessary.
+                else if (isLowering
+                    && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
+                        || (tuple.m_bundle.getState() == Bundle.STARTING))
+                        && (tuple.m_level == m_activeStartLevel)))
+                {
+                    try
+                    {
+                        stopBundle(tuple.m_bundle, false);
+                    }
+                    catch (Throwable th)
+                    {
+                        fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                        m_logger.log(tuple.m_bundle,
+                            Logger.LOG_ERROR,
+                            "Error stopping " + tuple.m_bundle._getLocation(), th);
+                    }
+                }
+            }
+            finally
+            {
+                // Always release bundle lock.
+                releaseBundleLock(tuple.m_bundle);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Processes the given start level tuples, which all have the active
+     * start level, concurrently on the given executor and waits until all
+     * of them are processed.
+     * @param executor the executor to use.
+     * @param batch the start level tuples to process.
+     * @return the start level tuples that should remain queued, since their
+     *         bundles could not be locked.
+    **/
+    private List<StartLevelTuple> processStartLevelBatch(
+        ExecutorService executor, List<StartLevelTuple> batch)
+    {
+        long time = System.currentTimeMillis();
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(batch.size());
+        for (final StartLevelTuple tuple : batch)
+        {
+            futures.add(executor.submit(new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    return processStartLevelTuple(tuple, false);
+                }
+            }));
+        }
+        List<StartLevelTuple> remaining = new ArrayList<StartLevelTuple>();
+        for (int i = 0; i < futures.size(); i++)
+        {
+            try
+            {
+                if (!futures.get(i).get())
+                {
+                    remaining.add(batch.get(i));
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                // Stop waiting, since the framework is likely shutting down,
+                // and keep the tuples not known to be processed queued.
+                Thread.currentThread().interrupt();
+                remaining.addAll(batch.subList(i, batch.size()));
+                return remaining;
+            }
+            catch (ExecutionException ex)
+            {
+                // This should not happen, since errors are handled per bundle.
+                m_logger.log(Logger.LOG_ERROR,
+                    "Unexpected error during start level change.", ex.getCause());
+            }
+        }
+        if (m_logger.getLogLevel() >= Logger.LOG_DEBUG)
+        {
+            m_logger.log(Logger.LOG_DEBUG,
+                "Processed " + batch.size() + " bundles at start level "
+                + batch.get(0).m_level + " in " + (System.currentTimeMillis() - time)
+                + " ms using up to " + m_startLevelParallelism + " threads.");
+        }
+        return remaining;
+    }
+
+    private ExecutorService createStartLevelExecutor()
+    {
+        return Executors.newFixedThreadPool(m_startLevelParallelism, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new StartLevelWorker(r);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns whether the calling thread processes start level changes of
+     * this framework, in which case bundles it starts must not be queued.
+     * @return <tt>true</tt> for the start level thread and its workers.
+    **/
+    private boolean isStartLevelThread()
+    {
+        Thread t = Thread.currentThread();
+        return t.getName().equals(FrameworkStartLevelImpl.THREAD_NAME)
+            || ((t instanceof StartLevelWorker)
+                && (((StartLevelWorker) t).getFramework() == this));
+    }
+
+    /**
+     * A thread starting the bundles of a start level concurrently for the
+     * start level thread.
+    **/
+    private class StartLevelWorker extends Thread
+    {
+        StartLevelWorker(Runnable r)
+        {
+            super(r, "FelixStartLevelWorker");
+        }
+
+        Felix getFramework()
+        {
+            return Felix.this;
+        }
+    }
+
     /**
      * Returns the start level into which newly installed bundles will
      * be placed by default; this method implements functionality for
@@ -1944,9 +2206,9 @@ public class Felix extends BundleImpl implements Framework
             // so queue this bundle to the start level bundle queue for the start
             // level thread and return, except for transient starts which are
             // queued but processed synchronously.
-            // Note: Don't queue starts from the start level thread, otherwise
-            // we'd never get anything started.
-            if (!Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME))
+            // Note: Don't queue starts from the start level thread or its
+            // workers, otherwise we'd never get anything started.
+            if (!isStartLevelThread())
             {
                 synchronized (m_startLevelBundles)
                 {
@@ -2137,6 +2399,8 @@ public class Felix extends BundleImpl implements Framework
 
             try
             {
+                long start = (m_metrics != null) ? System.nanoTime() : 0;
+
                 // Set the bundle's activator.
                 bundle.setActivator(createBundleActivator(bundle));
 
@@ -2149,6 +2413,11 @@ public class Felix extends BundleImpl implements Framework
 
                 setBundleStateAndNotify(bundle, Bundle.ACTIVE);
 
+                if (m_metrics != null)
+                {
+                    m_metrics.bundleStarted(bundle, System.nanoTime() - start);
+                }
+
                 // We still need to fire the STARTED event, but we will do
                 // it later so we can release the bundle lock.
             }
@@ -2266,14 +2535,16 @@ public class Felix extends BundleImpl implements Framework
 
             try
             {
-                // Revising the bundle creates a new revision, which modifies
-                // the global state, so we need to acquire the global lock
-                // before revising.
-                boolean locked = acquireGlobalLock();
+                // Revising the bundle creates a new revision, which must not
+                // happen while resolving, so we need to acquire the bundle
+                // locks of the bundle before revising; this does not prevent
+                // operations on other bundles from proceeding concurrently.
+                Collection<Bundle> lockedBundles = Collections.singleton((Bundle) bundle);
+                boolean locked = acquireBundleLocks(lockedBundles);
                 if (!locked)
                 {
                     throw new BundleException(
-                        "Cannot acquire global lock to update the bundle.");
+                        "Cannot acquire bundle locks to update the bundle.");
                 }
                 try
                 {
@@ -2293,12 +2564,25 @@ public class Felix extends BundleImpl implements Framework
                         }
 
                         // If this is an update from a normal to an extension bundle
-                        // then attach the extension
+                        // then attach the extension, which modifies the system
+                        // bundle and therefore needs the global lock.
                         if (!wasExtension && bundle.isExtension())
                         {
-                            m_extensionManager.addExtensionBundle(this, bundle);
+                            if (!acquireGlobalLock())
+                            {
+                                throw new BundleException(
+                                    "Cannot acquire global lock to update the bundle.");
+                            }
+                            try
+                            {
+                                m_extensionManager.addExtensionBundle(this, bundle);
 // TODO: REFACTOR - Perhaps we could move this into extension manager.
-                            m_resolver.addRevision(m_extensionManager.getRevision());
+                                m_resolver.addRevision(m_extensionManager.getRevision());
+                            }
+                            finally
+                            {
+                                releaseGlobalLock();
+                            }
 // TODO: REFACTOR - Not clear why this is here. We should look at all of these steps more closely.
                             setBundleStateAndNotify(bundle, Bundle.RESOLVED);
                         }
@@ -2324,8 +2608,8 @@ public class Felix extends BundleImpl implements Framework
                 }
                 finally
                 {
-                    // Always release the global lock.
-                    releaseGlobalLock();
+                    // Always release the bundle locks.
+                    releaseBundleLocks(lockedBundles);
                 }
             }
             catch (Throwable ex)
@@ -2354,9 +2638,16 @@ public class Felix extends BundleImpl implements Framework
 
                 fireBundleEvent(BundleEvent.UPDATED, bundle);
 
-                // Acquire global lock to check if we should auto-refresh.
-                boolean locked = acquireGlobalLock();
-                // If we did not get the global lock, then do not try to
+                // Acquire the bundle's lock to check if we should auto-refresh;
+                // we only auto-refresh if the bundle has no dependents, and none
+                // can be added while we hold its lock, so the refresh will only
+                // refresh the bundle itself. Since it was stopped above and we
+                // still hold its bundle lock, the refresh has nothing to restart
+                // while we hold the bundle locks; the bundle is restarted below,
+                // after releasing them.
+                Collection<Bundle> lockedBundles = Collections.singleton((Bundle) bundle);
+                boolean locked = acquireBundleLocks(lockedBundles);
+                // If we did not get the bundle locks, then do not try to
                 // auto-refresh.
                 if (locked)
                 {
@@ -2381,8 +2672,8 @@ public class Felix extends BundleImpl implements Framework
                     }
                     finally
                     {
-                        // Always release the global lock.
-                        releaseGlobalLock();
+                        // Always release the bundle locks.
+                        releaseBundleLocks(lockedBundles);
                     }
                 }
             }
@@ -2639,29 +2930,36 @@ public class Felix extends BundleImpl implements Framework
 
             // Remove the bundle from the installed map.
             BundleImpl target = null;
-            // Acquire global lock.
-            boolean locked = acquireGlobalLock();
+            // Acquire the bundle locks of the bundle, which excludes
+            // global operations, but not operations on other bundles.
+            Collection<Bundle> lockedBundles = Collections.singleton((Bundle) bundle);
+            boolean locked = acquireBundleLocks(lockedBundles);
             if (!locked)
             {
                 // If the calling thread holds bundle locks, then we might not
-                // be able to get the global lock.
+                // be able to get the bundle locks.
                 throw new IllegalStateException(
-                    "Unable to acquire global lock to remove bundle.");
+                    "Unable to acquire bundle locks to remove bundle.");
             }
             try
             {
-                // Use a copy-on-write approach to remove the bundle
-                // from the installed maps.
-                Map[] maps = new Map[] {
-                    new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
-                    new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
-                };
-                target = (BundleImpl) maps[LOCATION_MAP_IDX].remove(bundle._getLocation());
+                synchronized (m_installedBundlesLock)
+                {
+                    // Use a copy-on-write approach to remove the bundle
+                    // from the installed maps.
+                    Map[] maps = new Map[] {
+                        new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
+                        new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
+                    };
+                    target = (BundleImpl) maps[LOCATION_MAP_IDX].remove(bundle._getLocation());
+                    if (target != null)
+                    {
+                        maps[IDENTIFIER_MAP_IDX].remove(new Long(target.getBundleId()));
+                        m_installedBundles = maps;
+                    }
+                }
                 if (target != null)
                 {
-                    maps[IDENTIFIER_MAP_IDX].remove(new Long(target.getBundleId()));
-                    m_installedBundles = maps;
-
                     // Set the bundle's persistent state to uninstalled.
                     bundle.setPersistentStateUninstalled();
 
@@ -2671,7 +2969,7 @@ public class Felix extends BundleImpl implements Framework
             }
             finally
             {
-                releaseGlobalLock();
+                releaseBundleLocks(lockedBundles);
             }
 
             if (target == null)
@@ -2699,8 +2997,13 @@ public class Felix extends BundleImpl implements Framework
         // Fire UNINSTALLED event without holding the lock.
         fireBundleEvent(BundleEvent.UNINSTALLED, bundle);
 
-        // Acquire global lock to check if we should auto-refresh.
-        boolean locked = acquireGlobalLock();
+        // Acquire the bundle's lock to check if we should auto-refresh; we
+        // only auto-refresh if the bundle has no dependents, and none can be
+        // added while we hold its lock, so the refresh will only remove the
+        // uninstalled bundle and has nothing to restart while we hold the
+        // bundle locks.
+        Collection<Bundle> lockedBundles = Collections.singleton((Bundle) bundle);
+        boolean locked = acquireBundleLocks(lockedBundles);
         if (locked)
         {
             try
@@ -2724,8 +3027,8 @@ public class Felix extends BundleImpl implements Framework
             }
             finally
             {
-                // Always release the global lock.
-                releaseGlobalLock();
+                // Always release the bundle locks.
+                releaseBundleLocks(lockedBundles);
             }
         }
     }
@@ -2805,6 +3108,10 @@ public class Felix extends BundleImpl implements Framework
             }
             finally
             {
+                if (bundle != null)
+                {
+                    removeInstallingBundle(bundle);
+                }
                 // Always release the global lock.
                 releaseGlobalLock();
             }
@@ -2886,13 +3193,14 @@ public class Felix extends BundleImpl implements Framework
 
                 try
                 {
-                    // Acquire the global lock to create the bundle,
-                    // since this impacts the global state.
-                    boolean locked = acquireGlobalLock();
+                    // Acquire an empty set of bundle locks to create the bundle,
+                    // which adds a revision that must not happen while resolving,
+                    // but does not prevent other bundles from being installed.
+                    boolean locked = acquireBundleLocks(Collections.EMPTY_SET);
                     if (!locked)
                     {
                         throw new BundleException(
-                            "Unable to acquire the global lock to install the bundle.");
+                            "Unable to acquire bundle locks to install the bundle.");
                     }
                     try
                     {
@@ -2900,8 +3208,8 @@ public class Felix extends BundleImpl implements Framework
                     }
                     finally
                     {
-                        // Always release the global lock.
-                        releaseGlobalLock();
+                        // Always release the bundle locks.
+                        releaseBundleLocks(Collections.EMPTY_SET);
                     }
 
                     if (!bundle.isExtension())
@@ -2953,30 +3261,34 @@ public class Felix extends BundleImpl implements Framework
                     }
                 }
 
-                // Acquire global lock.
-                boolean locked = acquireGlobalLock();
+                // Acquire the bundle locks of the new bundle.
+                Collection<Bundle> lockedBundles = Collections.singleton((Bundle) bundle);
+                boolean locked = acquireBundleLocks(lockedBundles);
                 if (!locked)
                 {
                     // If the calling thread holds bundle locks, then we might not
-                    // be able to get the global lock.
+                    // be able to get the bundle locks.
                     throw new IllegalStateException(
-                        "Unable to acquire global lock to add bundle.");
+                        "Unable to acquire bundle locks to add bundle.");
                 }
                 try
                 {
-                    // Use a copy-on-write approach to add the bundle
-                    // to the installed maps.
-                    Map[] maps = new Map[] {
-                        new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
-                        new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
-                    };
-                    maps[LOCATION_MAP_IDX].put(location, bundle);
-                    maps[IDENTIFIER_MAP_IDX].put(new Long(bundle.getBundleId()), bundle);
-                    m_installedBundles = maps;
+                    synchronized (m_installedBundlesLock)
+                    {
+                        // Use a copy-on-write approach to add the bundle
+                        // to the installed maps.
+                        Map[] maps = new Map[] {
+                            new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
+                            new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
+                        };
+                        maps[LOCATION_MAP_IDX].put(location, bundle);
+                        maps[IDENTIFIER_MAP_IDX].put(new Long(bundle.getBundleId()), bundle);
+                        m_installedBundles = maps;
+                    }
                 }
                 finally
                 {
-                    releaseGlobalLock();
+                    releaseBundleLocks(lockedBundles);
                 }
 
                 if (bundle.isExtension())
@@ -2987,6 +3299,13 @@ public class Felix extends BundleImpl implements Framework
         }
         finally
         {
+            // Release the reservation of the symbolic name and version,
+            // the bundle is either installed or removed by now.
+            if (bundle != null)
+            {
+                removeInstallingBundle(bundle);
+            }
+
             // Always release install lock.
             releaseInstallLock(location);
 
@@ -3053,48 +3372,173 @@ public class Felix extends BundleImpl implements Framework
     }
 
     /**
-     * Retrieves a bundle from its location.
-     *
-     * @param location The location of the bundle to retrieve.
-     * @return The bundle associated with the location or null if there
-     *         is no bundle associated with the location.
-    **/
-    Bundle getBundle(String location)
-    {
-        return (Bundle) m_installedBundles[LOCATION_MAP_IDX].get(location);
-    }
-
-    /**
-     * Implementation for BundleContext.getBundle(). Retrieves a
-     * bundle from its identifier.
-     *
-     * @param id The identifier of the bundle to retrieve.
-     * @return The bundle associated with the identifier or null if there
-     *         is no bundle associated with the identifier.
+     * Installs the bundles from the specified locations concurrently; this
+     * method is not part of the OSGi API. Since copying bundles into the
+     * bundle cache is mostly I/O bound, installing a large number of bundles,
+     * e.g., when provisioning, is faster than installing them one at a time.
+     * Otherwise, it is the same as installing each bundle using the system
+     * bundle's context. The number of concurrent installations can be set
+     * with the <tt>felix.install.parallelism</tt> property.
+     * @param locations the locations of the bundles to install.
+     * @param streams the input streams from which to read the bundles, or
+     *        <tt>null</tt> to read all bundles from their locations.
+     * @return the installed bundles in the order of their locations.
+     * @throws BundleException if any of the bundles could not be installed,
+     *         after all others have been installed.
+     * @throws java.lang.SecurityException if the caller does not have
+     *         <tt>AdminPermission</tt>.
     **/
-    Bundle getBundle(BundleContext bc, long id)
+    public Bundle[] installBundles(String[] locations, InputStream[] streams)
+        throws BundleException
     {
-        BundleImpl bundle = (BundleImpl)
-            m_installedBundles[IDENTIFIER_MAP_IDX].get(new Long(id));
-        if (bundle != null)
+        if ((streams != null) && (streams.length != locations.length))
         {
-            List<BundleImpl> uninstalledBundles = m_uninstalledBundles;
-            for (int i = 0;
-                (bundle == null)
-                    && (uninstalledBundles != null)
-                    && (i < uninstalledBundles.size());
-                i++)
+            throw new IllegalArgumentException(
+                "The number of streams must match the number of locations.");
+        }
+
+        // Since installing is mostly I/O bound, by default use more
+        // threads than processors.
+        int parallelism = getIntProperty(FelixConstants.INSTALL_PARALLELISM_PROP,
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+        // Install with the permissions of the caller.
+        final AccessControlContext acc = AccessController.getContext();
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(locations.length, parallelism)),
+            new ThreadFactory()
             {
-                if (uninstalledBundles.get(i).getBundleId() == id)
+                public Thread newThread(Runnable r)
                 {
-                    bundle = uninstalledBundles.get(i);
+                    Thread t = new Thread(r, "FelixInstaller");
+                    t.setDaemon(true);
+                    return t;
                 }
-            }
-        }
+            });
 
-        Set<ServiceReference<org.osgi.framework.hooks.bundle.FindHook>> hooks =
-            getHooks(org.osgi.framework.hooks.bundle.FindHook.class);
-        if (!hooks.isEmpty() && (bundle != null))
+        Bundle[] bundles = new Bundle[locations.length];
+        Throwable error = null;
+        try
+        {
+            List<Future<Bundle>> futures = new ArrayList<Future<Bundle>>(locations.length);
+            for (int i = 0; i < locations.length; i++)
+            {
+                final String location = locations[i];
+                final InputStream is = (streams == null) ? null : streams[i];
+                futures.add(executor.submit(new Callable<Bundle>()
+                {
+                    public Bundle call() throws Exception
+                    {
+                        if (System.getSecurityManager() == null)
+                        {
+                            return installBundle(Felix.this, location, is);
+                        }
+                        return AccessController.doPrivileged(
+                            new PrivilegedExceptionAction<Bundle>()
+                            {
+                                public Bundle run() throws Exception
+                                {
+                                    Bundle bundle = installBundle(Felix.this, location, is);
+                                    // Check the bundle again in case that it
+                                    // was installed already.
+                                    ((SecurityManager) System.getSecurityManager())
+                                        .checkPermission(new AdminPermission(
+                                            bundle, AdminPermission.LIFECYCLE));
+                                    return bundle;
+                                }
+                            }, acc);
+                    }
+                }));
+            }
+            for (int i = 0; i < locations.length; i++)
+            {
+                try
+                {
+                    bundles[i] = futures.get(i).get();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new BundleException("Interrupted while installing bundles.", ex);
+                }
+                catch (ExecutionException ex)
+                {
+                    // Remember the first error and wait for the others.
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof PrivilegedActionException)
+                    {
+                        cause = ((PrivilegedActionException) cause).getException();
+                    }
+                    if (error == null)
+                    {
+                        error = (cause instanceof BundleException)
+                            || (cause instanceof RuntimeException)
+                            ? cause
+                            : new BundleException(
+                                "Unable to install bundle: " + locations[i], cause);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        if (error instanceof BundleException)
+        {
+            throw (BundleException) error;
+        }
+        else if (error != null)
+        {
+            throw (RuntimeException) error;
+        }
+        return bundles;
+    }
+
+    /**
+     * Retrieves a bundle from its location.
+     *
+     * @param location The location of the bundle to retrieve.
+     * @return The bundle associated with the location or null if there
+     *         is no bundle associated with the location.
+    **/
+    Bundle getBundle(String location)
+    {
+        return (Bundle) m_installedBundles[LOCATION_MAP_IDX].get(location);
+    }
+
+    /**
+     * Implementation for BundleContext.getBundle(). Retrieves a
+     * bundle from its identifier.
+     *
+     * @param id The identifier of the bundle to retrieve.
+     * @return The bundle associated with the identifier or null if there
+     *         is no bundle associated with the identifier.
+    **/
+    Bundle getBundle(BundleContext bc, long id)
+    {
+        BundleImpl bundle = (BundleImpl)
+            m_installedBundles[IDENTIFIER_MAP_IDX].get(new Long(id));
+        if (bundle != null)
+        {
+            List<BundleImpl> uninstalledBundles = m_uninstalledBundles;
+            for (int i = 0;
+                (bundle == null)
+                    && (uninstalledBundles != null)
+                    && (i < uninstalledBundles.size());
+                i++)
+            {
+                if (uninstalledBundles.get(i).getBundleId() == id)
+                {
+                    bundle = uninstalledBundles.get(i);
+                }
+            }
+        }
+
+        Set<ServiceReference<org.osgi.framework.hooks.bundle.FindHook>> hooks =
+            getHooks(org.osgi.framework.hooks.bundle.FindHook.class);
+        if (!hooks.isEmpty() && (bundle != null))
         {
             Collection<Bundle> bundles = new ArrayList<Bundle>(1);
             bundles.add(bundle);
@@ -3440,6 +3884,8 @@ public class Felix extends BundleImpl implements Framework
         final String expr, final boolean checkAssignable)
         throws InvalidSyntaxException
     {
+        long start = (m_metrics != null) ? System.nanoTime() : 0;
+
         // Define filter if expression is not null.
         SimpleFilter filter = null;
         if (expr != null)
@@ -3504,6 +3950,11 @@ public class Felix extends BundleImpl implements Framework
             }
         }
 
+        if (m_metrics != null)
+        {
+            m_metrics.serviceLookedUp(System.nanoTime() - start);
+        }
+
         if (refList.size() > 0)
         {
             return (ServiceReference[]) refList.toArray(new ServiceReference[refList.size()]);
@@ -3984,75 +4435,40 @@ public class Felix extends BundleImpl implements Framework
 
     void refreshPackages(Collection<Bundle> targets, FrameworkListener[] listeners)
     {
-        // Acquire global lock.
-        boolean locked = acquireGlobalLock();
-        if (!locked)
+        // Determine set of bundles to refresh and lock them, so that refreshes
+        // of unrelated bundles can proceed concurrently. Dependencies are only
+        // added while resolving, which requires the global lock, so once the
+        // bundles are locked the set cannot grow anymore; however, it may have
+        // grown before, in which case we have to retry with the bigger set.
+        Set<Bundle> bundles = getRefreshBundles(targets);
+        Set<Bundle> lockedBundles = new HashSet<Bundle>();
+        while (true)
         {
-            // If the thread calling holds bundle locks, then we might not
-            // be able to get the global lock. However, in practice this
-            // should not happen since the calls to this method have either
-            // already acquired the global lock or it is PackageAdmin which
-            // doesn't hold bundle locks.
-            throw new IllegalStateException(
-                "Unable to acquire global lock for refresh.");
-        }
-
-        // Determine set of bundles to refresh, which is all transitive
-        // dependencies of specified set or all transitive dependencies
-        // of all bundles if null is specified.
-        Collection<Bundle> newTargets = targets;
-        if (newTargets == null)
-        {
-            List<Bundle> list = new ArrayList<Bundle>();
-
-            // First add all uninstalled bundles.
-            for (int i = 0;
-                (m_uninstalledBundles != null) && (i < m_uninstalledBundles.size());
-                i++)
+            if (bundles != null)
             {
-                list.add(m_uninstalledBundles.get(i));
+                lockedBundles.addAll(bundles);
             }
-
-            // Then add all updated bundles.
-            Iterator iter = m_installedBundles[LOCATION_MAP_IDX].values().iterator();
-            while (iter.hasNext())
+            boolean locked = acquireBundleLocks(lockedBundles);
+            if (!locked)
             {
-                BundleImpl bundle = (BundleImpl) iter.next();
-                if (bundle.isRemovalPending())
-                {
-                    list.add(bundle);
-                }
+                // If the thread calling holds bundle locks, then we might not
+                // be able to get the bundle locks. However, in practice this
+                // should not happen since the calls to this method either
+                // only hold the lock of a target bundle or are from PackageAdmin
+                // which doesn't hold bundle locks.
+                throw new IllegalStateException(
+                    "Unable to acquire bundle locks for refresh.");
             }
-
-            if (!list.isEmpty())
+            bundles = getRefreshBundles(targets);
+            if ((bundles == null) || lockedBundles.containsAll(bundles))
             {
-                newTargets = list;
-            }
-        }
-
-        // If there are targets, then find all dependencies for each one.
-        Set<Bundle> bundles = null;
-        if (newTargets != null)
-        {
-            // Create map of bundles that import the packages
-            // from the target bundles.
-            bundles = new HashSet<Bundle>();
-            for (Bundle target : newTargets)
-            {
-                // If anyone passes in a null bundle, then just
-                // ignore it.
-                if (target != null)
-                {
-                    // Add the current target bundle to the map of
-                    // bundles to be refreshed.
-                    bundles.add(target);
-                    // Add all importing bundles to map.
-                    populateDependentGraph((BundleImpl) target, bundles);
-                }
+                break;
             }
+            releaseBundleLocks(lockedBundles);
         }
 
         // Now refresh each bundle.
+        List<RefreshHelper> helpers = null;
         try
         {
             boolean restart = false;
@@ -4083,7 +4499,7 @@ public class Felix extends BundleImpl implements Framework
                     // packages from these bundles.
 
                     // Create refresh helpers for each bundle.
-                    List<RefreshHelper> helpers = new ArrayList<RefreshHelper>(bundles.size());
+                    helpers = new ArrayList<RefreshHelper>(bundles.size());
                     for (Bundle b : bundles)
                     {
                         // Remove any targeted bundles from the uninstalled bundles
@@ -4113,15 +4529,6 @@ public class Felix extends BundleImpl implements Framework
                             helper.refreshOrRemove();
                         }
                     }
-
-                    // Restart all refreshed bundles that were previously running.
-                    for (RefreshHelper helper : helpers)
-                    {
-                        if (helper != null)
-                        {
-                            helper.restart();
-                        }
-                    }
                 }
                 else
                 {
@@ -4138,8 +4545,20 @@ public class Felix extends BundleImpl implements Framework
         }
         finally
         {
-            // Always release the global lock.
-            releaseGlobalLock();
+            // Always release the bundle locks.
+            releaseBundleLocks(lockedBundles);
+        }
+
+        // Restart all refreshed bundles that were previously running. This
+        // is done after releasing the bundle locks, since starting bundles
+        // needs the global lock to resolve them, which could otherwise not be
+        // acquired while another refresh is in progress. Note that callers
+        // may still hold bundle locks of their own; updateBundle() and
+        // uninstallBundle() do so when auto-refreshing, but then only refresh
+        // a bundle that is not active, so there is nothing to restart.
+        for (int i = 0; (helpers != null) && (i < helpers.size()); i++)
+        {
+            helpers.get(i).restart();
         }
 
         fireFrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED, this, null);
@@ -4163,19 +4582,82 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    // Returns the transitive dependents of the specified bundles or of all
+    // uninstalled and updated bundles if null, including the bundles itself.
+    private Set<Bundle> getRefreshBundles(Collection<Bundle> targets)
+    {
+        // Determine set of bundles to refresh, which is all transitive
+        // dependencies of specified set or all transitive dependencies
+        // of all bundles if null is specified.
+        Collection<Bundle> newTargets = targets;
+        if (newTargets == null)
+        {
+            List<Bundle> list = new ArrayList<Bundle>();
+
+            // First add all uninstalled bundles.
+            List<BundleImpl> uninstalledBundles = m_uninstalledBundles;
+            for (int i = 0;
+                (uninstalledBundles != null) && (i < uninstalledBundles.size());
+                i++)
+            {
+                list.add(uninstalledBundles.get(i));
+            }
+
+            // Then add all updated bundles.
+            Iterator iter = m_installedBundles[LOCATION_MAP_IDX].values().iterator();
+            while (iter.hasNext())
+            {
+                BundleImpl bundle = (BundleImpl) iter.next();
+                if (bundle.isRemovalPending())
+                {
+                    list.add(bundle);
+                }
+            }
+
+            if (!list.isEmpty())
+            {
+                newTargets = list;
+            }
+        }
+
+        // If there are targets, then find all dependencies for each one.
+        Set<Bundle> bundles = null;
+        if (newTargets != null)
+        {
+            // Create map of bundles that import the packages
+            // from the target bundles.
+            bundles = new HashSet<Bundle>();
+            for (Bundle target : newTargets)
+            {
+                // If anyone passes in a null bundle, then just
+                // ignore it.
+                if (target != null)
+                {
+                    // Add the current target bundle to the map of
+                    // bundles to be refreshed.
+                    bundles.add(target);
+                    // Add all importing bundles to map.
+                    populateDependentGraph((BundleImpl) target, bundles);
+                }
+            }
+        }
+        return bundles;
+    }
+
     Collection<Bundle> getDependencyClosure(Collection<Bundle> targets)
     {
-        // Acquire global lock.
-        boolean locked = acquireGlobalLock();
+        // Acquire an empty set of bundle locks, which only excludes
+        // global operations such as resolving that change dependencies.
+        boolean locked = acquireBundleLocks(Collections.EMPTY_SET);
         if (!locked)
         {
             // If the thread calling holds bundle locks, then we might not
-            // be able to get the global lock. However, in practice this
+            // be able to get the bundle locks. However, in practice this
             // should not happen since the calls to this method have either
             // already acquired the global lock or it is PackageAdmin which
             // doesn't hold bundle locks.
             throw new IllegalStateException(
-                "Unable to acquire global lock for refresh.");
+                "Unable to acquire bundle locks for refresh.");
         }
 
         try
@@ -4200,12 +4682,13 @@ public class Felix extends BundleImpl implements Framework
         }
         finally
         {
-            // Always release the global lock.
-            releaseGlobalLock();
+            // Always release the bundle locks.
+            releaseBundleLocks(Collections.EMPTY_SET);
         }
     }
 
-    // Calls to this method must have the global lock.
+    // Calls to this method must hold the global lock or the locks of the
+    // resulting bundles for the result to be stable.
     private void populateDependentGraph(BundleImpl exporter, Set<Bundle> set)
     {
         // Get all dependent bundles of this bundle.
@@ -4229,17 +4712,18 @@ public class Felix extends BundleImpl implements Framework
 
     Collection<Bundle> getRemovalPendingBundles()
     {
-        // Acquire global lock.
-        boolean locked = acquireGlobalLock();
+        // Acquire an empty set of bundle locks, which only excludes
+        // global operations such as resolving that change dependencies.
+        boolean locked = acquireBundleLocks(Collections.EMPTY_SET);
         if (!locked)
         {
             // If the thread calling holds bundle locks, then we might not
-            // be able to get the global lock. However, in practice this
+            // be able to get the bundle locks. However, in practice this
             // should not happen since the calls to this method have either
             // already acquired the global lock or it is PackageAdmin which
             // doesn't hold bundle locks.
             throw new IllegalStateException(
-                "Unable to acquire global lock for refresh.");
+                "Unable to acquire bundle locks for refresh.");
         }
 
         try
@@ -4263,8 +4747,8 @@ public class Felix extends BundleImpl implements Framework
         }
         finally
         {
-            // Always release the global lock.
-            releaseGlobalLock();
+            // Always release the bundle locks.
+            releaseBundleLocks(Collections.EMPTY_SET);
         }
     }
 
@@ -4569,6 +5053,57 @@ public class Felix extends BundleImpl implements Framework
         return -1;
     }
 
+    private void restoreWirings()
+    {
+        List<BundleRevision> revisions = new ArrayList<BundleRevision>();
+        for (Bundle bundle : getBundles())
+        {
+            if ((bundle != this) && !((BundleImpl) bundle).isExtension())
+            {
+                revisions.add(bundle.adapt(BundleRevision.class));
+            }
+        }
+
+        try
+        {
+            File file = m_cache.getSystemBundleDataFile("resolver.wirings");
+            Map<BundleRevision, List<ResolverWire>> wireMap =
+                m_resolutionCache.load(file, adapt(BundleRevision.class), revisions);
+            if (wireMap != null)
+            {
+                m_resolver.restoreWirings(wireMap);
+            }
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to restore saved wirings.", ex);
+        }
+    }
+
+    private void saveWirings()
+    {
+        List<BundleRevision> revisions = new ArrayList<BundleRevision>();
+        for (Bundle bundle : getBundles())
+        {
+            BundleRevision revision = bundle.adapt(BundleRevision.class);
+            if ((bundle != this) && !((BundleImpl) bundle).isExtension()
+                && (revision != null) && (revision.getWiring() != null))
+            {
+                revisions.add(revision);
+            }
+        }
+
+        try
+        {
+            File file = m_cache.getSystemBundleDataFile("resolver.wirings");
+            m_resolutionCache.save(file, adapt(BundleRevision.class), revisions);
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to save wirings.", ex);
+        }
+    }
+
     private long getNextId()
     {
         synchronized (m_nextIdLock)
@@ -4628,6 +5163,12 @@ public class Felix extends BundleImpl implements Framework
             // Add the bundle activator for the url handler service.
             m_activatorList.add(0, new URLHandlersActivator(m_configMap, Felix.this));
 
+            // Add the bundle activator for the metrics service, if enabled.
+            if (m_metrics != null)
+            {
+                m_activatorList.add(1, new MetricsActivator(Felix.this, m_metrics));
+            }
+
             // Start all activators.
             for (int i = 0; i < m_activatorList.size(); i++)
             {
@@ -4700,6 +5241,13 @@ public class Felix extends BundleImpl implements Framework
                 }
             }
 
+            // Save the wirings of resolved bundles, so they can be
+            // restored when the framework is started again.
+            if (m_resolutionCache != null)
+            {
+                saveWirings();
+            }
+
             // Dispose of the bundles to close their associated contents.
             bundles = getBundles();
             for (int i = 0; i < bundles.length; i++)
@@ -4893,17 +5441,10 @@ public class Felix extends BundleImpl implements Framework
     // Locking related methods.
     //
 
+    // Calls to this method must hold the global lock or the bundle's lock.
     private void rememberUninstalledBundle(BundleImpl bundle)
     {
-        boolean locked = acquireGlobalLock();
-        if (!locked)
-        {
-            // If the calling thread holds bundle locks, then we might not
-            // be able to get the global lock.
-            throw new IllegalStateException(
-                "Unable to acquire global lock to record uninstalled bundle.");
-        }
-        try
+        synchronized (m_installedBundlesLock)
         {
             // Verify that the bundle is not already in the array.
             for (int i = 0;
@@ -4922,23 +5463,12 @@ public class Felix extends BundleImpl implements Framework
             uninstalledBundles.add(bundle);
             m_uninstalledBundles = uninstalledBundles;
         }
-        finally
-        {
-            releaseGlobalLock();
-        }
     }
 
+    // Calls to this method must hold the global lock or the bundle's lock.
     private void forgetUninstalledBundle(BundleImpl bundle)
     {
-        boolean locked = acquireGlobalLock();
-        if (!locked)
-        {
-            // If the calling thread holds bundle locks, then we might not
-            // be able to get the global lock.
-            throw new IllegalStateException(
-                "Unable to acquire global lock to release uninstalled bundle.");
-        }
-        try
+        synchronized (m_installedBundlesLock)
         {
             if (m_uninstalledBundles == null)
             {
@@ -4951,10 +5481,6 @@ public class Felix extends BundleImpl implements Framework
             uninstalledBundles.remove(bundle);
             m_uninstalledBundles = uninstalledBundles;
         }
-        finally
-        {
-            releaseGlobalLock();
-        }
     }
 
     void acquireInstallLock(String location)
@@ -5024,10 +5550,11 @@ public class Felix extends BundleImpl implements Framework
                 {
                     throw new IllegalStateException("Bundle in unexpected state.");
                 }
-                // If the calling thread already owns the global lock, then make
-                // sure no other thread is trying to promote a bundle lock to a
-                // global lock. If so, interrupt the other thread to avoid deadlock.
-                else if (m_globalLockThread == Thread.currentThread()
+                // If the calling thread already owns the global lock or a set
+                // of bundle locks, then make sure no other thread is trying to
+                // promote a bundle lock to a global lock. If so, interrupt the
+                // other thread to avoid deadlock.
+                else if (holdsGlobalOrBundleLocks()
                     && (bundle.getLockingThread() != null)
                     && m_globalLockWaitersList.contains(bundle.getLockingThread()))
                 {
@@ -5092,15 +5619,27 @@ public class Felix extends BundleImpl implements Framework
     {
         synchronized (m_bundleLock)
         {
-            // Wait as long as some other thread holds the global lock
-            // and the current thread is not interrupted.
+            // Wait as long as some other thread holds the global lock or
+            // a set of bundle locks and the current thread is not interrupted.
             boolean interrupted = false;
             while (!interrupted
-                && (m_globalLockThread != null)
-                && (m_globalLockThread != Thread.currentThread()))
-            {
+                && (((m_globalLockThread != null)
+                    && (m_globalLockThread != Thread.currentThread()))
+                    || hasOtherBundleLocksThreads()))
+            {
+                // If the calling thread holds a set of bundle locks and
+                // another thread holding a set of bundle locks is already
+                // waiting, then the other thread may be waiting for the
+                // bundles of the calling thread, so fail to avoid deadlock.
+                if (m_bundleLocksThreads.containsKey(Thread.currentThread())
+                    && isBundleLocksThreadWaiting())
+                {
+                    interrupted = true;
+                    break;
+                }
                 // Add calling thread to global lock waiters list.
                 m_globalLockWaitersList.add(Thread.currentThread());
+                m_globalLockWaiterCount++;
                 // We need to wake up all waiting threads so we can
                 // recheck for potential deadlock in acquireBundleLock()
                 // if this thread was holding a bundle lock and is now
@@ -5118,6 +5657,7 @@ public class Felix extends BundleImpl implements Framework
                 // At this point we are either interrupted or will get the
                 // global lock, so remove the thread from the waiters list.
                 m_globalLockWaitersList.remove(Thread.currentThread());
+                m_globalLockWaiterCount--;
             }
 
             // Check to see if we were interrupted, which means someone
@@ -5129,11 +5669,14 @@ public class Felix extends BundleImpl implements Framework
                 m_globalLockCount++;
                 m_globalLockThread = Thread.currentThread();
             }
-
-            // Note: If the thread was interrupted, there is no reason to notify
-            // anyone, since the thread was likely interrupted to force it to give
-            // up a bundle lock it is holding. When it does give up the bundle
-            // lock, it will do a notifyAll() in there.
+            else
+            {
+                // Threads waiting for sets of bundle locks may be able to
+                // proceed now that this thread is no longer waiting. Otherwise,
+                // the thread was likely interrupted to force it to give up a
+                // bundle lock it is holding, which will notify in there.
+                m_bundleLock.notifyAll();
+            }
 
             return !interrupted;
         }
@@ -5166,6 +5709,204 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    Object getBundleRevisionLock()
+    {
+        return m_bundleRevisionLock;
+    }
+
+    /**
+     * Registers a bundle whose first revision was created but which is not
+     * yet added to the installed bundles. The caller must hold the bundle
+     * revision lock.
+     */
+    void addInstallingBundle(BundleImpl bundle)
+    {
+        m_installingBundles.add(bundle);
+    }
+
+    /**
+     * Returns the bundles being installed. The caller must hold the bundle
+     * revision lock.
+     */
+    Collection<BundleImpl> getInstallingBundles()
+    {
+        return m_installingBundles;
+    }
+
+    /**
+     * Removes a bundle from the bundles being installed, once it was added
+     * to the installed bundles or its installation failed.
+     */
+    void removeInstallingBundle(BundleImpl bundle)
+    {
+        synchronized (m_bundleRevisionLock)
+        {
+            m_installingBundles.remove(bundle);
+        }
+    }
+
+    /**
+     * Attempts to acquire the locks of all specified bundles at once. This is
+     * used instead of the global lock by operations that only modify the
+     * specified bundles, such as refreshing the dependency closure of a
+     * bundle, so threads locking disjoint sets of bundles can proceed
+     * concurrently. The global lock cannot be acquired while other threads
+     * hold bundle locks acquired with this method, so an empty set of bundles
+     * can be used to only exclude global operations such as resolving. As with
+     * the global lock, this method may fail if a potential deadlock is detected.
+     * @param bundles The bundles to lock.
+     * @return <tt>true</tt> if the bundle locks were successfully acquired,
+     *         <tt>false</tt> otherwise.
+    **/
+    boolean acquireBundleLocks(Collection<? extends Bundle> bundles)
+    {
+        synchronized (m_bundleLock)
+        {
+            // Wait as long as some other thread holds the global lock or one
+            // of the bundle locks and the current thread is not interrupted.
+            boolean interrupted = false;
+            boolean waiting = false;
+            while (!interrupted && !areBundleLocksAvailable(bundles))
+            {
+                // If the calling thread already owns the global lock or a set
+                // of bundle locks, then make sure no thread holding one of the
+                // desired bundle locks is waiting for a lock itself. If so,
+                // interrupt the other thread to avoid deadlock.
+                if (holdsGlobalOrBundleLocks())
+                {
+                    for (Bundle b : bundles)
+                    {
+                        Thread t = ((BundleImpl) b).getLockingThread();
+                        if ((t != null) && (t != Thread.currentThread())
+                            && m_globalLockWaitersList.contains(t))
+                        {
+                            t.interrupt();
+                        }
+                    }
+                }
+
+                // Add calling thread to global lock waiters list, so that
+                // it can be interrupted if it holds a lock needed by the
+                // thread owning the global lock.
+                m_globalLockWaitersList.add(Thread.currentThread());
+                // Wake up all waiting threads once so they can recheck for
+                // potential deadlock now that this thread is waiting.
+                if (!waiting)
+                {
+                    waiting = true;
+                    m_bundleLock.notifyAll();
+                }
+                try
+                {
+                    m_bundleLock.wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+                m_globalLockWaitersList.remove(Thread.currentThread());
+            }
+
+            if (!interrupted)
+            {
+                for (Bundle b : bundles)
+                {
+                    ((BundleImpl) b).lock();
+                }
+                Integer count = m_bundleLocksThreads.get(Thread.currentThread());
+                m_bundleLocksThreads.put(Thread.currentThread(),
+                    new Integer((count == null) ? 1 : count.intValue() + 1));
+            }
+
+            return !interrupted;
+        }
+    }
+
+    /**
+     * Releases bundle locks acquired with <tt>acquireBundleLocks()</tt>.
+     * @param bundles The bundles that were locked.
+     * @throws java.lang.IllegalStateException If the calling thread does not
+     *         own the bundle locks.
+    **/
+    void releaseBundleLocks(Collection<? extends Bundle> bundles)
+    {
+        synchronized (m_bundleLock)
+        {
+            Integer count = m_bundleLocksThreads.get(Thread.currentThread());
+            if (count == null)
+            {
+                throw new IllegalStateException(
+                    "The current thread doesn't own bundle locks.");
+            }
+            for (Bundle b : bundles)
+            {
+                ((BundleImpl) b).unlock();
+            }
+            if (count.intValue() == 1)
+            {
+                m_bundleLocksThreads.remove(Thread.currentThread());
+            }
+            else
+            {
+                m_bundleLocksThreads.put(
+                    Thread.currentThread(), new Integer(count.intValue() - 1));
+            }
+            m_bundleLock.notifyAll();
+        }
+    }
+
+    // Calls to this method must hold the bundle lock monitor.
+    private boolean areBundleLocksAvailable(Collection<? extends Bundle> bundles)
+    {
+        if ((m_globalLockThread != null)
+            && (m_globalLockThread != Thread.currentThread()))
+        {
+            return false;
+        }
+        // Give precedence to threads waiting for the global lock, unless
+        // the calling thread already holds locks they may be waiting for.
+        if ((m_globalLockWaiterCount > 0) && !holdsGlobalOrBundleLocks())
+        {
+            return false;
+        }
+        for (Bundle b : bundles)
+        {
+            if (!((BundleImpl) b).isLockable())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Calls to this method must hold the bundle lock monitor.
+    private boolean holdsGlobalOrBundleLocks()
+    {
+        return (m_globalLockThread == Thread.currentThread())
+            || m_bundleLocksThreads.containsKey(Thread.currentThread());
+    }
+
+    // Calls to this method must hold the bundle lock monitor.
+    private boolean hasOtherBundleLocksThreads()
+    {
+        return (m_bundleLocksThreads.size() > 1)
+            || ((m_bundleLocksThreads.size() == 1)
+                && !m_bundleLocksThreads.containsKey(Thread.currentThread()));
+    }
+
+    // Calls to this method must hold the bundle lock monitor.
+    private boolean isBundleLocksThreadWaiting()
+    {
+        for (Object t : m_globalLockWaitersList)
+        {
+            if ((t != Thread.currentThread()) && m_bundleLocksThreads.containsKey(t))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private volatile URLHandlersActivator m_urlHandlersActivator;
 
     void setURLHandlersActivator(URLHandlersActivator urlHandlersActivator)
@@ -0,0 +1,357 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import org.apache.felix.framework.resolver.ResolveStatistics;
+import org.apache.felix.framework.util.EventDispatcher;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+import org.osgi.framework.Bundle;
+
+/**
+ * <p>
+ * Collects the metrics of the framework's hot paths, if enabled by the
+ * <tt>felix.metrics</tt> configuration property. Collection only costs a
+ * pair of <tt>System.nanoTime()</tt> calls and a few atomic additions per
+ * measured operation, so it can be left enabled in production; derived
+ * values like the event queue depth are only computed when read.
+ * </p>
+ * <p>
+ * Per-bundle metrics are kept by bundle identifier and are dropped when
+ * they are read after the bundle has been uninstalled and refreshed.
+ * </p>
+**/
+class FrameworkMetrics implements FrameworkMetricsMBean
+{
+    private static final String[] BUNDLE_ITEMS = {
+        "BundleId", "SymbolicName", "ClassLoadCount", "ClassLoadTime",
+        "StartCount", "LastStartTime" };
+    private static final TabularType BUNDLE_TABLE_TYPE;
+    private static final String[] RESOLVE_ITEMS = {
+        "Succeeded", "Time", "PermutationCount", "CandidateCount",
+        "PopulateTime", "PackageSpaceTime" };
+    private static final CompositeType RESOLVE_TYPE;
+
+    static
+    {
+        TabularType type = null;
+        CompositeType resolveType = null;
+        try
+        {
+            CompositeType rowType = new CompositeType(
+                "BundleMetrics", "Metrics of a bundle", BUNDLE_ITEMS,
+                new String[] {
+                    "Bundle identifier", "Bundle symbolic name",
+                    "Number of classes loaded from the bundle",
+                    "Time spent loading classes from the bundle in nanoseconds",
+                    "Number of bundle activations",
+                    "Duration of the latest bundle activation in nanoseconds" },
+                new OpenType[] {
+                    SimpleType.LONG, SimpleType.STRING, SimpleType.LONG,
+                    SimpleType.LONG, SimpleType.LONG, SimpleType.LONG });
+            type = new TabularType(
+                "BundleMetricsTable", "Metrics of all bundles", rowType,
+                new String[] { "BundleId" });
+            resolveType = new CompositeType(
+                "ResolveStatistics", "Statistics of a resolve operation", RESOLVE_ITEMS,
+                new String[] {
+                    "Whether the resolve operation succeeded",
+                    "Duration of the resolve operation in nanoseconds",
+                    "Number of candidate permutations tried",
+                    "Number of candidates considered",
+                    "Time spent populating candidates in nanoseconds",
+                    "Time spent calculating package spaces in nanoseconds" },
+                new OpenType[] {
+                    SimpleType.BOOLEAN, SimpleType.LONG, SimpleType.INTEGER,
+                    SimpleType.INTEGER, SimpleType.LONG, SimpleType.LONG });
+        }
+        catch (OpenDataException ex)
+        {
+            // This should never happen since the types are constant.
+            throw new IllegalStateException(ex.getMessage());
+        }
+        BUNDLE_TABLE_TYPE = type;
+        RESOLVE_TYPE = resolveType;
+    }
+
+    private final Felix m_felix;
+    private final EventDispatcher m_dispatcher;
+
+    private final AtomicLong m_resolveCount = new AtomicLong();
+    private final AtomicLong m_resolveFailureCount = new AtomicLong();
+    private final AtomicLong m_resolveTime = new AtomicLong();
+    private final AtomicLong m_maxResolveTime = new AtomicLong();
+    private final AtomicLong m_resolvePermutationCount = new AtomicLong();
+    private final AtomicLong m_maxResolvePermutations = new AtomicLong();
+    private final AtomicLong m_resolvePopulateTime = new AtomicLong();
+    private final AtomicLong m_resolvePackageSpaceTime = new AtomicLong();
+    private volatile CompositeData m_lastResolve;
+    private final AtomicLong m_classLoadCount = new AtomicLong();
+    private final AtomicLong m_classLoadTime = new AtomicLong();
+    private final AtomicLong m_serviceLookupCount = new AtomicLong();
+    private final AtomicLong m_serviceLookupTime = new AtomicLong();
+    private final AtomicLong m_bundleStartCount = new AtomicLong();
+    private final AtomicLong m_bundleStartTime = new AtomicLong();
+
+    private final ConcurrentHashMap<Long, BundleMetrics> m_bundleMetrics =
+        new ConcurrentHashMap<Long, BundleMetrics>();
+
+    FrameworkMetrics(Felix felix, EventDispatcher dispatcher)
+    {
+        m_felix = felix;
+        m_dispatcher = dispatcher;
+    }
+
+    //
+    // Collection methods.
+    //
+
+    void resolved(long time, boolean succeeded, ResolveStatistics stats)
+    {
+        m_resolveCount.incrementAndGet();
+        if (!succeeded)
+        {
+            m_resolveFailureCount.incrementAndGet();
+        }
+        m_resolveTime.addAndGet(time);
+        updateMax(m_maxResolveTime, time);
+
+        if (stats != null)
+        {
+            m_resolvePermutationCount.addAndGet(stats.getPermutationCount());
+            updateMax(m_maxResolvePermutations, stats.getPermutationCount());
+            m_resolvePopulateTime.addAndGet(stats.getPopulateTime());
+            m_resolvePackageSpaceTime.addAndGet(stats.getPackageSpaceTime());
+            try
+            {
+                m_lastResolve = new CompositeDataSupport(
+                    RESOLVE_TYPE, RESOLVE_ITEMS,
+                    new Object[] {
+                        Boolean.valueOf(succeeded),
+                        new Long(time),
+                        new Integer(stats.getPermutationCount()),
+                        new Integer(stats.getCandidateCount()),
+                        new Long(stats.getPopulateTime()),
+                        new Long(stats.getPackageSpaceTime()) });
+            }
+            catch (OpenDataException ex)
+            {
+                // This should never happen since the values match the types.
+                throw new IllegalStateException(ex.getMessage());
+            }
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value)
+    {
+        long current = max.get();
+        while ((value > current) && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    void classLoaded(Bundle bundle, long time)
+    {
+        m_classLoadCount.incrementAndGet();
+        m_classLoadTime.addAndGet(time);
+        BundleMetrics bm = getBundleMetrics(bundle);
+        bm.m_classLoadCount.incrementAndGet();
+        bm.m_classLoadTime.addAndGet(time);
+    }
+
+    void serviceLookedUp(long time)
+    {
+        m_serviceLookupCount.incrementAndGet();
+        m_serviceLookupTime.addAndGet(time);
+    }
+
+    void bundleStarted(Bundle bundle, long time)
+    {
+        m_bundleStartCount.incrementAndGet();
+        m_bundleStartTime.addAndGet(time);
+        BundleMetrics bm = getBundleMetrics(bundle);
+        bm.m_startCount.incrementAndGet();
+        bm.m_lastStartTime = time;
+    }
+
+    private BundleMetrics getBundleMetrics(Bundle bundle)
+    {
+        Long id = new Long(bundle.getBundleId());
+        BundleMetrics bm = m_bundleMetrics.get(id);
+        if (bm == null)
+        {
+            bm = new BundleMetrics();
+            BundleMetrics existing = m_bundleMetrics.putIfAbsent(id, bm);
+            bm = (existing != null) ? existing : bm;
+        }
+        return bm;
+    }
+
+    //
+    // FrameworkMetricsMBean methods.
+    //
+
+    public long getResolveCount()
+    {
+        return m_resolveCount.get();
+    }
+
+    public long getResolveFailureCount()
+    {
+        return m_resolveFailureCount.get();
+    }
+
+    public long getResolveTime()
+    {
+        return m_resolveTime.get();
+    }
+
+    public long getMaxResolveTime()
+    {
+        return m_maxResolveTime.get();
+    }
+
+    public long getResolvePermutationCount()
+    {
+        return m_resolvePermutationCount.get();
+    }
+
+    public long getMaxResolvePermutations()
+    {
+        return m_maxResolvePermutations.get();
+    }
+
+    public long getResolvePopulateTime()
+    {
+        return m_resolvePopulateTime.get();
+    }
+
+    public long getResolvePackageSpaceTime()
+    {
+        return m_resolvePackageSpaceTime.get();
+    }
+
+    public CompositeData getLastResolve()
+    {
+        return m_lastResolve;
+    }
+
+    public long getClassLoadCount()
+    {
+        return m_classLoadCount.get();
+    }
+
+    public long getClassLoadTime()
+    {
+        return m_classLoadTime.get();
+    }
+
+    public long getServiceLookupCount()
+    {
+        return m_serviceLookupCount.get();
+    }
+
+    public long getServiceLookupTime()
+    {
+        return m_serviceLookupTime.get();
+    }
+
+    public int getEventQueueDepth()
+    {
+        return m_dispatcher.getQueueDepth();
+    }
+
+    public long getZipFileOpenCount()
+    {
+        WeakZipFileFactory factory = m_felix.getZipFileFactory();
+        return (factory != null) ? factory.getOpenCount() : 0;
+    }
+
+    public long getZipFileReopenCount()
+    {
+        WeakZipFileFactory factory = m_felix.getZipFileFactory();
+        return (factory != null) ? factory.getReopenCount() : 0;
+    }
+
+    public long getBundleStartCount()
+    {
+        return m_bundleStartCount.get();
+    }
+
+    public long getBundleStartTime()
+    {
+        return m_bundleStartTime.get();
+    }
+
+    public TabularData getBundleMetrics()
+    {
+        TabularDataSupport table = new TabularDataSupport(BUNDLE_TABLE_TYPE);
+        for (Iterator<Entry<Long, BundleMetrics>> it = m_bundleMetrics.entrySet().iterator();
+            it.hasNext(); )
+        {
+            Entry<Long, BundleMetrics> entry = it.next();
+            Bundle bundle = m_felix.getBundle(entry.getKey().longValue());
+            if (bundle == null)
+            {
+                it.remove();
+                continue;
+            }
+            BundleMetrics bm = entry.getValue();
+            try
+            {
+                table.put(new CompositeDataSupport(
+                    BUNDLE_TABLE_TYPE.getRowType(), BUNDLE_ITEMS,
+                    new Object[] {
+                        entry.getKey(),
+                        bundle.getSymbolicName(),
+                        new Long(bm.m_classLoadCount.get()),
+                        new Long(bm.m_classLoadTime.get()),
+                        new Long(bm.m_startCount.get()),
+                        new Long(bm.m_lastStartTime) }));
+            }
+            catch (OpenDataException ex)
+            {
+                // This should never happen since the values match the types.
+                throw new IllegalStateException(ex.getMessage());
+            }
+        }
+        return table;
+    }
+
+    private static class BundleMetrics
+    {
+        final AtomicLong m_classLoadCount = new AtomicLong();
+        final AtomicLong m_classLoadTime = new AtomicLong();
+        final AtomicLong m_startCount = new AtomicLong();
+        volatile long m_lastStartTime;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * <p>
+ * Management interface of the metrics that the framework collects about its
+ * own hot paths when the <tt>felix.metrics</tt> configuration property is
+ * set to <tt>true</tt>. The system bundle registers these metrics with the
+ * platform MBean server under the object name
+ * <tt>org.apache.felix.framework:type=FrameworkMetrics,uuid=</tt><i>uuid</i>,
+ * where <i>uuid</i> is the framework's UUID, and as a
+ * <tt>javax.management.DynamicMBean</tt> service.
+ * </p>
+ * <p>
+ * All counts and times are cumulative since the framework was initialized;
+ * all times are in nanoseconds.
+ * </p>
+**/
+public interface FrameworkMetricsMBean
+{
+    /**
+     * Returns the number of resolve operations, including dynamic imports.
+     * @return the number of resolve operations.
+    **/
+    long getResolveCount();
+
+    /**
+     * Returns the number of resolve operations that failed.
+     * @return the number of failed resolve operations.
+    **/
+    long getResolveFailureCount();
+
+    /**
+     * Returns the total time spent in the resolver.
+     * @return the total resolve time in nanoseconds.
+    **/
+    long getResolveTime();
+
+    /**
+     * Returns the time of the longest resolve operation.
+     * @return the maximum resolve time in nanoseconds.
+    **/
+    long getMaxResolveTime();
+
+    /**
+     * Returns the number of candidate permutations that resolve operations
+     * tried, where each one beyond the first means backtracking because of
+     * a uses constraint conflict.
+     * @return the number of candidate permutations.
+    **/
+    long getResolvePermutationCount();
+
+    /**
+     * Returns the number of candidate permutations of the resolve operation
+     * that tried the most.
+     * @return the maximum number of permutations of a resolve.
+    **/
+    long getMaxResolvePermutations();
+
+    /**
+     * Returns the total time resolve operations spent populating candidates.
+     * @return the total populate time in nanoseconds.
+    **/
+    long getResolvePopulateTime();
+
+    /**
+     * Returns the total time resolve operations spent calculating and
+     * checking package spaces of candidate permutations.
+     * @return the total package space time in nanoseconds.
+    **/
+    long getResolvePackageSpaceTime();
+
+    /**
+     * Returns the statistics of the latest resolve operation that got to
+     * resolving, which has the items <tt>Succeeded</tt>, <tt>Time</tt>,
+     * <tt>PermutationCount</tt>, <tt>CandidateCount</tt>,
+     * <tt>PopulateTime</tt> and <tt>PackageSpaceTime</tt>.
+     * @return the latest resolve statistics or <tt>null</tt> if none.
+    **/
+    CompositeData getLastResolve();
+
+    /**
+     * Returns the number of classes that bundle class loaders found in
+     * their bundle's content and defined.
+     * @return the number of classes loaded from bundles.
+    **/
+    long getClassLoadCount();
+
+    /**
+     * Returns the total time bundle class loaders spent finding, weaving
+     * and defining classes of their bundle's content.
+     * @return the total class load time in nanoseconds.
+    **/
+    long getClassLoadTime();
+
+    /**
+     * Returns the number of service reference lookups.
+     * @return the number of service lookups.
+    **/
+    long getServiceLookupCount();
+
+    /**
+     * Returns the total time spent looking up service references, including
+     * any find hooks.
+     * @return the total service lookup time in nanoseconds.
+    **/
+    long getServiceLookupTime();
+
+    /**
+     * Returns the number of asynchronous event deliveries that are queued
+     * but not yet started.
+     * @return the event dispatch queue depth.
+    **/
+    int getEventQueueDepth();
+
+    /**
+     * Returns the number of bundle JAR files that have been opened.
+     * @return the number of opened JAR files.
+    **/
+    long getZipFileOpenCount();
+
+    /**
+     * Returns the number of bundle JAR files that have been reopened after
+     * they were closed to stay within the <tt>felix.cache.filelimit</tt>.
+     * @return the number of reopened JAR files.
+    **/
+    long getZipFileReopenCount();
+
+    /**
+     * Returns the number of successful bundle activations.
+     * @return the number of bundle starts.
+    **/
+    long getBundleStartCount();
+
+    /**
+     * Returns the total time spent activating bundles, which is mostly
+     * spent in their activators.
+     * @return the total bundle start time in nanoseconds.
+    **/
+    long getBundleStartTime();
+
+    /**
+     * Returns the metrics of each installed bundle, indexed by bundle
+     * identifier. Each row has the items <tt>BundleId</tt>,
+     * <tt>SymbolicName</tt>, <tt>ClassLoadCount</tt>, <tt>ClassLoadTime</tt>,
+     * <tt>StartCount</tt> and <tt>LastStartTime</tt>, where the last one is
+     * the duration of the bundle's latest activation.
+     * @return the metrics of each installed bundle.
+    **/
+    TabularData getBundleMetrics();
+}
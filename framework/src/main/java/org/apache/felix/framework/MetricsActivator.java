@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import javax.management.DynamicMBean;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * <p>
+ * Simple activator class used by the system bundle to publish the
+ * framework's hot path metrics when they are enabled. The metrics are
+ * registered with the platform MBean server, if there is one, and as a
+ * <tt>javax.management.DynamicMBean</tt> service, so that bundles can read
+ * them without depending on framework implementation classes.
+ * </p>
+**/
+class MetricsActivator implements BundleActivator
+{
+    // The object name is published as a Felix-specific service property,
+    // since the JMX whiteboard property would register the metrics twice.
+    static final String OBJECT_NAME_PROP = "felix.metrics.objectname";
+    static final String OBJECT_NAME_PREFIX =
+        "org.apache.felix.framework:type=FrameworkMetrics,uuid=";
+
+    private final Felix m_felix;
+    private final FrameworkMetrics m_metrics;
+    private ServiceRegistration m_reg = null;
+    private MBeanServer m_server = null;
+    private ObjectName m_name = null;
+
+    MetricsActivator(Felix felix, FrameworkMetrics metrics)
+    {
+        m_felix = felix;
+        m_metrics = metrics;
+    }
+
+    public void start(BundleContext context) throws Exception
+    {
+        StandardMBean mbean = new StandardMBean(m_metrics, FrameworkMetricsMBean.class);
+        ObjectName name = new ObjectName(
+            OBJECT_NAME_PREFIX + m_felix.getProperty(Constants.FRAMEWORK_UUID));
+
+        // The platform MBean server may not be available, like on Android,
+        // in which case the metrics are only published as a service.
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(mbean, name);
+            m_server = server;
+            m_name = name;
+        }
+        catch (Throwable th)
+        {
+            m_felix.getLogger().log(
+                Logger.LOG_WARNING,
+                "Unable to register framework metrics with the platform MBean server.",
+                th);
+        }
+
+        Hashtable props = new Hashtable();
+        props.put(Constants.SERVICE_DESCRIPTION, "Apache Felix Framework Metrics");
+        props.put(OBJECT_NAME_PROP, name.toString());
+        m_reg = context.registerService(DynamicMBean.class.getName(), mbean, props);
+    }
+
+    public void stop(BundleContext context)
+    {
+        if (m_reg != null)
+        {
+            try
+            {
+                m_reg.unregister();
+            }
+            catch (IllegalStateException ex)
+            {
+                // Ignore, since it was already unregistered.
+            }
+            m_reg = null;
+        }
+
+        if (m_server != null)
+        {
+            try
+            {
+                m_server.unregisterMBean(m_name);
+            }
+            catch (Exception ex)
+            {
+                m_felix.getLogger().log(
+                    Logger.LOG_DEBUG,
+                    "Unable to unregister framework metrics from the platform MBean server.",
+                    ex);
+            }
+            m_server = null;
+            m_name = null;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import org.apache.felix.framework.resolver.ResolverWire;
+import org.apache.felix.framework.resolver.ResolverWireImpl;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+
+/**
+ * Persists the wirings of resolved revisions when the framework shuts down,
+ * so that they can be restored instead of being recalculated by the resolver
+ * when the framework is started again. Revisions are identified by their
+ * revision identifier and a checksum of their manifest headers, while
+ * requirements and capabilities are identified by their index in the list
+ * of the declared requirements and capabilities of their revision. Saved
+ * wirings are only restored if all of the involved revisions and the
+ * capabilities of the system bundle are unchanged; otherwise, they are
+ * ignored and revisions are resolved as usual.
+**/
+class ResolutionCache
+{
+    private static final String REVISION = "revision";
+    private static final String WIRE = "wire";
+    // Configuration properties that affect the outcome of a resolve
+    // beyond the capabilities of the system bundle.
+    private static final String[] CONFIG_PROPS = {
+        Constants.FRAMEWORK_EXECUTIONENVIRONMENT,
+        Constants.FRAMEWORK_OS_NAME,
+        Constants.FRAMEWORK_OS_VERSION,
+        Constants.FRAMEWORK_PROCESSOR,
+        Constants.FRAMEWORK_LANGUAGE
+    };
+
+    private final Logger m_logger;
+    private final Map m_configMap;
+
+    ResolutionCache(Logger logger, Map configMap)
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+    }
+
+    /**
+     * Saves the wirings of the specified revisions to the specified file.
+     * Wires for dynamic imports are not saved, since they are created
+     * again on demand. If the wiring of a revision depends on a revision
+     * whose wiring is not saved, then nothing is saved.
+     * @param file the file to write.
+     * @param systemRevision the revision of the system bundle.
+     * @param revisions the resolved revisions whose wirings should be saved.
+    **/
+    void save(File file, BundleRevision systemRevision, List<BundleRevision> revisions)
+    {
+        Map<String, BundleRevision> revisionMap = new HashMap<String, BundleRevision>();
+        revisionMap.put(((BundleRevisionImpl) systemRevision).getId(), systemRevision);
+        for (BundleRevision br : revisions)
+        {
+            revisionMap.put(((BundleRevisionImpl) br).getId(), br);
+        }
+
+        StringBuffer sb = new StringBuffer();
+        sb.append(getSystemChecksum(systemRevision)).append('\n');
+        for (BundleRevision br : revisions)
+        {
+            sb.append(REVISION).append(' ')
+                .append(((BundleRevisionImpl) br).getId()).append(' ')
+                .append(getChecksum(br)).append('\n');
+            for (BundleWire wire : br.getWiring().getRequiredWires(null))
+            {
+                BundleRequirement req = wire.getRequirement();
+                if (FelixConstants.RESOLUTION_DYNAMIC.equals(
+                    req.getDirectives().get(Constants.RESOLUTION_DIRECTIVE)))
+                {
+                    continue;
+                }
+
+                BundleCapability cap = wire.getCapability();
+                BundleRevision provider = wire.getProviderWiring().getRevision();
+                int reqIdx = req.getRevision().getDeclaredRequirements(null).indexOf(req);
+                int capIdx = cap.getRevision().getDeclaredCapabilities(null).indexOf(cap);
+                if ((reqIdx < 0) || (capIdx < 0)
+                    || !revisionMap.containsKey(((BundleRevisionImpl) provider).getId())
+                    || !revisionMap.containsKey(((BundleRevisionImpl) req.getRevision()).getId())
+                    || !revisionMap.containsKey(((BundleRevisionImpl) cap.getRevision()).getId()))
+                {
+                    m_logger.log(
+                        Logger.LOG_DEBUG,
+                        "Not saving wirings, since the wire " + wire
+                        + " cannot be restored.");
+                    delete(file);
+                    return;
+                }
+
+                sb.append(WIRE).append(' ')
+                    .append(((BundleRevisionImpl) req.getRevision()).getId()).append(' ')
+                    .append(reqIdx).append(' ')
+                    .append(((BundleRevisionImpl) provider).getId()).append(' ')
+                    .append(((BundleRevisionImpl) cap.getRevision()).getId()).append(' ')
+                    .append(capIdx).append('\n');
+            }
+        }
+
+        BufferedWriter bw = null;
+        try
+        {
+            bw = new BufferedWriter(new OutputStreamWriter(
+                Felix.m_secureAction.getFileOutputStream(file), "UTF-8"));
+            bw.write(sb.toString());
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to save wirings.", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (bw != null) bw.close();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(Logger.LOG_WARNING, "Unable to close wirings file.", ex);
+            }
+        }
+    }
+
+    /**
+     * Loads the wirings saved to the specified file and deletes it, since
+     * the saved wirings are only valid until the framework changes them.
+     * @param file the file to read.
+     * @param systemRevision the revision of the system bundle.
+     * @param revisions the current revisions of all installed bundles.
+     * @return the wires of the revisions to mark as resolved, or <tt>null</tt>
+     *         if there are no saved wirings or they cannot be restored.
+    **/
+    Map<BundleRevision, List<ResolverWire>> load(
+        File file, BundleRevision systemRevision, List<BundleRevision> revisions)
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader br = null;
+        try
+        {
+            br = new BufferedReader(new InputStreamReader(
+                Felix.m_secureAction.getFileInputStream(file), "UTF-8"));
+            for (String line = br.readLine(); line != null; line = br.readLine())
+            {
+                lines.add(line);
+            }
+        }
+        catch (FileNotFoundException ex)
+        {
+            // Ignore this case because there are no saved wirings.
+            return null;
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to load saved wirings.", ex);
+            return null;
+        }
+        finally
+        {
+            try
+            {
+                if (br != null) br.close();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(Logger.LOG_WARNING, "Unable to close wirings file.", ex);
+            }
+            delete(file);
+        }
+
+        try
+        {
+            return restore(lines, systemRevision, revisions);
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to restore saved wirings.", ex);
+            return null;
+        }
+    }
+
+    private Map<BundleRevision, List<ResolverWire>> restore(
+        List<String> lines, BundleRevision systemRevision, List<BundleRevision> revisions)
+    {
+        if (lines.isEmpty() || !lines.get(0).equals(getSystemChecksum(systemRevision)))
+        {
+            m_logger.log(
+                Logger.LOG_DEBUG,
+                "Not restoring saved wirings, since the system bundle changed.");
+            return null;
+        }
+
+        Map<String, BundleRevision> revisionMap = new HashMap<String, BundleRevision>();
+        revisionMap.put(((BundleRevisionImpl) systemRevision).getId(), systemRevision);
+        for (BundleRevision br : revisions)
+        {
+            revisionMap.put(((BundleRevisionImpl) br).getId(), br);
+        }
+
+        Map<BundleRevision, List<ResolverWire>> wireMap =
+            new HashMap<BundleRevision, List<ResolverWire>>();
+        BundleRevision requirer = null;
+        List<ResolverWire> wires = null;
+        for (int i = 1; i < lines.size(); i++)
+        {
+            StringTokenizer st = new StringTokenizer(lines.get(i), " ");
+            String type = st.nextToken();
+            if (type.equals(REVISION))
+            {
+                String id = st.nextToken();
+                requirer = revisionMap.get(id);
+                if ((requirer == null) || (requirer.getWiring() != null)
+                    || !st.nextToken().equals(getChecksum(requirer)))
+                {
+                    m_logger.log(
+                        Logger.LOG_DEBUG,
+                        "Not restoring saved wirings, since revision " + id + " changed.");
+                    return null;
+                }
+                wires = new ArrayList<ResolverWire>();
+                wireMap.put(requirer, wires);
+            }
+            else if (type.equals(WIRE) && (requirer != null))
+            {
+                BundleRevision reqRevision = revisionMap.get(st.nextToken());
+                int reqIdx = Integer.parseInt(st.nextToken());
+                BundleRevision provider = revisionMap.get(st.nextToken());
+                BundleRevision capRevision = revisionMap.get(st.nextToken());
+                int capIdx = Integer.parseInt(st.nextToken());
+                if ((reqRevision == null) || (provider == null) || (capRevision == null))
+                {
+                    return null;
+                }
+                wires.add(new ResolverWireImpl(
+                    requirer,
+                    reqRevision.getDeclaredRequirements(null).get(reqIdx),
+                    provider,
+                    capRevision.getDeclaredCapabilities(null).get(capIdx)));
+            }
+            else
+            {
+                throw new IllegalArgumentException("Invalid line: " + lines.get(i));
+            }
+        }
+
+        // All providers other than the system bundle must be restored too.
+        for (List<ResolverWire> revisionWires : wireMap.values())
+        {
+            for (ResolverWire wire : revisionWires)
+            {
+                if ((wire.getProvider() != systemRevision)
+                    && !wireMap.containsKey(wire.getProvider()))
+                {
+                    return null;
+                }
+            }
+        }
+
+        return wireMap;
+    }
+
+    private void delete(File file)
+    {
+        if (Felix.m_secureAction.fileExists(file)
+            && !Felix.m_secureAction.deleteFile(file))
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to delete " + file);
+        }
+    }
+
+    private String getSystemChecksum(BundleRevision systemRevision)
+    {
+        StringBuffer sb = new StringBuffer();
+        for (BundleCapability cap : systemRevision.getDeclaredCapabilities(null))
+        {
+            sb.append(cap.getNamespace()).append('\n');
+            append(sb, cap.getAttributes());
+            append(sb, cap.getDirectives());
+        }
+        for (String prop : CONFIG_PROPS)
+        {
+            sb.append(prop).append('=').append(m_configMap.get(prop)).append('\n');
+        }
+        return getChecksum(sb.toString());
+    }
+
+    private static String getChecksum(BundleRevision br)
+    {
+        StringBuffer sb = new StringBuffer();
+        append(sb, ((BundleRevisionImpl) br).getHeaders());
+        return getChecksum(sb.toString());
+    }
+
+    private static void append(StringBuffer sb, Map map)
+    {
+        for (Object o : new TreeMap(map).entrySet())
+        {
+            Entry entry = (Entry) o;
+            Object value = entry.getValue();
+            sb.append(entry.getKey()).append(": ")
+                .append((value instanceof Object[])
+                    ? Arrays.asList((Object[]) value) : value)
+                .append('\n');
+        }
+    }
+
+    private static String getChecksum(String s)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            StringBuffer sb = new StringBuffer(digest.length * 2);
+            for (int i = 0; i < digest.length; i++)
+            {
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16))
+                    .append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return sb.toString();
+        }
+        catch (Exception ex)
+        {
+            // SHA-1 and UTF-8 are always supported.
+            throw new IllegalStateException(ex.toString());
+        }
+    }
+}
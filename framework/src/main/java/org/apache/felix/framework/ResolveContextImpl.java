@@ -102,6 +102,13 @@ public class ResolveContextImpl extends ResolveContext
         return m_wirings;
     }
 
+    @Override
+    public boolean isConcurrentFindProvidersSafe()
+    {
+        // Resolver hooks are not expected to be thread safe.
+        return m_resolverHookrecord.m_resolverHooks.isEmpty();
+    }
+
     public void checkExecutionEnvironment(BundleRevision rev) throws ResolveException
     {
         m_state.checkExecutionEnvironment(rev);
@@ -73,7 +73,9 @@ class ServiceRegistrationImpl implements ServiceRegistration
         m_ref = new ServiceReferenceImpl();
     }
 
-    protected synchronized boolean isValid()
+    // Not synchronized, since the service object is volatile and this
+    // is called from the service registry's lock-free getService() path.
+    protected boolean isValid()
     {
         return (m_svcObj != null);
     }
@@ -19,6 +19,9 @@
 package org.apache.felix.framework;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
@@ -38,15 +41,19 @@ public class ServiceRegistry
     private long m_currentServiceId = 1L;
     // Maps bundle to an array of service registrations.
     private final Map m_regsMap = Collections.synchronizedMap(new HashMap());
-    // Capability set for all service registrations.
+    // Capability set for all service registrations; it is only modified
+    // while holding the registry lock, but may be queried without it.
     private final CapabilitySet m_regCapSet;
 
     // Maps registration to thread to keep track when a
     // registration is in use, which will cause other
     // threads to wait.
     private final Map m_lockedRegsMap = new HashMap();
-    // Maps bundle to an array of usage counts.
-    private final Map m_inUseMap = new HashMap();
+    // Maps bundle to a map of service reference to usage count. The maps
+    // are only structurally modified while holding the registry lock, but
+    // may be read without it.
+    private final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference, UsageCount>>
+        m_inUseMap = new ConcurrentHashMap<Bundle, ConcurrentMap<ServiceReference, UsageCount>>();
 
     private final ServiceRegistryCallbacks m_callbacks;
 
@@ -209,7 +216,9 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized List getServiceReferences(String className, SimpleFilter filter)
+    // Does not acquire the registry lock, since the capability set
+    // supports queries concurrent with registration/unregistration.
+    public List getServiceReferences(String className, SimpleFilter filter)
     {
         if ((className == null) && (filter == null))
         {
@@ -236,17 +245,16 @@ public class ServiceRegistry
         return new ArrayList(matches);
     }
 
-    public synchronized ServiceReference[] getServicesInUse(Bundle bundle)
+    public ServiceReference[] getServicesInUse(Bundle bundle)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        Map<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
         if (usages != null)
         {
-            ServiceReference[] refs = new ServiceReference[usages.length];
-            for (int i = 0; i < refs.length; i++)
+            Set<ServiceReference> refs = usages.keySet();
+            if (!refs.isEmpty())
             {
-                refs[i] = usages[i].m_ref;
+                return refs.toArray(new ServiceReference[refs.size()]);
             }
-            return refs;
         }
         return null;
     }
@@ -260,6 +268,23 @@ public class ServiceRegistry
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
+        // If the bundle is already using the service and the service object
+        // is already cached, then we can simply increment the usage count
+        // without acquiring the registry lock. This is only possible if the
+        // usage count has not already dropped to zero, since that means
+        // another thread is in the process of releasing the service object.
+        usage = getUsageCount(bundle, ref);
+        if (usage != null)
+        {
+            svcObj = usage.m_svcObj;
+            if ((svcObj != null) && reg.isValid() && usage.incrementIfInUse())
+            {
+                return (S) svcObj;
+            }
+            usage = null;
+            svcObj = null;
+        }
+
         synchronized (this)
         {
             // First make sure that no existing operation is currently
@@ -304,7 +329,7 @@ public class ServiceRegistry
 
                 // Increment the usage count and grab the already retrieved
                 // service object, if one exists.
-                usage.m_count++;
+                usage.m_count.incrementAndGet();
                 svcObj = usage.m_svcObj;
             }
         }
@@ -333,7 +358,7 @@ public class ServiceRegistry
                 // unregistered while we didn't hold the lock.
                 if (!reg.isValid() || (svcObj == null))
                 {
-                    flushUsageCount(bundle, ref);
+                    flushUsageCount(bundle, ref, usage);
                 }
                 else
                 {
@@ -388,36 +413,33 @@ public class ServiceRegistry
             m_lockedRegsMap.put(reg, Thread.currentThread());
         }
 
-        // If usage count will go to zero, then unget the service
-        // from the registration; we do this outside the lock
-        // since this might call out to the service factory.
+        // Decrement the usage count and, if it goes to zero, then unget
+        // the service from the registration; we do this outside the lock
+        // since this might call out to the service factory. Since the usage
+        // count is decremented atomically, concurrent calls to getService()
+        // that do not acquire the lock can no longer claim the service
+        // object once it has reached zero.
         try
         {
-            if (usage.m_count == 1)
+            if (usage.m_count.decrementAndGet() <= 0)
             {
-                // Remove reference from usages array.
-                ((ServiceRegistrationImpl.ServiceReferenceImpl) ref)
-                    .getRegistration().ungetService(bundle, usage.m_svcObj);
+                reg.ungetService(bundle, usage.m_svcObj);
             }
         }
         finally
         {
-            // Finally, decrement usage count and flush if it goes to zero or
-            // the registration became invalid while we were not holding the
+            // Finally, flush the usage count if it went to zero or the
+            // registration became invalid while we were not holding the
             // lock. Either way, unlock the service registration so that any
             // threads waiting for it can continue.
             synchronized (this)
             {
-                // Decrement usage count, which spec says should happen after
-                // ungetting the service object.
-                usage.m_count--;
-
                 // If the registration is invalid or the usage count has reached
                 // zero, then flush it.
-                if (!reg.isValid() || (usage.m_count <= 0))
+                if (!reg.isValid() || (usage.m_count.get() <= 0))
                 {
                     usage.m_svcObj = null;
-                    flushUsageCount(bundle, ref);
+                    flushUsageCount(bundle, ref, usage);
                 }
 
                 // Release the registration lock so any waiting threads can
@@ -438,13 +460,8 @@ public class ServiceRegistry
     **/
     public void ungetServices(Bundle bundle)
     {
-        UsageCount[] usages;
-        synchronized (this)
-        {
-            usages = (UsageCount[]) m_inUseMap.get(bundle);
-        }
-
-        if (usages == null)
+        ServiceReference[] refs = getServicesInUse(bundle);
+        if (refs == null)
         {
             return;
         }
@@ -456,40 +473,36 @@ public class ServiceRegistry
 
         // Remove each service object from the
         // service cache.
-        for (int i = 0; i < usages.length; i++)
+        for (int i = 0; i < refs.length; i++)
         {
             // Keep ungetting until all usage count is zero.
-            while (ungetService(bundle, usages[i].m_ref))
+            while (ungetService(bundle, refs[i]))
             {
                 // Empty loop body.
             }
         }
     }
 
-    public synchronized Bundle[] getUsingBundles(ServiceReference ref)
+    public Bundle[] getUsingBundles(ServiceReference ref)
     {
         Bundle[] bundles = null;
-        for (Iterator iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
+        for (Map.Entry<Bundle, ConcurrentMap<ServiceReference, UsageCount>> entry
+            : m_inUseMap.entrySet())
         {
-            Map.Entry entry = (Map.Entry) iter.next();
-            Bundle bundle = (Bundle) entry.getKey();
-            UsageCount[] usages = (UsageCount[]) entry.getValue();
-            for (int useIdx = 0; useIdx < usages.length; useIdx++)
+            if (entry.getValue().containsKey(ref))
             {
-                if (usages[useIdx].m_ref.equals(ref))
+                Bundle bundle = entry.getKey();
+                // Add the bundle to the array to be returned.
+                if (bundles == null)
                 {
-                    // Add the bundle to the array to be returned.
-                    if (bundles == null)
-                    {
-                        bundles = new Bundle[] { bundle };
-                    }
-                    else
-                    {
-                        Bundle[] nbs = new Bundle[bundles.length + 1];
-                        System.arraycopy(bundles, 0, nbs, 0, bundles.length);
-                        nbs[bundles.length] = bundle;
-                        bundles = nbs;
-                    }
+                    bundles = new Bundle[] { bundle };
+                }
+                else
+                {
+                    Bundle[] nbs = new Bundle[bundles.length + 1];
+                    System.arraycopy(bundles, 0, nbs, 0, bundles.length);
+                    nbs[bundles.length] = bundle;
+                    bundles = nbs;
                 }
             }
         }
@@ -559,54 +572,39 @@ public class ServiceRegistry
 
     /**
      * Utility method to retrieve the specified bundle's usage count for the
-     * specified service reference.
+     * specified service reference. This method does not require the
+     * registry lock.
      * @param bundle The bundle whose usage counts are being searched.
      * @param ref The service reference to find in the bundle's usage counts.
      * @return The associated usage count or null if not found.
     **/
     private UsageCount getUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-        for (int i = 0; (usages != null) && (i < usages.length); i++)
-        {
-            if (usages[i].m_ref.equals(ref))
-            {
-                return usages[i];
-            }
-        }
-        return null;
+        Map<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
+        return (usages == null) ? null : usages.get(ref);
     }
 
     /**
-     * Utility method to update the specified bundle's usage count array to
+     * Utility method to update the specified bundle's usage counts to
      * include the specified service. This method should only be called
      * to add a usage count for a previously unreferenced service. If the
      * service already has a usage count, then the existing usage count
-     * counter simply needs to be incremented.
+     * counter simply needs to be incremented. The caller must hold the
+     * registry lock.
      * @param bundle The bundle acquiring the service.
      * @param ref The service reference of the acquired service.
-     * @param svcObj The service object of the acquired service.
     **/
     private UsageCount addUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-
-        UsageCount usage = new UsageCount();
-        usage.m_ref = ref;
-
+        ConcurrentMap<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
         if (usages == null)
         {
-            usages = new UsageCount[] { usage };
-        }
-        else
-        {
-            UsageCount[] newUsages = new UsageCount[usages.length + 1];
-            System.arraycopy(usages, 0, newUsages, 0, usages.length);
-            newUsages[usages.length] = usage;
-            usages = newUsages;
+            usages = new ConcurrentHashMap<ServiceReference, UsageCount>();
+            m_inUseMap.put(bundle, usages);
         }
 
-        m_inUseMap.put(bundle, usages);
+        UsageCount usage = new UsageCount(ref);
+        usages.put(ref, usage);
 
         return usage;
     }
@@ -619,44 +617,26 @@ public class ServiceRegistry
      * the usage count and decrement its counter. This method will also
      * remove the specified bundle from the "in use" map if it has no more
      * usage counts after removing the usage count for the specified service
-     * reference.
+     * reference. The caller must hold the registry lock.
      * @param bundle The bundle whose usage count should be removed.
      * @param ref The service reference whose usage count should be removed.
+     * @param usage The usage count to remove, which will not be removed if
+     *        it has already been replaced by another usage count; if
+     *        <tt>null</tt> any usage count for the reference is removed.
     **/
-    private void flushUsageCount(Bundle bundle, ServiceReference ref)
+    private void flushUsageCount(Bundle bundle, ServiceReference ref, UsageCount usage)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-        for (int i = 0; (usages != null) && (i < usages.length); i++)
+        Map<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
+        if (usages != null)
         {
-            if (usages[i].m_ref.equals(ref))
+            if ((usage == null) || (usages.get(ref) == usage))
             {
-                // If this is the only usage, then point to empty list.
-                if ((usages.length - 1) == 0)
-                {
-                    usages = null;
-                }
-                // Otherwise, we need to do some array copying.
-                else
-                {
-                    UsageCount[] newUsages = new UsageCount[usages.length - 1];
-                    System.arraycopy(usages, 0, newUsages, 0, i);
-                    if (i < newUsages.length)
-                    {
-                        System.arraycopy(
-                            usages, i + 1, newUsages, i, newUsages.length - i);
-                    }
-                    usages = newUsages;
-                }
+                usages.remove(ref);
+            }
+            if (usages.isEmpty())
+            {
+                m_inUseMap.remove(bundle);
             }
-        }
-
-        if (usages != null)
-        {
-            m_inUseMap.put(bundle, usages);
-        }
-        else
-        {
-            m_inUseMap.remove(bundle);
         }
     }
 
@@ -799,9 +779,32 @@ public class ServiceRegistry
 
     private static class UsageCount
     {
-        public int m_count = 0;
-        public ServiceReference m_ref = null;
-        public Object m_svcObj = null;
+        public final AtomicInteger m_count = new AtomicInteger(0);
+        public final ServiceReference m_ref;
+        public volatile Object m_svcObj = null;
+
+        UsageCount(ServiceReference ref)
+        {
+            m_ref = ref;
+        }
+
+        /**
+         * Increments the usage count, but only if it has not already
+         * dropped to zero.
+         * @return <tt>true</tt> if the usage count was incremented,
+         *         <tt>false</tt> otherwise.
+        **/
+        boolean incrementIfInUse()
+        {
+            for (int count = m_count.get(); count > 0; count = m_count.get())
+            {
+                if (m_count.compareAndSet(count, count + 1))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     public interface ServiceRegistryCallbacks
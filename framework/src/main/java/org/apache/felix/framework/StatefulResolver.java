@@ -29,13 +29,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.resolver.CandidateComparator;
 import org.apache.felix.framework.resolver.ResolveException;
-import org.apache.felix.framework.resolver.Resolver;
 import org.apache.felix.framework.resolver.ResolverImpl;
 import org.apache.felix.framework.resolver.ResolverWire;
+import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.R4Library;
@@ -62,7 +63,7 @@ class StatefulResolver
 {
     private final Logger m_logger;
     private final Felix m_felix;
-    private final Resolver m_resolver;
+    private final ResolverImpl m_resolver;
     private boolean m_isResolving = false;
 
     // Set of all revisions.
@@ -84,11 +85,17 @@ class StatefulResolver
     {
         m_felix = felix;
         m_logger = m_felix.getLogger();
-        m_resolver = new ResolverImpl(m_logger);
+        m_resolver = new ResolverImpl(
+            m_logger,
+            m_felix.getIntProperty(FelixConstants.RESOLVER_PARALLELISM_PROP, 1),
+            m_felix.getIntProperty(FelixConstants.RESOLVER_PERMUTATION_LIMIT_PROP, 0),
+            m_felix.getIntProperty(FelixConstants.RESOLVER_TIMEOUT_PROP, 0));
 
         m_revisions = new HashSet<BundleRevision>();
         m_fragments = new HashSet<BundleRevision>();
-        m_capSets = new HashMap<String, CapabilitySet>();
+        // Capability sets are looked up without holding the lock when
+        // candidates are found concurrently, so use a concurrent map.
+        m_capSets = new ConcurrentHashMap<String, CapabilitySet>();
         m_singletons = new HashMap<String, List<BundleRevision>>();
         m_selectedSingletons = new HashSet<BundleRevision>();
 
@@ -176,7 +183,9 @@ class StatefulResolver
         return findProvidersInternal(record, req, obeyMandatory);
     }
 
-    synchronized List<BundleCapability> findProvidersInternal(
+    // Not synchronized, since capability sets support concurrent queries
+    // and the resolver may find candidates in parallel.
+    List<BundleCapability> findProvidersInternal(
         ResolverHookRecord record, BundleRequirement req, boolean obeyMandatory)
     {
         List<BundleCapability> result = new ArrayList<BundleCapability>();
@@ -397,6 +406,8 @@ class StatefulResolver
             // Catch any resolve exception to rethrow later because
             // we may need to call end() on resolver hooks.
             ResolveException rethrow = null;
+            FrameworkMetrics metrics = m_felix.getMetrics();
+            long start = (metrics != null) ? System.nanoTime() : 0;
             try
             {
                 // Resolve the revision.
@@ -413,6 +424,12 @@ class StatefulResolver
             {
                 rethrow = ex;
             }
+            if (metrics != null)
+            {
+                metrics.resolved(
+                    System.nanoTime() - start, rethrow == null,
+                    m_resolver.getLastStatistics());
+            }
 
             // Release resolver hooks, if any.
             releaseResolverHooks(record);
@@ -437,6 +454,36 @@ class StatefulResolver
         fireResolvedEvents(wireMap);
     }
 
+    /**
+     * Marks the revisions in the specified wire map as resolved without
+     * consulting the resolver, which is used to restore previously saved
+     * wirings that are known to be consistent.
+     * @param wireMap the revisions to mark as resolved and their wires.
+    **/
+    void restoreWirings(Map<BundleRevision, List<ResolverWire>> wireMap)
+        throws ResolveException
+    {
+        // Acquire global lock.
+        boolean locked = m_felix.acquireGlobalLock();
+        if (!locked)
+        {
+            throw new ResolveException(
+                "Unable to acquire global lock for resolve.", null, null);
+        }
+
+        try
+        {
+            markResolvedRevisions(wireMap);
+        }
+        finally
+        {
+            // Always release the global lock.
+            m_felix.releaseGlobalLock();
+        }
+
+        fireResolvedEvents(wireMap);
+    }
+
     BundleRevision resolve(BundleRevision revision, String pkgName)
         throws ResolveException, BundleException
     {
@@ -488,6 +535,8 @@ class StatefulResolver
                     // Catch any resolve exception to rethrow later because
                     // we may need to call end() on resolver hooks.
                     ResolveException rethrow = null;
+                    FrameworkMetrics metrics = m_felix.getMetrics();
+                    long start = (metrics != null) ? System.nanoTime() : 0;
                     try
                     {
                         wireMap = m_resolver.resolve(
@@ -504,6 +553,12 @@ class StatefulResolver
                     {
                         rethrow = ex;
                     }
+                    if (metrics != null)
+                    {
+                        metrics.resolved(
+                            System.nanoTime() - start, rethrow == null,
+                            m_resolver.getLastStatistics());
+                    }
 
                     // Release resolver hooks, if any.
                     releaseResolverHooks(record);
@@ -1163,7 +1218,12 @@ class StatefulResolver
                     CapabilitySet capSet = m_capSets.get(cap.getNamespace());
                     if (capSet == null)
                     {
-                        capSet = new CapabilitySet(null, true);
+                        // By convention, generic namespaces (e.g., osgi.identity
+                        // and osgi.ee) have an attribute of the same name as
+                        // the namespace that is matched by equality, so index it.
+                        List<String> indices = new ArrayList<String>();
+                        indices.add(cap.getNamespace());
+                        capSet = new CapabilitySet(indices, true);
                         m_capSets.put(cap.getNamespace(), capSet);
                     }
                     capSet.addCapability(cap);
@@ -79,6 +79,8 @@ public class BundleArchive
     private final Logger m_logger;
     private final Map m_configMap;
     private final WeakZipFileFactory m_zipFactory;
+    private final ChecksumIndex m_checksumIndex;
+    private final CacheJournal m_journal;
     private final File m_archiveRootDir;
     private final boolean m_isSingleBundleFile;
 
@@ -117,6 +119,10 @@ public class BundleArchive
      * used as an URL to the bundle content.
      * </p>
      * @param logger the logger to be used by the archive.
+     * @param checksumIndex the index used to deduplicate bundle JAR files
+     *        or <tt>null</tt>.
+     * @param journal the journal used to store the archive metadata or
+     *        <tt>null</tt> to store it in the archive root directory.
      * @param archiveRootDir the archive root directory for storing state.
      * @param id the bundle identifier associated with the archive.
      * @param location the bundle location string associated with the archive.
@@ -124,12 +130,15 @@ public class BundleArchive
      * @throws Exception if any error occurs.
     **/
     public BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
-        File archiveRootDir, long id, int startLevel, String location, InputStream is)
+        ChecksumIndex checksumIndex, CacheJournal journal, File archiveRootDir,
+        long id, int startLevel, String location, InputStream is)
         throws Exception
     {
         m_logger = logger;
         m_configMap = configMap;
         m_zipFactory = zipFactory;
+        m_checksumIndex = checksumIndex;
+        m_journal = journal;
         m_archiveRootDir = archiveRootDir;
         m_id = id;
         if (m_id <= 0)
@@ -144,7 +153,8 @@ public class BundleArchive
         m_refreshCount = 0;
 
         String s = (String) m_configMap.get(BundleCache.CACHE_SINGLEBUNDLEFILE_PROP);
-        m_isSingleBundleFile = ((s == null) || s.equalsIgnoreCase("true")) ? true : false;
+        m_isSingleBundleFile = ((s == null) || s.equalsIgnoreCase("true")
+            || (m_journal != null)) ? true : false;
 
         // Save state.
         initialize();
@@ -161,21 +171,28 @@ public class BundleArchive
      * The root directory is where any required state can be stored.
      * </p>
      * @param logger the logger to be used by the archive.
+     * @param checksumIndex the index used to deduplicate bundle JAR files
+     *        or <tt>null</tt>.
+     * @param journal the journal used to store the archive metadata or
+     *        <tt>null</tt> to store it in the archive root directory.
      * @param archiveRootDir the archive root directory for storing state.
      * @param configMap configMap for BundleArchive
      * @throws Exception if any error occurs.
     **/
     public BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
-        File archiveRootDir)
+        ChecksumIndex checksumIndex, CacheJournal journal, File archiveRootDir)
         throws Exception
     {
         m_logger = logger;
         m_configMap = configMap;
         m_zipFactory = zipFactory;
+        m_checksumIndex = checksumIndex;
+        m_journal = journal;
         m_archiveRootDir = archiveRootDir;
 
         String s = (String) m_configMap.get(BundleCache.CACHE_SINGLEBUNDLEFILE_PROP);
-        m_isSingleBundleFile = ((s == null) || s.equalsIgnoreCase("true")) ? true : false;
+        m_isSingleBundleFile = ((s == null) || s.equalsIgnoreCase("true")
+            || (m_journal != null)) ? true : false;
 
         if (m_isSingleBundleFile)
         {
@@ -603,10 +620,33 @@ public class BundleArchive
             BundleCache.deleteDirectoryTree(revisionDir);
         }
 
+        if (m_journal != null)
+        {
+            m_journal.retainRevisions(m_id, m_revisions.keySet());
+        }
+
         return true;
     }
 
     private synchronized String getRevisionLocation(Long revNum) throws Exception
+    {
+        if (m_journal != null)
+        {
+            String location = m_journal.getRevisionLocation(m_id, revNum.longValue());
+            if (location != null)
+            {
+                return location;
+            }
+            // The archive might have been created without the journal,
+            // so read the location file and add it to the journal.
+            location = readRevisionLocation(revNum);
+            m_journal.writeRevisionLocation(m_id, revNum.longValue(), location);
+            return location;
+        }
+        return readRevisionLocation(revNum);
+    }
+
+    private String readRevisionLocation(Long revNum) throws Exception
     {
         InputStream is = null;
         BufferedReader br = null;
@@ -629,6 +669,12 @@ public class BundleArchive
     private synchronized void setRevisionLocation(String location, Long revNum)
         throws Exception
     {
+        if (m_journal != null)
+        {
+            m_journal.writeRevisionLocation(m_id, revNum.longValue(), location);
+            return;
+        }
+
         // Save current revision location.
         OutputStream os = null;
         BufferedWriter bw = null;
@@ -690,6 +736,19 @@ public class BundleArchive
                 Logger.LOG_ERROR,
                 "Unable to delete archive directory - " + m_archiveRootDir);
         }
+        if (m_journal != null)
+        {
+            try
+            {
+                m_journal.removeArchive(m_id);
+            }
+            catch (IOException ex)
+            {
+                m_logger.log(
+                    Logger.LOG_ERROR,
+                    "Unable to remove archive from journal - " + m_archiveRootDir, ex);
+            }
+        }
     }
 
     /**
@@ -754,6 +813,11 @@ public class BundleArchive
             getRevisionLocation(currentRevNum), null, currentRevNum);
         // Add new revision to the revision map.
         m_revisions.put(currentRevNum, revision);
+
+        if (m_journal != null)
+        {
+            m_journal.retainRevisions(m_id, m_revisions.keySet());
+        }
     }
 
     /**
@@ -863,20 +927,23 @@ public class BundleArchive
                 else
                 {
                     result = new JarRevision(m_logger, m_configMap,
-                        m_zipFactory, revisionRootDir, location, true, null);
+                        m_zipFactory, m_checksumIndex, revisionRootDir, location,
+                        true, null);
                 }
             }
             else if (location.startsWith(INPUTSTREAM_PROTOCOL))
             {
                 // Assume all input streams point to JAR files.
                 result = new JarRevision(m_logger, m_configMap,
-                    m_zipFactory, revisionRootDir, location, false, is);
+                    m_zipFactory, m_checksumIndex, revisionRootDir, location,
+                    false, is);
             }
             else
             {
                 // Anything else is assumed to be a URL to a JAR file.
                 result = new JarRevision(m_logger, m_configMap,
-                    m_zipFactory, revisionRootDir, location, false, null);
+                    m_zipFactory, m_checksumIndex, revisionRootDir, location,
+                    false, null);
             }
         }
         catch (Exception ex)
@@ -900,7 +967,7 @@ public class BundleArchive
 
     // Method from Harmony java.net.URIEncoderDecoder (luni subproject)
     // used by URI to decode uri components.
-    private static String decode(String s) throws UnsupportedEncodingException
+    static String decode(String s) throws UnsupportedEncodingException
     {
         StringBuffer result = new StringBuffer();
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -940,6 +1007,23 @@ public class BundleArchive
 
     private void readBundleInfo() throws Exception
     {
+        if (m_journal != null)
+        {
+            // The archive root directory is named after the bundle identifier.
+            m_id = Long.parseLong(m_archiveRootDir.getName().substring(
+                BundleCache.BUNDLE_DIR_PREFIX.length()));
+            CacheJournal.ArchiveInfo info = m_journal.getArchiveInfo(m_id);
+            if (info != null)
+            {
+                m_originalLocation = info.m_location;
+                m_persistentState = info.m_state;
+                m_startLevel = info.m_startLevel;
+                m_lastModified = info.m_lastModified;
+                m_refreshCount = info.m_refreshCount;
+                return;
+            }
+        }
+
         File infoFile = new File(m_archiveRootDir, BUNDLE_INFO_FILE);
 
         // Read the bundle start level.
@@ -981,10 +1065,23 @@ public class BundleArchive
             if (br != null) br.close();
             if (is != null) is.close();
         }
+
+        // If the archive was created without the journal, add it.
+        if (m_journal != null)
+        {
+            writeBundleInfo();
+        }
     }
 
     private void writeBundleInfo() throws Exception
     {
+        if (m_journal != null)
+        {
+            m_journal.writeArchiveInfo(m_id, m_originalLocation, m_persistentState,
+                m_startLevel, m_lastModified, m_refreshCount);
+            return;
+        }
+
         // Write the bundle start level.
         OutputStream os = null;
         BufferedWriter bw = null;
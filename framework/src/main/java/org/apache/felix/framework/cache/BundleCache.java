@@ -19,8 +19,12 @@
 package org.apache.felix.framework.cache;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
 import java.util.*;
 
 import org.apache.felix.framework.Logger;
@@ -68,6 +72,33 @@ import org.osgi.framework.Constants;
  *       string provides control over the size of the internal buffer of the
  *       disk cache for performance reasons.
  *   </li>
+ *   <li><tt>felix.cache.mmap</tt> - Enables or disables memory mapping of
+ *       bundle JAR files, which is disabled by default. If set to
+ *       <tt>true</tt>, the central directory of each JAR file is indexed once
+ *       and entries are read from the mapped file without locking or holding
+ *       an open file, which speeds up class loading. Since mapped files are
+ *       only released when garbage collected, on some platforms (e.g.,
+ *       Windows) uninstalled or updated bundle JAR files may not be deleted
+ *       immediately.
+ *   </li>
+ *   <li><tt>felix.cache.dedup</tt> - Enables or disables the deduplication
+ *       of bundle JAR files, which is disabled by default. If set to
+ *       <tt>true</tt>, a checksum of each bundle JAR file copied into the
+ *       cache is computed and a JAR file with the same content as one already
+ *       copied in this session is hard linked to it instead of being stored
+ *       again. Hard links require Java 7 and a file system supporting them,
+ *       otherwise the JAR file is copied.
+ *   </li>
+ *   <li><tt>felix.cache.journal</tt> - Enables or disables storing the
+ *       metadata of all bundle archives in a single append-only journal
+ *       file, which is disabled by default. If set to <tt>true</tt>, changing
+ *       the persistent state of a bundle appends a record to the journal
+ *       instead of rewriting a file in the bundle's archive directory, and
+ *       the metadata of all bundles is read at once when the cache is
+ *       reloaded. Existing archives are added to the journal when reloaded,
+ *       but archives created with the journal cannot be reloaded once it
+ *       is disabled again.
+ *   </li>
  * <p>
  * For specific information on how to configure the Felix framework, refer
  * to the Felix framework usage documentation.
@@ -80,6 +111,9 @@ public class BundleCache
     public static final String CACHE_ROOTDIR_PROP = "felix.cache.rootdir";
     public static final String CACHE_LOCKING_PROP = "felix.cache.locking";
     public static final String CACHE_FILELIMIT_PROP = "felix.cache.filelimit";
+    public static final String CACHE_MMAP_PROP = "felix.cache.mmap";
+    public static final String CACHE_DEDUP_PROP = "felix.cache.dedup";
+    public static final String CACHE_JOURNAL_PROP = "felix.cache.journal";
     // TODO: CACHE - This should eventually be removed along with the code
     //       supporting the old multi-file bundle cache format.
     public static final String CACHE_SINGLEBUNDLEFILE_PROP = "felix.cache.singlebundlefile";
@@ -89,6 +123,7 @@ public class BundleCache
     private static transient final String CACHE_DIR_NAME = "felix-cache";
     private static transient final String CACHE_ROOTDIR_DEFAULT = ".";
     private static transient final String CACHE_LOCK_NAME = "cache.lock";
+    private static transient final String CACHE_JOURNAL_NAME = "cache.journal";
     static transient final String BUNDLE_DIR_PREFIX = "bundle";
 
     private static final SecureAction m_secureAction = new SecureAction();
@@ -96,6 +131,8 @@ public class BundleCache
     private final Logger m_logger;
     private final Map m_configMap;
     private final WeakZipFileFactory m_zipFactory;
+    private final ChecksumIndex m_checksumIndex;
+    private final CacheJournal m_journal;
     private final Object m_lock;
 
     public BundleCache(Logger logger, Map configMap)
@@ -119,8 +156,16 @@ public class BundleCache
         }
         m_zipFactory = new WeakZipFileFactory(limit);
 
+        m_checksumIndex = "true".equalsIgnoreCase(
+            (String) m_configMap.get(CACHE_DEDUP_PROP))
+                ? new ChecksumIndex(m_logger) : null;
+
         // Create the cache directory, if it does not exist.
         File cacheDir = determineCacheDir(m_configMap);
+        m_journal = "true".equalsIgnoreCase(
+            (String) m_configMap.get(CACHE_JOURNAL_PROP))
+                ? new CacheJournal(m_logger, new File(cacheDir, CACHE_JOURNAL_NAME))
+                : null;
         if (!getSecureAction().fileExists(cacheDir))
         {
             if (!getSecureAction().mkdirs(cacheDir))
@@ -184,6 +229,10 @@ public class BundleCache
 
     public synchronized void release()
     {
+        if (m_journal != null)
+        {
+            m_journal.close();
+        }
         if (m_lock != null)
         {
             try
@@ -208,6 +257,12 @@ public class BundleCache
 
     public synchronized void delete() throws Exception
     {
+        // Close the journal, since it is deleted too.
+        if (m_journal != null)
+        {
+            m_journal.close();
+        }
+
         // Delete the cache directory.
         File cacheDir = determineCacheDir(m_configMap);
         deleteDirectoryTree(cacheDir);
@@ -246,7 +301,8 @@ public class BundleCache
                 {
                     archiveList.add(
                         new BundleArchive(
-                            m_logger, m_configMap, m_zipFactory, children[i]));
+                            m_logger, m_configMap, m_zipFactory, m_checksumIndex,
+                            m_journal, children[i]));
                 }
                 catch (Exception ex)
                 {
@@ -276,8 +332,8 @@ public class BundleCache
             // Create the archive and add it to the list of archives.
             BundleArchive ba =
                 new BundleArchive(
-                    m_logger, m_configMap, m_zipFactory, archiveRootDir,
-                    id, startLevel, location, is);
+                    m_logger, m_configMap, m_zipFactory, m_checksumIndex,
+                    m_journal, archiveRootDir, id, startLevel, location, is);
             return ba;
         }
         catch (Exception ex)
@@ -292,10 +348,34 @@ public class BundleCache
                             + archiveRootDir);
                 }
             }
+            if (m_journal != null)
+            {
+                try
+                {
+                    m_journal.removeArchive(id);
+                }
+                catch (IOException ex2)
+                {
+                    m_logger.log(
+                        Logger.LOG_ERROR,
+                        "Unable to remove the archive from the journal: "
+                            + archiveRootDir, ex2);
+                }
+            }
             throw ex;
         }
     }
 
+    /**
+     * Returns the factory of the weak zip files of all bundle archives of
+     * this cache, which tracks how often they were opened.
+     * @return the weak zip file factory of this cache.
+    **/
+    public WeakZipFileFactory getZipFileFactory()
+    {
+        return m_zipFactory;
+    }
+
     /**
      * Provides the system bundle access to its private storage area; this
      * special case is necessary since the system bundle is not really a
@@ -346,17 +426,54 @@ public class BundleCache
     static void copyStreamToFile(InputStream is, File outputFile)
         throws IOException
     {
-        OutputStream os = null;
+        copyStreamToFile(is, outputFile, null);
+    }
+
+    /**
+     * This method copies an input stream to the specified file using
+     * channels. File input streams are transferred directly to the file
+     * unless a message digest is specified, which is updated with the
+     * copied content.
+     * @param is the input stream to copy.
+     * @param outputFile the file to which the input stream should be copied.
+     * @param digest the message digest to update or <tt>null</tt>.
+    **/
+    static void copyStreamToFile(InputStream is, File outputFile, MessageDigest digest)
+        throws IOException
+    {
+        FileOutputStream os = null;
 
         try
         {
             os = getSecureAction().getFileOutputStream(outputFile);
-            os = new BufferedOutputStream(os, BUFSIZE);
-            byte[] b = new byte[BUFSIZE];
-            int len = 0;
-            while ((len = is.read(b)) != -1)
+            FileChannel out = os.getChannel();
+            if ((digest == null) && (is instanceof FileInputStream))
             {
-                os.write(b, 0, len);
+                FileChannel in = ((FileInputStream) is).getChannel();
+                long pos = in.position();
+                long size = in.size();
+                while (pos < size)
+                {
+                    pos += in.transferTo(pos, size - pos, out);
+                }
+            }
+            else
+            {
+                ReadableByteChannel in = Channels.newChannel(is);
+                ByteBuffer b = ByteBuffer.allocate(BUFSIZE);
+                while (in.read(b) != -1)
+                {
+                    b.flip();
+                    if (digest != null)
+                    {
+                        digest.update(b.array(), 0, b.limit());
+                    }
+                    while (b.hasRemaining())
+                    {
+                        out.write(b);
+                    }
+                    b.clear();
+                }
             }
         }
         finally
@@ -0,0 +1,533 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.felix.framework.Logger;
+
+/**
+ * <p>
+ * This class implements a journal of the metadata of all bundle archives in
+ * the cache, which replaces the metadata files of each archive and revision
+ * if the <tt>felix.cache.journal</tt> property is set to <tt>true</tt>. Every
+ * change to an archive appends a single record with its complete metadata,
+ * so that changing the persistent state of a bundle is a single append and
+ * reloading the cache is a single sequential read.
+ * </p>
+ * <p>
+ * Each record is preceded by its length and followed by a CRC32 checksum of
+ * its content. Reading stops at the first incomplete or corrupt record, which
+ * can only be the result of an interrupted append, and the journal is
+ * truncated to the last valid record. Once the journal holds considerably
+ * more records than are needed to describe the current archives, it is
+ * compacted by writing the current records to a new file that replaces it.
+ * </p>
+**/
+class CacheJournal
+{
+    private static final int MAGIC = 0x464a4e4c;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    // Compact when the journal has more than this many records and more
+    // than twice the number of records that are still current.
+    private static final int COMPACTION_THRESHOLD = 1024;
+
+    private static final byte ARCHIVE_RECORD = 1;
+    private static final byte REVISION_RECORD = 2;
+    private static final byte REMOVE_RECORD = 3;
+
+    private final Logger m_logger;
+    private final File m_file;
+    private final File m_compactFile;
+    private final Map<Long, ArchiveInfo> m_archives = new HashMap<Long, ArchiveInfo>();
+    private boolean m_loaded = false;
+    private int m_recordCount = 0;
+    private OutputStream m_os = null;
+
+    CacheJournal(Logger logger, File file)
+    {
+        m_logger = logger;
+        m_file = file;
+        m_compactFile = new File(file.getPath() + ".compact");
+    }
+
+    /**
+     * Returns the metadata of the archive with the specified bundle
+     * identifier or <tt>null</tt> if the journal does not contain it.
+     * @param id the bundle identifier of the archive.
+     * @return a copy of the archive metadata or <tt>null</tt>.
+     * @throws IOException if the journal cannot be read.
+    **/
+    synchronized ArchiveInfo getArchiveInfo(long id) throws IOException
+    {
+        load();
+        ArchiveInfo info = m_archives.get(new Long(id));
+        return ((info == null) || (info.m_location == null))
+            ? null : new ArchiveInfo(info);
+    }
+
+    synchronized String getRevisionLocation(long id, long revNum) throws IOException
+    {
+        load();
+        ArchiveInfo info = m_archives.get(new Long(id));
+        return (info == null) ? null : info.m_revisionLocations.get(new Long(revNum));
+    }
+
+    synchronized void writeArchiveInfo(
+        long id, String location, int state, int startLevel,
+        long lastModified, long refreshCount)
+        throws IOException
+    {
+        load();
+        ArchiveInfo info = getOrCreateArchiveInfo(id);
+        info.m_location = (location == null) ? "" : location;
+        info.m_state = state;
+        info.m_startLevel = startLevel;
+        info.m_lastModified = lastModified;
+        info.m_refreshCount = refreshCount;
+        append(createArchiveRecord(id, info));
+    }
+
+    synchronized void writeRevisionLocation(long id, long revNum, String location)
+        throws IOException
+    {
+        load();
+        getOrCreateArchiveInfo(id).m_revisionLocations.put(new Long(revNum), location);
+        append(createRevisionRecord(id, revNum, location));
+    }
+
+    /**
+     * Forgets the locations of all revisions of the specified archive
+     * except the specified ones. This does not append a record, since the
+     * locations of removed revisions are never read, but prevents them from
+     * being written again when compacting.
+     * @param id the bundle identifier of the archive.
+     * @param revNums the revision numbers to retain.
+    **/
+    synchronized void retainRevisions(long id, Collection<Long> revNums)
+    {
+        ArchiveInfo info = m_archives.get(new Long(id));
+        if (info != null)
+        {
+            info.m_revisionLocations.keySet().retainAll(revNums);
+        }
+    }
+
+    synchronized void removeArchive(long id) throws IOException
+    {
+        load();
+        if (m_archives.remove(new Long(id)) != null)
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeByte(REMOVE_RECORD);
+            dos.writeLong(id);
+            dos.close();
+            append(baos.toByteArray());
+        }
+    }
+
+    /**
+     * Closes the journal. The journal is read again on next access, which
+     * allows the cache directory to be deleted while the journal is closed.
+    **/
+    synchronized void close()
+    {
+        closeOutputStream();
+        m_archives.clear();
+        m_recordCount = 0;
+        m_loaded = false;
+    }
+
+    //
+    // Private methods.
+    //
+
+    private ArchiveInfo getOrCreateArchiveInfo(long id)
+    {
+        ArchiveInfo info = m_archives.get(new Long(id));
+        if (info == null)
+        {
+            info = new ArchiveInfo();
+            m_archives.put(new Long(id), info);
+        }
+        return info;
+    }
+
+    private void load() throws IOException
+    {
+        if (m_loaded)
+        {
+            return;
+        }
+        m_loaded = true;
+
+        // Recover from an interrupted compaction; if the journal still
+        // exists, it was not replaced and is complete.
+        if (BundleCache.getSecureAction().fileExists(m_compactFile))
+        {
+            if (BundleCache.getSecureAction().fileExists(m_file))
+            {
+                BundleCache.getSecureAction().deleteFile(m_compactFile);
+            }
+            else
+            {
+                BundleCache.getSecureAction().renameFile(m_compactFile, m_file);
+            }
+        }
+        if (!BundleCache.getSecureAction().fileExists(m_file))
+        {
+            return;
+        }
+
+        long validLength = HEADER_LENGTH;
+        boolean isCorrupt = false;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+            BundleCache.getSecureAction().getFileInputStream(m_file), 65536));
+        try
+        {
+            try
+            {
+                if ((dis.readInt() != MAGIC) || (dis.readInt() != VERSION))
+                {
+                    m_logger.log(Logger.LOG_ERROR,
+                        "Ignoring bundle cache journal of unknown format: " + m_file);
+                    validLength = 0;
+                    isCorrupt = true;
+                }
+            }
+            catch (EOFException ex)
+            {
+                // The journal was never completely created.
+                validLength = 0;
+                isCorrupt = true;
+            }
+
+            while (!isCorrupt)
+            {
+                int length;
+                try
+                {
+                    length = dis.readInt();
+                }
+                catch (EOFException ex)
+                {
+                    break;
+                }
+                try
+                {
+                    if ((length <= 0) || (length > MAX_RECORD_LENGTH))
+                    {
+                        throw new IOException("Invalid record length: " + length);
+                    }
+                    byte[] record = new byte[length];
+                    dis.readFully(record);
+                    int checksum = dis.readInt();
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if ((int) crc.getValue() != checksum)
+                    {
+                        throw new IOException("Invalid record checksum.");
+                    }
+                    applyRecord(record);
+                }
+                catch (IOException ex)
+                {
+                    m_logger.log(Logger.LOG_WARNING,
+                        "Ignoring incomplete or corrupt bundle cache journal record at "
+                        + validLength + " in " + m_file, ex);
+                    isCorrupt = true;
+                    break;
+                }
+                validLength += 4 + length + 4;
+                m_recordCount++;
+            }
+        }
+        finally
+        {
+            dis.close();
+        }
+
+        if (isCorrupt)
+        {
+            // Drop the corrupt records, so that we can append to the journal.
+            openOutputStream();
+            ((FileOutputStream) m_os).getChannel().truncate(validLength);
+            if (validLength == 0)
+            {
+                writeHeader(m_os);
+            }
+        }
+
+        if (isCompactionNeeded())
+        {
+            compact();
+        }
+    }
+
+    private void applyRecord(byte[] record) throws IOException
+    {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = dis.readByte();
+        long id = dis.readLong();
+        switch (type)
+        {
+            case ARCHIVE_RECORD:
+                ArchiveInfo info = getOrCreateArchiveInfo(id);
+                info.m_location = readString(dis);
+                info.m_state = dis.readInt();
+                info.m_startLevel = dis.readInt();
+                info.m_lastModified = dis.readLong();
+                info.m_refreshCount = dis.readLong();
+                break;
+            case REVISION_RECORD:
+                long revNum = dis.readLong();
+                getOrCreateArchiveInfo(id).m_revisionLocations.put(
+                    new Long(revNum), readString(dis));
+                break;
+            case REMOVE_RECORD:
+                m_archives.remove(new Long(id));
+                break;
+            default:
+                throw new IOException("Unknown record type: " + type);
+        }
+    }
+
+    private void append(byte[] record) throws IOException
+    {
+        if (m_os == null)
+        {
+            openOutputStream();
+        }
+        writeRecord(m_os, record);
+        m_recordCount++;
+
+        if (isCompactionNeeded())
+        {
+            compact();
+        }
+    }
+
+    private boolean isCompactionNeeded()
+    {
+        return (m_recordCount > COMPACTION_THRESHOLD)
+            && (m_recordCount > 2 * getCurrentRecordCount());
+    }
+
+    private int getCurrentRecordCount()
+    {
+        int count = 0;
+        for (ArchiveInfo info : m_archives.values())
+        {
+            count += ((info.m_location != null) ? 1 : 0)
+                + info.m_revisionLocations.size();
+        }
+        return count;
+    }
+
+    private void compact() throws IOException
+    {
+        closeOutputStream();
+
+        // Write the current records to a new file and replace the journal.
+        OutputStream os = BundleCache.getSecureAction().getFileOutputStream(m_compactFile);
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(65536);
+            writeHeader(baos);
+            for (Map.Entry<Long, ArchiveInfo> entry : m_archives.entrySet())
+            {
+                long id = entry.getKey().longValue();
+                ArchiveInfo info = entry.getValue();
+                if (info.m_location != null)
+                {
+                    writeRecord(baos, createArchiveRecord(id, info));
+                }
+                for (Map.Entry<Long, String> revEntry : info.m_revisionLocations.entrySet())
+                {
+                    writeRecord(baos, createRevisionRecord(
+                        id, revEntry.getKey().longValue(), revEntry.getValue()));
+                }
+            }
+            baos.writeTo(os);
+        }
+        finally
+        {
+            os.close();
+        }
+        if (!BundleCache.getSecureAction().renameFile(m_compactFile, m_file))
+        {
+            // Some platforms cannot rename onto an existing file; if we fail
+            // now, the compacted journal is recovered on the next load.
+            if (!BundleCache.getSecureAction().deleteFile(m_file)
+                || !BundleCache.getSecureAction().renameFile(m_compactFile, m_file))
+            {
+                throw new IOException("Unable to replace bundle cache journal: " + m_file);
+            }
+        }
+        m_recordCount = getCurrentRecordCount();
+    }
+
+    private void openOutputStream() throws IOException
+    {
+        boolean exists = BundleCache.getSecureAction().fileExists(m_file);
+        if (!exists && (m_file.getParentFile() != null)
+            && !BundleCache.getSecureAction().fileExists(m_file.getParentFile()))
+        {
+            BundleCache.getSecureAction().mkdirs(m_file.getParentFile());
+        }
+        m_os = BundleCache.getSecureAction().getFileOutputStream(m_file, true);
+        if (!exists)
+        {
+            writeHeader(m_os);
+        }
+    }
+
+    private void closeOutputStream()
+    {
+        if (m_os != null)
+        {
+            try
+            {
+                m_os.close();
+            }
+            catch (IOException ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Unable to close bundle cache journal: " + m_file, ex);
+            }
+            m_os = null;
+        }
+    }
+
+    private static void writeHeader(OutputStream os) throws IOException
+    {
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.flush();
+    }
+
+    private static void writeRecord(OutputStream os, byte[] record) throws IOException
+    {
+        // Write the record with a single call, so that it is either
+        // appended completely or truncated when loading.
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(record.length + 8);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(record.length);
+        dos.write(record);
+        dos.writeInt((int) crc.getValue());
+        dos.close();
+        baos.writeTo(os);
+    }
+
+    private static byte[] createArchiveRecord(long id, ArchiveInfo info)
+        throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(ARCHIVE_RECORD);
+        dos.writeLong(id);
+        writeString(dos, info.m_location);
+        dos.writeInt(info.m_state);
+        dos.writeInt(info.m_startLevel);
+        dos.writeLong(info.m_lastModified);
+        dos.writeLong(info.m_refreshCount);
+        dos.close();
+        return baos.toByteArray();
+    }
+
+    private static byte[] createRevisionRecord(long id, long revNum, String location)
+        throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(REVISION_RECORD);
+        dos.writeLong(id);
+        dos.writeLong(revNum);
+        writeString(dos, location);
+        dos.close();
+        return baos.toByteArray();
+    }
+
+    // Strings are not written with writeUTF(), which is limited to 64k.
+    private static void writeString(DataOutputStream dos, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException
+    {
+        int length = dis.readInt();
+        if ((length < 0) || (length > MAX_RECORD_LENGTH))
+        {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * The metadata of a bundle archive.
+    **/
+    static class ArchiveInfo
+    {
+        // The location is null if no archive record was read.
+        String m_location;
+        int m_state;
+        int m_startLevel;
+        long m_lastModified;
+        long m_refreshCount;
+        final Map<Long, String> m_revisionLocations = new HashMap<Long, String>();
+
+        ArchiveInfo()
+        {
+        }
+
+        ArchiveInfo(ArchiveInfo info)
+        {
+            m_location = info.m_location;
+            m_state = info.m_state;
+            m_startLevel = info.m_startLevel;
+            m_lastModified = info.m_lastModified;
+            m_refreshCount = info.m_refreshCount;
+            m_revisionLocations.putAll(info.m_revisionLocations);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.felix.framework.Logger;
+
+/**
+ * <p>
+ * This class copies bundle JAR files into the cache while keeping track of
+ * the checksums of their content, so that a JAR file with the same content
+ * as one already in the cache, such as the same JAR file installed from
+ * different locations or an update that did not change anything, is hard
+ * linked to the cached file instead of being stored again. Only files copied
+ * in the current session are known to the index. Hard links are created
+ * with <tt>java.nio.file.Files</tt>, so on older platforms, or if the file
+ * system does not support hard links, files are always copied.
+ * </p>
+ * <p>
+ * Local files are checksummed before they are copied, so that duplicates are
+ * not written at all; other input streams are checksummed while they are
+ * copied and replaced by a link afterwards.
+ * </p>
+**/
+class ChecksumIndex
+{
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String LINK_SUFFIX = ".link";
+
+    private static final Method m_toPathMethod;
+    private static final Method m_createLinkMethod;
+
+    static
+    {
+        Method toPath = null;
+        Method createLink = null;
+        try
+        {
+            toPath = File.class.getMethod("toPath");
+            createLink = Class.forName("java.nio.file.Files").getMethod(
+                "createLink", toPath.getReturnType(), toPath.getReturnType());
+        }
+        catch (Throwable ex)
+        {
+            // Hard links are not supported, so always copy.
+            toPath = null;
+            createLink = null;
+        }
+        m_toPathMethod = toPath;
+        m_createLinkMethod = createLink;
+    }
+
+    private final Logger m_logger;
+    // Maps checksums to the most recently cached file with that content.
+    private final Map<String, File> m_files = new ConcurrentHashMap<String, File>();
+
+    ChecksumIndex(Logger logger)
+    {
+        m_logger = logger;
+    }
+
+    /**
+     * Copies an input stream to the specified file or links the file to a
+     * cached file with the same content; the input stream is closed.
+     * @param is the input stream to copy.
+     * @param outputFile the file to which the input stream should be copied.
+     * @throws IOException if any error occurs.
+    **/
+    void copyStreamToFile(InputStream is, File outputFile) throws IOException
+    {
+        if (m_createLinkMethod == null)
+        {
+            BundleCache.copyStreamToFile(is, outputFile);
+            return;
+        }
+
+        MessageDigest digest = createDigest();
+        String checksum;
+        if (is instanceof FileInputStream)
+        {
+            // Checksum local files before copying them, so that they
+            // can be linked without writing anything.
+            try
+            {
+                FileChannel in = ((FileInputStream) is).getChannel();
+                long pos = in.position();
+                ByteBuffer b = ByteBuffer.allocate(BundleCache.BUFSIZE);
+                while (in.read(b) != -1)
+                {
+                    b.flip();
+                    digest.update(b.array(), 0, b.limit());
+                    b.clear();
+                }
+                in.position(pos);
+                checksum = toHexString(digest.digest());
+            }
+            catch (IOException ex)
+            {
+                is.close();
+                throw ex;
+            }
+
+            File existing = getFile(checksum, outputFile);
+            if ((existing != null) && link(existing, outputFile))
+            {
+                is.close();
+            }
+            else
+            {
+                BundleCache.copyStreamToFile(is, outputFile);
+            }
+        }
+        else
+        {
+            BundleCache.copyStreamToFile(is, outputFile, digest);
+            checksum = toHexString(digest.digest());
+
+            // Replace the copy with a link, so that the content is
+            // only stored once; keep the copy if that fails.
+            File existing = getFile(checksum, outputFile);
+            if (existing != null)
+            {
+                File linkFile = new File(
+                    outputFile.getParentFile(), outputFile.getName() + LINK_SUFFIX);
+                if (link(existing, linkFile)
+                    && !BundleCache.getSecureAction().renameFile(linkFile, outputFile))
+                {
+                    BundleCache.getSecureAction().deleteFile(linkFile);
+                }
+            }
+        }
+
+        m_files.put(checksum, outputFile);
+    }
+
+    private File getFile(String checksum, File outputFile)
+    {
+        File file = m_files.get(checksum);
+        if ((file != null) && !BundleCache.getSecureAction().fileExists(file))
+        {
+            // The cached file was deleted, e.g., since its bundle
+            // was uninstalled.
+            m_files.remove(checksum);
+            file = null;
+        }
+        return (file == null) || file.equals(outputFile) ? null : file;
+    }
+
+    private boolean link(File existing, File link)
+    {
+        try
+        {
+            m_createLinkMethod.invoke(null,
+                m_toPathMethod.invoke(link), m_toPathMethod.invoke(existing));
+            return true;
+        }
+        catch (Exception ex)
+        {
+            // The file might have been deleted concurrently or the file
+            // system does not support links, so just copy the content.
+            m_logger.log(Logger.LOG_DEBUG,
+                "Unable to link " + link + " to " + existing, ex);
+            return false;
+        }
+    }
+
+    private static MessageDigest createDigest() throws IOException
+    {
+        try
+        {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    private static String toHexString(byte[] bytes)
+    {
+        StringBuffer sb = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
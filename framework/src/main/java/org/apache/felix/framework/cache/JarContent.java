@@ -32,6 +32,7 @@ import java.util.Properties;
 import java.util.zip.ZipEntry;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.MappedZipFile;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.WeakZipFileFactory;
 import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
@@ -51,10 +52,24 @@ public class JarContent implements Content
     private final File m_file;
     private final WeakZipFile m_zipFile;
     private final boolean m_isZipFileOwner;
+    private final MappedZipFile m_mappedFile;
     private Map m_nativeLibMap;
 
     public JarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
         Object revisionLock, File rootDir, File file, WeakZipFile zipFile)
+    {
+        this(logger, configMap, zipFactory, revisionLock, rootDir, file, zipFile, null);
+    }
+
+    /**
+     * Creates a content whose entry lookups are served from the given memory
+     * mapped index instead of the weak zip file, if it is not <tt>null</tt>.
+     * The weak zip file is still used to extract embedded JAR files,
+     * directories, and native libraries.
+    **/
+    public JarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file, WeakZipFile zipFile,
+        MappedZipFile mappedFile)
     {
         m_logger = logger;
         m_configMap = configMap;
@@ -79,6 +94,7 @@ public class JarContent implements Content
             m_zipFile = zipFile;
         }
         m_isZipFileOwner = (zipFile == null);
+        m_mappedFile = mappedFile;
     }
 
     protected void finalize()
@@ -107,6 +123,10 @@ public class JarContent implements Content
     {
         try
         {
+            if (m_mappedFile != null)
+            {
+                return m_mappedFile.hasEntry(name);
+            }
             ZipEntry ze = m_zipFile.getEntry(name);
             return ze != null;
         }
@@ -122,7 +142,9 @@ public class JarContent implements Content
     public Enumeration<String> getEntries()
     {
         // Wrap entries enumeration to filter non-matching entries.
-        Enumeration<String> e = new EntriesEnumeration(m_zipFile.entries());
+        Enumeration<String> e = (m_mappedFile != null)
+            ? m_mappedFile.getEntryNames()
+            : new EntriesEnumeration(m_zipFile.entries());
 
         // Spec says to return null if there are no entries.
         return (e.hasMoreElements()) ? e : null;
@@ -136,6 +158,10 @@ public class JarContent implements Content
 
         try
         {
+            if (m_mappedFile != null)
+            {
+                return m_mappedFile.getEntryAsBytes(name);
+            }
             ZipEntry ze = m_zipFile.getEntry(name);
             if (ze == null)
             {
@@ -190,6 +216,10 @@ public class JarContent implements Content
 
         try
         {
+            if (m_mappedFile != null)
+            {
+                return m_mappedFile.getInputStream(name);
+            }
             ZipEntry ze = m_zipFile.getEntry(name);
             if (ze == null)
             {
@@ -228,7 +258,7 @@ public class JarContent implements Content
         if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
         {
             return new JarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
-                m_rootDir, m_file, m_zipFile);
+                m_rootDir, m_file, m_zipFile, m_mappedFile);
         }
 
         // Remove any leading slash.
@@ -289,9 +319,11 @@ public class JarContent implements Content
                         "Unable to extract embedded JAR file.", ex);
                 }
             }
+            // Embedded JAR files are only mapped if this content is.
             return new JarContent(
                 m_logger, m_configMap, m_zipFactory, m_revisionLock,
-                extractJar.getParentFile(), extractJar, null);
+                extractJar.getParentFile(), extractJar, null,
+                (m_mappedFile != null) ? mapZipFile(m_logger, extractJar) : null);
         }
 
         // The entry could not be found, so return null.
@@ -495,6 +527,26 @@ public class JarContent implements Content
         }
     }
 
+    /**
+     * Memory maps and indexes the given JAR file, returning <tt>null</tt> if
+     * that is not possible, in which case the weak zip file should be used.
+    **/
+    static MappedZipFile mapZipFile(Logger logger, File file)
+    {
+        try
+        {
+            return new MappedZipFile(file);
+        }
+        catch (Exception ex)
+        {
+            logger.log(
+                Logger.LOG_DEBUG,
+                "JarContent: Unable to map JAR file " + file + ", falling back to ZipFile.",
+                ex);
+            return null;
+        }
+    }
+
     private static class EntriesEnumeration implements Enumeration<String>
     {
         private final Enumeration m_enumeration;
@@ -29,6 +29,7 @@ import java.util.Map;
 import java.util.zip.ZipEntry;
 
 import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.MappedZipFile;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.WeakZipFileFactory;
@@ -50,17 +51,26 @@ class JarRevision extends BundleArchiveRevision
     private static final transient String BUNDLE_JAR_FILE = "bundle.jar";
 
     private final WeakZipFileFactory m_zipFactory;
+    private final ChecksumIndex m_checksumIndex;
     private final File m_bundleFile;
     private final WeakZipFile m_zipFile;
+    private final boolean m_mmap;
+    // Shared by all contents of this revision; created on first use.
+    private MappedZipFile m_mappedFile;
+    private boolean m_mappedFileCreated = false;
 
     public JarRevision(
         Logger logger, Map configMap, WeakZipFileFactory zipFactory,
-        File revisionRootDir, String location, boolean byReference, InputStream is)
+        ChecksumIndex checksumIndex, File revisionRootDir, String location,
+        boolean byReference, InputStream is)
         throws Exception
     {
         super(logger, configMap, revisionRootDir, location);
 
         m_zipFactory = zipFactory;
+        m_checksumIndex = checksumIndex;
+        m_mmap = "true".equalsIgnoreCase(
+            (String) configMap.get(BundleCache.CACHE_MMAP_PROP));
 
         if (byReference)
         {
@@ -107,13 +117,21 @@ class JarRevision extends BundleArchiveRevision
 
     public synchronized Content getContent() throws Exception
     {
+        if (m_mmap && !m_mappedFileCreated)
+        {
+            m_mappedFile = JarContent.mapZipFile(getLogger(), m_bundleFile);
+            m_mappedFileCreated = true;
+        }
         return new JarContent(getLogger(), getConfig(), m_zipFactory,
-            this, getRevisionRootDir(), m_bundleFile, m_zipFile);
+            this, getRevisionRootDir(), m_bundleFile, m_zipFile, m_mappedFile);
     }
 
-    protected void close() throws Exception
+    protected synchronized void close() throws Exception
     {
         m_zipFile.close();
+        // Drop the mapping so it can be released as soon as
+        // no content refers to it anymore.
+        m_mappedFile = null;
     }
 
     //
@@ -141,6 +159,20 @@ class JarRevision extends BundleArchiveRevision
                     URLConnection conn = null;
                     try
                     {
+                        if ((is == null)
+                            && getLocation().startsWith(BundleArchive.FILE_PROTOCOL))
+                        {
+                            // Read local files directly, so that they can be
+                            // transferred to the cache by the file system.
+                            File file = new File(BundleArchive.decode(
+                                getLocation().substring(
+                                    BundleArchive.FILE_PROTOCOL.length())));
+                            if (BundleCache.getSecureAction().fileExists(file)
+                                && !BundleCache.getSecureAction().isFileDirectory(file))
+                            {
+                                is = BundleCache.getSecureAction().getFileInputStream(file);
+                            }
+                        }
                         if (is == null)
                         {
                             // Do it the manual way to have a chance to
@@ -167,7 +199,14 @@ class JarRevision extends BundleArchiveRevision
                         }
 
                         // Save the bundle jar file.
-                        BundleCache.copyStreamToFile(is, m_bundleFile);
+                        if (m_checksumIndex != null)
+                        {
+                            m_checksumIndex.copyStreamToFile(is, m_bundleFile);
+                        }
+                        else
+                        {
+                            BundleCache.copyStreamToFile(is, m_bundleFile);
+                        }
                     }
                     finally
                     {
@@ -22,7 +22,6 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -30,16 +29,30 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.StringComparator;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
 import org.osgi.framework.wiring.BundleCapability;
 
+/**
+ * A set of capabilities that can be queried with a <tt>SimpleFilter</tt>.
+ * Modifications must be serialized by the caller, but queries may be
+ * performed concurrently with modifications without any locking. To
+ * make this possible, the capability set itself is backed by a concurrent
+ * map and the per-value index sets are treated as immutable and replaced
+ * on modification (i.e., copy on write).
+**/
 public class CapabilitySet
 {
     private final Map<String, Map<Object, Set<BundleCapability>>> m_indices;
-    private final Set<BundleCapability> m_capSet = new HashSet<BundleCapability>();
+    private final Map<BundleCapability, Boolean> m_capSet =
+        new ConcurrentHashMap<BundleCapability, Boolean>();
     private final static SecureAction m_secureAction = new SecureAction();
+    // Index key under which capabilities are indexed when their attribute
+    // value is not a string, since filter values are always strings and
+    // therefore such values must still be compared by coercion.
+    private final static Object NON_STRING_VALUE = new Object();
 
 public void dump()
 {
@@ -79,13 +92,13 @@ public void dump()
         for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++)
         {
             m_indices.put(
-                indexProps.get(i), new HashMap<Object, Set<BundleCapability>>());
+                indexProps.get(i), new ConcurrentHashMap<Object, Set<BundleCapability>>());
         }
     }
 
     public void addCapability(BundleCapability cap)
     {
-        m_capSet.add(cap);
+        m_capSet.put(cap, Boolean.TRUE);
 
         // Index capability.
         for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
@@ -119,18 +132,24 @@ public void dump()
     private void indexCapability(
         Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object capValue)
     {
-        Set<BundleCapability> caps = index.get(capValue);
-        if (caps == null)
+        if (!(capValue instanceof String))
         {
-            caps = new HashSet<BundleCapability>();
-            index.put(capValue, caps);
+            capValue = NON_STRING_VALUE;
         }
+
+        // Never modify the existing set in place, since it may be
+        // concurrently iterated by a query.
+        Set<BundleCapability> caps = index.get(capValue);
+        caps = (caps == null)
+            ? new HashSet<BundleCapability>()
+            : new HashSet<BundleCapability>(caps);
         caps.add(cap);
+        index.put(capValue, caps);
     }
 
     public void removeCapability(BundleCapability cap)
     {
-        if (m_capSet.remove(cap))
+        if (m_capSet.remove(cap) != null)
         {
             for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
             {
@@ -164,20 +183,32 @@ public void dump()
     private void deindexCapability(
         Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object value)
     {
+        if (!(value instanceof String))
+        {
+            value = NON_STRING_VALUE;
+        }
+
+        // Never modify the existing set in place, since it may be
+        // concurrently iterated by a query.
         Set<BundleCapability> caps = index.get(value);
-        if (caps != null)
+        if ((caps != null) && caps.contains(cap))
         {
-            caps.remove(cap);
-            if (caps.isEmpty())
+            if (caps.size() == 1)
             {
                 index.remove(value);
             }
+            else
+            {
+                caps = new HashSet<BundleCapability>(caps);
+                caps.remove(cap);
+                index.put(value, caps);
+            }
         }
     }
 
     public Set<BundleCapability> match(SimpleFilter sf, boolean obeyMandatory)
     {
-        Set<BundleCapability> matches = match(m_capSet, sf);
+        Set<BundleCapability> matches = match(m_capSet.keySet(), sf);
         return (obeyMandatory)
             ? matchMandatory(matches, sf)
             : matches;
@@ -196,12 +227,26 @@ public void dump()
             // Evaluate each subfilter against the remaining capabilities.
             // For AND we calculate the intersection of each subfilter.
             // We can short-circuit the AND operation if there are no
-            // remaining capabilities.
+            // remaining capabilities. Subfilters that can be answered
+            // from an index are evaluated first, so that the remaining
+            // subfilters (e.g., version ranges) only need to be compared
+            // against the typically small set of indexed matches.
             List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
             for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
             {
-                matches = match(caps, sfs.get(i));
-                caps = matches;
+                if (isIndexed(sfs.get(i)))
+                {
+                    matches = match(caps, sfs.get(i));
+                    caps = matches;
+                }
+            }
+            for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
+            {
+                if (!isIndexed(sfs.get(i)))
+                {
+                    matches = match(caps, sfs.get(i));
+                    caps = matches;
+                }
             }
         }
         else if (sf.getOperation() == SimpleFilter.OR)
@@ -236,6 +281,20 @@ public void dump()
                     matches.addAll(existingCaps);
                     matches.retainAll(caps);
                 }
+                // Capabilities with non-string values for the indexed
+                // attribute must still be compared individually.
+                existingCaps = index.get(NON_STRING_VALUE);
+                if (existingCaps != null)
+                {
+                    for (BundleCapability cap : existingCaps)
+                    {
+                        if (caps.contains(cap) && compare(
+                            cap.getAttributes().get(sf.getName()), sf))
+                        {
+                            matches.add(cap);
+                        }
+                    }
+                }
             }
             else
             {
@@ -245,7 +304,7 @@ public void dump()
                     Object lhs = cap.getAttributes().get(sf.getName());
                     if (lhs != null)
                     {
-                        if (compare(lhs, sf.getValue(), sf.getOperation()))
+                        if (compare(lhs, sf))
                         {
                             matches.add(cap);
                         }
@@ -257,6 +316,12 @@ public void dump()
         return matches;
     }
 
+    private boolean isIndexed(SimpleFilter sf)
+    {
+        return (sf.getOperation() == SimpleFilter.EQ)
+            && m_indices.containsKey(sf.getName());
+    }
+
     public static boolean matches(BundleCapability cap, SimpleFilter sf)
     {
         return matchesInternal(cap, sf) && matchMandatory(cap, sf);
@@ -309,7 +374,7 @@ public void dump()
             Object lhs = cap.getAttributes().get(sf.getName());
             if (lhs != null)
             {
-                matched = compare(lhs, sf.getValue(), sf.getOperation());
+                matched = compare(lhs, sf);
             }
         }
 
@@ -368,13 +433,15 @@ public void dump()
 
     private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
 
-    private static boolean compare(Object lhs, Object rhsUnknown, int op)
+    private static boolean compare(Object lhs, SimpleFilter sf)
     {
         if (lhs == null)
         {
             return false;
         }
-        
+
+        int op = sf.getOperation();
+
         // If this is a PRESENT operation, then just return true immediately
         // since we wouldn't be here if the attribute wasn't present.
         if (op == SimpleFilter.PRESENT)
@@ -395,15 +462,12 @@ public void dump()
             Object rhs;
             if (op == SimpleFilter.SUBSTRING)
             {
-                rhs = rhsUnknown;
+                rhs = sf.getValue();
             }
             else
             {
-                try
-                {
-                    rhs = coerceType(lhs, (String) rhsUnknown);
-                }
-                catch (Exception ex)
+                rhs = coerceType(lhs, sf);
+                if (rhs == null)
                 {
                     return false;
                 }
@@ -450,12 +514,8 @@ public void dump()
         // Booleans do not implement comparable, so special case them.
         else if (lhs instanceof Boolean)
         {
-            Object rhs;
-            try
-            {
-                rhs = coerceType(lhs, (String) rhsUnknown);
-            }
-            catch (Exception ex)
+            Object rhs = coerceType(lhs, sf);
+            if (rhs == null)
             {
                 return false;
             }
@@ -473,9 +533,27 @@ public void dump()
             }
         }
 
+        // If the LHS is an object array, then call compare() on each
+        // element of the array until a match is found; we don't convert
+        // it to a list to avoid allocating for every comparison, which
+        // matters for the commonly used objectClass service property.
+        if (lhs instanceof Object[])
+        {
+            Object[] array = (Object[]) lhs;
+            for (int i = 0; i < array.length; i++)
+            {
+                if (compare(array[i], sf))
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
         // If the LHS is not a comparable or boolean, check if it is an
-        // array. If so, convert it to a list so we can treat it as a
-        // collection.
+        // array of primitives. If so, convert it to a list so we can treat
+        // it as a collection.
         if (lhs.getClass().isArray())
         {
             lhs = convertArrayToList(lhs);
@@ -487,7 +565,7 @@ public void dump()
         {
             for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
             {
-                if (compare(iter.next(), rhsUnknown, op))
+                if (compare(iter.next(), sf))
                 {
                     return true;
                 }
@@ -504,22 +582,16 @@ public void dump()
 
         // Since we cannot identify the LHS type, then we can only perform
         // equality comparison.
-        try
-        {
-            return lhs.equals(coerceType(lhs, (String) rhsUnknown));
-        }
-        catch (Exception ex)
-        {
-            return false;
-        }
+        return lhs.equals(coerceType(lhs, sf));
     }
 
     private static boolean compareApproximate(Object lhs, Object rhs)
     {
+        // Note that a string RHS has already had its whitespace removed
+        // when it was coerced.
         if (rhs instanceof String)
         {
-            return removeWhitespace((String) lhs)
-                .equalsIgnoreCase(removeWhitespace((String) rhs));
+            return removeWhitespace((String) lhs).equalsIgnoreCase((String) rhs);
         }
         else if (rhs instanceof Character)
         {
@@ -542,6 +614,51 @@ public void dump()
         return sb.toString();
     }
 
+    /**
+     * Coerces the value of the specified filter to the type of the specified
+     * attribute value. Since the same filter is typically evaluated against
+     * many attribute values of the same type, the coerced value is cached in
+     * the filter so that repeated evaluation does not have to reflectively
+     * construct the same value over and over. This is only done for types
+     * loaded by the boot class loader or by the framework itself (e.g.,
+     * <tt>Long</tt> or <tt>Version</tt>), so the filter cannot keep bundle
+     * classes reachable.
+     * @param lhs the attribute value whose type is the target type.
+     * @param sf the filter whose string value is to be coerced.
+     * @return the coerced value or <tt>null</tt> if it could not be coerced.
+    **/
+    private static Object coerceType(Object lhs, SimpleFilter sf)
+    {
+        Class lhsClass = lhs.getClass();
+        SimpleFilter.CoercedValue cached = sf.m_coercedValue;
+        if ((cached != null) && (cached.m_type == lhsClass))
+        {
+            return cached.m_value;
+        }
+
+        Object rhs;
+        try
+        {
+            rhs = coerceType(lhs, (String) sf.getValue());
+            if ((sf.getOperation() == SimpleFilter.APPROX) && (rhs instanceof String))
+            {
+                rhs = removeWhitespace((String) rhs);
+            }
+        }
+        catch (Exception ex)
+        {
+            rhs = null;
+        }
+
+        ClassLoader loader = lhsClass.getClassLoader();
+        if ((loader == null) || (loader == CapabilitySet.class.getClassLoader()))
+        {
+            sf.m_coercedValue = new SimpleFilter.CoercedValue(lhsClass, rhs);
+        }
+
+        return rhs;
+    }
+
     private static Object coerceType(Object lhs, String rhsString) throws Exception
     {
         // If the LHS expects a string, then we can just return
@@ -40,6 +40,9 @@ public class SimpleFilter
     private final String m_name;
     private final Object m_value;
     private final int m_op;
+    // The filter value coerced to the type of the attribute value it was
+    // last compared against; maintained by CapabilitySet.
+    volatile CoercedValue m_coercedValue;
 
     public SimpleFilter(String attr, Object value, int op)
     {
@@ -647,4 +650,16 @@ loop:   for (int i = 0; i < len; i++)
 
         return sf;
     }
-}
\ No newline at end of file
+
+    static class CoercedValue
+    {
+        final Class m_type;
+        final Object m_value;
+
+        CoercedValue(Class type, Object value)
+        {
+            m_type = type;
+            m_value = value;
+        }
+    }
+}
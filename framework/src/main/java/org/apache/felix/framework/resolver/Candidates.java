@@ -19,6 +19,7 @@
 package org.apache.felix.framework.resolver;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,6 +29,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.felix.framework.ResolveContextImpl;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.Util;
@@ -57,6 +59,9 @@ class Candidates
     private final Map<BundleRevision, WrappedRevision> m_allWrappedHosts;
     // Map used when populating candidates to hold intermediate and final results.
     private final Map<BundleRevision, Object> m_populateResultCache;
+    // Maps a requirement to its providers if they were already found in
+    // advance; see prefetchProviders().
+    private final Map<BundleRequirement, List<BundleCapability>> m_prefetchedProviders;
 
     // Flag to signal if fragments are present in the candidate map.
     private boolean m_fragmentsPresent = false;
@@ -81,18 +86,163 @@ class Candidates
         m_allWrappedHosts = wrappedHosts;
         m_populateResultCache = populateResultCache;
         m_fragmentsPresent = fragmentsPresent;
+        m_prefetchedProviders = Collections.EMPTY_MAP;
     }
 
     /**
      * Constructs an empty Candidates object.
     **/
     public Candidates()
+    {
+        this(Collections.EMPTY_MAP);
+    }
+
+    /**
+     * Constructs an empty Candidates object that uses the specified
+     * providers instead of querying the resolve context, if present.
+     * @param prefetchedProviders providers found by <tt>prefetchProviders()</tt>.
+    **/
+    public Candidates(Map<BundleRequirement, List<BundleCapability>> prefetchedProviders)
     {
         m_mandatoryRevisions = new HashSet<BundleRevision>();
         m_dependentMap = new HashMap<BundleCapability, Set<BundleRequirement>>();
         m_candidateMap = new HashMap<BundleRequirement, List<BundleCapability>>();
         m_allWrappedHosts = new HashMap<BundleRevision, WrappedRevision>();
         m_populateResultCache = new HashMap<BundleRevision, Object>();
+        m_prefetchedProviders = prefetchedProviders;
+    }
+
+    /**
+     * Finds the providers for all requirements that populating candidates
+     * for the specified revisions will ask for, using the specified number
+     * of threads. The revisions are processed breadth first, where each
+     * level consists of the unresolved revisions providing candidates to
+     * the previous level, and the providers of all requirements of a level
+     * are found concurrently. Since finding providers has no side effects,
+     * populating candidates with the result yields exactly the same
+     * candidates and resolve exceptions as populating them serially.
+     * @param rc the resolve context used to find providers.
+     * @param revisions the revisions whose candidates will be populated.
+     * @param parallelism the number of threads to use.
+     * @return a map of requirements to their providers.
+    **/
+    static Map<BundleRequirement, List<BundleCapability>> prefetchProviders(
+        ResolveContext rc, Collection<BundleRevision> revisions, int parallelism)
+    {
+        Map<BundleRequirement, List<BundleCapability>> prefetched =
+            new HashMap<BundleRequirement, List<BundleCapability>>();
+        Set<BundleRevision> visited = new HashSet<BundleRevision>(revisions);
+        List<BundleRevision> level = new ArrayList<BundleRevision>(revisions);
+
+        while (!level.isEmpty())
+        {
+            // Gather the requirements of the current level, ignoring
+            // the same requirements as populateRevision().
+            List<BundleRequirement> reqs = new ArrayList<BundleRequirement>();
+            for (BundleRevision revision : level)
+            {
+                for (BundleRequirement req : revision.getDeclaredRequirements(null))
+                {
+                    String resolution = req.getDirectives().get(Constants.RESOLUTION_DIRECTIVE);
+                    if (rc.isEffective(req)
+                        && ((resolution == null)
+                            || !resolution.equals(FelixConstants.RESOLUTION_DYNAMIC)))
+                    {
+                        reqs.add(req);
+                    }
+                }
+            }
+
+            List<BundleCapability>[] results = findProviders(rc, reqs, parallelism);
+            if (results == null)
+            {
+                // We were interrupted, so just let the remaining
+                // providers be found serially.
+                break;
+            }
+
+            level = new ArrayList<BundleRevision>();
+            for (int i = 0; i < results.length; i++)
+            {
+                if (results[i] == null)
+                {
+                    continue;
+                }
+                prefetched.put(reqs.get(i), results[i]);
+                for (BundleCapability cap : results[i])
+                {
+                    BundleRevision revision = cap.getRevision();
+                    if ((Util.isFragment(revision) || (revision.getWiring() == null))
+                        && visited.add(revision))
+                    {
+                        level.add(revision);
+                    }
+                }
+            }
+        }
+
+        return prefetched;
+    }
+
+    /**
+     * Finds the providers of the specified requirements using the specified
+     * number of threads, where the calling thread is one of them.
+     * @param rc the resolve context used to find providers.
+     * @param reqs the requirements whose providers should be found.
+     * @param parallelism the number of threads to use.
+     * @return an array containing the providers for each requirement at the
+     *         same index, which is <tt>null</tt> if finding them failed, or
+     *         <tt>null</tt> if the calling thread was interrupted.
+    **/
+    private static List<BundleCapability>[] findProviders(
+        final ResolveContext rc, final List<BundleRequirement> reqs, int parallelism)
+    {
+        final List<BundleCapability>[] results = new List[reqs.size()];
+        final AtomicInteger next = new AtomicInteger(0);
+        Runnable finder = new Runnable() {
+            public void run()
+            {
+                for (int i = next.getAndIncrement(); i < results.length;
+                    i = next.getAndIncrement())
+                {
+                    try
+                    {
+                        results[i] = rc.findProviders(reqs.get(i), true);
+                    }
+                    catch (Throwable th)
+                    {
+                        // Leave it to populateRevision() to find the
+                        // providers again and report any errors.
+                    }
+                }
+            }
+        };
+
+        Thread[] threads =
+            new Thread[Math.max(0, Math.min(parallelism, results.length) - 1)];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(finder, "FelixResolver-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        finder.run();
+        for (int i = 0; i < threads.length; i++)
+        {
+            try
+            {
+                threads[i].join();
+            }
+            catch (InterruptedException ex)
+            {
+                // The results of the other threads are not safely
+                // visible, so they cannot be used.
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        return results;
     }
 
     /**
@@ -268,7 +418,10 @@ class Candidates
 
             // Process the candidates, removing any candidates that
             // cannot resolve.
-            List<BundleCapability> candidates = rc.findProviders(req, true);
+            List<BundleCapability> candidates = m_prefetchedProviders.get(req);
+            candidates = (candidates != null)
+                ? new ArrayList<BundleCapability>(candidates)
+                : rc.findProviders(req, true);
             ResolveException rethrow = processCandidates(rc, revision, candidates);
 
             // First, due to cycles, makes sure we haven't already failed in
@@ -593,6 +746,20 @@ class Candidates
         return m_candidateMap.get(req);
     }
 
+    /**
+     * Gets the total number of candidates of all requirements.
+     * @return the number of candidates.
+    **/
+    public int getCandidateCount()
+    {
+        int count = 0;
+        for (List<BundleCapability> candidates : m_candidateMap.values())
+        {
+            count += candidates.size();
+        }
+        return count;
+    }
+
     /**
      * Merges fragments into their hosts. It does this by wrapping all host
      * modules and attaching their selected fragments, removing all unselected
@@ -49,4 +49,15 @@ public abstract class ResolveContext
     public abstract boolean isEffective(BundleRequirement br);
 
     public abstract Map<BundleRevision, BundleWiring> getWirings();
+
+    /**
+     * Indicates whether <tt>findProviders()</tt> may be invoked concurrently
+     * by multiple threads, which allows the resolver to look up candidates
+     * in parallel.
+     * @return <tt>true</tt> if concurrent invocation is safe.
+    **/
+    public boolean isConcurrentFindProvidersSafe()
+    {
+        return false;
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.resolver;
+
+/**
+ * The statistics of a single resolve operation. All times are in
+ * nanoseconds.
+**/
+public class ResolveStatistics
+{
+    private final long m_startTime = System.nanoTime();
+    long m_populateTime = 0;
+    long m_packageSpaceTime = 0;
+    int m_permutations = 0;
+    int m_candidates = 0;
+
+    /**
+     * Returns the number of candidate permutations that were tried.
+     * @return the number of permutations.
+    **/
+    public int getPermutationCount()
+    {
+        return m_permutations;
+    }
+
+    /**
+     * Returns the number of candidates of the last resolve attempt.
+     * @return the number of candidates.
+    **/
+    public int getCandidateCount()
+    {
+        return m_candidates;
+    }
+
+    /**
+     * Returns the time spent populating candidates.
+     * @return the populate time in nanoseconds.
+    **/
+    public long getPopulateTime()
+    {
+        return m_populateTime;
+    }
+
+    /**
+     * Returns the time spent calculating and checking package spaces.
+     * @return the package space time in nanoseconds.
+    **/
+    public long getPackageSpaceTime()
+    {
+        return m_packageSpaceTime;
+    }
+
+    /**
+     * Returns the time since the resolve operation started.
+     * @return the elapsed time in nanoseconds.
+    **/
+    public long getElapsedTime()
+    {
+        return System.nanoTime() - m_startTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return m_permutations + " permutation(s) of " + m_candidates
+            + " candidate(s) in " + (getElapsedTime() / 1000000) + " ms (populating: "
+            + (m_populateTime / 1000000) + " ms, package spaces: "
+            + (m_packageSpaceTime / 1000000) + " ms)";
+    }
+}
@@ -42,10 +42,18 @@ import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRequirement;
 import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
 
 public class ResolverImpl implements Resolver
 {
     private final Logger m_logger;
+    // Number of threads used to find candidates; only used if greater
+    // than one and supported by the resolve context.
+    private final int m_parallelism;
+    // Maximum number of candidate permutations to try and maximum time in
+    // milliseconds to spend per resolve; zero or less means no limit.
+    private final int m_maxPermutations;
+    private final long m_timeout;
 
     // Holds candidate permutations based on permutating "uses" chains.
     // These permutations are given higher priority.
@@ -54,22 +62,90 @@ public class ResolverImpl implements Resolver
     // These permutations represent backtracking on previous decisions.
     private final List<Candidates> m_importPermutations = new ArrayList<Candidates>();
 
+    // Holds the package spaces of resolved revisions, which are reused
+    // across resolves as long as the revisions' wirings do not change.
+    private final Map<BundleRevision, ResolvedPackages> m_resolvedPkgsCache =
+        new HashMap<BundleRevision, ResolvedPackages>();
+
+    // The statistics of the latest resolve operation, if any.
+    private ResolveStatistics m_lastStatistics;
+
     public ResolverImpl(Logger logger)
+    {
+        this(logger, 1);
+    }
+
+    public ResolverImpl(Logger logger, int parallelism)
+    {
+        this(logger, parallelism, 0, 0);
+    }
+
+    public ResolverImpl(Logger logger, int parallelism, int maxPermutations, long timeout)
     {
         m_logger = logger;
+        m_parallelism = parallelism;
+        m_maxPermutations = maxPermutations;
+        m_timeout = timeout;
+    }
+
+    /**
+     * Returns the statistics of the latest resolve operation, which are
+     * <tt>null</tt> if it did not get to resolving, such as a dynamic import
+     * of a package without candidates.
+     * @return the statistics of the latest resolve or <tt>null</tt>.
+    **/
+    public ResolveStatistics getLastStatistics()
+    {
+        return m_lastStatistics;
     }
 
     public Map<BundleRevision, List<ResolverWire>> resolve(ResolveContext rc)
     {
+        ResolveStatistics stats = new ResolveStatistics();
+        m_lastStatistics = stats;
         Map<BundleRevision, List<ResolverWire>> wireMap =
             new HashMap<BundleRevision, List<ResolverWire>>();
         Map<BundleRevision, Packages> revisionPkgMap =
             new HashMap<BundleRevision, Packages>();
 
+        purgeResolvedPackages();
+
         Collection<BundleRevision> mandatoryRevisions = rc.getMandatoryRevisions();
         Collection<BundleRevision> optionalRevisions = rc.getOptionalRevisions();
         Collection<BundleRevision> ondemandFragments = (rc instanceof ResolveContextImpl)
             ? ((ResolveContextImpl) rc).getOndemandRevisions() : Collections.EMPTY_LIST;
+
+        // If configured, find the providers of all requirements that we
+        // may need in parallel up front; populating candidates will use
+        // these results in the usual order.
+        Map<BundleRequirement, List<BundleCapability>> prefetchedProviders =
+            Collections.EMPTY_MAP;
+        if ((m_parallelism > 1) && rc.isConcurrentFindProvidersSafe())
+        {
+            List<BundleRevision> revisions = new ArrayList<BundleRevision>();
+            for (BundleRevision br : mandatoryRevisions)
+            {
+                if (Util.isFragment(br) || (br.getWiring() == null))
+                {
+                    revisions.add(br);
+                }
+            }
+            for (BundleRevision br : optionalRevisions)
+            {
+                if (Util.isFragment(br) || (br.getWiring() == null))
+                {
+                    revisions.add(br);
+                }
+            }
+            prefetchedProviders =
+                Candidates.prefetchProviders(rc, revisions, m_parallelism);
+        }
+
+        // The budget covers all attempts, so once it is spent, an attempt
+        // without a faulty optional revision tries a single permutation.
+        int budgetPermutations = 0;
+        long budgetStart = System.currentTimeMillis();
+
         boolean retry;
         do
         {
@@ -77,8 +153,10 @@ public class ResolverImpl implements Resolver
 
             try
             {
+                long populateStart = System.nanoTime();
+
                 // Create object to hold all candidates.
-                Candidates allCandidates = new Candidates();
+                Candidates allCandidates = new Candidates(prefetchedProviders);
 
                 // Populate mandatory revisions; since these are mandatory
                 // revisions, failure throws a resolve exception.
@@ -121,6 +199,9 @@ public class ResolverImpl implements Resolver
                 // Merge any fragments into hosts.
                 allCandidates.prepare(rc);
 
+                stats.m_populateTime += System.nanoTime() - populateStart;
+                stats.m_candidates = allCandidates.getCandidateCount();
+
                 // Create a combined list of populated revisions; for
                 // optional revisions. We do not need to consider ondemand
                 // fragments, since they will only be pulled in if their
@@ -139,6 +220,7 @@ public class ResolverImpl implements Resolver
                 m_usesPermutations.add(allCandidates);
 
                 ResolveException rethrow = null;
+                String exhaustedBudget = null;
 
                 // If a populated revision is a fragment, then its host
                 // must ultimately be verified, so store its host requirement
@@ -158,6 +240,9 @@ public class ResolverImpl implements Resolver
                 do
                 {
                     rethrow = null;
+                    stats.m_permutations++;
+                    budgetPermutations++;
+                    long permutationStart = System.nanoTime();
 
                     revisionPkgMap.clear();
                     m_packageSourcesCache.clear();
@@ -198,8 +283,15 @@ public class ResolverImpl implements Resolver
                             rethrow = ex;
                         }
                     }
+
+                    stats.m_packageSpaceTime += System.nanoTime() - permutationStart;
+                    if ((rethrow != null)
+                        && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)))
+                    {
+                        exhaustedBudget = getExhaustedBudget(budgetPermutations, budgetStart);
+                    }
                 }
-                while ((rethrow != null)
+                while ((rethrow != null) && (exhaustedBudget == null)
                     && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)));
 
                 // If there is a resolve exception, then determine if an
@@ -216,17 +308,21 @@ public class ResolverImpl implements Resolver
                             ((WrappedRequirement) rethrow.getRequirement())
                                 .getOriginalRequirement().getRevision();
                     }
-                    if (optionalRevisions.remove(faultyRevision))
-                    {
-                        retry = true;
-                    }
-                    else if (ondemandFragments.remove(faultyRevision))
+                    if (optionalRevisions.remove(faultyRevision)
+                        || ondemandFragments.remove(faultyRevision))
                     {
+                        if (exhaustedBudget != null)
+                        {
+                            logBudgetRetry(faultyRevision, exhaustedBudget, stats);
+                        }
                         retry = true;
                     }
                     else
                     {
-                        throw rethrow;
+                        logStatistics("Failed to resolve", stats);
+                        throw (exhaustedBudget != null)
+                            ? createBudgetException(rethrow, exhaustedBudget, stats)
+                            : rethrow;
                     }
                 }
                 // If there is no exception to rethrow, then this was a clean
@@ -265,6 +361,8 @@ public class ResolverImpl implements Resolver
         }
         while (retry);
 
+        logStatistics("Resolved", stats);
+
         return wireMap;
     }
 
@@ -280,10 +378,17 @@ public class ResolverImpl implements Resolver
         // 5. The package in question matches a dynamic import of the revision.
         // The following call checks all of these conditions and returns
         // the associated dynamic import and matching capabilities.
+        m_lastStatistics = null;
         Candidates allCandidates =
             getDynamicImportCandidates(rc, revision, pkgName);
         if (allCandidates != null)
         {
+            purgeResolvedPackages();
+
+            ResolveStatistics stats = new ResolveStatistics();
+            m_lastStatistics = stats;
+            stats.m_candidates = allCandidates.getCandidateCount();
+
             Collection<BundleRevision> ondemandFragments = (rc instanceof ResolveContextImpl)
                 ? ((ResolveContextImpl) rc).getOndemandRevisions() : Collections.EMPTY_LIST;
 
@@ -292,6 +397,10 @@ public class ResolverImpl implements Resolver
             Map<BundleRevision, Packages> revisionPkgMap =
                 new HashMap<BundleRevision, Packages>();
 
+            // The budget covers all attempts, like for a normal resolve.
+            int budgetPermutations = 0;
+            long budgetStart = System.currentTimeMillis();
+
             boolean retry;
             do
             {
@@ -315,10 +424,14 @@ public class ResolverImpl implements Resolver
                     m_usesPermutations.add(allCandidates);
 
                     ResolveException rethrow = null;
+                    String exhaustedBudget = null;
 
                     do
                     {
                         rethrow = null;
+                        stats.m_permutations++;
+                        budgetPermutations++;
+                        long permutationStart = System.nanoTime();
 
                         revisionPkgMap.clear();
                         m_packageSourcesCache.clear();
@@ -350,8 +463,17 @@ public class ResolverImpl implements Resolver
                         {
                             rethrow = ex;
                         }
+
+                        stats.m_packageSpaceTime +=
+                            System.nanoTime() - permutationStart;
+                        if ((rethrow != null)
+                            && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)))
+                        {
+                            exhaustedBudget =
+                                getExhaustedBudget(budgetPermutations, budgetStart);
+                        }
                     }
-                    while ((rethrow != null)
+                    while ((rethrow != null) && (exhaustedBudget == null)
                         && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)));
 
                     // If there is a resolve exception, then determine if an
@@ -370,11 +492,18 @@ public class ResolverImpl implements Resolver
                         }
                         if (ondemandFragments.remove(faultyRevision))
                         {
+                            if (exhaustedBudget != null)
+                            {
+                                logBudgetRetry(faultyRevision, exhaustedBudget, stats);
+                            }
                             retry = true;
                         }
                         else
                         {
-                            throw rethrow;
+                            logStatistics("Failed to dynamically import " + pkgName, stats);
+                            throw (exhaustedBudget != null)
+                                ? createBudgetException(rethrow, exhaustedBudget, stats)
+                                : rethrow;
                         }
                     }
                     // If there is no exception to rethrow, then this was a clean
@@ -383,6 +512,7 @@ public class ResolverImpl implements Resolver
                     {
                         wireMap = populateDynamicWireMap(
                             revision, pkgName, revisionPkgMap, wireMap, allCandidates);
+                        logStatistics("Dynamically imported " + pkgName, stats);
                         return wireMap;
                     }
                 }
@@ -399,6 +529,91 @@ public class ResolverImpl implements Resolver
         return null;
     }
 
+    /**
+     * Checks whether the configured permutation or time budget of the current
+     * resolve is exhausted, in which case no further permutations should be
+     * tried.
+     * @param permutations the number of permutations tried in this resolve.
+     * @param startTime the time this resolve started.
+     * @return a description of the exhausted budget or <tt>null</tt>.
+    **/
+    private String getExhaustedBudget(int permutations, long startTime)
+    {
+        if ((m_maxPermutations > 0) && (permutations >= m_maxPermutations))
+        {
+            return m_maxPermutations + " permutations";
+        }
+        else if ((m_timeout > 0)
+            && ((System.currentTimeMillis() - startTime) >= m_timeout))
+        {
+            return m_timeout + " ms";
+        }
+        return null;
+    }
+
+    /**
+     * Creates the exception failing a resolve whose budget was exhausted.
+     * It reports the conflict of the last permutation tried, since there
+     * may not be a better one.
+     * @param rethrow the failure of the last permutation.
+     * @param budget the description of the exhausted budget.
+     * @param stats the statistics of the current resolve.
+     * @return the exception to throw.
+    **/
+    private ResolveException createBudgetException(
+        ResolveException rethrow, String budget, ResolveStatistics stats)
+    {
+        ResolveException ex = new ResolveException(
+            "Resolution budget of " + budget + " exhausted after trying "
+            + stats + "; giving up with the last conflict found:\n\n"
+            + rethrow.getMessage(),
+            rethrow.getRevision(),
+            rethrow.getRequirement());
+        m_logger.log(Logger.LOG_WARNING, ex.getMessage());
+        return ex;
+    }
+
+    /**
+     * Logs that an optional revision was dropped because the conflict of the
+     * last permutation tried within an exhausted budget was blamed on it,
+     * although another permutation might have resolved it.
+     * @param revision the dropped revision.
+     * @param budget the description of the exhausted budget.
+     * @param stats the statistics of the current resolve.
+    **/
+    private void logBudgetRetry(
+        BundleRevision revision, String budget, ResolveStatistics stats)
+    {
+        m_logger.log(Logger.LOG_WARNING,
+            "Resolution budget of " + budget + " exhausted after trying "
+            + stats + "; not resolving " + revision
+            + " to which the last conflict found is blamed.");
+    }
+
+    private void logStatistics(String msg, ResolveStatistics stats)
+    {
+        if (m_logger.getLogLevel() >= Logger.LOG_DEBUG)
+        {
+            m_logger.log(Logger.LOG_DEBUG, msg + " after trying " + stats + ".");
+        }
+    }
+
+    private void purgeResolvedPackages()
+    {
+        // Forget the package spaces of revisions that were unresolved,
+        // refreshed, or have dynamically imported packages since they
+        // were calculated.
+        for (Iterator<Entry<BundleRevision, ResolvedPackages>> it =
+            m_resolvedPkgsCache.entrySet().iterator(); it.hasNext(); )
+        {
+            Entry<BundleRevision, ResolvedPackages> entry = it.next();
+            if (!entry.getValue().isCurrent(entry.getKey()))
+            {
+                it.remove();
+            }
+        }
+    }
+
     private static Candidates getDynamicImportCandidates(
         ResolveContext rc, BundleRevision revision, String pkgName)
     {
@@ -509,6 +724,25 @@ public class ResolverImpl implements Resolver
         }
         cycle.add(revision);
 
+        // The package space of a resolved revision only depends on its
+        // wiring, so reuse it if it was calculated by an earlier resolve.
+        // A resolved revision is only populated if it is dynamically
+        // importing, in which case its package space must be recalculated.
+        if ((revision.getWiring() != null) && !allCandidates.isPopulated(revision))
+        {
+            ResolvedPackages resolvedPkgs = m_resolvedPkgsCache.get(revision);
+            if ((resolvedPkgs != null) && resolvedPkgs.isCurrent(revision))
+            {
+                revisionPkgMap.put(revision, resolvedPkgs.m_packages);
+                for (BundleRevision provider : resolvedPkgs.m_providers)
+                {
+                    calculatePackageSpaces(
+                        provider, allCandidates, revisionPkgMap, usesCycleMap, cycle);
+                }
+                return;
+            }
+        }
+
         // Make sure package space hasn't already been calculated.
         Packages revisionPkgs = revisionPkgMap.get(revision);
         if (revisionPkgs != null)
@@ -706,6 +940,18 @@ public class ResolverImpl implements Resolver
                 }
             }
         }
+        // Otherwise, the revision is resolved and its package space will not
+        // change until its wiring does, so remember it for future resolves.
+        else
+        {
+            Set<BundleRevision> providers = new HashSet<BundleRevision>(caps.size());
+            for (BundleCapability cap : caps)
+            {
+                providers.add(cap.getRevision());
+            }
+            m_resolvedPkgsCache.put(
+                revision, new ResolvedPackages(revision.getWiring(), revisionPkgs, providers));
+        }
     }
 
     private void mergeCandidatePackages(
@@ -1365,12 +1611,22 @@ public class ResolverImpl implements Resolver
     {
         if (cap.getNamespace().equals(BundleRevision.PACKAGE_NAMESPACE))
         {
-            List<BundleCapability> sources = m_packageSourcesCache.get(cap);
+            // The sources of a capability from a reused resolved package
+            // space do not change either, so keep them with it.
+            Map<BundleCapability, List<BundleCapability>> sourcesCache =
+                m_packageSourcesCache;
+            ResolvedPackages resolvedPkgs = m_resolvedPkgsCache.get(cap.getRevision());
+            if ((resolvedPkgs != null)
+                && (resolvedPkgs.m_packages == revisionPkgMap.get(cap.getRevision())))
+            {
+                sourcesCache = resolvedPkgs.m_packageSources;
+            }
+            List<BundleCapability> sources = sourcesCache.get(cap);
             if (sources == null)
             {
                 sources = getPackageSourcesInternal(
                     cap, revisionPkgMap, new ArrayList(), new HashSet());
-                m_packageSourcesCache.put(cap, sources);
+                sourcesCache.put(cap, sources);
             }
             return sources;
         }
@@ -1782,6 +2038,33 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    private static class ResolvedPackages
+    {
+        public final BundleWiring m_wiring;
+        public final List<BundleWire> m_wires;
+        public final Packages m_packages;
+        public final Set<BundleRevision> m_providers;
+        public final Map<BundleCapability, List<BundleCapability>> m_packageSources =
+            new HashMap<BundleCapability, List<BundleCapability>>();
+
+        public ResolvedPackages(
+            BundleWiring wiring, Packages packages, Set<BundleRevision> providers)
+        {
+            m_wiring = wiring;
+            // Dynamic imports replace the wires of a wiring, so also
+            // remember them to detect that.
+            m_wires = wiring.getRequiredWires(null);
+            m_packages = packages;
+            m_providers = providers;
+        }
+
+        public boolean isCurrent(BundleRevision revision)
+        {
+            BundleWiring wiring = revision.getWiring();
+            return (wiring == m_wiring) && (wiring.getRequiredWires(null) == m_wires);
+        }
+    }
+
     private static class Blame
     {
         public final BundleCapability m_cap;
@@ -28,10 +28,13 @@ import java.util.EventListener;
 import java.util.EventObject;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
@@ -64,6 +67,9 @@ public class EventDispatcher
         m_syncBndlListeners = Collections.EMPTY_MAP;
     private Map<BundleContext, List<ListenerInfo>>
         m_svcListeners = Collections.EMPTY_MAP;
+    // Index of the service listeners by their filters, which is always
+    // replaced together with the service listener map.
+    private ServiceListenerIndex m_svcIndex = ServiceListenerIndex.EMPTY;
 
     // A single thread is used to deliver events for all dispatchers.
     private static Thread m_thread = null;
@@ -78,10 +84,39 @@ public class EventDispatcher
 
     private static final SecureAction m_secureAction = new SecureAction();
 
+    // Optionally, asynchronous events are delivered by a number of worker
+    // threads per dispatcher instead of the shared thread above. Each
+    // listener is always served by the same worker, which keeps the order
+    // of events per listener, while a slow listener only delays listeners
+    // served by the same worker. Listeners are assigned to workers round
+    // robin when they are added.
+    private final int m_workerCount;
+    private volatile DeliveryWorker[] m_workers = null;
+    private int m_nextWorker = 0;
+    // Delivery statistics of asynchronous listeners, if delivered by workers,
+    // which also record the worker assigned to the listener.
+    private final Map<ListenerInfo, ListenerStatistics> m_listenerStats =
+        new ConcurrentHashMap<ListenerInfo, ListenerStatistics>();
+
     public EventDispatcher(Logger logger, ServiceRegistry registry)
+    {
+        this(logger, registry, 0);
+    }
+
+    /**
+     * Creates a dispatcher that delivers asynchronous events using the given
+     * number of worker threads, partitioned by listener. If the number is
+     * zero, then asynchronous events are delivered by the single dispatch
+     * thread shared by all dispatchers.
+     * @param logger the logger to use.
+     * @param registry the service registry.
+     * @param workerCount the number of worker threads or zero.
+    **/
+    public EventDispatcher(Logger logger, ServiceRegistry registry, int workerCount)
     {
         m_logger = logger;
         m_registry = registry;
+        m_workerCount = Math.max(0, workerCount);
     }
 
     public void startDispatching()
@@ -119,11 +154,42 @@ public class EventDispatcher
 
             // reference counting and flags
             m_references++;
+
+            // Start the workers of this dispatcher, if necessary.
+            if ((m_workerCount > 0) && (m_workers == null))
+            {
+                DeliveryWorker[] workers = new DeliveryWorker[m_workerCount];
+                for (int i = 0; i < workers.length; i++)
+                {
+                    workers[i] = new DeliveryWorker("FelixDispatchQueue-" + i);
+                }
+                m_workers = workers;
+            }
         }
     }
 
     public void stopDispatching()
     {
+        // Stop the workers of this dispatcher, if any, after they have
+        // delivered all queued events.
+        DeliveryWorker[] workers;
+        synchronized (m_threadLock)
+        {
+            workers = m_workers;
+            m_workers = null;
+        }
+        if (workers != null)
+        {
+            for (DeliveryWorker worker : workers)
+            {
+                worker.stop();
+            }
+            for (DeliveryWorker worker : workers)
+            {
+                worker.join();
+            }
+        }
+
         synchronized (m_threadLock)
         {
             // Return if already dead or stopping.
@@ -240,6 +306,16 @@ public class EventDispatcher
                 new ListenerInfo(bc.getBundle(), bc, clazz, l, filter, acc, false);
             listeners = addListenerInfo(listeners, info);
 
+            // Keep statistics for listeners that are delivered by workers.
+            if ((m_workerCount > 0)
+                && ((clazz == FrameworkListener.class)
+                    || ((clazz == BundleListener.class)
+                        && !SynchronousBundleListener.class.isInstance(l))))
+            {
+                m_listenerStats.put(info, new ListenerStatistics(info, m_nextWorker));
+                m_nextWorker = (m_nextWorker + 1) % m_workerCount;
+            }
+
             if (clazz == FrameworkListener.class)
             {
                 m_fwkListeners = listeners;
@@ -258,6 +334,7 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                m_svcIndex = m_svcIndex.add(info);
             }
         }
         return null;
@@ -310,6 +387,7 @@ public class EventDispatcher
 
             // Try to find the instance in our list.
             int idx = -1;
+            ListenerInfo removed = null;
             for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
             {
                 List<ListenerInfo> infos = entry.getValue();
@@ -326,6 +404,8 @@ public class EventDispatcher
                         {
                             returnInfo = new ListenerInfo(infos.get(i), true);
                         }
+                        m_listenerStats.remove(info);
+                        removed = info;
                         idx = i;
                         break;
                     }
@@ -356,6 +436,10 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                if (removed != null)
+                {
+                    m_svcIndex = m_svcIndex.remove(removed);
+                }
             }
         }
 
@@ -384,7 +468,22 @@ public class EventDispatcher
             m_syncBndlListeners = removeListenerInfos(m_syncBndlListeners, bc);
 
             // Remove all service listeners associated with the specified bundle.
+            List<ListenerInfo> svcInfos = m_svcListeners.get(bc);
+            for (int i = 0; (svcInfos != null) && (i < svcInfos.size()); i++)
+            {
+                m_svcIndex = m_svcIndex.remove(svcInfos.get(i));
+            }
             m_svcListeners = removeListenerInfos(m_svcListeners, bc);
+
+            // Remove delivery statistics of the removed listeners.
+            for (Iterator<ListenerInfo> it = m_listenerStats.keySet().iterator();
+                it.hasNext(); )
+            {
+                if (it.next().getBundleContext() == bc)
+                {
+                    it.remove();
+                }
+            }
         }
     }
 
@@ -425,6 +524,7 @@ public class EventDispatcher
                             info.getSecurityContext(),
                             info.isRemoved());
                         m_svcListeners = updateListenerInfo(m_svcListeners, i, newInfo);
+                        m_svcIndex = m_svcIndex.remove(info).add(newInfo);
                         return oldFilter;
                     }
                 }
@@ -454,6 +554,41 @@ public class EventDispatcher
         return listeners;
     }
 
+    /**
+     * Returns the number of asynchronous deliveries that are queued but
+     * not yet started. This includes events queued by other dispatchers
+     * for the shared dispatch thread.
+     * @return the number of queued asynchronous deliveries.
+    **/
+    public int getQueueDepth()
+    {
+        int depth;
+        synchronized (m_requestList)
+        {
+            depth = m_requestList.size();
+        }
+        DeliveryWorker[] workers = m_workers;
+        if (workers != null)
+        {
+            for (DeliveryWorker worker : workers)
+            {
+                depth += worker.size();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the delivery statistics of all registered asynchronous
+     * listeners. Statistics are only collected if this dispatcher delivers
+     * asynchronous events using worker threads.
+     * @return the delivery statistics of asynchronous listeners.
+    **/
+    public Collection<ListenerStatistics> getListenerStatistics()
+    {
+        return Collections.unmodifiableCollection(m_listenerStats.values());
+    }
+
     public void fireFrameworkEvent(FrameworkEvent event)
     {
         // Take a snapshot of the listener array.
@@ -531,13 +666,29 @@ public class EventDispatcher
     {
         // Take a snapshot of the listener array.
         Map<BundleContext, List<ListenerInfo>> listeners = null;
+        ServiceListenerIndex index = null;
         synchronized (this)
         {
             listeners = m_svcListeners;
+            index = m_svcIndex;
         }
 
-        // Use service registry hooks to filter target listeners.
-        listeners = filterListenersUsingHooks(event, felix, listeners);
+        Set<ServiceReference<org.osgi.framework.hooks.service.EventHook>> ehs =
+            m_registry.getHooks(org.osgi.framework.hooks.service.EventHook.class);
+        Set<ServiceReference<org.osgi.framework.hooks.service.EventListenerHook>> elhs =
+            m_registry.getHooks(org.osgi.framework.hooks.service.EventListenerHook.class);
+        if (((ehs == null) || ehs.isEmpty()) && ((elhs == null) || elhs.isEmpty()))
+        {
+            // Without hooks, only the listeners whose filters may match
+            // the service have to be considered.
+            listeners = index.getListeners(event.getServiceReference(), oldProps);
+        }
+        else
+        {
+            // Use service registry hooks to filter target listeners; the
+            // hooks are given all listeners, so the index cannot be used.
+            listeners = filterListenersUsingHooks(event, felix, listeners);
+        }
 
         // Fire all service events immediately on the calling thread.
         fireEventImmediately(
@@ -724,6 +875,25 @@ public class EventDispatcher
         Map<BundleContext, List<ListenerInfo>> listeners,
         EventObject event)
     {
+        // If the dispatcher has workers, then queue the event for each
+        // listener with the worker assigned to the listener.
+        DeliveryWorker[] workers = dispatcher.m_workers;
+        if (workers != null)
+        {
+            for (List<ListenerInfo> infos : listeners.values())
+            {
+                for (ListenerInfo info : infos)
+                {
+                    // The listener may have been removed concurrently, in
+                    // which case its statistics are gone and any worker will do.
+                    ListenerStatistics stats = dispatcher.m_listenerStats.get(info);
+                    int idx = (stats != null) ? stats.m_worker : 0;
+                    workers[idx % workers.length].add(type, info, event);
+                }
+            }
+            return;
+        }
+
         //TODO: should possibly check this within thread lock, seems to be ok though without
         // If dispatch thread is stopped, then ignore dispatch request.
         if (m_stopping || m_thread == null)
@@ -773,44 +943,51 @@ public class EventDispatcher
             {
                 for (ListenerInfo info : entry.getValue())
                 {
-                    Bundle bundle = info.getBundle();
-                    EventListener l = info.getListener();
-                    Filter filter = info.getParsedFilter();
-                    Object acc = info.getSecurityContext();
-
-                    try
-                    {
-                        if (type == Request.FRAMEWORK_EVENT)
-                        {
-                            invokeFrameworkListenerCallback(bundle, l, event);
-                        }
-                        else if (type == Request.BUNDLE_EVENT)
-                        {
-                            invokeBundleListenerCallback(bundle, l, event);
-                        }
-                        else if (type == Request.SERVICE_EVENT)
-                        {
-                            invokeServiceListenerCallback(
-                                bundle, l, filter, acc, event, oldProps);
-                        }
-                    }
-                    catch (Throwable th)
-                    {
-                        if ((type != Request.FRAMEWORK_EVENT)
-                            || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
-                        {
-                            dispatcher.m_logger.log(bundle,
-                                Logger.LOG_ERROR,
-                                "EventDispatcher: Error during dispatch.", th);
-                            dispatcher.fireFrameworkEvent(
-                                new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
-                        }
-                    }
+                    fireEventImmediately(dispatcher, type, info, event, oldProps);
                 }
             }
         }
     }
 
+    private static void fireEventImmediately(
+        EventDispatcher dispatcher, int type, ListenerInfo info,
+        EventObject event, Dictionary oldProps)
+    {
+        Bundle bundle = info.getBundle();
+        EventListener l = info.getListener();
+        Filter filter = info.getParsedFilter();
+        Object acc = info.getSecurityContext();
+
+        try
+        {
+            if (type == Request.FRAMEWORK_EVENT)
+            {
+                invokeFrameworkListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.BUNDLE_EVENT)
+            {
+                invokeBundleListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.SERVICE_EVENT)
+            {
+                invokeServiceListenerCallback(
+                    bundle, l, filter, acc, event, oldProps);
+            }
+        }
+        catch (Throwable th)
+        {
+            if ((type != Request.FRAMEWORK_EVENT)
+                || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
+            {
+                dispatcher.m_logger.log(bundle,
+                    Logger.LOG_ERROR,
+                    "EventDispatcher: Error during dispatch.", th);
+                dispatcher.fireFrameworkEvent(
+                    new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
+            }
+        }
+    }
+
     private static void invokeFrameworkListenerCallback(
         Bundle bundle, final EventListener l, final EventObject event)
     {
@@ -1101,6 +1278,160 @@ public class EventDispatcher
         }
     }
 
+    /**
+     * Delivers asynchronous events of the listeners assigned to it, in the
+     * order in which they were queued.
+    **/
+    private class DeliveryWorker implements Runnable
+    {
+        private final LinkedList<Object[]> m_queue = new LinkedList<Object[]>();
+        private final Thread m_thread;
+        private boolean m_stopped = false;
+
+        DeliveryWorker(String name)
+        {
+            m_thread = new Thread(this, name);
+            m_thread.start();
+        }
+
+        void add(int type, ListenerInfo info, EventObject event)
+        {
+            synchronized (m_queue)
+            {
+                m_queue.add(new Object[] { Integer.valueOf(type), info, event });
+                m_queue.notify();
+            }
+        }
+
+        int size()
+        {
+            synchronized (m_queue)
+            {
+                return m_queue.size();
+            }
+        }
+
+        void stop()
+        {
+            synchronized (m_queue)
+            {
+                m_stopped = true;
+                m_queue.notify();
+            }
+        }
+
+        void join()
+        {
+            try
+            {
+                m_thread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                // Just stop waiting.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run()
+        {
+            while (true)
+            {
+                Object[] delivery;
+                synchronized (m_queue)
+                {
+                    while (m_queue.isEmpty() && !m_stopped)
+                    {
+                        try
+                        {
+                            m_queue.wait();
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            // Not much we can do here except for keep waiting.
+                        }
+                    }
+                    // Only exit once all queued events are delivered.
+                    if (m_queue.isEmpty())
+                    {
+                        return;
+                    }
+                    delivery = m_queue.removeFirst();
+                }
+
+                ListenerInfo info = (ListenerInfo) delivery[1];
+                long time = System.nanoTime();
+                fireEventImmediately(EventDispatcher.this,
+                    ((Integer) delivery[0]).intValue(), info,
+                    (EventObject) delivery[2], null);
+                time = System.nanoTime() - time;
+
+                ListenerStatistics stats = m_listenerStats.get(info);
+                if (stats != null)
+                {
+                    stats.record(time);
+                }
+            }
+        }
+    }
+
+    /**
+     * Statistics about the asynchronous delivery of events to a listener.
+     * All times are in nanoseconds.
+    **/
+    public static class ListenerStatistics
+    {
+        private final ListenerInfo m_info;
+        private final int m_worker;
+        // Only updated by the worker assigned to the listener.
+        private volatile long m_count = 0;
+        private volatile long m_totalTime = 0;
+        private volatile long m_maxTime = 0;
+
+        ListenerStatistics(ListenerInfo info, int worker)
+        {
+            m_info = info;
+            m_worker = worker;
+        }
+
+        void record(long time)
+        {
+            m_count++;
+            m_totalTime += time;
+            if (time > m_maxTime)
+            {
+                m_maxTime = time;
+            }
+        }
+
+        public ListenerInfo getListenerInfo()
+        {
+            return m_info;
+        }
+
+        public long getDeliveryCount()
+        {
+            return m_count;
+        }
+
+        public long getTotalTime()
+        {
+            return m_totalTime;
+        }
+
+        public long getMaxTime()
+        {
+            return m_maxTime;
+        }
+
+        public String toString()
+        {
+            return m_info.getListener() + " of " + m_info.getBundle()
+                + ": " + m_count + " events, total " + (m_totalTime / 1000000)
+                + " ms, max " + (m_maxTime / 1000000) + " ms";
+        }
+    }
+
     private static class Request
     {
         public static final int FRAMEWORK_EVENT = 0;
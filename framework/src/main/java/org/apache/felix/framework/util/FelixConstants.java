@@ -47,10 +47,22 @@ public interface FelixConstants extends org.osgi.framework.Constants
     String LOG_LOGGER_PROP = "felix.log.logger";
     String SYSTEMBUNDLE_ACTIVATORS_PROP = "felix.systembundle.activators";
     String BUNDLE_STARTLEVEL_PROP = "felix.startlevel.bundle";
+    // Bundles of the same start level are started concurrently if greater
+    // than one, so their activators must not start each other, since that
+    // may deadlock.
+    String STARTLEVEL_PARALLELISM_PROP = "felix.startlevel.parallelism";
+    String INSTALL_PARALLELISM_PROP = "felix.install.parallelism";
     String SERVICE_URLHANDLERS_PROP = "felix.service.urlhandlers";
+    String EVENT_DISPATCH_THREADS_PROP = "felix.eventdispatcher.threads";
     String IMPLICIT_BOOT_DELEGATION_PROP = "felix.bootdelegation.implicit";
     String BOOT_CLASSLOADERS_PROP = "felix.bootdelegation.classloaders";
     String USE_LOCALURLS_PROP = "felix.jarurls";
+    String CLASSLOADER_MISS_CACHE_SIZE_PROP = "felix.classloader.misscache.size";
+    String RESOLVER_PARALLELISM_PROP = "felix.resolver.parallelism";
+    String RESOLVER_PERMUTATION_LIMIT_PROP = "felix.resolver.permutation.limit";
+    String RESOLVER_TIMEOUT_PROP = "felix.resolver.timeout";
+    String RESOLVER_CACHE_PROP = "felix.resolver.cache";
+    String METRICS_PROP = "felix.metrics";
 
     // Missing OSGi constant for resolution directive.
     String RESOLUTION_DYNAMIC = "dynamic";
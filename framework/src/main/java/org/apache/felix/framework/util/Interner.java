@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+import org.osgi.framework.Version;
+
+/**
+ * This class interns the immutable values of parsed manifest headers, such
+ * as package names, versions, version ranges, and directive and attribute
+ * maps, so that the requirements and capabilities of all bundles share a
+ * single instance of each equal value. Many bundles import the same
+ * packages with the same version ranges, so this considerably reduces the
+ * heap used by the resolver on large installations. Interned values are
+ * only weakly referenced, so they are discarded once no revision uses them.
+**/
+public class Interner
+{
+    private static final Map<Object, WeakReference<Object>> m_values =
+        new WeakHashMap<Object, WeakReference<Object>>();
+
+    /**
+     * Returns the canonical instance of the specified value, which must be
+     * immutable and implement <tt>equals()</tt> and <tt>hashCode()</tt>.
+     * @param value the value to intern or <tt>null</tt>.
+     * @return the canonical instance equal to the value.
+    **/
+    public static <T> T intern(T value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        synchronized (m_values)
+        {
+            WeakReference<Object> ref = m_values.get(value);
+            Object interned = (ref == null) ? null : ref.get();
+            if (interned == null)
+            {
+                m_values.put(value, new WeakReference<Object>(value));
+                interned = value;
+            }
+            return (T) interned;
+        }
+    }
+
+    /**
+     * Returns an interned immutable copy of the specified directives, whose
+     * names and values are interned as well.
+     * @param dirs the directives to intern.
+     * @return an interned immutable map equal to the directives.
+    **/
+    public static Map<String, String> internDirectives(Map<String, String> dirs)
+    {
+        Map<String, String> copy = new LinkedHashMap<String, String>(dirs.size());
+        for (Entry<String, String> entry : dirs.entrySet())
+        {
+            copy.put(intern(entry.getKey()), intern(entry.getValue()));
+        }
+        return intern(ImmutableMap.newInstance(copy));
+    }
+
+    /**
+     * Returns an interned immutable copy of the specified attributes, whose
+     * names and values are interned as well. Attribute values that are not
+     * immutable, such as lists, are not interned.
+     * @param attrs the attributes to intern.
+     * @return an interned immutable map equal to the attributes.
+    **/
+    public static Map<String, Object> internAttributes(Map<String, Object> attrs)
+    {
+        Map<String, Object> copy = new LinkedHashMap<String, Object>(attrs.size());
+        for (Entry<String, Object> entry : attrs.entrySet())
+        {
+            Object value = entry.getValue();
+            if ((value instanceof String)
+                || (value instanceof Version)
+                || (value instanceof VersionRange))
+            {
+                value = intern(value);
+            }
+            copy.put(intern(entry.getKey()), value);
+        }
+        return intern(ImmutableMap.newInstance(copy));
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This class provides read-only access to the entries of a ZIP file by
+ * memory mapping it and indexing its central directory once. The index is
+ * immutable, so after construction entry lookups and reads do not need any
+ * locking and do not hold an open file descriptor; stored (i.e., uncompressed)
+ * entries are read directly from the mapped region without copying. Only
+ * plain ZIP files are supported; ZIP64 and encrypted archives as well as
+ * files bigger than <tt>Integer.MAX_VALUE</tt> are rejected with an
+ * <tt>IOException</tt>, in which case callers are expected to fall back to
+ * <tt>java.util.zip.ZipFile</tt>.
+ * <p>
+ * Since a mapping cannot be released explicitly, the underlying file stays
+ * mapped until the instance is garbage collected. On some platforms (e.g.,
+ * Windows) this means the file cannot be deleted until then.
+ * </p>
+**/
+public class MappedZipFile
+{
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final File m_file;
+    private final ByteBuffer m_buffer;
+    // Entries are kept in central directory order in parallel arrays,
+    // while the hash table holds entry indices plus one (zero is empty).
+    private final String[] m_names;
+    private final int[] m_offsets;
+    private final int[] m_compressedSizes;
+    private final int[] m_sizes;
+    private final byte[] m_methods;
+    private final int[] m_table;
+
+    public MappedZipFile(File file) throws IOException
+    {
+        m_file = file;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException("ZIP file too large to be mapped: " + file);
+            }
+            MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            m_buffer = buffer;
+        }
+        finally
+        {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+
+        int end = findEnd();
+        int count = getShort(end + 10);
+        int cenOffset = getInt(end + 16);
+        if ((count == 0xFFFF) || (cenOffset == -1))
+        {
+            throw new IOException("ZIP64 files are not supported: " + file);
+        }
+
+        m_names = new String[count];
+        m_offsets = new int[count];
+        m_compressedSizes = new int[count];
+        m_sizes = new int[count];
+        m_methods = new byte[count];
+        int tableSize = 2;
+        while (tableSize < count * 2)
+        {
+            tableSize <<= 1;
+        }
+        m_table = new int[tableSize];
+
+        int pos = cenOffset;
+        for (int i = 0; i < count; i++)
+        {
+            if ((pos < 0) || (pos + CENHDR > m_buffer.limit())
+                || (getInt(pos) != CENSIG))
+            {
+                throw new IOException("Invalid ZIP central directory: " + file);
+            }
+            int flags = getShort(pos + 8);
+            int method = getShort(pos + 10);
+            int nameLen = getShort(pos + 28);
+            if (((flags & 1) != 0) || ((method != STORED) && (method != DEFLATED)))
+            {
+                throw new IOException("Unsupported ZIP entry format: " + file);
+            }
+            m_compressedSizes[i] = getInt(pos + 20);
+            m_sizes[i] = getInt(pos + 24);
+            m_offsets[i] = getInt(pos + 42);
+            m_methods[i] = (byte) method;
+            if ((m_compressedSizes[i] < 0) || (m_sizes[i] < 0) || (m_offsets[i] < 0))
+            {
+                throw new IOException("ZIP64 files are not supported: " + file);
+            }
+            byte[] name = new byte[nameLen];
+            get(pos + CENHDR, name, 0, nameLen);
+            m_names[i] = new String(name, "UTF-8");
+
+            int slot = m_names[i].hashCode() & (tableSize - 1);
+            while (m_table[slot] != 0)
+            {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            m_table[slot] = i + 1;
+
+            pos += CENHDR + nameLen + getShort(pos + 30) + getShort(pos + 32);
+        }
+    }
+
+    public File getFile()
+    {
+        return m_file;
+    }
+
+    /**
+     * Returns whether the ZIP file has an entry with the given name. As with
+     * <tt>ZipFile.getEntry()</tt>, a directory entry is also found if its
+     * name is given without the trailing slash.
+     * @param name the name of the entry.
+     * @return <tt>true</tt> if the entry exists, <tt>false</tt> otherwise.
+    **/
+    public boolean hasEntry(String name)
+    {
+        return getIndex(name) >= 0;
+    }
+
+    /**
+     * Returns the names of all entries in the order of the central directory.
+     * @return an enumeration of entry names.
+    **/
+    public Enumeration<String> getEntryNames()
+    {
+        return new Enumeration<String>()
+        {
+            private int m_idx = 0;
+
+            public boolean hasMoreElements()
+            {
+                return m_idx < m_names.length;
+            }
+
+            public String nextElement()
+            {
+                if (m_idx >= m_names.length)
+                {
+                    throw new NoSuchElementException();
+                }
+                return m_names[m_idx++];
+            }
+        };
+    }
+
+    /**
+     * Returns the uncompressed content of the given entry.
+     * @param name the name of the entry.
+     * @return the content of the entry or <tt>null</tt> if it does not exist.
+     * @throws IOException if the entry is corrupt.
+    **/
+    public byte[] getEntryAsBytes(String name) throws IOException
+    {
+        int idx = getIndex(name);
+        if (idx < 0)
+        {
+            return null;
+        }
+        int start = getDataOffset(idx);
+        byte[] result = new byte[m_sizes[idx]];
+        if (m_methods[idx] == STORED)
+        {
+            get(start, result, 0, result.length);
+            return result;
+        }
+
+        // The extra byte is needed by the inflater in "nowrap" mode.
+        byte[] input = new byte[m_compressedSizes[idx] + 1];
+        get(start, input, 0, m_compressedSizes[idx]);
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(input);
+            int n = 0;
+            while (n < result.length)
+            {
+                int read = inflater.inflate(result, n, result.length - n);
+                if ((read == 0) && (inflater.finished() || inflater.needsInput()))
+                {
+                    throw new IOException("Truncated ZIP entry: " + name);
+                }
+                n += read;
+            }
+        }
+        catch (DataFormatException ex)
+        {
+            throw new IOException("Corrupt ZIP entry " + name + ": " + ex.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+        return result;
+    }
+
+    /**
+     * Returns an input stream for the given entry. Stored entries are read
+     * directly from the mapped file.
+     * @param name the name of the entry.
+     * @return an input stream or <tt>null</tt> if the entry does not exist.
+     * @throws IOException if the entry is corrupt.
+    **/
+    public InputStream getInputStream(String name) throws IOException
+    {
+        int idx = getIndex(name);
+        if (idx < 0)
+        {
+            return null;
+        }
+        int start = getDataOffset(idx);
+        ByteBuffer slice = m_buffer.duplicate();
+        slice.position(start);
+        slice.limit(start + m_compressedSizes[idx]);
+        InputStream is = new ByteBufferInputStream(slice.slice());
+        if (m_methods[idx] == STORED)
+        {
+            return is;
+        }
+
+        // The extra byte is needed by the inflater in "nowrap" mode.
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(
+            new SequenceInputStream(is, new ByteArrayInputStream(new byte[1])),
+            inflater, Math.max(512, Math.min(m_compressedSizes[idx], 8192)))
+        {
+            private boolean m_closed = false;
+
+            public void close() throws IOException
+            {
+                if (!m_closed)
+                {
+                    m_closed = true;
+                    inflater.end();
+                    super.close();
+                }
+            }
+        };
+    }
+
+    private int getIndex(String name)
+    {
+        int idx = lookup(name);
+        if ((idx < 0) && !name.endsWith("/"))
+        {
+            idx = lookup(name + "/");
+        }
+        return idx;
+    }
+
+    private int lookup(String name)
+    {
+        int mask = m_table.length - 1;
+        int slot = name.hashCode() & mask;
+        int entry;
+        while ((entry = m_table[slot]) != 0)
+        {
+            if (m_names[entry - 1].equals(name))
+            {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int getDataOffset(int idx) throws IOException
+    {
+        // The local header may have a different extra field length than
+        // the central directory, so it has to be read for every access.
+        int pos = m_offsets[idx];
+        if ((pos + LOCHDR > m_buffer.limit()) || (getInt(pos) != LOCSIG))
+        {
+            throw new IOException("Invalid ZIP local header: " + m_names[idx]);
+        }
+        int start = pos + LOCHDR + getShort(pos + 26) + getShort(pos + 28);
+        if (start + m_compressedSizes[idx] > m_buffer.limit())
+        {
+            throw new IOException("Truncated ZIP entry: " + m_names[idx]);
+        }
+        return start;
+    }
+
+    private int findEnd() throws IOException
+    {
+        // The end record is followed by a comment of at most 64k.
+        int min = Math.max(0, m_buffer.limit() - ENDHDR - 0xFFFF);
+        for (int pos = m_buffer.limit() - ENDHDR; pos >= min; pos--)
+        {
+            if ((getInt(pos) == ENDSIG)
+                && (pos + ENDHDR + getShort(pos + 20) <= m_buffer.limit()))
+            {
+                return pos;
+            }
+        }
+        throw new IOException("Not a ZIP file: " + m_file);
+    }
+
+    // All reads use absolute positions on the shared buffer, which
+    // does not modify its state and is therefore thread safe.
+
+    private void get(int pos, byte[] dst, int off, int len)
+    {
+        ByteBuffer buffer = m_buffer.duplicate();
+        buffer.position(pos);
+        buffer.get(dst, off, len);
+    }
+
+    private int getShort(int pos)
+    {
+        return (m_buffer.get(pos) & 0xFF) | ((m_buffer.get(pos + 1) & 0xFF) << 8);
+    }
+
+    private int getInt(int pos)
+    {
+        return getShort(pos) | (getShort(pos + 2) << 16);
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer m_buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer)
+        {
+            m_buffer = buffer;
+        }
+
+        public int read()
+        {
+            return (m_buffer.hasRemaining()) ? (m_buffer.get() & 0xFF) : -1;
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!m_buffer.hasRemaining())
+            {
+                return -1;
+            }
+            len = Math.min(len, m_buffer.remaining());
+            m_buffer.get(b, off, len);
+            return len;
+        }
+
+        public long skip(long n)
+        {
+            int len = (int) Math.max(0, Math.min(n, m_buffer.remaining()));
+            m_buffer.position(m_buffer.position() + len);
+            return len;
+        }
+
+        public int available()
+        {
+            return m_buffer.remaining();
+        }
+    }
+}
@@ -454,13 +454,20 @@ public class SecureAction
     }
 
     public FileOutputStream getFileOutputStream(File file) throws IOException
+    {
+        return getFileOutputStream(file, false);
+    }
+
+    public FileOutputStream getFileOutputStream(File file, boolean append)
+        throws IOException
     {
         if (System.getSecurityManager() != null)
         {
             try
             {
                 Actions actions = (Actions) m_actions.get();
-                actions.set(Actions.GET_FILE_OUTPUT_ACTION, file);
+                actions.set(Actions.GET_FILE_OUTPUT_ACTION, file,
+                    append ? Boolean.TRUE : Boolean.FALSE);
                 return (FileOutputStream) AccessController.doPrivileged(actions, m_acc);
             }
             catch (PrivilegedActionException ex)
@@ -474,7 +481,7 @@ public class SecureAction
         }
         else
         {
-            return new FileOutputStream(file);
+            return new FileOutputStream(file, append);
         }
     }
 
@@ -1564,7 +1571,7 @@ public class SecureAction
                 case GET_FILE_INPUT_ACTION:
                     return new FileInputStream((File) arg1);
                 case GET_FILE_OUTPUT_ACTION:
-                    return new FileOutputStream((File) arg1);
+                    return new FileOutputStream((File) arg1, Boolean.TRUE.equals(arg2));
                 case TO_URI_ACTION:
                     return ((File) arg1).toURI();
                 case GET_METHOD_ACTION:
@@ -0,0 +1,363 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * This class indexes service listeners by the equality terms of their
+ * filters, so that the listeners which may be interested in a service event
+ * can be found without evaluating the filter of every listener. A listener
+ * is indexed under the string values its filter requires for a single
+ * attribute, preferring <tt>objectClass</tt>; for example, the filter
+ * <tt>(&amp;(objectClass=foo)(bar=*))</tt> is indexed under the
+ * <tt>objectClass</tt> value <tt>foo</tt> and a disjunction is indexed under
+ * the values of all of its branches. Listeners without a filter or with a
+ * filter without such terms are always candidates.
+ * <p>
+ * The index only narrows down the candidates; their filters still have to
+ * be evaluated. Instances are immutable, every modification returns a new
+ * index, so that a snapshot can be used for event delivery without locking.
+ * </p>
+**/
+class ServiceListenerIndex
+{
+    public static final ServiceListenerIndex EMPTY = new ServiceListenerIndex(
+        new TreeMap<String, Map<String, List<ListenerInfo>>>(new StringComparator(false)),
+        Collections.EMPTY_LIST);
+
+    // Maps attribute names to maps of attribute values to listeners.
+    private final Map<String, Map<String, List<ListenerInfo>>> m_indices;
+    private final List<ListenerInfo> m_unindexed;
+
+    private ServiceListenerIndex(
+        Map<String, Map<String, List<ListenerInfo>>> indices,
+        List<ListenerInfo> unindexed)
+    {
+        m_indices = indices;
+        m_unindexed = unindexed;
+    }
+
+    public ServiceListenerIndex add(ListenerInfo info)
+    {
+        Map<String, Set<String>> keys = getKeys(info);
+        if (keys == null)
+        {
+            List<ListenerInfo> unindexed = new ArrayList<ListenerInfo>(m_unindexed);
+            unindexed.add(info);
+            return new ServiceListenerIndex(m_indices, unindexed);
+        }
+
+        Map<String, Map<String, List<ListenerInfo>>> indices = copyIndices();
+        for (Map.Entry<String, Set<String>> entry : keys.entrySet())
+        {
+            Map<String, List<ListenerInfo>> index = indices.get(entry.getKey());
+            index = (index == null)
+                ? new HashMap<String, List<ListenerInfo>>()
+                : new HashMap<String, List<ListenerInfo>>(index);
+            for (String value : entry.getValue())
+            {
+                List<ListenerInfo> infos = index.get(value);
+                infos = (infos == null)
+                    ? new ArrayList<ListenerInfo>(1)
+                    : new ArrayList<ListenerInfo>(infos);
+                infos.add(info);
+                index.put(value, infos);
+            }
+            indices.put(entry.getKey(), index);
+        }
+        return new ServiceListenerIndex(indices, m_unindexed);
+    }
+
+    public ServiceListenerIndex remove(ListenerInfo info)
+    {
+        Map<String, Set<String>> keys = getKeys(info);
+        if (keys == null)
+        {
+            List<ListenerInfo> unindexed = new ArrayList<ListenerInfo>(m_unindexed);
+            return (unindexed.remove(info))
+                ? new ServiceListenerIndex(m_indices, unindexed)
+                : this;
+        }
+
+        Map<String, Map<String, List<ListenerInfo>>> indices = copyIndices();
+        for (Map.Entry<String, Set<String>> entry : keys.entrySet())
+        {
+            Map<String, List<ListenerInfo>> index = indices.get(entry.getKey());
+            if (index == null)
+            {
+                continue;
+            }
+            index = new HashMap<String, List<ListenerInfo>>(index);
+            for (String value : entry.getValue())
+            {
+                List<ListenerInfo> infos = index.get(value);
+                if (infos != null)
+                {
+                    infos = new ArrayList<ListenerInfo>(infos);
+                    infos.remove(info);
+                    if (infos.isEmpty())
+                    {
+                        index.remove(value);
+                    }
+                    else
+                    {
+                        index.put(value, infos);
+                    }
+                }
+            }
+            if (index.isEmpty())
+            {
+                indices.remove(entry.getKey());
+            }
+            else
+            {
+                indices.put(entry.getKey(), index);
+            }
+        }
+        return new ServiceListenerIndex(indices, m_unindexed);
+    }
+
+    /**
+     * Returns the listeners whose filters may match the given service
+     * reference or, for a modified service, its old properties. The latter
+     * is needed to find the listeners which must receive a
+     * <tt>MODIFIED_ENDMATCH</tt> event.
+     * @param ref the service reference of the event.
+     * @param oldProps the old service properties or <tt>null</tt>.
+     * @return the candidate listeners grouped by bundle context.
+    **/
+    public Map<BundleContext, List<ListenerInfo>> getListeners(
+        ServiceReference ref, Dictionary oldProps)
+    {
+        Set<ListenerInfo> matches = new HashSet<ListenerInfo>(m_unindexed);
+        for (Map.Entry<String, Map<String, List<ListenerInfo>>> entry
+            : m_indices.entrySet())
+        {
+            addListeners(matches, entry.getValue(), ref.getProperty(entry.getKey()));
+            if (oldProps != null)
+            {
+                addListeners(matches, entry.getValue(),
+                    getProperty(oldProps, entry.getKey()));
+            }
+        }
+
+        Map<BundleContext, List<ListenerInfo>> listeners =
+            new HashMap<BundleContext, List<ListenerInfo>>();
+        for (ListenerInfo info : matches)
+        {
+            List<ListenerInfo> infos = listeners.get(info.getBundleContext());
+            if (infos == null)
+            {
+                infos = new ArrayList<ListenerInfo>();
+                listeners.put(info.getBundleContext(), infos);
+            }
+            infos.add(info);
+        }
+        return listeners;
+    }
+
+    private static void addListeners(
+        Set<ListenerInfo> matches, Map<String, List<ListenerInfo>> index, Object value)
+    {
+        if (value == null)
+        {
+            return;
+        }
+        if (value.getClass().isArray())
+        {
+            for (int i = 0, len = Array.getLength(value); i < len; i++)
+            {
+                addListeners(matches, index, Array.get(value, i));
+            }
+        }
+        else if (value instanceof Collection)
+        {
+            for (Object o : (Collection) value)
+            {
+                addListeners(matches, index, o);
+            }
+        }
+        else if (value instanceof String)
+        {
+            List<ListenerInfo> infos = index.get(value);
+            if (infos != null)
+            {
+                matches.addAll(infos);
+            }
+        }
+        else
+        {
+            // Filter values are coerced to the type of non-string values,
+            // so any listener indexed under this attribute may match.
+            for (List<ListenerInfo> infos : index.values())
+            {
+                matches.addAll(infos);
+            }
+        }
+    }
+
+    private static Object getProperty(Dictionary props, String name)
+    {
+        Object value = props.get(name);
+        if (value == null)
+        {
+            // Property names are case insensitive.
+            for (Enumeration e = props.keys(); e.hasMoreElements(); )
+            {
+                Object key = e.nextElement();
+                if ((key instanceof String) && ((String) key).equalsIgnoreCase(name))
+                {
+                    return props.get(key);
+                }
+            }
+        }
+        return value;
+    }
+
+    private Map<String, Map<String, List<ListenerInfo>>> copyIndices()
+    {
+        Map<String, Map<String, List<ListenerInfo>>> indices =
+            new TreeMap<String, Map<String, List<ListenerInfo>>>(
+                new StringComparator(false));
+        indices.putAll(m_indices);
+        return indices;
+    }
+
+    private static Map<String, Set<String>> getKeys(ListenerInfo info)
+    {
+        if (info.getParsedFilter() == null)
+        {
+            return null;
+        }
+        SimpleFilter sf;
+        try
+        {
+            sf = SimpleFilter.parse(info.getParsedFilter().toString());
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+        Map<String, Set<String>> keys =
+            new TreeMap<String, Set<String>>(new StringComparator(false));
+        return (addKeys(keys, sf)) ? keys : null;
+    }
+
+    /**
+     * Adds the attribute values a service must have for the given filter to
+     * match it, returning <tt>false</tt> if no such values can be determined.
+    **/
+    private static boolean addKeys(Map<String, Set<String>> keys, SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.EQ:
+                if (!(sf.getValue() instanceof String))
+                {
+                    return false;
+                }
+                Set<String> values = keys.get(sf.getName());
+                if (values == null)
+                {
+                    values = new HashSet<String>();
+                    keys.put(sf.getName(), values);
+                }
+                values.add((String) sf.getValue());
+                return true;
+            case SimpleFilter.AND:
+                // Any operand determines the values, so prefer objectClass
+                // since services are most commonly tracked by interface.
+                List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+                SimpleFilter best = null;
+                for (SimpleFilter operand : sfs)
+                {
+                    if ((operand.getOperation() == SimpleFilter.EQ)
+                        && Constants.OBJECTCLASS.equalsIgnoreCase(operand.getName()))
+                    {
+                        best = operand;
+                        break;
+                    }
+                }
+                if (best != null)
+                {
+                    return addKeys(keys, best);
+                }
+                for (SimpleFilter operand : sfs)
+                {
+                    Map<String, Set<String>> operandKeys =
+                        new TreeMap<String, Set<String>>(new StringComparator(false));
+                    if (addKeys(operandKeys, operand))
+                    {
+                        mergeKeys(keys, operandKeys);
+                        return true;
+                    }
+                }
+                return false;
+            case SimpleFilter.OR:
+                // Every operand must determine values, since the service
+                // may match any of them.
+                Map<String, Set<String>> orKeys =
+                    new TreeMap<String, Set<String>>(new StringComparator(false));
+                for (SimpleFilter operand : (List<SimpleFilter>) sf.getValue())
+                {
+                    if (!addKeys(orKeys, operand))
+                    {
+                        return false;
+                    }
+                }
+                mergeKeys(keys, orKeys);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void mergeKeys(
+        Map<String, Set<String>> keys, Map<String, Set<String>> other)
+    {
+        for (Map.Entry<String, Set<String>> entry : other.entrySet())
+        {
+            Set<String> values = keys.get(entry.getKey());
+            if (values == null)
+            {
+                keys.put(entry.getKey(), entry.getValue());
+            }
+            else
+            {
+                values.addAll(entry.getValue());
+            }
+        }
+    }
+}
@@ -90,6 +90,33 @@ public class Util
         return value;
     }
 
+    /**
+     * Parses the value of an integer configuration property, logging a
+     * warning and returning the default value if it is not an integer.
+     * @param logger the logger to warn about an invalid value.
+     * @param name the name of the property.
+     * @param value the value of the property or <tt>null</tt> if not set.
+     * @param defaultValue the value to use if the property is not set.
+     * @return the value of the property.
+    **/
+    public static int parseIntProperty(
+        Logger logger, String name, Object value, int defaultValue)
+    {
+        if (value != null)
+        {
+            try
+            {
+                return Integer.parseInt(value.toString().trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                logger.log(Logger.LOG_WARNING,
+                    "Invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * Converts a revision identifier to a bundle identifier. Revision IDs
      * are typically <tt>&lt;bundle-id&gt;.&lt;revision&gt;</tt>; this
@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -45,6 +46,8 @@ public class WeakZipFileFactory
     private final List<WeakZipFile> m_openFiles = new ArrayList<WeakZipFile>();
     private final Mutex m_globalMutex = new Mutex();
     private final int m_limit;
+    private final AtomicLong m_openCount = new AtomicLong();
+    private final AtomicLong m_reopenCount = new AtomicLong();
 
     /**
      * Constructs a weak zip file factory with the specified file limit. A limit
@@ -108,6 +111,25 @@ public class WeakZipFileFactory
         return wzf;
     }
 
+    /**
+     * Returns the number of zip files opened by weak zip files created by
+     * this factory, not counting reopened zip files.
+     * @return the number of opened zip files.
+     */
+    public long getOpenCount()
+    {
+        return m_openCount.get();
+    }
+
+    /**
+     * Returns the number of weakly closed zip files that were reopened.
+     * @return the number of reopened zip files.
+     */
+    public long getReopenCount()
+    {
+        return m_reopenCount.get();
+    }
+
     /**
      * Only used for testing.
      * @return unclosed weak zip files.
@@ -184,6 +206,7 @@ public class WeakZipFileFactory
             m_file = file;
             m_zipFile = m_secureAction.openZipFile(m_file);
             m_timestamp = System.currentTimeMillis();
+            m_openCount.incrementAndGet();
         }
 
         /**
@@ -525,6 +548,7 @@ public class WeakZipFileFactory
                     m_zipFile = m_secureAction.openZipFile(m_file);
                     m_status = OPEN;
                     m_timestamp = System.currentTimeMillis();
+                    m_reopenCount.incrementAndGet();
                 }
                 catch (IOException ex)
                 {
@@ -26,6 +26,7 @@ import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Interner;
 import org.apache.felix.framework.util.VersionRange;
 import org.apache.felix.framework.wiring.BundleRequirementImpl;
 import org.osgi.framework.BundleException;
@@ -422,7 +423,7 @@ public class ManifestParser
                     path);
 
                 // Create filter now so we can inject filter directive.
-                SimpleFilter sf = SimpleFilter.convert(newAttrs);
+                SimpleFilter sf = SimpleFilter.convert(Interner.internAttributes(newAttrs));
 
                 // Inject filter directive.
 // TODO: OSGi R4.3 - Can we insert this on demand somehow?
@@ -438,7 +439,7 @@ public class ManifestParser
                     new BundleRequirementImpl(
                         owner,
                         BundleRevision.PACKAGE_NAMESPACE,
-                        newDirs,
+                        Interner.internDirectives(newDirs),
                         Collections.EMPTY_MAP,
                         sf));
             }
@@ -564,8 +565,8 @@ public class ManifestParser
                         new BundleRequirementImpl(
                             owner,
                             path,
-                            clause.m_dirs,
-                            clause.m_attrs,
+                            Interner.internDirectives(clause.m_dirs),
+                            Interner.internAttributes(clause.m_attrs),
                             sf));
                 }
             }
@@ -704,8 +705,8 @@ public class ManifestParser
                     new BundleCapabilityImpl(
                         owner,
                         path,
-                        clause.m_dirs,
-                        clause.m_attrs));
+                        Interner.internDirectives(clause.m_dirs),
+                        Interner.internAttributes(clause.m_attrs)));
             }
         }
 
@@ -857,8 +858,8 @@ public class ManifestParser
                     new BundleCapabilityImpl(
                         owner,
                         BundleRevision.PACKAGE_NAMESPACE,
-                        clause.m_dirs,
-                        newAttrs));
+                        Interner.internDirectives(clause.m_dirs),
+                        Interner.internAttributes(newAttrs)));
             }
         }
 
@@ -1456,7 +1457,7 @@ public class ManifestParser
                     path);
 
                 // Create filter now so we can inject filter directive.
-                SimpleFilter sf = SimpleFilter.convert(newAttrs);
+                SimpleFilter sf = SimpleFilter.convert(Interner.internAttributes(newAttrs));
 
                 // Inject filter directive.
 // TODO: OSGi R4.3 - Can we insert this on demand somehow?
@@ -1472,8 +1473,9 @@ public class ManifestParser
                     new BundleRequirementImpl(
                         owner,
                         BundleRevision.BUNDLE_NAMESPACE,
-                        newDirs,
-                        newAttrs));
+                        Interner.internDirectives(newDirs),
+                        Collections.EMPTY_MAP,
+                        sf));
             }
         }
 
@@ -1589,14 +1591,61 @@ public class ManifestParser
     private static final int ARGUMENT = 8;
     private static final int VALUE = 16;
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final int PARSED_HEADER_CACHE_SIZE = 1024;
+    // Caches the clauses of recently parsed headers by header text, since
+    // equal headers are parsed repeatedly, e.g., when a bundle is updated or
+    // refreshed, when several versions of a bundle are installed, or for
+    // woven dynamic imports.
+    private static final Map<String, List<ParsedHeaderClause>> m_parsedHeaders =
+        new LinkedHashMap<String, List<ParsedHeaderClause>>(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(
+                Map.Entry<String, List<ParsedHeaderClause>> eldest)
+            {
+                return size() > PARSED_HEADER_CACHE_SIZE;
+            }
+        };
+
     private static List<ParsedHeaderClause> parseStandardHeader(String header)
     {
-        List<ParsedHeaderClause> clauses = new ArrayList<ParsedHeaderClause>();
         if (header == null)
         {
-            return clauses;
+            return new ArrayList<ParsedHeaderClause>();
+        }
+
+        List<ParsedHeaderClause> clauses;
+        synchronized (m_parsedHeaders)
+        {
+            clauses = m_parsedHeaders.get(header);
         }
+        if (clauses == null)
+        {
+            clauses = parseStandardHeaderClauses(header);
+            synchronized (m_parsedHeaders)
+            {
+                m_parsedHeaders.put(header, clauses);
+            }
+        }
+
+        // The clauses are normalized in place, so return copies of the
+        // cached clauses; their values are interned and thus shared.
+        List<ParsedHeaderClause> copies =
+            new ArrayList<ParsedHeaderClause>(clauses.size());
+        for (ParsedHeaderClause clause : clauses)
+        {
+            copies.add(new ParsedHeaderClause(
+                new ArrayList<String>(clause.m_paths),
+                new HashMap<String, String>(clause.m_dirs),
+                new HashMap<String, Object>(clause.m_attrs),
+                new HashMap<String, String>(clause.m_types)));
+        }
+        return copies;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static List<ParsedHeaderClause> parseStandardHeaderClauses(String header)
+    {
+        List<ParsedHeaderClause> clauses = new ArrayList<ParsedHeaderClause>();
         ParsedHeaderClause clause = null;
         String key = null;
         Map targetMap = null;
@@ -1629,7 +1678,8 @@ public class ManifestParser
                     {
                         case ':':
                         case '=':
-                            key = header.substring(startPosition, currentPosition).trim();
+                            key = Interner.intern(
+                                header.substring(startPosition, currentPosition).trim());
                             startPosition = currentPosition + 1;
                             targetMap = clause.m_attrs;
                             state = currentChar == ':' ? DIRECTIVE_OR_TYPEDATTRIBUTE : ARGUMENT;
@@ -1637,7 +1687,8 @@ public class ManifestParser
                         case EOF:
                         case ',':
                         case ';':
-                            clause.m_paths.add(header.substring(startPosition, currentPosition).trim());
+                            clause.m_paths.add(Interner.intern(
+                                header.substring(startPosition, currentPosition).trim()));
                             state = currentChar == ',' ? CLAUSE_START : PARAMETER_START;
                             break;
                         default:
@@ -1710,7 +1761,7 @@ public class ManifestParser
                                     {
                                         value = value.substring(1, value.length() - 1);
                                     }
-                                    if (targetMap.put(key, value) != null)
+                                    if (targetMap.put(key, Interner.intern(value)) != null)
                                     {
                                         throw new IllegalArgumentException(
                                                 "Duplicate '" + key + "' in: " + header);
@@ -0,0 +1,445 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.wiring.BundleRevisions;
+
+public class BundleLocksTest extends TestCase
+{
+    private static final long TIMEOUT = 10000;
+
+    private File m_cacheDir;
+    private Felix m_felix;
+    private final CountDownLatch m_stopping = new CountDownLatch(1);
+    private final CountDownLatch m_release = new CountDownLatch(1);
+    // The failure of a test thread, rethrown by the test.
+    private volatile Exception m_failure;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put("felix.service.urlhandlers", "false");
+
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+
+        // Bundles using the blocking activator block in stop() until
+        // the test releases them.
+        Hashtable props = new Hashtable();
+        props.put("locks.test", "stop");
+        m_felix.getBundleContext().registerService(
+            Runnable.class.getName(), new Runnable() {
+                public void run()
+                {
+                    m_stopping.countDown();
+                    try
+                    {
+                        m_release.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, props);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_release.countDown();
+        m_felix.stop();
+        m_felix.waitForStop(0);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testDisjointBundlesAreUpdatedAndRefreshedConcurrently() throws Exception
+    {
+        final Bundle a = install("a", "", BlockingActivator.class);
+        File bFile = createBundle(manifest("b", ""), null);
+        final Bundle b = m_felix.getBundleContext().installBundle(
+            bFile.toURI().toString());
+        a.start();
+        assertTrue(m_felix.resolveBundles(Collections.singleton(b)));
+
+        // Refreshing a blocks while stopping it, holding its bundle locks.
+        Thread refreshA = start(new Runnable() {
+            public void run()
+            {
+                m_felix.refreshPackages(Collections.singletonList(a), null);
+            }
+        });
+        assertTrue(m_stopping.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // Updating and refreshing b must not wait for the refresh of a; note
+        // that b is not active, since restarting it would need to resolve it,
+        // which does wait for the refresh of a.
+        final InputStream is = new FileInputStream(bFile);
+        final boolean[] done = new boolean[1];
+        Thread updateB = start(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    b.update(is);
+                    m_felix.refreshPackages(Collections.singletonList(b), null);
+                    done[0] = true;
+                }
+                catch (Exception ex)
+                {
+                    m_failure = ex;
+                }
+            }
+        });
+        updateB.join(TIMEOUT);
+        if (m_failure != null)
+        {
+            throw m_failure;
+        }
+        assertTrue("Updating and refreshing b did not finish.", done[0]);
+        assertEquals(Bundle.INSTALLED, b.getState());
+        assertEquals(1, b.adapt(BundleRevisions.class).getRevisions().size());
+        assertTrue(refreshA.isAlive());
+
+        m_release.countDown();
+        refreshA.join(TIMEOUT);
+        assertFalse(refreshA.isAlive());
+        assertEquals(Bundle.ACTIVE, a.getState());
+    }
+
+    public void testResolveWaitsForBundleLocks() throws Exception
+    {
+        Bundle a = install("a", "", null);
+        final Bundle b = install("b", "", null);
+        final Bundle c = install("c", "", null);
+
+        Collection<Bundle> lockedA = Collections.singleton(a);
+        assertTrue(m_felix.acquireBundleLocks(lockedA));
+
+        // The resolve needs the global lock, so it waits for the bundle locks.
+        final boolean[] resolved = new boolean[1];
+        Thread resolve = start(new Runnable() {
+            public void run()
+            {
+                resolved[0] = m_felix.resolveBundles(Collections.singleton(b));
+            }
+        });
+        waitUntilWaiting(resolve);
+
+        // Threads waiting for the global lock take precedence over new
+        // bundle locks, even of other bundles.
+        final int[] stateOfB = new int[1];
+        Thread lockC = start(new Runnable() {
+            public void run()
+            {
+                Collection<Bundle> lockedC = Collections.singleton(c);
+                if (m_felix.acquireBundleLocks(lockedC))
+                {
+                    stateOfB[0] = b.getState();
+                    m_felix.releaseBundleLocks(lockedC);
+                }
+            }
+        });
+        waitUntilWaiting(lockC);
+        assertEquals(Bundle.INSTALLED, b.getState());
+
+        m_felix.releaseBundleLocks(lockedA);
+        resolve.join(TIMEOUT);
+        lockC.join(TIMEOUT);
+        assertTrue(resolved[0]);
+        assertEquals(Bundle.RESOLVED, b.getState());
+        assertEquals(Bundle.RESOLVED, stateOfB[0]);
+    }
+
+    public void testGlobalLockFailsWhileBundleLocksThreadWaits() throws Exception
+    {
+        final Bundle a = install("a", "", null);
+        final Bundle b = install("b", "", null);
+
+        Collection<Bundle> lockedA = Collections.singleton(a);
+        assertTrue(m_felix.acquireBundleLocks(lockedA));
+
+        // Another thread holds the locks of b and waits for the ones of a.
+        final boolean[] lockedBoth = new boolean[1];
+        Thread other = start(new Runnable() {
+            public void run()
+            {
+                Collection<Bundle> lockedB = Collections.singleton(b);
+                Collection<Bundle> lockedA = Collections.singleton(a);
+                if (m_felix.acquireBundleLocks(lockedB))
+                {
+                    lockedBoth[0] = m_felix.acquireBundleLocks(lockedA);
+                    if (lockedBoth[0])
+                    {
+                        m_felix.releaseBundleLocks(lockedA);
+                    }
+                    m_felix.releaseBundleLocks(lockedB);
+                }
+            }
+        });
+        waitUntilWaiting(other);
+
+        // Waiting for the global lock would deadlock, so it must fail.
+        assertFalse(m_felix.acquireGlobalLock());
+
+        m_felix.releaseBundleLocks(lockedA);
+        other.join(TIMEOUT);
+        assertTrue(lockedBoth[0]);
+
+        // Without other bundle locks the global lock is available again.
+        assertTrue(m_felix.acquireGlobalLock());
+        m_felix.releaseGlobalLock();
+    }
+
+    public void testGlobalLockWaiterIsInterruptedToAvoidDeadlock() throws Exception
+    {
+        final Bundle a = install("a", "", null);
+        Bundle b = install("b", "", null);
+
+        Collection<Bundle> lockedB = Collections.singleton(b);
+        assertTrue(m_felix.acquireBundleLocks(lockedB));
+
+        // Another thread holds the locks of a and waits for the global lock.
+        final boolean[] globalLocked = new boolean[] { true };
+        Thread other = start(new Runnable() {
+            public void run()
+            {
+                Collection<Bundle> lockedA = Collections.singleton(a);
+                if (m_felix.acquireBundleLocks(lockedA))
+                {
+                    globalLocked[0] = m_felix.acquireGlobalLock();
+                    if (globalLocked[0])
+                    {
+                        m_felix.releaseGlobalLock();
+                    }
+                    m_felix.releaseBundleLocks(lockedA);
+                }
+            }
+        });
+        waitUntilWaiting(other);
+
+        // Waiting for the locks of a interrupts the other thread, which then
+        // fails to acquire the global lock and releases them.
+        Collection<Bundle> lockedA = Collections.singleton(a);
+        assertTrue(m_felix.acquireBundleLocks(lockedA));
+        other.join(TIMEOUT);
+        assertFalse(other.isAlive());
+        assertFalse(globalLocked[0]);
+
+        m_felix.releaseBundleLocks(lockedA);
+        m_felix.releaseBundleLocks(lockedB);
+    }
+
+    public void testRefreshRetriesWhenDependenciesGrow() throws Exception
+    {
+        final Bundle a = install("a", "Export-Package: p\n", null);
+        Bundle b = install("b", "Import-Package: p\n", null);
+        assertTrue(m_felix.resolveBundles(Collections.singleton(a)));
+
+        // Hold the global lock, so that the refresh determines the bundles
+        // to refresh and then waits for their locks.
+        assertTrue(m_felix.acquireGlobalLock());
+        Thread refresh;
+        try
+        {
+            refresh = start(new Runnable() {
+                public void run()
+                {
+                    m_felix.refreshPackages(Collections.singletonList(a), null);
+                }
+            });
+            waitUntilWaiting(refresh);
+
+            // Now b starts to depend on a.
+            assertTrue(m_felix.resolveBundles(Collections.singleton(b)));
+            assertEquals(Bundle.RESOLVED, b.getState());
+        }
+        finally
+        {
+            m_felix.releaseGlobalLock();
+        }
+
+        // The refresh must notice and refresh b as well.
+        refresh.join(TIMEOUT);
+        assertFalse(refresh.isAlive());
+        assertEquals(Bundle.INSTALLED, a.getState());
+        assertEquals(Bundle.INSTALLED, b.getState());
+    }
+
+    public void testBatchInstallRejectsDuplicates() throws Exception
+    {
+        // Install several copies of a bundle from different locations at
+        // once, repeatedly, since duplicates are only installed if their
+        // installations race.
+        for (int round = 0; round < 10; round++)
+        {
+            String[] locations = new String[8];
+            for (int i = 0; i < locations.length; i++)
+            {
+                locations[i] = createBundle(manifest("dup" + round, ""), null)
+                    .toURI().toString();
+            }
+
+            try
+            {
+                m_felix.installBundles(locations, null);
+                fail("Duplicate bundles were installed.");
+            }
+            catch (BundleException ex)
+            {
+                assertEquals(BundleException.DUPLICATE_BUNDLE_ERROR, ex.getType());
+            }
+
+            int installed = 0;
+            Bundle[] bundles = m_felix.getBundleContext().getBundles();
+            for (int i = 0; i < bundles.length; i++)
+            {
+                if (("locks.test.dup" + round).equals(bundles[i].getSymbolicName()))
+                {
+                    installed++;
+                }
+            }
+            assertEquals(1, installed);
+        }
+    }
+
+    private Bundle install(String name, String headers, Class activator)
+        throws Exception
+    {
+        File f = createBundle(manifest(name, headers), activator);
+        return m_felix.getBundleContext().installBundle(f.toURI().toString());
+    }
+
+    private static String manifest(String name, String headers)
+    {
+        return "Bundle-SymbolicName: locks.test." + name + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + headers;
+    }
+
+    private static Thread start(Runnable r)
+    {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    // Waits until the thread waits for a lock.
+    private static void waitUntilWaiting(Thread t) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (t.getState() != Thread.State.WAITING)
+        {
+            assertTrue("Thread did not wait.", t.isAlive()
+                && (System.currentTimeMillis() < end));
+            Thread.sleep(10);
+        }
+    }
+
+    private static File createBundle(String manifest, Class activator) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        if (activator != null)
+        {
+            mf.getMainAttributes().putValue(Constants.BUNDLE_ACTIVATOR, activator.getName());
+            mf.getMainAttributes().putValue(Constants.IMPORT_PACKAGE, "org.osgi.framework");
+        }
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        if (activator != null)
+        {
+            String path = activator.getName().replace('.', '/') + ".class";
+            os.putNextEntry(new ZipEntry(path));
+
+            InputStream is = activator.getClassLoader().getResourceAsStream(path);
+            byte[] b = new byte[is.available()];
+            is.read(b);
+            is.close();
+            os.write(b);
+        }
+
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+
+    public static class BlockingActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+            ServiceReference[] refs = context.getServiceReferences(
+                Runnable.class.getName(), "(locks.test=stop)");
+            if (refs != null)
+            {
+                ((Runnable) context.getService(refs[0])).run();
+                context.ungetService(refs[0]);
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+public class ConcurrentStartLevelTest extends TestCase
+{
+    private static final long TIMEOUT = 10000;
+
+    private File m_cacheDir;
+    private Felix m_felix;
+    private final List<Throwable> m_errors = new ArrayList<Throwable>();
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put("felix.service.urlhandlers", "false");
+        params.put(FelixConstants.STARTLEVEL_PARALLELISM_PROP, "4");
+
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+
+        m_felix.getBundleContext().addFrameworkListener(new FrameworkListener() {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                if (event.getType() == FrameworkEvent.ERROR)
+                {
+                    synchronized (m_errors)
+                    {
+                        m_errors.add(event.getThrowable());
+                    }
+                }
+            }
+        });
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(0);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testBundlesOfAStartLevelAreStartedConcurrently() throws Exception
+    {
+        // The latch activators only return once all of them were called.
+        CountDownLatch latch = new CountDownLatch(3);
+        Hashtable props = new Hashtable();
+        props.put("startlevel.test", "latch");
+        m_felix.getBundleContext().registerService(
+            CountDownLatch.class.getName(), latch, props);
+
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (int i = 0; i < 3; i++)
+        {
+            bundles.add(install("latch" + i, 2, LatchActivator.class));
+        }
+        // Its activator fails unless all bundles of level 2 are active.
+        bundles.add(install("check", 3, LevelCheckActivator.class));
+
+        setStartLevel(3);
+
+        assertNoErrors();
+        for (Bundle bundle : bundles)
+        {
+            assertEquals(bundle.getSymbolicName(), Bundle.ACTIVE, bundle.getState());
+        }
+    }
+
+    public void testBundleStartedByWorkerIsNotQueued() throws Exception
+    {
+        // The activator fails unless the target is started synchronously,
+        // which requires the worker thread to be recognized.
+        Bundle starter = install("starter", 2, StartingActivator.class);
+        Bundle target = install("target", 2, null);
+        target.stop();
+
+        setStartLevel(2);
+
+        assertNoErrors();
+        assertEquals(Bundle.ACTIVE, starter.getState());
+        assertEquals(Bundle.ACTIVE, target.getState());
+    }
+
+    private void setStartLevel(int level) throws InterruptedException
+    {
+        final CountDownLatch changed = new CountDownLatch(1);
+        m_felix.adapt(FrameworkStartLevel.class).setStartLevel(level,
+            new FrameworkListener[] { new FrameworkListener() {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    changed.countDown();
+                }
+            } });
+        assertTrue("The start level was not changed.",
+            changed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private void assertNoErrors()
+    {
+        synchronized (m_errors)
+        {
+            if (!m_errors.isEmpty())
+            {
+                AssertionError error = new AssertionError(
+                    "Start level change failed: " + m_errors.get(0));
+                error.initCause(m_errors.get(0));
+                throw error;
+            }
+        }
+    }
+
+    // Installs the bundle and starts it persistently at the given start level.
+    private Bundle install(String name, int level, Class activator)
+        throws Exception
+    {
+        String mf = "Bundle-SymbolicName: startlevel.test." + name + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n";
+        File f = createBundle(mf, activator);
+        Bundle bundle = m_felix.getBundleContext().installBundle(f.toURI().toString());
+        bundle.adapt(BundleStartLevel.class).setStartLevel(level);
+        bundle.start();
+        return bundle;
+    }
+
+    private static File createBundle(String manifest, Class activator) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        if (activator != null)
+        {
+            mf.getMainAttributes().putValue(Constants.BUNDLE_ACTIVATOR, activator.getName());
+            mf.getMainAttributes().putValue(Constants.IMPORT_PACKAGE, "org.osgi.framework");
+        }
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        if (activator != null)
+        {
+            String path = activator.getName().replace('.', '/') + ".class";
+            os.putNextEntry(new ZipEntry(path));
+
+            InputStream is = activator.getClassLoader().getResourceAsStream(path);
+            byte[] b = new byte[is.available()];
+            is.read(b);
+            is.close();
+            os.write(b);
+        }
+
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+
+    public static class LatchActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            ServiceReference[] refs = context.getServiceReferences(
+                CountDownLatch.class.getName(), "(startlevel.test=latch)");
+            CountDownLatch latch = (CountDownLatch) context.getService(refs[0]);
+            latch.countDown();
+            if (!latch.await(10, TimeUnit.SECONDS))
+            {
+                throw new Exception("The bundles were not started concurrently.");
+            }
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+
+    public static class LevelCheckActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            Bundle[] bundles = context.getBundles();
+            for (int i = 0; i < bundles.length; i++)
+            {
+                String name = bundles[i].getSymbolicName();
+                if ((name != null) && name.startsWith("startlevel.test.latch")
+                    && (bundles[i].getState() != Bundle.ACTIVE))
+                {
+                    throw new Exception(name + " is not active.");
+                }
+            }
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+
+    public static class StartingActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            Bundle[] bundles = context.getBundles();
+            for (int i = 0; i < bundles.length; i++)
+            {
+                if ("startlevel.test.target".equals(bundles[i].getSymbolicName()))
+                {
+                    bundles[i].start();
+                    if (bundles[i].getState() != Bundle.ACTIVE)
+                    {
+                        throw new Exception("The target was not started synchronously.");
+                    }
+                }
+            }
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+}
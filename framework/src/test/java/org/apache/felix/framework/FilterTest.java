@@ -43,4 +43,30 @@ public class FilterTest extends TestCase
         }
         assertFalse("Filter should not match: " + filter, filter.match(dict));
     }
+
+    public void testRepeatedMatchingWithDifferentTypes() throws Exception
+    {
+        Filter filter = FrameworkUtil.createFilter("(&(value>=5)(name~=Foo Bar))");
+
+        // The same filter must keep matching correctly as the type of
+        // the attribute value changes between evaluations.
+        Dictionary dict = new Hashtable();
+        dict.put("name", "foobar");
+        dict.put("value", new Long(5));
+        assertTrue("Filter should match: " + filter, filter.match(dict));
+        dict.put("value", new Integer(4));
+        assertFalse("Filter should not match: " + filter, filter.match(dict));
+        dict.put("value", new String[] { "1", "6" });
+        assertTrue("Filter should match: " + filter, filter.match(dict));
+        dict.put("value", new Long(6));
+        assertTrue("Filter should match: " + filter, filter.match(dict));
+        dict.put("value", Boolean.TRUE);
+        assertFalse("Filter should not match: " + filter, filter.match(dict));
+        dict.put("value", new int[] { 7 });
+        assertTrue("Filter should match: " + filter, filter.match(dict));
+        dict.put("name", "  foo  baz ");
+        assertFalse("Filter should not match: " + filter, filter.match(dict));
+        dict.put("name", "  FOO  bar ");
+        assertTrue("Filter should match: " + filter, filter.match(dict));
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import javax.management.DynamicMBean;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.launch.Framework;
+
+public class FrameworkMetricsTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_framework;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put("felix.service.urlhandlers", "false");
+        params.put("felix.metrics", "true");
+
+        m_framework = new Felix(params);
+        m_framework.init();
+        m_framework.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_framework.stop();
+        m_framework.waitForStop(0);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testMetricsAreCollectedAndPublished() throws Exception
+    {
+        String mf = "Bundle-SymbolicName: metrics.test\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n";
+        File bundleFile = createBundle(mf);
+        BundleContext context = m_framework.getBundleContext();
+
+        ServiceReference ref = context.getServiceReference(DynamicMBean.class.getName());
+        assertNotNull(ref);
+        DynamicMBean metrics = (DynamicMBean) context.getService(ref);
+        long resolveCount = ((Long) metrics.getAttribute("ResolveCount")).longValue();
+
+        Bundle bundle = context.installBundle(bundleFile.toURI().toString());
+        bundle.start();
+
+        assertEquals(new Long(resolveCount + 1), metrics.getAttribute("ResolveCount"));
+        assertEquals(new Long(0), metrics.getAttribute("ResolveFailureCount"));
+        assertTrue(((Long) metrics.getAttribute("ResolveTime")).longValue() > 0);
+        assertTrue(((Long) metrics.getAttribute("ResolvePermutationCount")).longValue() >= 1);
+        assertTrue(((Long) metrics.getAttribute("MaxResolvePermutations")).longValue() >= 1);
+        CompositeData lastResolve = (CompositeData) metrics.getAttribute("LastResolve");
+        assertEquals(Boolean.TRUE, lastResolve.get("Succeeded"));
+        assertEquals(new Integer(1), lastResolve.get("PermutationCount"));
+        assertTrue(((Long) lastResolve.get("PopulateTime")).longValue() > 0);
+        assertTrue(((Long) metrics.getAttribute("ClassLoadCount")).longValue() >= 1);
+        assertTrue(((Long) metrics.getAttribute("ServiceLookupCount")).longValue() >= 1);
+        assertEquals(new Long(1), metrics.getAttribute("BundleStartCount"));
+        assertEquals(new Long(1), metrics.getAttribute("ZipFileOpenCount"));
+        assertEquals(new Long(0), metrics.getAttribute("ZipFileReopenCount"));
+
+        TabularData table = (TabularData) metrics.getAttribute("BundleMetrics");
+        CompositeData row = table.get(new Object[] { new Long(bundle.getBundleId()) });
+        assertNotNull(row);
+        assertEquals("metrics.test", row.get("SymbolicName"));
+        assertEquals(new Long(1), row.get("ClassLoadCount"));
+        assertEquals(new Long(1), row.get("StartCount"));
+        assertTrue(((Long) row.get("LastStartTime")).longValue() > 0);
+
+        // The same metrics must be readable through the platform MBean server.
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(
+            (String) ref.getProperty(MetricsActivator.OBJECT_NAME_PROP));
+        assertEquals(new Long(1), server.getAttribute(name, "BundleStartCount"));
+
+        // Uninstalled bundles are dropped from the per-bundle metrics.
+        bundle.uninstall();
+        assertNull(((TabularData) metrics.getAttribute("BundleMetrics"))
+            .get(new Object[] { new Long(bundle.getBundleId()) }));
+
+        m_framework.stop();
+        m_framework.waitForStop(0);
+        assertFalse(server.isRegistered(name));
+    }
+
+    private static File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_ACTIVATOR, TestBundleActivator.class.getName());
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = TestBundleActivator.class.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+
+        InputStream is = TestBundleActivator.class.getClassLoader().getResourceAsStream(path);
+        byte[] b = new byte[is.available()];
+        is.read(b);
+        is.close();
+        os.write(b);
+
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+
+    public static class TestBundleActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            context.getServiceReference(Runnable.class.getName());
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+}
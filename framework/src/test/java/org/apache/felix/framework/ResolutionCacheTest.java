@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.resolver.ResolverWire;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleRevision;
+
+public class ResolutionCacheTest extends TestCase
+{
+    private static final String PROVIDER = "Bundle-SymbolicName: cache.test.provider\n"
+        + "Bundle-Version: 1.0.0\n"
+        + "Bundle-ManifestVersion: 2\n"
+        + "Export-Package: cache.test.p\n";
+    private static final String REQUIRER = "Bundle-SymbolicName: cache.test.requirer\n"
+        + "Bundle-Version: 1.0.0\n"
+        + "Bundle-ManifestVersion: 2\n"
+        + "Import-Package: cache.test.p\n";
+
+    private final List<File> m_cacheDirs = new ArrayList<File>();
+    private final List<Felix> m_frameworks = new ArrayList<Felix>();
+    private File m_file;
+    private Map m_config;
+
+    protected void setUp() throws Exception
+    {
+        m_file = File.createTempFile("felix-wirings", ".txt");
+        m_config = new HashMap();
+        m_config.put(Constants.FRAMEWORK_OS_NAME, "TestOS");
+
+        // Save the wirings of the resolved bundles, the requirer first,
+        // so that its wires are read before the provider is.
+        Felix felix = createFramework(PROVIDER, REQUIRER);
+        felix.start();
+        List<BundleRevision> revisions = getRevisions(felix);
+        assertTrue(felix.resolveBundles(null));
+        new ResolutionCache(new Logger(), m_config).save(m_file,
+            felix.adapt(BundleRevision.class),
+            Arrays.asList(revisions.get(1), revisions.get(0)));
+        assertTrue(m_file.length() > 0);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        for (Felix felix : m_frameworks)
+        {
+            felix.stop();
+            felix.waitForStop(0);
+        }
+        for (File dir : m_cacheDirs)
+        {
+            deleteDir(dir);
+        }
+        m_file.delete();
+    }
+
+    public void testUnchangedRevisionsAreRestored() throws Exception
+    {
+        Felix felix = createFramework(PROVIDER, REQUIRER);
+        List<BundleRevision> revisions = getRevisions(felix);
+
+        Map<BundleRevision, List<ResolverWire>> wireMap = load(felix, revisions);
+
+        assertNotNull(wireMap);
+        assertEquals(2, wireMap.size());
+        assertTrue(wireMap.get(revisions.get(0)).isEmpty());
+        List<ResolverWire> wires = wireMap.get(revisions.get(1));
+        assertEquals(1, wires.size());
+        assertSame(revisions.get(1), wires.get(0).getRequirer());
+        assertSame(revisions.get(0), wires.get(0).getProvider());
+        assertEquals(BundleRevision.PACKAGE_NAMESPACE,
+            wires.get(0).getCapability().getNamespace());
+        assertEquals("cache.test.p", wires.get(0).getCapability().getAttributes()
+            .get(BundleRevision.PACKAGE_NAMESPACE));
+        assertFalse("Saved wirings must be deleted.", m_file.exists());
+    }
+
+    public void testChangedHeadersAreNotRestored() throws Exception
+    {
+        Felix felix = createFramework(PROVIDER, REQUIRER + "Bundle-Name: changed\n");
+
+        assertNull(load(felix, getRevisions(felix)));
+        assertFalse(m_file.exists());
+    }
+
+    public void testChangedConfigurationIsNotRestored() throws Exception
+    {
+        Felix felix = createFramework(PROVIDER, REQUIRER);
+        m_config.put(Constants.FRAMEWORK_OS_NAME, "OtherOS");
+
+        assertNull(load(felix, getRevisions(felix)));
+    }
+
+    public void testChangedSystemBundleIsNotRestored() throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA, "cache.test.system");
+        Felix felix = createFramework(params, PROVIDER, REQUIRER);
+
+        assertNull(load(felix, getRevisions(felix)));
+    }
+
+    public void testMissingProviderIsNotRestored() throws Exception
+    {
+        Felix felix = createFramework(PROVIDER, REQUIRER);
+        List<BundleRevision> revisions = getRevisions(felix);
+
+        assertNull(load(felix, revisions.subList(1, 2)));
+    }
+
+    public void testMalformedLineIsNotRestored() throws Exception
+    {
+        FileWriter fw = new FileWriter(m_file, true);
+        fw.write("malformed\n");
+        fw.close();
+        Felix felix = createFramework(PROVIDER, REQUIRER);
+
+        assertNull(load(felix, getRevisions(felix)));
+        assertFalse("Malformed wirings must be deleted.", m_file.exists());
+    }
+
+    private Map<BundleRevision, List<ResolverWire>> load(
+        Felix felix, List<BundleRevision> revisions)
+    {
+        return new ResolutionCache(new Logger(), m_config).load(
+            m_file, felix.adapt(BundleRevision.class), revisions);
+    }
+
+    private Felix createFramework(String... manifests) throws Exception
+    {
+        return createFramework(new HashMap(), manifests);
+    }
+
+    // Creates an initialized framework with the specified bundles installed,
+    // which are not resolved yet.
+    private Felix createFramework(Map params, String... manifests) throws Exception
+    {
+        File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        m_cacheDirs.add(cacheDir);
+
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put("felix.service.urlhandlers", "false");
+
+        Felix felix = new Felix(params);
+        felix.init();
+        m_frameworks.add(felix);
+        for (String manifest : manifests)
+        {
+            felix.getBundleContext().installBundle(
+                createBundle(manifest).toURI().toString());
+        }
+        return felix;
+    }
+
+    // Returns the revisions of the installed bundles in the order of
+    // their installation.
+    private static List<BundleRevision> getRevisions(Felix felix)
+    {
+        List<BundleRevision> revisions = new ArrayList<BundleRevision>();
+        for (Bundle bundle : felix.getBundleContext().getBundles())
+        {
+            if (bundle.getBundleId() != 0)
+            {
+                revisions.add(bundle.adapt(BundleRevision.class));
+            }
+        }
+        return revisions;
+    }
+
+    private static File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
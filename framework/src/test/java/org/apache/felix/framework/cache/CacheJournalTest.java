@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.osgi.framework.Bundle;
+
+public class CacheJournalTest extends TestCase
+{
+    private File m_tmpDir;
+    private File m_file;
+
+    protected void setUp() throws Exception
+    {
+        m_tmpDir = File.createTempFile("felix.test", "");
+        m_tmpDir.delete();
+        m_tmpDir.mkdirs();
+        m_file = new File(m_tmpDir, "cache.journal");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        BundleCache.deleteDirectoryTree(m_tmpDir);
+    }
+
+    public void testReload() throws Exception
+    {
+        CacheJournal journal = new CacheJournal(new Logger(), m_file);
+        journal.writeArchiveInfo(1, "loc1", Bundle.INSTALLED, 1, 10, 0);
+        journal.writeRevisionLocation(1, 0, "reference:file:a.jar");
+        journal.writeArchiveInfo(2, "loc2", Bundle.INSTALLED, 1, 20, 0);
+        journal.writeArchiveInfo(1, "loc1", Bundle.ACTIVE, 3, 30, 1);
+        journal.writeRevisionLocation(1, 1, "loc1");
+        journal.removeArchive(2);
+        journal.close();
+
+        journal = new CacheJournal(new Logger(), m_file);
+        CacheJournal.ArchiveInfo info = journal.getArchiveInfo(1);
+        assertEquals("loc1", info.m_location);
+        assertEquals(Bundle.ACTIVE, info.m_state);
+        assertEquals(3, info.m_startLevel);
+        assertEquals(30, info.m_lastModified);
+        assertEquals(1, info.m_refreshCount);
+        assertEquals("reference:file:a.jar", journal.getRevisionLocation(1, 0));
+        assertEquals("loc1", journal.getRevisionLocation(1, 1));
+        assertNull(journal.getArchiveInfo(2));
+        assertNull(journal.getArchiveInfo(3));
+        journal.close();
+    }
+
+    public void testTornRecord() throws Exception
+    {
+        CacheJournal journal = new CacheJournal(new Logger(), m_file);
+        journal.writeArchiveInfo(1, "loc1", Bundle.INSTALLED, 1, 10, 0);
+        journal.close();
+        long length = m_file.length();
+
+        // Simulate an append that was interrupted after its length.
+        FileOutputStream fos = new FileOutputStream(m_file, true);
+        fos.write(new byte[] { 0, 0, 0, 40, 1, 0 });
+        fos.close();
+
+        journal = new CacheJournal(new Logger(), m_file);
+        assertEquals("loc1", journal.getArchiveInfo(1).m_location);
+        assertEquals(length, m_file.length());
+        journal.writeArchiveInfo(1, "loc1", Bundle.ACTIVE, 1, 10, 0);
+        journal.close();
+
+        journal = new CacheJournal(new Logger(), m_file);
+        assertEquals(Bundle.ACTIVE, journal.getArchiveInfo(1).m_state);
+        journal.close();
+    }
+
+    public void testCompaction() throws Exception
+    {
+        CacheJournal journal = new CacheJournal(new Logger(), m_file);
+        for (int i = 0; i < 5000; i++)
+        {
+            journal.writeArchiveInfo(1 + (i % 10), "loc", Bundle.INSTALLED, i, i, 0);
+        }
+        journal.close();
+
+        // Without compaction, the journal would hold 5000 records.
+        assertTrue(m_file.length() < 1200 * 40);
+        assertFalse(new File(m_tmpDir, "cache.journal.compact").exists());
+
+        journal = new CacheJournal(new Logger(), m_file);
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(4990 + i, journal.getArchiveInfo(1 + i).m_startLevel);
+        }
+        journal.close();
+    }
+}
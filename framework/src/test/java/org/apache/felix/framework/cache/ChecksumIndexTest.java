@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+
+public class ChecksumIndexTest extends TestCase
+{
+    private byte[] m_contentBytes;
+    private File m_tmpDir;
+
+    protected void setUp() throws Exception
+    {
+        m_contentBytes = new byte[3 * 4096 + 17];
+        for (int i = 0; i < m_contentBytes.length; i++)
+        {
+            m_contentBytes[i] = (byte) ((i % 65) + 65);
+        }
+
+        m_tmpDir = File.createTempFile("felix.test", "");
+        m_tmpDir.delete();
+        m_tmpDir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        BundleCache.deleteDirectoryTree(m_tmpDir);
+    }
+
+    public void testCopyStreamToFile() throws Exception
+    {
+        File source = new File(m_tmpDir, "source.jar");
+        FileOutputStream fos = new FileOutputStream(source);
+        fos.write(m_contentBytes);
+        fos.close();
+
+        ChecksumIndex index = new ChecksumIndex(new Logger());
+
+        // Copy the same content from a file, a stream, and again from a file.
+        File first = new File(m_tmpDir, "first.jar");
+        index.copyStreamToFile(new ByteArrayInputStream(m_contentBytes), first);
+        File second = new File(m_tmpDir, "second.jar");
+        index.copyStreamToFile(new FileInputStream(source), second);
+        File third = new File(m_tmpDir, "third.jar");
+        index.copyStreamToFile(new ByteArrayInputStream(m_contentBytes), third);
+
+        // Different content must be copied.
+        File other = new File(m_tmpDir, "other.jar");
+        byte[] otherBytes = (byte[]) m_contentBytes.clone();
+        otherBytes[otherBytes.length - 1]++;
+        index.copyStreamToFile(new ByteArrayInputStream(otherBytes), other);
+
+        assertTrue(Arrays.equals(m_contentBytes, readFile(first)));
+        assertTrue(Arrays.equals(m_contentBytes, readFile(second)));
+        assertTrue(Arrays.equals(m_contentBytes, readFile(third)));
+        assertTrue(Arrays.equals(otherBytes, readFile(other)));
+        assertFalse(new File(m_tmpDir, "third.jar.link").exists());
+
+        // Deleting a file must not affect the files linked to it.
+        assertTrue(first.delete());
+        assertTrue(Arrays.equals(m_contentBytes, readFile(second)));
+        File fourth = new File(m_tmpDir, "fourth.jar");
+        index.copyStreamToFile(new ByteArrayInputStream(m_contentBytes), fourth);
+        assertTrue(Arrays.equals(m_contentBytes, readFile(fourth)));
+
+        // If hard links are supported, files with the same content must
+        // share it, which we verify by modifying one of them.
+        if (isLinkSupported())
+        {
+            RandomAccessFile raf = new RandomAccessFile(second, "rw");
+            raf.write('x');
+            raf.close();
+            assertEquals('x', readFile(third)[0]);
+            assertEquals('x', readFile(fourth)[0]);
+            assertEquals(m_contentBytes[0], readFile(other)[0]);
+        }
+    }
+
+    private static boolean isLinkSupported()
+    {
+        try
+        {
+            Class.forName("java.nio.file.Files");
+            return !System.getProperty("os.name").toLowerCase().startsWith("windows");
+        }
+        catch (ClassNotFoundException ex)
+        {
+            return false;
+        }
+    }
+
+    private static byte[] readFile(File file) throws Exception
+    {
+        InputStream is = new FileInputStream(file);
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] b = new byte[4096];
+            int len;
+            while ((len = is.read(b)) != -1)
+            {
+                baos.write(b, 0, len);
+            }
+            return baos.toByteArray();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+
+public class CapabilitySetTest extends TestCase
+{
+    private static final String NS = "test.ns";
+
+    public void testIndexedMatching()
+    {
+        List<String> indices = new ArrayList<String>();
+        indices.add(NS);
+        CapabilitySet capSet = new CapabilitySet(indices, true);
+
+        BundleCapability foo1 = createCapability("foo", new Version(1, 0, 0));
+        BundleCapability foo2 = createCapability("foo", new Version(2, 0, 0));
+        BundleCapability bar1 = createCapability("bar", new Version(1, 0, 0));
+        BundleCapability num = createCapability(new Long(5), new Version(1, 0, 0));
+        capSet.addCapability(foo1);
+        capSet.addCapability(foo2);
+        capSet.addCapability(bar1);
+        capSet.addCapability(num);
+
+        Set<BundleCapability> matches =
+            capSet.match(SimpleFilter.parse("(" + NS + "=foo)"), true);
+        assertEquals(2, matches.size());
+        assertTrue(matches.contains(foo1));
+        assertTrue(matches.contains(foo2));
+
+        // Version comparisons should be applied to the indexed matches,
+        // regardless of the order of the subfilters.
+        matches = capSet.match(
+            SimpleFilter.parse("(&(version>=1.5)(" + NS + "=foo))"), true);
+        assertEquals(Collections.singleton(foo2), matches);
+
+        // Non-string values must still be found through coercion.
+        matches = capSet.match(SimpleFilter.parse("(" + NS + "=5)"), true);
+        assertEquals(Collections.singleton(num), matches);
+
+        capSet.removeCapability(foo2);
+        capSet.removeCapability(num);
+        matches = capSet.match(
+            SimpleFilter.parse("(&(version>=1.5)(" + NS + "=foo))"), true);
+        assertTrue(matches.isEmpty());
+        matches = capSet.match(SimpleFilter.parse("(" + NS + "=5)"), true);
+        assertTrue(matches.isEmpty());
+        matches = capSet.match(SimpleFilter.parse("(" + NS + "=*)"), true);
+        assertEquals(2, matches.size());
+    }
+
+    private static BundleCapability createCapability(Object value, Version v)
+    {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(NS, value);
+        attrs.put("version", v);
+        return new BundleCapabilityImpl(
+            null, NS, Collections.<String, String>emptyMap(), attrs);
+    }
+}
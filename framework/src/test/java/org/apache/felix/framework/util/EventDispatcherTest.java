@@ -26,6 +26,8 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -34,6 +36,8 @@ import org.apache.felix.framework.ServiceRegistry;
 import org.easymock.EasyMock;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
@@ -154,6 +158,89 @@ public class EventDispatcherTest extends TestCase
         assertTrue(calledHooks.contains(eh2));
     }
 
+    public void testFireBundleEventWithWorkers() throws Exception
+    {
+        final Bundle b1 = getMockBundle();
+        final Bundle b2 = getMockBundle();
+
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry, 2);
+        ed.startDispatching();
+
+        try
+        {
+            // The first listener blocks until released, which must not
+            // delay the second listener, since it is served by another worker.
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<BundleEvent> slowFired =
+                Collections.synchronizedList(new ArrayList<BundleEvent>());
+            BundleListener slow = new BundleListener()
+            {
+                public void bundleChanged(BundleEvent event)
+                {
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                    }
+                    slowFired.add(event);
+                }
+            };
+            ed.addListener(b1.getBundleContext(), BundleListener.class, slow, null);
+
+            final CountDownLatch fastDone = new CountDownLatch(3);
+            final List<BundleEvent> fastFired =
+                Collections.synchronizedList(new ArrayList<BundleEvent>());
+            BundleListener fast = new BundleListener()
+            {
+                public void bundleChanged(BundleEvent event)
+                {
+                    fastFired.add(event);
+                    fastDone.countDown();
+                }
+            };
+            ed.addListener(b2.getBundleContext(), BundleListener.class, fast, null);
+
+            Framework framework = (Framework) EasyMock.createNiceMock(Framework.class);
+            EasyMock.replay(new Object[]
+                {
+                    framework
+                });
+
+            List<BundleEvent> events = new ArrayList<BundleEvent>();
+            events.add(new BundleEvent(BundleEvent.INSTALLED, b1));
+            events.add(new BundleEvent(BundleEvent.RESOLVED, b1));
+            events.add(new BundleEvent(BundleEvent.STARTED, b1));
+            for (BundleEvent event : events)
+            {
+                ed.fireBundleEvent(event, framework);
+            }
+
+            assertTrue("Fast listener was blocked by slow listener.",
+                fastDone.await(10, TimeUnit.SECONDS));
+            assertEquals(events, fastFired);
+            assertEquals(0, slowFired.size());
+            assertTrue(ed.getQueueDepth() > 0);
+
+            release.countDown();
+        }
+        finally
+        {
+            ed.stopDispatching();
+        }
+
+        // Stopping delivers all queued events.
+        assertEquals(0, ed.getQueueDepth());
+        assertEquals(2, ed.getListenerStatistics().size());
+        for (EventDispatcher.ListenerStatistics stats : ed.getListenerStatistics())
+        {
+            assertEquals(3, stats.getDeliveryCount());
+        }
+    }
+
     private Bundle getMockBundle()
     {
         BundleContext bc = (BundleContext) EasyMock.createNiceMock(BundleContext.class);
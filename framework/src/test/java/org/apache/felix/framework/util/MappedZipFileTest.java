@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+
+public class MappedZipFileTest extends TestCase
+{
+    private byte[] m_contentBytes;
+    private File m_tmpZip;
+
+    protected void setUp() throws Exception
+    {
+        m_contentBytes = new byte[16384];
+        for (int i = 0; i < m_contentBytes.length; i++)
+        {
+            m_contentBytes[i] = (byte) ((i % 65) + 65);
+        }
+
+        m_tmpZip = File.createTempFile("felix.test", ".zip");
+        m_tmpZip.deleteOnExit();
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(m_tmpZip));
+        zos.putNextEntry(new ZipEntry("dir/"));
+        zos.putNextEntry(new ZipEntry("dir/deflated.txt"));
+        zos.write(m_contentBytes);
+        ZipEntry ze = new ZipEntry("dir/stored.txt");
+        ze.setMethod(ZipEntry.STORED);
+        ze.setSize(m_contentBytes.length);
+        CRC32 crc = new CRC32();
+        crc.update(m_contentBytes);
+        ze.setCrc(crc.getValue());
+        zos.putNextEntry(ze);
+        zos.write(m_contentBytes);
+        zos.putNextEntry(new ZipEntry("empty.txt"));
+        zos.close();
+    }
+
+    public void testEntries() throws Exception
+    {
+        MappedZipFile zipFile = new MappedZipFile(m_tmpZip);
+
+        assertTrue(zipFile.hasEntry("dir/"));
+        assertTrue("Directory not found without trailing slash.",
+            zipFile.hasEntry("dir"));
+        assertTrue(zipFile.hasEntry("dir/deflated.txt"));
+        assertTrue(zipFile.hasEntry("dir/stored.txt"));
+        assertTrue(zipFile.hasEntry("empty.txt"));
+        assertFalse(zipFile.hasEntry("missing.txt"));
+        assertNull(zipFile.getEntryAsBytes("missing.txt"));
+        assertNull(zipFile.getInputStream("missing.txt"));
+
+        List<String> names = new ArrayList<String>();
+        for (Enumeration<String> e = zipFile.getEntryNames(); e.hasMoreElements(); )
+        {
+            names.add(e.nextElement());
+        }
+        assertEquals(Arrays.asList(
+            "dir/", "dir/deflated.txt", "dir/stored.txt", "empty.txt"), names);
+    }
+
+    public void testContent() throws Exception
+    {
+        MappedZipFile zipFile = new MappedZipFile(m_tmpZip);
+
+        assertTrue(Arrays.equals(m_contentBytes,
+            zipFile.getEntryAsBytes("dir/deflated.txt")));
+        assertTrue(Arrays.equals(m_contentBytes,
+            zipFile.getEntryAsBytes("dir/stored.txt")));
+        assertEquals(0, zipFile.getEntryAsBytes("empty.txt").length);
+
+        assertTrue(Arrays.equals(m_contentBytes,
+            readFully(zipFile.getInputStream("dir/deflated.txt"))));
+        assertTrue(Arrays.equals(m_contentBytes,
+            readFully(zipFile.getInputStream("dir/stored.txt"))));
+        assertEquals(0, readFully(zipFile.getInputStream("empty.txt")).length);
+    }
+
+    public void testNotAZipFile() throws Exception
+    {
+        File tmp = File.createTempFile("felix.test", ".txt");
+        tmp.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(tmp);
+        fos.write(m_contentBytes);
+        fos.close();
+
+        try
+        {
+            new MappedZipFile(tmp);
+            fail("Expected an IOException for a non-ZIP file.");
+        }
+        catch (IOException ex)
+        {
+            // Expected.
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[1000];
+            int n;
+            while ((n = is.read(buf)) >= 0)
+            {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+public class ServiceListenerIndexTest extends TestCase
+{
+    private BundleContext m_context;
+
+    protected void setUp() throws Exception
+    {
+        m_context = (BundleContext) EasyMock.createNiceMock(BundleContext.class);
+        EasyMock.replay(new Object[]
+            {
+                m_context
+            });
+    }
+
+    public void testObjectClassIndex() throws Exception
+    {
+        ListenerInfo foo = createListenerInfo("(objectClass=foo)");
+        ListenerInfo fooAndBar = createListenerInfo("(&(objectClass=foo)(bar=*))");
+        ListenerInfo fooOrBar = createListenerInfo("(|(objectClass=foo)(objectClass=bar))");
+        ListenerInfo baz = createListenerInfo("(objectclass=baz)");
+        ListenerInfo all = createListenerInfo(null);
+        ListenerInfo substring = createListenerInfo("(objectClass=f*)");
+
+        ServiceListenerIndex index = ServiceListenerIndex.EMPTY
+            .add(foo).add(fooAndBar).add(fooOrBar).add(baz).add(all).add(substring);
+
+        assertListeners(index.getListeners(createReference(
+            Constants.OBJECTCLASS, new String[] { "foo" }), null),
+            foo, fooAndBar, fooOrBar, all, substring);
+        assertListeners(index.getListeners(createReference(
+            Constants.OBJECTCLASS, new String[] { "bar", "baz" }), null),
+            fooOrBar, baz, all, substring);
+        assertListeners(index.getListeners(createReference(
+            Constants.OBJECTCLASS, new String[] { "other" }), null),
+            all, substring);
+
+        index = index.remove(foo).remove(all);
+        assertListeners(index.getListeners(createReference(
+            Constants.OBJECTCLASS, new String[] { "foo" }), null),
+            fooAndBar, fooOrBar, substring);
+    }
+
+    public void testOtherAttributes() throws Exception
+    {
+        ListenerInfo pid = createListenerInfo("(service.pid=a)");
+        ListenerInfo ranking = createListenerInfo("(&(service.ranking=5)(x>=1))");
+
+        ServiceListenerIndex index = ServiceListenerIndex.EMPTY.add(pid).add(ranking);
+
+        assertListeners(index.getListeners(createReference(
+            "service.pid", "a"), null),
+            pid);
+        assertListeners(index.getListeners(createReference(
+            "service.pid", "b"), null));
+        // Non-string values are coerced by filters, so all listeners
+        // indexed under the attribute are candidates.
+        assertListeners(index.getListeners(createReference(
+            "service.ranking", new Integer(7)), null),
+            ranking);
+
+        // Listeners matching the old properties of a modified service
+        // are candidates, since they may need a MODIFIED_ENDMATCH event.
+        Hashtable oldProps = new Hashtable();
+        oldProps.put("service.pid", "a");
+        assertListeners(index.getListeners(createReference(
+            "service.pid", "b"), oldProps),
+            pid);
+    }
+
+    private ListenerInfo createListenerInfo(String filter) throws Exception
+    {
+        ServiceListener l = new ServiceListener()
+        {
+            public void serviceChanged(ServiceEvent event)
+            {
+            }
+        };
+        return new ListenerInfo((Bundle) null, m_context, ServiceListener.class, l,
+            (filter == null) ? null : FrameworkUtil.createFilter(filter), null, false);
+    }
+
+    private ServiceReference createReference(String key, Object value)
+    {
+        ServiceReference ref = (ServiceReference)
+            EasyMock.createNiceMock(ServiceReference.class);
+        EasyMock.expect(ref.getProperty(key)).andReturn(value).anyTimes();
+        EasyMock.replay(new Object[]
+            {
+                ref
+            });
+        return ref;
+    }
+
+    private void assertListeners(
+        Map<BundleContext, List<ListenerInfo>> listeners, ListenerInfo... expected)
+    {
+        Collection<ListenerInfo> actual = new ArrayList<ListenerInfo>();
+        for (List<ListenerInfo> infos : listeners.values())
+        {
+            actual.addAll(infos);
+        }
+        assertEquals(expected.length, actual.size());
+        for (ListenerInfo info : expected)
+        {
+            assertTrue("Missing listener " + info.getFilter(), actual.contains(info));
+        }
+    }
+}
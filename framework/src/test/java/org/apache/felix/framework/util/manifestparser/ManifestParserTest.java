@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+public class ManifestParserTest extends TestCase
+{
+    private static final String IMPORTS =
+        "org.osgi.framework;version=\"[1.5,2)\",org.osgi.util.tracker;resolution:=optional";
+
+    public void testSharedHeaderValues() throws Exception
+    {
+        ManifestParser first = createParser("a", IMPORTS, "a.api;uses:=\"org.osgi.framework\"");
+        ManifestParser second = createParser("b", IMPORTS, "b.api;uses:=\"org.osgi.framework\"");
+
+        List<BundleRequirement> firstReqs = getRequirements(first, BundleRevision.PACKAGE_NAMESPACE);
+        List<BundleRequirement> secondReqs = getRequirements(second, BundleRevision.PACKAGE_NAMESPACE);
+        assertEquals(2, firstReqs.size());
+        assertEquals(2, secondReqs.size());
+        for (int i = 0; i < firstReqs.size(); i++)
+        {
+            // Equal imports of different bundles share their directives.
+            assertSame(firstReqs.get(i).getDirectives(), secondReqs.get(i).getDirectives());
+        }
+        assertEquals(Constants.RESOLUTION_OPTIONAL,
+            secondReqs.get(1).getDirectives().get(Constants.RESOLUTION_DIRECTIVE));
+
+        BundleCapability firstExport =
+            getCapabilities(first, BundleRevision.PACKAGE_NAMESPACE).get(0);
+        BundleCapability secondExport =
+            getCapabilities(second, BundleRevision.PACKAGE_NAMESPACE).get(0);
+        assertSame(firstExport.getDirectives(), secondExport.getDirectives());
+        assertEquals("a.api", firstExport.getAttributes().get(BundleRevision.PACKAGE_NAMESPACE));
+        assertEquals("a", firstExport.getAttributes().get(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE));
+        assertEquals("b", secondExport.getAttributes().get(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE));
+        assertSame(firstExport.getAttributes().get(Constants.VERSION_ATTRIBUTE),
+            secondExport.getAttributes().get(Constants.VERSION_ATTRIBUTE));
+    }
+
+    public void testCachedHeaderIsNotModified() throws Exception
+    {
+        // Imports are normalized in place, so parsing the same header again
+        // must not see the normalized values of the previous parse.
+        for (int i = 0; i < 3; i++)
+        {
+            ManifestParser parser = createParser("c" + i, IMPORTS, null);
+            List<BundleRequirement> reqs =
+                getRequirements(parser, BundleRevision.PACKAGE_NAMESPACE);
+            assertEquals(2, reqs.size());
+            assertEquals(
+                "(&(osgi.wiring.package=org.osgi.framework)(version>=1.5.0)(!(version>=2.0.0)))",
+                reqs.get(0).getDirectives().get(Constants.FILTER_DIRECTIVE));
+        }
+    }
+
+    private static ManifestParser createParser(String bsn, String imports, String exports)
+        throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, bsn);
+        headers.put(Constants.IMPORT_PACKAGE, imports);
+        if (exports != null)
+        {
+            headers.put(Constants.EXPORT_PACKAGE, exports);
+        }
+        return new ManifestParser(new Logger(), new HashMap(), null, headers);
+    }
+
+    private static List<BundleRequirement> getRequirements(ManifestParser parser, String namespace)
+    {
+        List<BundleRequirement> reqs = new ArrayList<BundleRequirement>();
+        for (BundleRequirement req : parser.getRequirements())
+        {
+            if (req.getNamespace().equals(namespace))
+            {
+                reqs.add(req);
+            }
+        }
+        return reqs;
+    }
+
+    private static List<BundleCapability> getCapabilities(ManifestParser parser, String namespace)
+    {
+        List<BundleCapability> caps = new ArrayList<BundleCapability>();
+        for (BundleCapability cap : parser.getCapabilities())
+        {
+            if (cap.getNamespace().equals(namespace))
+            {
+                caps.add(cap);
+            }
+        }
+        return caps;
+    }
+}
@@ -18,6 +18,7 @@
  */
 package org.apache.felix.resolver;
 
+import java.util.Hashtable;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.resolver.Resolver;
@@ -25,25 +26,48 @@ import org.osgi.service.resolver.Resolver;
 public class Activator implements BundleActivator
 {
     public static final String LOG_LEVEL = "felix.resolver.log.level";
+    public static final String PARALLELISM = "felix.resolver.parallelism";
 
     public void start(BundleContext bc) throws Exception
     {
-        int logLevel = 4;
-        if (bc.getProperty(LOG_LEVEL) != null)
+        int logLevel = getIntProperty(bc, LOG_LEVEL, 4);
+        bc.registerService(
+            Resolver.class,
+            new ResolverImpl(new Logger(logLevel)),
+            null);
+
+        // Finding candidates in parallel invokes the findProviders() method
+        // of the resolve context from multiple threads, so it is only offered
+        // by a separate service that clients with thread safe resolve contexts
+        // have to select explicitly by its parallelism property. Since it is
+        // registered after the serial service, it is never the default.
+        int parallelism = getIntProperty(bc, PARALLELISM, 1);
+        if (parallelism > 1)
+        {
+            Hashtable<String, Object> props = new Hashtable<String, Object>();
+            props.put(PARALLELISM, Integer.valueOf(parallelism));
+            bc.registerService(
+                Resolver.class,
+                new ResolverImpl(new Logger(logLevel), parallelism),
+                props);
+        }
+    }
+
+    private static int getIntProperty(BundleContext bc, String name, int defaultValue)
+    {
+        String value = bc.getProperty(name);
+        if (value != null)
         {
             try
             {
-                logLevel = Integer.parseInt(bc.getProperty(LOG_LEVEL));
+                return Integer.parseInt(value.trim());
             }
             catch (NumberFormatException ex)
             {
-                // Use default log level.
+                // Use default value.
             }
         }
-        bc.registerService(
-            Resolver.class,
-            new ResolverImpl(new Logger(logLevel)),
-            null);
+        return defaultValue;
     }
 
     public void stop(BundleContext bc) throws Exception
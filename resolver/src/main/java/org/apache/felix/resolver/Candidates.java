@@ -19,6 +19,7 @@
 package org.apache.felix.resolver;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,6 +29,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.osgi.framework.Version;
 import org.osgi.framework.namespace.HostNamespace;
 import org.osgi.framework.namespace.PackageNamespace;
@@ -56,6 +58,9 @@ class Candidates
     private final Map<Resource, WrappedResource> m_allWrappedHosts;
     // Map used when populating candidates to hold intermediate and final results.
     private final Map<Resource, Object> m_populateResultCache;
+    // Maps a requirement to its providers if they were already found in
+    // advance; see prefetchProviders().
+    private final Map<Requirement, List<Capability>> m_prefetchedProviders;
 
     // Flag to signal if fragments are present in the candidate map.
     private boolean m_fragmentsPresent = false;
@@ -80,18 +85,165 @@ class Candidates
         m_allWrappedHosts = wrappedHosts;
         m_populateResultCache = populateResultCache;
         m_fragmentsPresent = fragmentsPresent;
+        m_prefetchedProviders = Collections.EMPTY_MAP;
     }
 
     /**
      * Constructs an empty Candidates object.
     **/
     public Candidates()
+    {
+        this(Collections.EMPTY_MAP);
+    }
+
+    /**
+     * Constructs an empty Candidates object that uses the specified
+     * providers instead of querying the resolve context, if present.
+     * @param prefetchedProviders providers found by <tt>prefetchProviders()</tt>.
+    **/
+    public Candidates(Map<Requirement, List<Capability>> prefetchedProviders)
     {
         m_mandatoryResources = new HashSet<Resource>();
         m_dependentMap = new HashMap<Capability, Set<Requirement>>();
         m_candidateMap = new HashMap<Requirement, List<Capability>>();
         m_allWrappedHosts = new HashMap<Resource, WrappedResource>();
         m_populateResultCache = new HashMap<Resource, Object>();
+        m_prefetchedProviders = prefetchedProviders;
+    }
+
+    /**
+     * Finds the providers for all requirements that populating candidates
+     * for the specified resources will ask for, using the specified number
+     * of threads. The resources are processed breadth first, where each
+     * level consists of the unresolved resources providing candidates to
+     * the previous level, and the providers of all requirements of a level
+     * are found concurrently. Since finding providers has no side effects,
+     * populating candidates with the result yields exactly the same
+     * candidates and resolution exceptions as populating them serially.
+     * @param rc the resolve context used to find providers.
+     * @param resources the resources whose candidates will be populated.
+     * @param parallelism the number of threads to use.
+     * @return a map of requirements to their providers.
+    **/
+    static Map<Requirement, List<Capability>> prefetchProviders(
+        ResolveContext rc, Collection<Resource> resources, int parallelism)
+    {
+        Map<Requirement, List<Capability>> prefetched =
+            new HashMap<Requirement, List<Capability>>();
+        Set<Resource> visited = new HashSet<Resource>(resources);
+        List<Resource> level = new ArrayList<Resource>(resources);
+
+        while (!level.isEmpty())
+        {
+            // Gather the requirements of the current level, ignoring
+            // the same requirements as populateResource().
+            List<Requirement> reqs = new ArrayList<Requirement>();
+            for (Resource resource : level)
+            {
+                for (Requirement req : resource.getRequirements(null))
+                {
+                    String resolution = req.getDirectives()
+                        .get(PackageNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE);
+                    if (rc.isEffective(req)
+                        && ((resolution == null)
+                            || !resolution.equals(PackageNamespace.RESOLUTION_DYNAMIC)))
+                    {
+                        reqs.add(req);
+                    }
+                }
+            }
+
+            List<Capability>[] results = findProviders(rc, reqs, parallelism);
+            if (results == null)
+            {
+                // We were interrupted, so just let the remaining
+                // providers be found serially.
+                break;
+            }
+
+            level = new ArrayList<Resource>();
+            for (int i = 0; i < results.length; i++)
+            {
+                if (results[i] == null)
+                {
+                    continue;
+                }
+                prefetched.put(reqs.get(i), results[i]);
+                for (Capability cap : results[i])
+                {
+                    Resource resource = cap.getResource();
+                    if ((Util.isFragment(resource)
+                        || !rc.getWirings().containsKey(resource))
+                        && visited.add(resource))
+                    {
+                        level.add(resource);
+                    }
+                }
+            }
+        }
+
+        return prefetched;
+    }
+
+    /**
+     * Finds the providers of the specified requirements using the specified
+     * number of threads, where the calling thread is one of them.
+     * @param rc the resolve context used to find providers.
+     * @param reqs the requirements whose providers should be found.
+     * @param parallelism the number of threads to use.
+     * @return an array containing the providers for each requirement at the
+     *         same index, which is <tt>null</tt> if finding them failed, or
+     *         <tt>null</tt> if the calling thread was interrupted.
+    **/
+    private static List<Capability>[] findProviders(
+        final ResolveContext rc, final List<Requirement> reqs, int parallelism)
+    {
+        final List<Capability>[] results = new List[reqs.size()];
+        final AtomicInteger next = new AtomicInteger(0);
+        Runnable finder = new Runnable() {
+            public void run()
+            {
+                for (int i = next.getAndIncrement(); i < results.length;
+                    i = next.getAndIncrement())
+                {
+                    try
+                    {
+                        results[i] = rc.findProviders(reqs.get(i));
+                    }
+                    catch (Throwable th)
+                    {
+                        // Leave it to populateResource() to find the
+                        // providers again and report any errors.
+                    }
+                }
+            }
+        };
+
+        Thread[] threads =
+            new Thread[Math.max(0, Math.min(parallelism, results.length) - 1)];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(finder, "FelixResolver-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        finder.run();
+        for (int i = 0; i < threads.length; i++)
+        {
+            try
+            {
+                threads[i].join();
+            }
+            catch (InterruptedException ex)
+            {
+                // The results of the other threads are not safely
+                // visible, so they cannot be used.
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        return results;
     }
 
     /**
@@ -262,7 +414,10 @@ class Candidates
 
             // Process the candidates, removing any candidates that
             // cannot resolve.
-            List<Capability> candidates = rc.findProviders(req);
+            List<Capability> candidates = m_prefetchedProviders.get(req);
+            candidates = (candidates != null)
+                ? new ArrayList<Capability>(candidates)
+                : rc.findProviders(req);
             ResolutionException rethrow = processCandidates(rc, resource, candidates);
 
             // First, due to cycles, makes sure we haven't already failed in
@@ -49,6 +49,10 @@ import org.osgi.service.resolver.Resolver;
 public class ResolverImpl implements Resolver
 {
     private final Logger m_logger;
+    // Number of threads used to find candidates; only used if greater
+    // than one, in which case all resolve contexts passed to this resolver
+    // must support concurrent invocation of findProviders().
+    private final int m_parallelism;
 
     // Note this class is not thread safe.
     // Only use in the context of a single thread.
@@ -107,8 +111,14 @@ public class ResolverImpl implements Resolver
     }
 
     public ResolverImpl(Logger logger)
+    {
+        this(logger, 1);
+    }
+
+    public ResolverImpl(Logger logger, int parallelism)
     {
         m_logger = logger;
+        m_parallelism = parallelism;
     }
 
     public Map<Resource, List<Wire>> resolve(ResolveContext rc) throws ResolutionException
@@ -127,6 +137,31 @@ public class ResolverImpl implements Resolver
 //            ? ((ResolveContextImpl) rc).getOndemandResources() : Collections.EMPTY_LIST;
         Collection<Resource> ondemandFragments = Collections.EMPTY_LIST;
 
+        // If configured, find the providers of all requirements that we
+        // may need in parallel up front; populating candidates will use
+        // these results in the usual order.
+        Map<Requirement, List<Capability>> prefetchedProviders = Collections.EMPTY_MAP;
+        if (m_parallelism > 1)
+        {
+            List<Resource> resources = new ArrayList<Resource>();
+            for (Resource resource : mandatoryResources)
+            {
+                if (Util.isFragment(resource) || (rc.getWirings().get(resource) == null))
+                {
+                    resources.add(resource);
+                }
+            }
+            for (Resource resource : optionalResources)
+            {
+                if (Util.isFragment(resource) || (rc.getWirings().get(resource) == null))
+                {
+                    resources.add(resource);
+                }
+            }
+            prefetchedProviders =
+                Candidates.prefetchProviders(rc, resources, m_parallelism);
+        }
+
         boolean retry;
         do
         {
@@ -135,7 +170,7 @@ public class ResolverImpl implements Resolver
             try
             {
                 // Create object to hold all candidates.
-                Candidates allCandidates = new Candidates();
+                Candidates allCandidates = new Candidates(prefetchedProviders);
 
                 // Populate mandatory resources; since these are mandatory
                 // resources, failure throws a resolve exception.
@@ -31,6 +31,9 @@ public class Activator implements BundleActivator
     /** Registration for the plugin. */
     private ServiceRegistration pluginRegistration;
 
+    /** Registration for the statistics plugin. */
+    private ServiceRegistration statisticsRegistration;
+
     /** Listener */
     private EventListener eventListener;
 
@@ -64,6 +67,16 @@ public class Activator implements BundleActivator
         this.pluginRegistration = context.registerService(Servlet.class.getName(),
                                 plugin,
                                 props);
+
+        // and the statistics plugin next to it
+        final Dictionary statsProps = new Hashtable();
+        statsProps.put( Constants.SERVICE_DESCRIPTION, "Event Statistics Plugin for the Apache Felix Web Console" );
+        statsProps.put( Constants.SERVICE_VENDOR, "The Apache Software Foundation" );
+        statsProps.put( "felix.webconsole.label", "eventstats");
+        statsProps.put( "felix.webconsole.title", "%plugin.eventstats.title");
+        this.statisticsRegistration = context.registerService(Servlet.class.getName(),
+                                new StatisticsServlet(context),
+                                statsProps);
     }
 
     /**
@@ -71,6 +84,11 @@ public class Activator implements BundleActivator
      */
     public void stop(final BundleContext context) throws Exception
     {
+        if ( this.statisticsRegistration != null )
+        {
+            this.statisticsRegistration.unregister();
+            this.statisticsRegistration = null;
+        }
         if ( this.pluginRegistration != null )
         {
             this.pluginRegistration.unregister();
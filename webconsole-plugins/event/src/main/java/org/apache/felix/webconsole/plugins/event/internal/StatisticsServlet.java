@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.webconsole.plugins.event.internal;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.eventadmin.EventAdminStatistics;
+import org.apache.felix.eventadmin.HandlerStatistics;
+import org.apache.felix.eventadmin.TopicStatistics;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The Event Statistics Plugin shows the delivery times of the event
+ * handlers, slowest first, and the number of events per topic as
+ * provided by the Apache Felix Event Admin statistics service.
+ */
+public class StatisticsServlet extends HttpServlet
+{
+    private static final String STATISTICS_CLASS_NAME = "org.apache.felix.eventadmin.EventAdminStatistics"; //$NON-NLS-1$
+
+    private static final String ACTION_RESET = "reset"; //$NON-NLS-1$
+
+    private static final String PARAMETER_ACTION = "action"; //$NON-NLS-1$
+
+    private final BundleContext bundleContext;
+
+    public StatisticsServlet(final BundleContext context)
+    {
+        this.bundleContext = context;
+    }
+
+    /**
+     * @see javax.servlet.http.HttpServlet#doPost(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    protected void doPost( HttpServletRequest req, HttpServletResponse resp )
+    throws ServletException, IOException
+    {
+        if ( ACTION_RESET.equals( req.getParameter( PARAMETER_ACTION ) ) )
+        {
+            final ServiceReference ref = this.bundleContext.getServiceReference(STATISTICS_CLASS_NAME);
+            if ( ref != null )
+            {
+                try
+                {
+                    final EventAdminStatistics statistics = (EventAdminStatistics)this.bundleContext.getService(ref);
+                    if ( statistics != null )
+                    {
+                        statistics.reset();
+                    }
+                }
+                finally
+                {
+                    this.bundleContext.ungetService(ref);
+                }
+            }
+        }
+        resp.sendRedirect( req.getRequestURI() );
+    }
+
+    /**
+     * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    protected void doGet( HttpServletRequest request, HttpServletResponse response )
+    throws ServletException, IOException
+    {
+        final PrintWriter pw = response.getWriter();
+        final ServiceReference ref = this.bundleContext.getServiceReference(STATISTICS_CLASS_NAME);
+        if ( ref == null )
+        {
+            pw.println("<p class='statline ui-state-highlight'>${stats.notAvailable}</p>"); //$NON-NLS-1$
+            return;
+        }
+        try
+        {
+            final EventAdminStatistics statistics = (EventAdminStatistics)this.bundleContext.getService(ref);
+            if ( statistics == null )
+            {
+                pw.println("<p class='statline ui-state-highlight'>${stats.notAvailable}</p>"); //$NON-NLS-1$
+                return;
+            }
+            this.render(pw, statistics);
+        }
+        catch (LinkageError le)
+        {
+            // the statistics package is imported dynamically and might be missing
+            pw.println("<p class='statline ui-state-highlight'>${stats.notAvailable}</p>"); //$NON-NLS-1$
+        }
+        finally
+        {
+            this.bundleContext.ungetService(ref);
+        }
+    }
+
+    private void render(final PrintWriter pw, final EventAdminStatistics statistics)
+    {
+        final long start = statistics.getStartTime();
+        final long seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+        final HandlerStatistics[] handlers = statistics.getHandlerStatistics();
+        Arrays.sort(handlers, new Comparator()
+        {
+            public int compare(final Object o1, final Object o2)
+            {
+                final long t1 = ((HandlerStatistics)o1).getPercentile99Time();
+                final long t2 = ((HandlerStatistics)o2).getPercentile99Time();
+                return t1 > t2 ? -1 : (t1 < t2 ? 1 : 0);
+            }
+        });
+        final TopicStatistics[] topics = statistics.getTopicStatistics();
+        Arrays.sort(topics, new Comparator()
+        {
+            public int compare(final Object o1, final Object o2)
+            {
+                final long c1 = getCount((TopicStatistics)o1);
+                final long c2 = getCount((TopicStatistics)o2);
+                return c1 > c2 ? -1 : (c1 < c2 ? 1 : 0);
+            }
+        });
+
+        pw.println("<p class='statline'>${stats.since} " + new Date(start) //$NON-NLS-1$
+                + " - ${stats.queued}: " + statistics.getQueuedCount() //$NON-NLS-1$
+                + ", ${stats.dropped}: " + statistics.getDroppedCount() //$NON-NLS-1$
+                + ", ${stats.coalesced}: " + statistics.getCoalescedCount() //$NON-NLS-1$
+                + ", ${stats.maxLag}: " + statistics.getMaxQueueLag() + " ms</p>"); //$NON-NLS-1$ //$NON-NLS-2$
+
+        pw.println("<form method='post' action=''>"); //$NON-NLS-1$
+        pw.println("<div class='ui-widget-header ui-corner-top buttonGroup'>"); //$NON-NLS-1$
+        pw.println("<input type='hidden' name='" + PARAMETER_ACTION + "' value='" + ACTION_RESET + "'/>"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        pw.println("<button type='submit'>${stats.reset}</button>"); //$NON-NLS-1$
+        pw.println("</div>"); //$NON-NLS-1$
+        pw.println("</form>"); //$NON-NLS-1$
+
+        pw.println("<table class='nicetable'>"); //$NON-NLS-1$
+        pw.println("<thead><tr><th>${stats.handler}</th><th>${stats.service}</th><th>${stats.bundle}</th>" //$NON-NLS-1$
+                + "<th>${stats.count}</th><th>${stats.median}</th><th>${stats.p99}</th><th>${stats.max}</th></tr></thead>"); //$NON-NLS-1$
+        pw.println("<tbody>"); //$NON-NLS-1$
+        for(int i = 0; i < handlers.length; i++)
+        {
+            final HandlerStatistics handler = handlers[i];
+            pw.print("<tr><td>"); //$NON-NLS-1$
+            pw.print(handler.getHandlerClassName() == null ? "-" : escape(handler.getHandlerClassName())); //$NON-NLS-1$
+            if ( handler.isBlacklisted() )
+            {
+                pw.print(" (${stats.blacklisted})"); //$NON-NLS-1$
+            }
+            pw.print("</td><td>" + handler.getServiceId()); //$NON-NLS-1$
+            pw.print("</td><td>" + handler.getBundleId()); //$NON-NLS-1$
+            pw.print("</td><td>" + handler.getCount()); //$NON-NLS-1$
+            pw.print("</td><td>" + handler.getMedianTime()); //$NON-NLS-1$
+            pw.print("</td><td>" + handler.getPercentile99Time()); //$NON-NLS-1$
+            pw.print("</td><td>" + handler.getMaxTime()); //$NON-NLS-1$
+            pw.println("</td></tr>"); //$NON-NLS-1$
+        }
+        pw.println("</tbody></table>"); //$NON-NLS-1$
+
+        pw.println("<table class='nicetable'>"); //$NON-NLS-1$
+        pw.println("<thead><tr><th>${topic}</th><th>${stats.posted}</th><th>${stats.sent}</th>" //$NON-NLS-1$
+                + "<th>${stats.throughput}</th></tr></thead>"); //$NON-NLS-1$
+        pw.println("<tbody>"); //$NON-NLS-1$
+        for(int i = 0; i < topics.length; i++)
+        {
+            final TopicStatistics topic = topics[i];
+            pw.print("<tr><td>" + escape(topic.getTopic())); //$NON-NLS-1$
+            pw.print("</td><td>" + topic.getPostedCount()); //$NON-NLS-1$
+            pw.print("</td><td>" + topic.getSentCount()); //$NON-NLS-1$
+            pw.print("</td><td>" + getCount(topic) / seconds); //$NON-NLS-1$
+            pw.println("</td></tr>"); //$NON-NLS-1$
+        }
+        pw.println("</tbody></table>"); //$NON-NLS-1$
+    }
+
+    private static long getCount(final TopicStatistics topic)
+    {
+        return topic.getPostedCount() + topic.getSentCount();
+    }
+
+    private static String escape(final String text)
+    {
+        final StringBuffer sb = new StringBuffer(text.length());
+        for(int i = 0; i < text.length(); i++)
+        {
+            final char c = text.charAt(i);
+            switch (c)
+            {
+                case '<': sb.append("&lt;"); break; //$NON-NLS-1$
+                case '>': sb.append("&gt;"); break; //$NON-NLS-1$
+                case '&': sb.append("&amp;"); break; //$NON-NLS-1$
+                case '$': sb.append("&#36;"); break; //$NON-NLS-1$
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}